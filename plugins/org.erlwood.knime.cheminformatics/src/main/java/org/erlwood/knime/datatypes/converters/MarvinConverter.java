@@ -20,12 +20,16 @@
 */
 package org.erlwood.knime.datatypes.converters;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jp.co.infocom.cheminfo.marvin.type.MrvCellFactory;
 import jp.co.infocom.cheminfo.marvin.type.MrvValue;
@@ -57,6 +61,26 @@ import chemaxon.struc.Molecule;
 public class MarvinConverter implements IMoleculeConverter {
 	private static final NodeLogger LOG = NodeLogger.getLogger(MarvinConverter.class);
 
+	/** System property for the number of parsed molecules to keep. */
+	public static final String CACHE_SIZE_PROPERTY = "erlwood.marvin.cache.size";
+	
+	/** Longer molecule strings are not cached, they are unlikely to be converted again. */
+	private static final int MAX_CACHED_LENGTH = 65536;
+	
+	private static volatile int cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, 1000);
+	
+	/** Parsed molecules by their source string, in access order. Only ever hands out copies. */
+	private static final Map<String, Molecule> MOLECULE_CACHE = new LinkedHashMap<String, Molecule>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Molecule> eldest) {
+			return size() > cacheSize;
+		}
+	};
+	private static final AtomicLong CACHE_HITS = new AtomicLong();
+	private static final AtomicLong CACHE_MISSES = new AtomicLong();
+	
 	private static final Map<Class<? extends DataValue>, DataValueHolder> VALUE_TYPES = new HashMap<Class<? extends DataValue>, DataValueHolder>();
 	private static final List<ConversionPair> AVAILABLE_CONVERSIONS;
 	static {
@@ -64,13 +88,13 @@ public class MarvinConverter implements IMoleculeConverter {
 		
 		try {
 			DataValueHolder[] valueHolders = new DataValueHolder[] {
-				new DataValueHolder(MolValue.class,		"getMolValue", 		MFileFormat.MOL),
-			    new DataValueHolder(MrvValue.class,		"getMrvValue", 		MFileFormat.MRV),
-			    new DataValueHolder(SmilesValue.class, 	"getSmilesValue", 	MFileFormat.SMILES),
-			    new DataValueHolder(SdfValue.class, 	"getSdfValue", 		MFileFormat.SDF),
-			    new DataValueHolder(InchiValue.class, 	"getInchiString", 	MFileFormat.INCHI),
-			    new DataValueHolder(StringValue.class, 	"getStringValue", 	MFileFormat.MRV),
-			    new DataValueHolder(SmartsValue.class, 	"getSmartsValue", 	MFileFormat.SMARTS),
+				new DataValueHolder(MolValue.class,		"getMolValue", 		MFileFormat.MOL,	true),
+			    new DataValueHolder(MrvValue.class,		"getMrvValue", 		MFileFormat.MRV,	true),
+			    new DataValueHolder(SmilesValue.class, 	"getSmilesValue", 	MFileFormat.SMILES,	false),
+			    new DataValueHolder(SdfValue.class, 	"getSdfValue", 		MFileFormat.SDF,	true),
+			    new DataValueHolder(InchiValue.class, 	"getInchiString", 	MFileFormat.INCHI,	true),
+			    new DataValueHolder(StringValue.class, 	"getStringValue", 	MFileFormat.MRV,	false),
+			    new DataValueHolder(SmartsValue.class, 	"getSmartsValue", 	MFileFormat.SMARTS,	false),
 			};
 			
 			for (DataValueHolder dvh : valueHolders) {
@@ -109,11 +133,110 @@ public class MarvinConverter implements IMoleculeConverter {
 		AVAILABLE_CONVERSIONS = Collections.unmodifiableList(tmpConversions);
 	}
 	
+	/**
+	 * @return The number of conversions which found their parsed molecule in the cache
+	 */
+	public static long getCacheHits() {
+		return CACHE_HITS.get();
+	}
+	
+	/**
+	 * @return The number of conversions which had to parse their molecule
+	 */
+	public static long getCacheMisses() {
+		return CACHE_MISSES.get();
+	}
+	
+	/**
+	 * @return The maximum number of parsed molecules kept
+	 */
+	public static int getCacheSize() {
+		return cacheSize;
+	}
+	
+	/**
+	 * Set the maximum number of parsed molecules kept, 0 disables the cache.
+	 * @param size The new size
+	 */
+	public static void setCacheSize(int size) {
+		cacheSize = Math.max(0, size);
+		synchronized (MOLECULE_CACHE) {
+			if (cacheSize == 0) {
+				MOLECULE_CACHE.clear();
+			} else {
+				while (MOLECULE_CACHE.size() > cacheSize) {
+					MOLECULE_CACHE.remove(MOLECULE_CACHE.keySet().iterator().next());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Drop all cached molecules and reset the counters.
+	 */
+	public static void clearCache() {
+		synchronized (MOLECULE_CACHE) {
+			MOLECULE_CACHE.clear();
+		}
+		CACHE_HITS.set(0);
+		CACHE_MISSES.set(0);
+	}
+	
+	/**
+	 * Parse a molecule, or copy it from the cache if the same string was parsed recently.
+	 * The cache keeps its own copy, so callers are free to modify the molecule.
+	 * @param text The molecule string
+	 * @param format The format of the string, null to detect it
+	 * @return The molecule
+	 * @throws Exception On error
+	 */
+	private static Molecule parse(String text, String format) throws Exception {
+		if (cacheSize == 0 || text.length() > MAX_CACHED_LENGTH) {
+			return importMol(text, format);
+		}
+		Molecule cached;
+		synchronized (MOLECULE_CACHE) {
+			cached = MOLECULE_CACHE.get(text);
+		}
+		if (cached != null) {
+			CACHE_HITS.incrementAndGet();
+			return cached.cloneMolecule();
+		}
+		CACHE_MISSES.incrementAndGet();
+		Molecule mol = importMol(text, format);
+		Molecule copy = mol.cloneMolecule();
+		synchronized (MOLECULE_CACHE) {
+			MOLECULE_CACHE.put(text, copy);
+		}
+		return mol;
+	}
+	
+	private static Molecule importMol(String text, String format) throws Exception {
+		return format == null ? MolImporter.importMol(text) : MolImporter.importMol(text, format);
+	}
+	
 	@Override
 	public List<ConversionPair> getAvailableConversions() {
 		return AVAILABLE_CONVERSIONS;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getConversionCost(Class<? extends DataValue> sourceType, Class<? extends DataValue> outputType) {
+		int cost = MrvValue.class.equals(sourceType) ? COST_NATIVE : COST_TEXT;
+		if (MrvValue.class.equals(outputType)) {
+			cost += COST_NATIVE;
+		} else {
+			cost += COST_TEXT;
+			if (SmilesValue.class.equals(outputType) || InchiValue.class.equals(outputType) || SmartsValue.class.equals(outputType)) {
+				cost += COST_LOSSY;
+			}
+		}
+		return cost;
+	}
+
 	@Override
 	public DataCell createDataCell(DataCell source, Class<? extends DataValue> sourceType, Class<? extends DataValue> targetType) throws Exception {
 		DataValue sv = null; //MoleculeDataTypeConverter.getValue(source, sourceType);
@@ -133,16 +256,38 @@ public class MarvinConverter implements IMoleculeConverter {
 	private static final class DataValueHolder {
 		private final Class<? extends DataValue> valueType;
 		private final MFileFormat marvinType;
-		private final Method getter;
 		
-		public DataValueHolder(Class<? extends DataValue> valueType, String getterName, MFileFormat marvinType) throws Exception {
+		/** The string getter, bound once as (DataValue)String. */
+		private final MethodHandle getter;
+		
+		/** The format to tell the importer, null if the strings have to be recognised. */
+		private final String importFormat;
+		
+		public DataValueHolder(Class<? extends DataValue> valueType, String getterName, MFileFormat marvinType,
+				boolean isTyped) throws Exception {
 			this.valueType = valueType;
 			this.marvinType = marvinType;
-			this.getter = valueType.getMethod(getterName);
+			this.getter = MethodHandles.publicLookup().unreflect(valueType.getMethod(getterName))
+					.asType(MethodType.methodType(String.class, DataValue.class));
+			this.importFormat = isTyped ? marvinType.getName() : null;
 		}
 
 		public Molecule getMolecule(DataValue input) throws Exception {
-			return MolImporter.importMol((String)getter.invoke(input));
+			//	No need to write and parse the molecule again, it is only read from here on
+			if (input instanceof MrvValue) {
+				return ((MrvValue) input).getMolecule();
+			}
+			return parse(getString(input), importFormat);
+		}
+		
+		private String getString(DataValue input) throws Exception {
+			try {
+				return (String) getter.invokeExact(input);
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
 		}
 
 		public Object getDataValue(Molecule mol) throws Exception {
@@ -151,14 +296,14 @@ public class MarvinConverter implements IMoleculeConverter {
 
 		public DataCell getCell(DataValue sv, DataValueHolder inputDvh) throws Exception {
 			Molecule mol = inputDvh.getMolecule(sv);
+			if (valueType.equals(MrvValue.class)) {
+				return MrvCellFactory.create(mol);
+			}
 			Object obj = getDataValue(mol);
 			
 			if (valueType.equals(MolValue.class)) {
 				return MolCellFactory.create((String) obj);
 			}
-			if (valueType.equals(MrvValue.class)) {
-				return MrvCellFactory.create(mol);
-			}
 			if (valueType.equals(SmilesValue.class)) {
 				return new SmilesCell((String) obj);
 			}
@@ -20,9 +20,13 @@
 */
 package org.erlwood.knime.datatypes.converters;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -35,7 +39,6 @@ import org.eclipse.core.runtime.Platform;
 import org.erlwood.knime.utils.chem.AdapterDataValueFilter;
 import org.erlwood.knime.utils.chem.IMoleculeConverter;
 import org.erlwood.knime.utils.chem.IMoleculeConverter.ConversionPair;
-import org.knime.chem.types.SdfValue;
 import org.knime.core.data.AdapterValue;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataType;
@@ -50,6 +53,7 @@ public final class MoleculeDataTypeConverter  {
 	private static final Map<Class<? extends DataValue>, Map<Class<? extends DataValue>, List<IMoleculeConverter>>> CONVERTER_MAP = new HashMap<Class<? extends DataValue>, Map<Class<? extends DataValue>, List<IMoleculeConverter>>>();
 	private static final Map<Class<? extends DataValue>, Class<? extends DataValue>[]> CONVERTIBLE_TYPES = new ConcurrentHashMap<Class<? extends DataValue>, Class<? extends DataValue>[]>();
 	private static final Map<String, List<ConverterChainEntry>> PREFERRED_CONVERTERS = new ConcurrentHashMap<String, List<ConverterChainEntry>>();
+	private static final Map<RouteKey, Route> ROUTES = new ConcurrentHashMap<RouteKey, Route>();
 	
 	
 	static {
@@ -182,30 +186,16 @@ public final class MoleculeDataTypeConverter  {
 		Set<Class<? extends DataValue>> typeSet = new HashSet<Class<? extends DataValue>>();
 		typeSet.add(outputType);
 		
-		boolean bCanUseSdf = false;
-		
-		Map<Class<? extends DataValue>, List<IMoleculeConverter>> map = CONVERTER_MAP.get(outputType);
-		if (map != null) {
-			for (Class<? extends DataValue> cnv : map.keySet()) {
-				if (typeSet.contains(cnv)) {
-					continue;
-				}
-				typeSet.add(cnv);
-				if (cnv.isAssignableFrom(SdfValue.class)) {
-					bCanUseSdf = true;
-				}
-			}
-		}
-		
-		if (bCanUseSdf) {
-			//	Now add those types that can convert to Sdf...
-			map = CONVERTER_MAP.get(SdfValue.class);
+		//	Every type with a route to the output type, over any number of converters
+		Deque<Class<? extends DataValue>> queue = new ArrayDeque<Class<? extends DataValue>>();
+		queue.add(outputType);
+		while (!queue.isEmpty()) {
+			Map<Class<? extends DataValue>, List<IMoleculeConverter>> map = CONVERTER_MAP.get(queue.poll());
 			if (map != null) {
 				for (Class<? extends DataValue> cnv : map.keySet()) {
-					if (typeSet.contains(cnv)) {
-						continue;
+					if (typeSet.add(cnv)) {
+						queue.add(cnv);
 					}
-					typeSet.add(cnv);
 				}
 			}
 		}
@@ -214,36 +204,6 @@ public final class MoleculeDataTypeConverter  {
 		return retVal;
 	}
 	
-	/**
-	 * Takes the required output type and the source DataCell and down-calls into the appropriate
-	 * converter object. 
-	 * @param outputType The required output DataValue
-	 * @param source The source cell
-	 * @return A valid DataCell
-	 * @throws Exception On error
-	 */
-	private static DataCell createDataCell(Class<? extends DataValue> outputType, DataCell source) throws Exception {
-		DataType dt = source.getType();
-		
-		if (dt.isCompatible(outputType)) {
-			return source;
-		}
-		if (dt.isAdaptable(outputType)) {
-			return source;
-		}
-		
-		
-		List<ConverterChainEntry> preferredConverterChain = getPreferredConverterChain(outputType, dt);
-		
-		DataCell outputCell = null;
-		DataCell tmpCell = source;
-		for (ConverterChainEntry conv : preferredConverterChain) {
-			outputCell = conv.createDataCell(tmpCell);
-			tmpCell = outputCell;
-		}
-		return outputCell;
-	}
-	
 	/**
 	 * Internal convenience method to create the concatenated preferred converter key.
 	 * @param outputType The output DataValue
@@ -324,74 +284,211 @@ public final class MoleculeDataTypeConverter  {
 		return sb.toString();
 	}
 	
+	/**
+	 * Finds the cheapest conversion route from the input to the output type. Every registered conversion is
+	 * an edge weighted by {@link IMoleculeConverter#getConversionCost(Class, Class)}, so a route which keeps
+	 * the molecule in memory is preferred over one which writes and parses text at every hop.
+	 * @param outputType The output DataValue
+	 * @param inputType The input DataValue
+	 * @return The converter chain, empty if there is no route
+	 */
 	private static List<ConverterChainEntry> findConversionRoute(Class<? extends DataValue> outputType,  Class<? extends DataValue> inputType) {
-		Set<Class<? extends DataValue>> scannedTypes = new HashSet<Class<? extends DataValue>>();
-		return findConversionRoute(outputType, inputType, scannedTypes);
-	}
-	
-	private static List<ConverterChainEntry> findConversionRoute(Class<? extends DataValue> outputType,  Class<? extends DataValue> inputType, Set<Class<? extends DataValue>> scannedTypes) {
-		List<ConverterChainEntry> retVal = new ArrayList<ConverterChainEntry>();
-	
-		ConverterChainEntry step1 = null;
+		Map<Class<? extends DataValue>, Integer> costs = new HashMap<Class<? extends DataValue>, Integer>();
+		Map<Class<? extends DataValue>, ConverterChainEntry> arrivedBy = new HashMap<Class<? extends DataValue>, ConverterChainEntry>();
+		Map<Class<? extends DataValue>, Class<? extends DataValue>> arrivedFrom = new HashMap<Class<? extends DataValue>, Class<? extends DataValue>>();
+		Set<Class<? extends DataValue>> done = new HashSet<Class<? extends DataValue>>();
+		costs.put(inputType, 0);
 		
-		Map<Class<? extends DataValue>, List<IMoleculeConverter>> map = CONVERTER_MAP.get(outputType);
-		if (map != null) {
-			for (Entry<Class<? extends DataValue>, List<IMoleculeConverter>>  es : map.entrySet()) {
-				if (es.getKey().equals(inputType)) {
-					retVal.add(new ConverterChainEntry(es.getValue().get(0), es.getKey(), outputType));
-					return retVal;
-				} else {
-					if (es.getKey().isAssignableFrom(SdfValue.class)) {
-						step1 = new ConverterChainEntry(es.getValue().get(0), es.getKey(), outputType);
-					}
+		while (true) {
+			//	The graph only has a handful of types, so a linear scan for the next one will do
+			Class<? extends DataValue> current = null;
+			int currentCost = Integer.MAX_VALUE;
+			for (Entry<Class<? extends DataValue>, Integer> c : costs.entrySet()) {
+				if (!done.contains(c.getKey()) && c.getValue() < currentCost) {
+					current = c.getKey();
+					currentCost = c.getValue();
 				}
 			}
-		}
-		
-		//	Must go through SDF...
-		if (step1 != null) {
-			map = CONVERTER_MAP.get(SdfValue.class);
-			if (map != null) {
-				for (Entry<Class<? extends DataValue>, List<IMoleculeConverter>>  es : map.entrySet()) {
-					if (es.getKey().isAssignableFrom(inputType)) {
-						retVal.add(new ConverterChainEntry(es.getValue().get(0), inputType, SdfValue.class));
-						retVal.add(step1);
-						break;
+			if (current == null) {
+				return new ArrayList<ConverterChainEntry>();
+			}
+			if (current.equals(outputType)) {
+				break;
+			}
+			done.add(current);
+			
+			for (Entry<Class<? extends DataValue>, Map<Class<? extends DataValue>, List<IMoleculeConverter>>> out : CONVERTER_MAP.entrySet()) {
+				if (done.contains(out.getKey())) {
+					continue;
+				}
+				for (Entry<Class<? extends DataValue>, List<IMoleculeConverter>>  es : out.getValue().entrySet()) {
+					if (!es.getKey().isAssignableFrom(current)) {
+						continue;
+					}
+					for (IMoleculeConverter conv : es.getValue()) {
+						int cost = currentCost + Math.max(1, conv.getConversionCost(es.getKey(), out.getKey()));
+						Integer known = costs.get(out.getKey());
+						if (known == null || cost < known) {
+							costs.put(out.getKey(), cost);
+							arrivedBy.put(out.getKey(), new ConverterChainEntry(conv, es.getKey(), out.getKey()));
+							arrivedFrom.put(out.getKey(), current);
+						}
 					}
 				}
 			}
 		}
-	
-		return retVal;
 		
+		LinkedList<ConverterChainEntry> retVal = new LinkedList<ConverterChainEntry>();
+		for (Class<? extends DataValue> t = outputType; !t.equals(inputType); t = arrivedFrom.get(t)) {
+			retVal.addFirst(arrivedBy.get(t));
+		}
+		return new ArrayList<ConverterChainEntry>(retVal);
 	}
 	
 	/**
 	 * Convenience method to extract a DataValue object from a cell irrespective of whether
-	 * it's a normal implementation or an adapter cell.
+	 * it's a normal implementation or an adapter cell. Inside row loops use
+	 * {@link #getValueConverter(DataType, Class)} instead.
 	 * @param source The cell to extract the value from
 	 * @param outputType The type of the output that is required
 	 * @return A DataValue of the correct type.
 	 */
-	@SuppressWarnings("unchecked")
 	public static <V extends DataValue> V getValue(DataCell source, Class<V> outputType) {
-		DataCell newSource = null;
-		
+		return getRoute(source.getType(), outputType).getValue(source, outputType);
+	}
+
+	/**
+	 * Creates a converter for the cells of a column with the conversion route already resolved,
+	 * so that converting a cell does not have to look anything up.
+	 * @param type The type of the column
+	 * @param outputType The type of the output that is required
+	 * @return The converter
+	 */
+	public static <V extends DataValue> ValueConverter<V> getValueConverter(DataType type, Class<V> outputType) {
+		return new ValueConverter<V>(type, outputType);
+	}
+	
+	/**
+	 * Returns the cached route for the input type and output value.
+	 * @param dt The input DataType
+	 * @param outputType The output DataValue
+	 * @return The route, never null
+	 */
+	private static Route getRoute(DataType dt, Class<? extends DataValue> outputType) {
+		RouteKey key = new RouteKey(dt, outputType);
+		Route route = ROUTES.get(key);
+		if (route == null) {
+			route = resolveRoute(dt, outputType);
+			ROUTES.put(key, route);
+		}
+		return route;
+	}
+	
+	private static Route resolveRoute(DataType dt, Class<? extends DataValue> outputType) {
+		if (dt.isCompatible(outputType) || dt.isAdaptable(outputType)) {
+			return new Route(dt, Collections.<ConverterChainEntry>emptyList());
+		}
 		try {
-			newSource = createDataCell(outputType, source);
-			
-			DataType dt = newSource.getType();
-			if (dt.isCompatible(outputType)) {
-				return (V)newSource;
+			List<ConverterChainEntry> chain = getPreferredConverterChain(outputType, dt);
+			if (chain != null && chain.size() > 0) {
+				return new Route(dt, chain);
 			}
-			if (dt.isAdaptable(outputType)) {
-				return ((AdapterValue)newSource).getAdapter(outputType);
-			}
-		} catch(Exception ex) {
+		} catch (Exception ex) {
 			LOG.debug(ex.getMessage(), ex);
 		}
+		return new Route(dt, null);
+	}
+
+	/**
+	 * Converts the cells of a single column. The route is resolved for the column type when the
+	 * converter is created and again only if a cell of a different type turns up.
+	 *
+	 * @param <V> The output DataValue type
+	 */
+	public static final class ValueConverter<V extends DataValue> {
+		private final Class<V> outputType;
+		private volatile Route route;
+		
+		private ValueConverter(DataType type, Class<V> outputType) {
+			this.outputType = outputType;
+			this.route = getRoute(type, outputType);
+		}
+		
+		/**
+		 * Extract the DataValue from a cell, converting it if needed.
+		 * @param source The cell to extract the value from
+		 * @return A DataValue of the correct type
+		 */
+		public V getValue(DataCell source) {
+			Route r = route;
+			DataType dt = source.getType();
+			if (r.type != dt && !r.type.equals(dt)) {
+				r = getRoute(dt, outputType);
+				route = r;
+			}
+			return r.getValue(source, outputType);
+		}
+	}
+	
+	/** A resolved conversion route for one input DataType. */
+	private static final class Route {
+		private final DataType type;
+		
+		/** The converters to run, empty if the cell can be used as it is and null if there is no route. */
+		private final List<ConverterChainEntry> chain;
 		
-		throw new IllegalStateException("Source Cell cannot be converted to " + outputType.getSimpleName());
+		private Route(DataType type, List<ConverterChainEntry> chain) {
+			this.type = type;
+			this.chain = chain;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private <V extends DataValue> V getValue(DataCell source, Class<V> outputType) {
+			if (chain != null) {
+				try {
+					DataCell newSource = source;
+					for (ConverterChainEntry conv : chain) {
+						newSource = conv.createDataCell(newSource);
+					}
+					
+					DataType dt = newSource.getType();
+					if (dt.isCompatible(outputType)) {
+						return (V)newSource;
+					}
+					if (dt.isAdaptable(outputType)) {
+						return ((AdapterValue)newSource).getAdapter(outputType);
+					}
+				} catch(Exception ex) {
+					LOG.debug(ex.getMessage(), ex);
+				}
+			}
+			throw new IllegalStateException("Source Cell cannot be converted to " + outputType.getSimpleName());
+		}
+	}
+	
+	/** The key of the route cache. */
+	private static final class RouteKey {
+		private final DataType type;
+		private final Class<? extends DataValue> outputType;
+		
+		private RouteKey(DataType type, Class<? extends DataValue> outputType) {
+			this.type = type;
+			this.outputType = outputType;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + outputType.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RouteKey)) {
+				return false;
+			}
+			RouteKey o = (RouteKey) obj;
+			return type.equals(o.type) && outputType.equals(o.outputType);
+		}
 	}
 
 	
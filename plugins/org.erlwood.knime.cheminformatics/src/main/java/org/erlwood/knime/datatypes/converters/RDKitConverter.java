@@ -28,6 +28,7 @@ import org.knime.chem.types.SdfValue;
 import org.knime.chem.types.SmilesCell;
 import org.knime.chem.types.SmilesValue;
 import org.knime.core.data.DataCell;
+import org.knime.core.data.DataCellTypeConverter;
 import org.knime.core.data.DataType;
 import org.knime.core.data.DataValue;
 import org.knime.core.node.NodeLogger;
@@ -38,6 +39,9 @@ import org.rdkit.knime.util.RDKitAdapterCellSupport;
 public class RDKitConverter implements IMoleculeConverter {
 	private static final NodeLogger LOG = NodeLogger.getLogger(RDKitConverter.class);
 
+	/** The RDKit converters are created once per thread instead of once per cell. */
+	private static final ThreadLocal<DataCellTypeConverter> SMILES_CONVERTER = new ThreadLocal<DataCellTypeConverter>();
+	private static final ThreadLocal<DataCellTypeConverter> SDF_CONVERTER = new ThreadLocal<DataCellTypeConverter>();
 	
 	/**
 	 * {@inheritDoc}
@@ -76,16 +80,35 @@ public class RDKitConverter implements IMoleculeConverter {
 		
 			
 		if (sourceType.isAssignableFrom(SmilesValue.class)) {
-			return RDKitAdapterCellSupport.createConverter(SmilesCell.TYPE, RDKitMolValue.class).convert(source);
+			DataCellTypeConverter conv = SMILES_CONVERTER.get();
+			if (conv == null) {
+				conv = RDKitAdapterCellSupport.createConverter(SmilesCell.TYPE, RDKitMolValue.class);
+				SMILES_CONVERTER.set(conv);
+			}
+			return conv.convert(source);
 		}
 		
 		if (sourceType.isAssignableFrom(SdfValue.class)) {
-			return RDKitAdapterCellSupport.createConverter(SdfCell.TYPE, RDKitMolValue.class).convert(source);
+			DataCellTypeConverter conv = SDF_CONVERTER.get();
+			if (conv == null) {
+				conv = RDKitAdapterCellSupport.createConverter(SdfCell.TYPE, RDKitMolValue.class);
+				SDF_CONVERTER.set(conv);
+			}
+			return conv.convert(source);
 		}
 		
 		return DataType.getMissingCell();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getConversionCost(Class<? extends DataValue> sourceType, Class<? extends DataValue> outputType) {
+		//	Parses text into a native RDKit molecule
+		return COST_TEXT + COST_NATIVE;
+	}
+
 	@Override
 	public String getName() {
 		return "RDKit Converter";
@@ -0,0 +1,205 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.fingerprintsimilarity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Nearest neighbour search over a set of data fingerprints.
+ *
+ * The data fingerprints are grouped by their number of set bits. For a given
+ * query only those groups are scored whose similarity bound
+ * ({@link FingerprintSimilarity.eMeasure#upperBound(int, int)}) can still reach
+ * the threshold or the current k-th best score, visiting the most promising
+ * groups first. Instances are immutable once built and may be searched from
+ * several threads at the same time.
+ */
+public final class FingerprintSearch {
+
+	/** Orders hits best first, ties broken by the lower data index. */
+	private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit a, Hit b) {
+			int c = Double.compare(b.similarity, a.similarity);
+			return c != 0 ? c : Integer.compare(a.index, b.index);
+		}
+	};
+
+	/** Data fingerprints ordered by their number of set bits. */
+	private final PackedFingerprint[] fingerprints;
+
+	/** The caller's index of each entry of fingerprints. */
+	private final int[] indices;
+
+	/** Entries with c set bits are stored in [bucketStart[c], bucketStart[c + 1]). */
+	private final int[] bucketStart;
+
+	/**
+	 * A single search result.
+	 */
+	public static final class Hit {
+		private final int index;
+		private final double similarity;
+
+		private Hit(int index, double similarity) {
+			this.index = index;
+			this.similarity = similarity;
+		}
+
+		/**
+		 * @return The index of the data fingerprint as passed to the constructor
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The similarity to the query
+		 */
+		public double getSimilarity() {
+			return similarity;
+		}
+	}
+
+	/**
+	 * Builds the search index.
+	 *
+	 * @param data The data fingerprints, null entries (missing values) are skipped
+	 */
+	public FingerprintSearch(List<PackedFingerprint> data) {
+		int maxCount = 0;
+		int size = 0;
+		for (PackedFingerprint fp : data) {
+			if (fp != null) {
+				maxCount = Math.max(maxCount, fp.cardinality());
+				size++;
+			}
+		}
+
+		// counting sort by the number of set bits
+		bucketStart = new int[maxCount + 2];
+		for (PackedFingerprint fp : data) {
+			if (fp != null) {
+				bucketStart[fp.cardinality() + 1]++;
+			}
+		}
+		for (int c = 1; c < bucketStart.length; c++) {
+			bucketStart[c] += bucketStart[c - 1];
+		}
+		fingerprints = new PackedFingerprint[size];
+		indices = new int[size];
+		int[] next = bucketStart.clone();
+		for (int i = 0; i < data.size(); i++) {
+			PackedFingerprint fp = data.get(i);
+			if (fp != null) {
+				int pos = next[fp.cardinality()]++;
+				fingerprints[pos] = fp;
+				indices[pos] = i;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of searchable data fingerprints
+	 */
+	public int size() {
+		return fingerprints.length;
+	}
+
+	/**
+	 * Finds the data fingerprints most similar to the query.
+	 *
+	 * @param query The query fingerprint
+	 * @param measure The similarity measure
+	 * @param k The maximum number of hits, 0 for no limit
+	 * @param threshold The minimum similarity of a hit
+	 * @return The hits, best first and ties ordered by data index
+	 */
+	public List<Hit> search(PackedFingerprint query,
+			FingerprintSimilarity.eMeasure measure, int k, double threshold) {
+
+		int q = query.cardinality();
+		int maxCount = bucketStart.length - 2;
+
+		PriorityQueue<Hit> best = null;
+		List<Hit> all = null;
+		if (k > 0) {
+			// worst hit at the head so it can be replaced
+			best = new PriorityQueue<Hit>(k + 1, Collections.reverseOrder(BEST_FIRST));
+		} else {
+			all = new ArrayList<Hit>();
+		}
+
+		// walk the bit counts outwards from the query's own count, taking the
+		// side with the larger bound first. The bounds never grow along
+		// either side, so the groups are visited in non-increasing bound order
+		int up = Math.min(q, maxCount + 1);
+		int down = up - 1;
+		while (up <= maxCount || down >= 0) {
+			double upBound = up <= maxCount ? measure.upperBound(q, up) : Double.NaN;
+			double downBound = down >= 0 ? measure.upperBound(q, down) : Double.NaN;
+
+			int c;
+			double bound;
+			if (down < 0 || (up <= maxCount && !(downBound > upBound))) {
+				c = up++;
+				bound = upBound;
+			} else {
+				c = down--;
+				bound = downBound;
+			}
+
+			if (Double.isNaN(bound)) {
+				// no pair in this group has a defined similarity
+				continue;
+			}
+			if (bound < threshold
+					|| (best != null && best.size() == k && bound < best.peek().similarity)) {
+				// every remaining group has a bound no larger than this one
+				break;
+			}
+
+			for (int i = bucketStart[c]; i < bucketStart[c + 1]; i++) {
+				double sim = measure.compute(query, fingerprints[i]);
+				if (Double.isNaN(sim) || sim < threshold) {
+					continue;
+				}
+				Hit hit = new Hit(indices[i], sim);
+				if (best == null) {
+					all.add(hit);
+				} else if (best.size() < k) {
+					best.add(hit);
+				} else if (BEST_FIRST.compare(hit, best.peek()) < 0) {
+					best.poll();
+					best.add(hit);
+				}
+			}
+		}
+
+		List<Hit> result = best == null ? all : new ArrayList<Hit>(best);
+		Collections.sort(result, BEST_FIRST);
+		return result;
+	}
+}
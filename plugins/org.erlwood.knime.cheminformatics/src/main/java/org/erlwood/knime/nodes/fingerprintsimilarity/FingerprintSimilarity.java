@@ -23,51 +23,114 @@ package org.erlwood.knime.nodes.fingerprintsimilarity;
 import org.knime.core.data.vector.bitvector.BitVectorValue;
 
 public final class FingerprintSimilarity {
-	private FingerprintSimilarity() {
-	}
 
-	public static double tanimoto(BitVectorValue a, BitVectorValue b) {
-		double intersection = 0.0;
-		double as = 0.0;
-		double bs = 0.0;
-		for (int i = 0; i < a.length(); i++) {
-			if (a.get(i) && b.get(i)) {
-				intersection++;
+	/**
+	 * The supported similarity measures, resolved once per execution so the
+	 * measure name is not compared again for every row.
+	 */
+	public static enum eMeasure {
+		TANIMOTO("Tanimoto") {
+			@Override
+			public double compute(PackedFingerprint a, PackedFingerprint b) {
+				return tanimoto(a, b);
 			}
-			if (a.get(i)) {
-				as++;
+
+			@Override
+			public double upperBound(int queryCount, int dataCount) {
+				// Swamidass-Baldi: |a & b| <= min and |a | b| >= max
+				return (double) Math.min(queryCount, dataCount)
+						/ (double) Math.max(queryCount, dataCount);
 			}
-			if (b.get(i)) {
-				bs++;
+		},
+		INTERSECTION("Intersection") {
+			@Override
+			public double compute(PackedFingerprint a, PackedFingerprint b) {
+				return intersection(a, b);
 			}
-		}
-		return intersection / (double) (as + bs - intersection);
-	}
 
-	public static double intersection(BitVectorValue a, BitVectorValue b) {
-		double intersection = 0.0;
-		double as = 0.0;
+			@Override
+			public double upperBound(int queryCount, int dataCount) {
+				return (double) Math.min(queryCount, dataCount)
+						/ (double) queryCount;
+			}
+		},
+		UNDEFINED("") {
+			@Override
+			public double compute(PackedFingerprint a, PackedFingerprint b) {
+				return Double.NaN;
+			}
 
-		for (int i = 0; i < a.length(); i++) {
-			if (a.get(i) && b.get(i)) {
-				intersection++;
+			@Override
+			public double upperBound(int queryCount, int dataCount) {
+				return Double.NaN;
 			}
-			if (a.get(i)) {
-				as++;
+		};
+
+		private final String name;
+
+		private eMeasure(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @param a The query fingerprint
+		 * @param b The data fingerprint
+		 * @return The similarity of the two fingerprints
+		 */
+		public abstract double compute(PackedFingerprint a, PackedFingerprint b);
+
+		/**
+		 * The largest similarity any data fingerprint with the given number of
+		 * set bits can reach for the query. Computed with the same division as
+		 * {@link #compute}, so a pair that reaches the bound compares equal to
+		 * it. NaN if no such pair can have a defined similarity.
+		 *
+		 * @param queryCount The number of bits set in the query
+		 * @param dataCount The number of bits set in the data fingerprint
+		 * @return The upper bound of the similarity
+		 */
+		public abstract double upperBound(int queryCount, int dataCount);
+
+		/**
+		 * @param measure The measure name as stored in the node settings
+		 * @return The matching measure or {@link #UNDEFINED}
+		 */
+		public static eMeasure fromName(String measure) {
+			for (eMeasure m : values()) {
+				if (m != UNDEFINED && m.name.equalsIgnoreCase(measure)) {
+					return m;
+				}
 			}
+			return UNDEFINED;
 		}
-		return intersection / (double) (as);
+	}
+
+	private FingerprintSimilarity() {
+	}
+
+	public static double tanimoto(BitVectorValue a, BitVectorValue b) {
+		return tanimoto(PackedFingerprint.of(a), PackedFingerprint.of(b));
+	}
+
+	public static double tanimoto(PackedFingerprint a, PackedFingerprint b) {
+		// only the first a.length() bits take part, as in the bitwise version
+		int intersection = a.intersectionCount(b);
+		int as = a.cardinality();
+		int bs = b.cardinalityBelow(a.length());
+		return (double) intersection / (double) (as + bs - intersection);
+	}
+
+	public static double intersection(BitVectorValue a, BitVectorValue b) {
+		return intersection(PackedFingerprint.of(a), PackedFingerprint.of(b));
+	}
+
+	public static double intersection(PackedFingerprint a, PackedFingerprint b) {
+		return (double) a.intersectionCount(b) / (double) a.cardinality();
 	}
 
 	public static double getSimilarity(BitVectorValue a, BitVectorValue b,
 			String measure) {
-		if (measure.equalsIgnoreCase("Tanimoto")) {
-			return tanimoto(a, b);
-		}
-		if (measure.equalsIgnoreCase("Intersection")) {
-			return intersection(a, b);
-		}
-
-		return Double.NaN;
+		return eMeasure.fromName(measure).compute(PackedFingerprint.of(a),
+				PackedFingerprint.of(b));
 	}
 }
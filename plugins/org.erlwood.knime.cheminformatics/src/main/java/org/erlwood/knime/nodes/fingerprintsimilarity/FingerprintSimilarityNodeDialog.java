@@ -23,14 +23,20 @@ package org.erlwood.knime.nodes.fingerprintsimilarity;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
 import org.knime.core.data.DataType;
 import org.knime.core.data.vector.bitvector.DenseBitVectorCell;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
 import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.ColumnFilter;
 import org.knime.core.node.util.DataValueColumnFilter;
@@ -60,6 +66,12 @@ public class FingerprintSimilarityNodeDialog extends DefaultNodeSettingsPane {
 			FingerprintSimilarityNodeModel.CFG_INTEGRATION, "MaxSim");
 	private SettingsModelString mNewCol = new SettingsModelString(
 			FingerprintSimilarityNodeModel.CFG_NEW_COL, "Similarity");
+	private SettingsModelString mMode = FingerprintSimilarityNodeModel
+			.createModeModel();
+	private SettingsModelIntegerBounded mTopK = FingerprintSimilarityNodeModel
+			.createTopKModel();
+	private SettingsModelDoubleBounded mThreshold = FingerprintSimilarityNodeModel
+			.createThresholdModel();
 
 	/**
 	 * New pane for configuring the FingerprintSimilarity node.
@@ -96,6 +108,47 @@ public class FingerprintSimilarityNodeDialog extends DefaultNodeSettingsPane {
 				mIntegration, "Fusion method", integrate);
 		addDialogComponent(integration);
 
+		mMode.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				updateEnabled();
+			}
+		});
+
+		createNewGroup("Nearest neighbour search");
+		addDialogComponent(new DialogComponentStringSelection(mMode, "Output",
+				FingerprintSimilarityNodeModel.MODE_APPEND,
+				FingerprintSimilarityNodeModel.MODE_NEIGHBOURS));
+		addDialogComponent(new DialogComponentNumber(mTopK,
+				"Neighbours per query (k, 0 = no limit)", 1));
+		addDialogComponent(new DialogComponentNumber(mThreshold,
+				"Minimum similarity", 0.05));
+		closeCurrentGroup();
+
+		DialogComponentNumber threads = new DialogComponentNumber(
+				FingerprintSimilarityNodeModel.createThreadsModel(),
+				"Number of threads", 1);
+		addDialogComponent(threads);
+
+		updateEnabled();
+	}
+
+	@Override
+	public void onOpen() {
+		// the mode listener does not fire if the loaded mode equals the previous one
+		updateEnabled();
+	}
+
+	/**
+	 * Enables the options that apply to the selected output mode.
+	 */
+	private void updateEnabled() {
+		boolean neighbours = FingerprintSimilarityNodeModel.MODE_NEIGHBOURS
+				.equals(mMode.getStringValue());
+		mTopK.setEnabled(neighbours);
+		mThreshold.setEnabled(neighbours);
+		mFusion.setEnabled(!neighbours);
+		mIntegration.setEnabled(!neighbours);
 	}
 
 }
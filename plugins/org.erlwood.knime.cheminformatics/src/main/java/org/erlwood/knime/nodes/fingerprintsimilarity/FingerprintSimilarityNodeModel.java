@@ -32,8 +32,12 @@ import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
 import org.knime.core.data.RowIterator;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.append.AppendedColumnRow;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
 import org.knime.core.data.vector.bitvector.BitVectorValue;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
@@ -46,8 +50,11 @@ import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.erlwood.knime.utils.KnimenodeUtils;
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
 
 /**
  * This is the model implementation of FingerprintSimilarity.
@@ -62,6 +69,16 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 	static final String CFG_FUSION = "fusion";
 	static final String CFG_INTEGRATION = "integration";
 	static final String CFG_NEW_COL = "new_col";
+	static final String CFG_THREADS = "threads";
+	static final String CFG_MODE = "mode";
+	static final String CFG_TOP_K = "top_k";
+	static final String CFG_THRESHOLD = "threshold";
+
+	static final String MODE_APPEND = "Append similarity";
+	static final String MODE_NEIGHBOURS = "Nearest neighbours";
+
+	/** The number of data rows scored per work unit. */
+	private static final int CHUNK_SIZE = 1000;
 
 	private SettingsModelString mQueryCol = new SettingsModelString(
 			CFG_QUERY_COLUMN, "Fingerprint");
@@ -75,6 +92,10 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 			CFG_INTEGRATION, "MaxSim");
 	private SettingsModelString mNewCol = new SettingsModelString(CFG_NEW_COL,
 			"Similarity");
+	private SettingsModelIntegerBounded mThreads = createThreadsModel();
+	private SettingsModelString mMode = createModeModel();
+	private SettingsModelIntegerBounded mTopK = createTopKModel();
+	private SettingsModelDoubleBounded mThreshold = createThresholdModel();
 
 	/**
 	 * Constructor for the node model.
@@ -83,6 +104,25 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 		super(2, 1);
 	}
 
+	static SettingsModelIntegerBounded createThreadsModel() {
+		return new SettingsModelIntegerBounded(CFG_THREADS,
+				OrderedChunkExecutor.getDefaultThreadCount(), 1,
+				OrderedChunkExecutor.MAX_THREAD_SETTING);
+	}
+
+	static SettingsModelString createModeModel() {
+		return new SettingsModelString(CFG_MODE, MODE_APPEND);
+	}
+
+	static SettingsModelIntegerBounded createTopKModel() {
+		return new SettingsModelIntegerBounded(CFG_TOP_K, 10, 0,
+				Integer.MAX_VALUE);
+	}
+
+	static SettingsModelDoubleBounded createThresholdModel() {
+		return new SettingsModelDoubleBounded(CFG_THRESHOLD, 0.0, 0.0, 1.0);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -93,13 +133,14 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 	    if (inData[0].getRowCount() == 0) {
 	        throw new IllegalStateException("Input Port 0 is empty!");
 	    }
-		BufferedDataContainer container = exec
+		final BufferedDataContainer container = exec
 				.createDataContainer(createSpec(inData[1].getDataTableSpec()));
 		int queryInd = inData[0].getDataTableSpec().findColumnIndex(
 				mQueryCol.getStringValue());
-		int dataInd = inData[1].getDataTableSpec().findColumnIndex(
+		final int dataInd = inData[1].getDataTableSpec().findColumnIndex(
 				mFpCol.getStringValue());
-		BitVectorValue[] queries = new BitVectorValue[inData[0].getRowCount()];
+		final PackedFingerprint[] queries = new PackedFingerprint[inData[0].getRowCount()];
+		final RowKey[] queryKeys = new RowKey[queries.length];
 		RowIterator rows = inData[0].iterator();
 		int c = 0;
 		while (rows.hasNext()) {
@@ -108,72 +149,172 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 				throw new Exception(
 						"Missing values in query list are not supported");
 			} else {
-				queries[c] = (BitVectorValue) row.getCell(queryInd);
+				queries[c] = PackedFingerprint.of((BitVectorValue) row
+						.getCell(queryInd));
+				queryKeys[c] = row.getKey();
 			}
 			c++;
 		}
         
-		String measure = mSimSel.getStringValue();
-		String method = mIntegration.getStringValue();
+		final FingerprintSimilarity.eMeasure measure = FingerprintSimilarity.eMeasure
+				.fromName(mSimSel.getStringValue());
 
-		RowIterator rows2 = inData[1].iterator();
-		int count = 0;
-		while (rows2.hasNext()) {
-			DataRow row = rows2.next();
-			if (row.getCell(dataInd).isMissing()) {
-
-				List<DataCell> cells = new ArrayList<DataCell>();
-				for (int i = 0; i < row.getNumCells(); i++) {
-					cells.add(row.getCell(i));
+		if (MODE_NEIGHBOURS.equals(mMode.getStringValue())) {
+			return new BufferedDataTable[] { searchNeighbours(inData[1],
+					dataInd, queries, queryKeys, measure, exec) };
+		}
+		final String method = mIntegration.getStringValue();
+		final boolean fusion = mFusion.getBooleanValue();
+		final int n = fusion ? queries.length : 1;
+
+		OrderedChunkExecutor<DataRow, DataRow> executor = new OrderedChunkExecutor<DataRow, DataRow>(
+				"FingerprintSimilarity", mThreads.getIntValue(), CHUNK_SIZE);
+
+		executor.execute(exec, inData[1].iterator(), inData[1].getRowCount(),
+				new OrderedChunkExecutor.ChunkProcessor<DataRow, DataRow>() {
+					@Override
+					public List<DataRow> process(List<DataRow> chunk) {
+						List<DataRow> result = new ArrayList<DataRow>(chunk.size());
+						double[] similarities = new double[n];
+						for (DataRow row : chunk) {
+							result.add(new AppendedColumnRow(row, score(row
+									.getCell(dataInd), queries, similarities,
+									measure, fusion, method)));
+						}
+						return result;
+					}
+				}, new OrderedChunkExecutor.ResultConsumer<DataRow>() {
+					@Override
+					public void accept(DataRow row) {
+						container.addRowToTable(row);
+					}
+				});
 
-				}
+		container.close();
 
-				cells.add(DataType.getMissingCell());
+		return new BufferedDataTable[] { container.getTable() };
+	}
 
-				count += 1;
-				exec.checkCanceled();
+	/**
+	 * Finds the top-k and/or above-threshold data rows for each query. Only
+	 * the data fingerprints and row keys are held in memory.
+	 */
+	private BufferedDataTable searchNeighbours(BufferedDataTable data,
+			int dataInd, final PackedFingerprint[] queries,
+			final RowKey[] queryKeys,
+			final FingerprintSimilarity.eMeasure measure,
+			final ExecutionContext exec) throws Exception {
 
-				exec.setProgress((double) count
-						/ (double) inData[1].getRowCount());
-				DefaultRow drow = new DefaultRow(row.getKey(), cells);
-				container.addRowToTable(drow);
-				continue;
-			}
-			int n = (mFusion.getBooleanValue()) ? queries.length : 1;
-			double[] similarities = new double[n];
-			
-			BitVectorValue vec = (BitVectorValue) row.getCell(dataInd);
-
-			for (int i = 0; i < n; i++) {
-				similarities[i] = FingerprintSimilarity.getSimilarity(
-						queries[i], vec, measure);
-			}
-			double similarity = Double.NaN;
-			if (mFusion.getBooleanValue()) {
-				similarity = MultiQueryFusion.getFusedSimilarity(similarities,
-						method);
-			} else {
-				similarity = similarities[0];
+		ExecutionContext readExec = exec.createSubExecutionContext(0.2);
+		ExecutionContext searchExec = exec.createSubExecutionContext(0.8);
+
+		final List<PackedFingerprint> fps = new ArrayList<PackedFingerprint>(
+				data.getRowCount());
+		final List<RowKey> keys = new ArrayList<RowKey>(data.getRowCount());
+		long queryLength = queries[0].length();
+		for (DataRow row : data) {
+			DataCell cell = row.getCell(dataInd);
+			PackedFingerprint fp = null;
+			if (!cell.isMissing()) {
+				fp = PackedFingerprint.of((BitVectorValue) cell);
+				if (fp.length() != queryLength) {
+					throw new Exception("Data fingerprint in row '"
+							+ row.getKey() + "' has length " + fp.length()
+							+ ", the query fingerprints have length "
+							+ queryLength);
+				}
 			}
-			DoubleCell simcell = new DoubleCell(similarity);
-			List<DataCell> cells = new ArrayList<DataCell>();
-			for (int i = 0; i < row.getNumCells(); i++) {
-				cells.add(row.getCell(i));
-
+			fps.add(fp);
+			keys.add(row.getKey());
+			readExec.checkCanceled();
+			readExec.setProgress((double) fps.size()
+					/ (double) data.getRowCount());
+		}
+		for (PackedFingerprint q : queries) {
+			if (q.length() != queryLength) {
+				throw new Exception(
+						"All query fingerprints must have the same length");
 			}
+		}
 
-			cells.add(simcell);
+		final FingerprintSearch search = new FingerprintSearch(fps);
+		final int k = mTopK.getIntValue();
+		final double threshold = mThreshold.getDoubleValue();
 
-			count += 1;
-			exec.checkCanceled();
+		final BufferedDataContainer container = exec
+				.createDataContainer(createNeighbourSpec());
 
-			exec.setProgress((double) count / (double) inData[1].getRowCount());
-			DefaultRow drow = new DefaultRow(row.getKey(), cells);
-			container.addRowToTable(drow);
+		List<Integer> queryIndices = new ArrayList<Integer>(queries.length);
+		for (int i = 0; i < queries.length; i++) {
+			queryIndices.add(i);
 		}
+
+		OrderedChunkExecutor<Integer, List<FingerprintSearch.Hit>> executor = new OrderedChunkExecutor<Integer, List<FingerprintSearch.Hit>>(
+				"FingerprintSearch", mThreads.getIntValue(), 1);
+
+		executor.execute(searchExec, queryIndices.iterator(), queries.length,
+				new OrderedChunkExecutor.ChunkProcessor<Integer, List<FingerprintSearch.Hit>>() {
+					@Override
+					public List<List<FingerprintSearch.Hit>> process(
+							List<Integer> chunk) {
+						List<List<FingerprintSearch.Hit>> result = new ArrayList<List<FingerprintSearch.Hit>>(
+								chunk.size());
+						for (Integer q : chunk) {
+							result.add(search.search(queries[q], measure, k,
+									threshold));
+						}
+						return result;
+					}
+				},
+				new OrderedChunkExecutor.ResultConsumer<List<FingerprintSearch.Hit>>() {
+					private int query = 0;
+					private long rowCount = 0;
+
+					@Override
+					public void accept(List<FingerprintSearch.Hit> hits) {
+						StringCell queryCell = new StringCell(queryKeys[query]
+								.getString());
+						int rank = 1;
+						for (FingerprintSearch.Hit hit : hits) {
+							container.addRowToTable(new DefaultRow(RowKey
+									.createRowKey(rowCount++), queryCell,
+									new StringCell(keys.get(hit.getIndex())
+											.getString()), new DoubleCell(
+											hit.getSimilarity()), new IntCell(
+											rank++)));
+						}
+						query++;
+					}
+				});
+
 		container.close();
+		return container.getTable();
+	}
 
-		return new BufferedDataTable[] { container.getTable() };
+	/**
+	 * Computes the (fused) similarity cell for a single data fingerprint.
+	 * Safe to call concurrently as long as each thread passes its own
+	 * similarities buffer.
+	 */
+	private static DataCell score(DataCell cell, PackedFingerprint[] queries,
+			double[] similarities, FingerprintSimilarity.eMeasure measure,
+			boolean fusion, String method) {
+		if (cell.isMissing()) {
+			return DataType.getMissingCell();
+		}
+		PackedFingerprint vec = PackedFingerprint.of((BitVectorValue) cell);
+
+		for (int i = 0; i < similarities.length; i++) {
+			similarities[i] = measure.compute(queries[i], vec);
+		}
+		double similarity = Double.NaN;
+		if (fusion) {
+			similarity = MultiQueryFusion.getFusedSimilarity(similarities,
+					method);
+		} else {
+			similarity = similarities[0];
+		}
+		return new DoubleCell(similarity);
 	}
 
 	/**
@@ -200,9 +341,30 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 					+ "' no longer exists.");
 		}
 
+		if (MODE_NEIGHBOURS.equals(mMode.getStringValue())) {
+			if (mTopK.getIntValue() == 0 && mThreshold.getDoubleValue() <= 0.0) {
+				setWarningMessage("Neither k nor a similarity threshold is set, "
+						+ "every pair of query and data rows will be output");
+			}
+			return new DataTableSpec[] { createNeighbourSpec() };
+		}
 		return new DataTableSpec[] { createSpec(inSpecs[1]) };
 	}
 
+	private DataTableSpec createNeighbourSpec() {
+		DataTableSpec keySpec = new DataTableSpec(
+				new DataColumnSpecCreator("Query", StringCell.TYPE).createSpec(),
+				new DataColumnSpecCreator("Data", StringCell.TYPE).createSpec());
+		String simName = KnimenodeUtils.createColumnName(
+				mNewCol.getStringValue(), keySpec);
+		DataTableSpec simSpec = new DataTableSpec(keySpec,
+				new DataTableSpec(new DataColumnSpecCreator(simName,
+						DoubleCell.TYPE).createSpec()));
+		String rankName = KnimenodeUtils.createColumnName("Rank", simSpec);
+		return new DataTableSpec(simSpec, new DataTableSpec(
+				new DataColumnSpecCreator(rankName, IntCell.TYPE).createSpec()));
+	}
+
 	private DataTableSpec createSpec(final DataTableSpec spec) {
 		String newName = KnimenodeUtils.createColumnName(
 				mNewCol.getStringValue(), spec);
@@ -233,6 +395,10 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 		mFusion.saveSettingsTo(settings);
 		mIntegration.saveSettingsTo(settings);
 		mNewCol.saveSettingsTo(settings);
+		mThreads.saveSettingsTo(settings);
+		mMode.saveSettingsTo(settings);
+		mTopK.saveSettingsTo(settings);
+		mThreshold.saveSettingsTo(settings);
 	}
 
 	/**
@@ -273,6 +439,22 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 		mFusion.loadSettingsFrom(settings);
 		mIntegration.loadSettingsFrom(settings);
 		mNewCol.loadSettingsFrom(settings);
+
+		if (settings.containsKey(CFG_THREADS)) {
+			mThreads.loadSettingsFrom(settings);
+		} else {
+			// this node instance predates the threads setting
+			mThreads.setIntValue(OrderedChunkExecutor.getDefaultThreadCount());
+		}
+
+		if (settings.containsKey(CFG_MODE)) {
+			mMode.loadSettingsFrom(settings);
+			mTopK.loadSettingsFrom(settings);
+			mThreshold.loadSettingsFrom(settings);
+		} else {
+			// this node instance predates the nearest neighbour search
+			mMode.setStringValue(MODE_APPEND);
+		}
 	}
 
 	/**
@@ -303,6 +485,23 @@ public class FingerprintSimilarityNodeModel extends NodeModel {
 		mFusion.validateSettings(settings);
 		mIntegration.validateSettings(settings);
 		mNewCol.validateSettings(settings);
+
+		if (settings.containsKey(CFG_THREADS)) {
+			mThreads.validateSettings(settings);
+		}
+
+		if (settings.containsKey(CFG_MODE)) {
+			mMode.validateSettings(settings);
+			mTopK.validateSettings(settings);
+			mThreshold.validateSettings(settings);
+			SettingsModelString mode = createModeModel();
+			mode.loadSettingsFrom(settings);
+			if (!MODE_APPEND.equals(mode.getStringValue())
+					&& !MODE_NEIGHBOURS.equals(mode.getStringValue())) {
+				throw new InvalidSettingsException("Unknown output mode: "
+						+ mode.getStringValue());
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,117 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.fingerprintsimilarity;
+
+import org.knime.core.data.vector.bitvector.BitVectorValue;
+import org.knime.core.data.vector.bitvector.DenseBitVectorCell;
+
+/**
+ * Immutable fingerprint stored as 64 bit words with a cached bit count, so that
+ * similarities can be computed with {@link Long#bitCount(long)} instead of
+ * testing one bit at a time.
+ *
+ * Bit i is held in word i / 64 at position i % 64, which is the layout used
+ * by {@link org.knime.core.data.vector.bitvector.DenseBitVector}.
+ */
+public final class PackedFingerprint {
+	private final long[] words;
+	private final long length;
+	private final int cardinality;
+
+	private PackedFingerprint(long[] words, long length) {
+		this.words = words;
+		this.length = length;
+		int c = 0;
+		for (long w : words) {
+			c += Long.bitCount(w);
+		}
+		this.cardinality = c;
+	}
+
+	/**
+	 * Packs the given bit vector. Dense cells are copied word-wise, any other
+	 * implementation is walked through its set bits.
+	 *
+	 * @param value The bit vector to pack
+	 * @return The packed fingerprint
+	 */
+	public static PackedFingerprint of(BitVectorValue value) {
+		long length = value.length();
+		if (value instanceof DenseBitVectorCell) {
+			return new PackedFingerprint(((DenseBitVectorCell) value)
+					.getBitVectorCopy().getAllBits(), length);
+		}
+		long[] words = new long[(int) ((length + 63) >>> 6)];
+		for (long i = value.nextSetBit(0); i >= 0 && i < length; i = value
+				.nextSetBit(i + 1)) {
+			words[(int) (i >>> 6)] |= 1L << (i & 63);
+		}
+		return new PackedFingerprint(words, length);
+	}
+
+	/**
+	 * @return The number of bits of this fingerprint
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return The number of set bits
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * @param other The fingerprint to intersect with
+	 * @return The number of bits set in both fingerprints
+	 */
+	public int intersectionCount(PackedFingerprint other) {
+		long[] o = other.words;
+		int n = Math.min(words.length, o.length);
+		int c = 0;
+		for (int i = 0; i < n; i++) {
+			c += Long.bitCount(words[i] & o[i]);
+		}
+		return c;
+	}
+
+	/**
+	 * @param len The number of leading bits to consider
+	 * @return The number of set bits with an index smaller than <code>len</code>
+	 */
+	public int cardinalityBelow(long len) {
+		if (len >= length) {
+			return cardinality;
+		}
+		int full = (int) (len >>> 6);
+		int c = 0;
+		for (int i = 0; i < full; i++) {
+			c += Long.bitCount(words[i]);
+		}
+		int rest = (int) (len & 63);
+		if (rest != 0) {
+			c += Long.bitCount(words[full] & ((1L << rest) - 1));
+		}
+		return c;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+ */
+package org.erlwood.knime.nodes.mmp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The per compound data of a matched pairs run, written to disk and read back by 
+ * compound index. Only the file offsets and a hash index of the whole molecule SMILES 
+ * are kept in memory, plus a small cache of recently read compounds.
+ */
+final class CompoundStore implements Closeable {
+
+    /** The number of compounds kept in the read cache. */
+    private static final int CACHE_SIZE = 10000;
+
+    /**
+     * The data of a single compound.
+     */
+    static final class Compound {
+        final int          index;
+        final String       id;
+        final String       origSmi;
+        final List<Double> rprop;
+        final List<Double> dprop;
+
+        Compound(int index, String id, String origSmi, List<Double> rprop, List<Double> dprop) {
+            this.index = index;
+            this.id = id;
+            this.origSmi = origSmi;
+            this.rprop = rprop;
+            this.dprop = dprop;
+        }
+    }
+
+    private final File                  file;
+    private final DataOutputStream      out;
+    private RandomAccessFile            in;
+    private long                        written;
+    private long[]                      offsets  = new long[1024];
+    private int                         count;
+    private final ByteArrayOutputStream record   = new ByteArrayOutputStream();
+
+    /** The compounds by the hash of their whole molecule SMILES, in insertion order. */
+    private final Map<Integer, int[]>   bySmiles = new HashMap<Integer, int[]>();
+
+    private final Map<Integer, Compound> cache   = new LinkedHashMap<Integer, Compound>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Compound> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param dir The directory for the store file
+     */
+    CompoundStore(File dir) throws IOException {
+        file = new File(dir, "compounds.bin");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /**
+     * Adds a compound. The indices must be added in increasing order, indices that are
+     * skipped hold no compound.
+     */
+    void add(int index, String id, String origSmi, List<Double> rprop, List<Double> dprop) throws IOException {
+        if (index < count) {
+            throw new IllegalArgumentException("Compound " + index + " added out of order");
+        }
+        if (index >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(index + 1, offsets.length * 2));
+        }
+        while (count <= index) {
+            offsets[count++] = written;
+        }
+
+        record.reset();
+        DataOutputStream data = new DataOutputStream(record);
+        ContextSpill.writeString(data, id);
+        ContextSpill.writeString(data, origSmi);
+        writeProperties(data, rprop);
+        writeProperties(data, dprop);
+        record.writeTo(out);
+        written += record.size();
+
+        int hash = origSmi.hashCode();
+        int[] same = bySmiles.get(hash);
+        if (same == null) {
+            same = new int[] { index };
+        } else {
+            same = Arrays.copyOf(same, same.length + 1);
+            same[same.length - 1] = index;
+        }
+        bySmiles.put(hash, same);
+    }
+
+    /**
+     * Gets a compound. The first call ends adding.
+     */
+    Compound get(int index) throws IOException {
+        Compound compound = cache.get(index);
+        if (compound != null) {
+            return compound;
+        }
+        if (in == null) {
+            out.close();
+            in = new RandomAccessFile(file, "r");
+        }
+        long start = offsets[index];
+        long end = index + 1 < count ? offsets[index + 1] : written;
+        byte[] bytes = new byte[(int) (end - start)];
+        in.seek(start);
+        in.readFully(bytes);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        compound = new Compound(index, ContextSpill.readString(data), ContextSpill.readString(data),
+                readProperties(data), readProperties(data));
+        cache.put(index, compound);
+        return compound;
+    }
+
+    /**
+     * Finds the compounds whose whole molecule has the given SMILES.
+     * @return The compounds, in the order they were added
+     */
+    List<Compound> findBySmiles(String smiles) throws IOException {
+        int[] candidates = bySmiles.get(smiles.hashCode());
+        if (candidates == null) {
+            return new ArrayList<Compound>();
+        }
+        List<Compound> found = new ArrayList<Compound>(candidates.length);
+        for (int index : candidates) {
+            Compound compound = get(index);
+            if (compound.origSmi.equals(smiles)) {
+                found.add(compound);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (in != null) {
+            in.close();
+        }
+        cache.clear();
+    }
+
+    private static void writeProperties(DataOutputStream out, List<Double> props) throws IOException {
+        out.writeInt(props.size());
+        for (Double p : props) {
+            out.writeBoolean(p != null);
+            if (p != null) {
+                out.writeDouble(p);
+            }
+        }
+    }
+
+    private static List<Double> readProperties(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<Double> props = new ArrayList<Double>(size);
+        for (int i = 0; i < size; i++) {
+            props.add(in.readBoolean() ? Double.valueOf(in.readDouble()) : null);
+        }
+        return props;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+ */
+package org.erlwood.knime.nodes.mmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An external memory index of (context, core, compound) tuples. Tuples are buffered up
+ * to a memory budget, then sorted by context and written to a spill file. Reading 
+ * merges the spill files and returns the tuples grouped by context, in context order.
+ * <p>
+ * Within a context the tuples are returned in the order they were added. Each run 
+ * holds a consecutive range of the added tuples, its sort is stable, and the merge 
+ * takes tuples from earlier runs first.
+ */
+final class ContextSpill implements Closeable {
+
+    /** Estimated heap size of a buffered tuple, excluding the characters of its strings. */
+    private static final int  TUPLE_OVERHEAD  = 120;
+
+    private static final int  IO_BUFFER       = 1 << 16;
+
+    /** The most spill files merged at once, so the open file limit is not reached. */
+    private static final int  MAX_FAN_IN      = 64;
+
+    private static final Comparator<Tuple> BY_CONTEXT = new Comparator<Tuple>() {
+        @Override
+        public int compare(Tuple t1, Tuple t2) {
+            return t1.context.compareTo(t2.context);
+        }
+    };
+
+    /**
+     * A single entry of the index.
+     */
+    static final class Tuple {
+        final String context;
+        final String core;
+        final int    compound;
+
+        Tuple(String context, String core, int compound) {
+            this.context = context;
+            this.core = core;
+            this.compound = compound;
+        }
+    }
+
+    private final File        dir;
+    private final long        budget;
+    private List<File>        runs     = new ArrayList<File>();
+    private List<Tuple>       buffer   = new ArrayList<Tuple>();
+    private long              buffered;
+    private long              size;
+
+    private PriorityQueue<Run> merge;
+    private long               read;
+
+    /**
+     * @param dir The directory for the spill files
+     * @param budget The number of bytes of tuples to buffer before spilling
+     */
+    ContextSpill(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+    }
+
+    /**
+     * Adds a tuple. Must not be called once reading has started.
+     */
+    void add(String context, String core, int compound) throws IOException {
+        buffer.add(new Tuple(context, core, compound));
+        buffered += TUPLE_OVERHEAD + 2L * (context.length() + core.length());
+        size++;
+        if (buffered >= budget) {
+            spill();
+        }
+    }
+
+    /** @return The number of tuples added */
+    long size() {
+        return size;
+    }
+
+    /** @return The number of tuples returned so far */
+    long getRead() {
+        return read;
+    }
+
+    /** @return The number of spill files written */
+    int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Gets the tuples of the next context.
+     * @return The tuples, in the order they were added, or null once all are read
+     */
+    List<Tuple> nextGroup() throws IOException {
+        if (merge == null) {
+            startMerge();
+        }
+        Run first = merge.poll();
+        if (first == null) {
+            return null;
+        }
+        String context = first.current.context;
+        List<Tuple> group = new ArrayList<Tuple>();
+        Run run = first;
+        while (run != null && run.current.context.equals(context)) {
+            // take all tuples of this context from the run before moving to a later run
+            while (run.current != null && run.current.context.equals(context)) {
+                group.add(run.current);
+                run.advance();
+            }
+            if (run.current != null) {
+                merge.add(run);
+            } else {
+                run.close();
+            }
+            run = merge.peek() != null && merge.peek().current.context.equals(context) ? merge.poll() : null;
+        }
+        read += group.size();
+        return group;
+    }
+
+    private void startMerge() throws IOException {
+        compactRuns();
+        merge = createQueue(runs.size() + 1);
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = new FileRun(runs.get(i), i);
+            if (run.current != null) {
+                merge.add(run);
+            }
+        }
+        // the last tuples are merged straight from memory
+        Collections.sort(buffer, BY_CONTEXT);
+        Run memory = new MemoryRun(buffer.iterator(), runs.size());
+        if (memory.current != null) {
+            merge.add(memory);
+        }
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * Merges consecutive spill files until no more than {@link #MAX_FAN_IN} are left.
+     * Consecutive files keep the runs in the order the tuples were added.
+     */
+    private void compactRuns() throws IOException {
+        int pass = 0;
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> compacted = new ArrayList<File>();
+            for (int start = 0; start < runs.size(); start += MAX_FAN_IN) {
+                List<File> batch = runs.subList(start, Math.min(start + MAX_FAN_IN, runs.size()));
+                if (batch.size() == 1) {
+                    compacted.add(batch.get(0));
+                    continue;
+                }
+                File file = new File(dir, "contexts" + pass + "_" + compacted.size() + ".bin");
+                PriorityQueue<Run> queue = createQueue(batch.size());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                        IO_BUFFER));
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Run run = new FileRun(batch.get(i), i);
+                        if (run.current != null) {
+                            queue.add(run);
+                        }
+                    }
+                    while (!queue.isEmpty()) {
+                        Run run = queue.poll();
+                        writeTuple(out, run.current);
+                        run.advance();
+                        if (run.current != null) {
+                            queue.add(run);
+                        }
+                    }
+                } finally {
+                    out.close();
+                    for (Run run : queue) {
+                        run.close();
+                    }
+                }
+                for (File merged : batch) {
+                    merged.delete();
+                }
+                compacted.add(file);
+            }
+            runs = compacted;
+            pass++;
+        }
+    }
+
+    /**
+     * @return A queue of runs ordered by their current context, and then by run order
+     */
+    private static PriorityQueue<Run> createQueue(int capacity) {
+        return new PriorityQueue<Run>(capacity, new Comparator<Run>() {
+            @Override
+            public int compare(Run r1, Run r2) {
+                int c = r1.current.context.compareTo(r2.current.context);
+                return c != 0 ? c : r1.order - r2.order;
+            }
+        });
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, BY_CONTEXT);
+        File file = new File(dir, "contexts" + runs.size() + ".bin");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER));
+        try {
+            for (Tuple t : buffer) {
+                writeTuple(out, t);
+            }
+        } finally {
+            out.close();
+        }
+        runs.add(file);
+        buffer = new ArrayList<Tuple>();
+        buffered = 0;
+    }
+
+    /**
+     * Closes the open spill files. The files themselves are left to the caller's
+     * directory clean up.
+     */
+    @Override
+    public void close() throws IOException {
+        if (merge != null) {
+            for (Run run : merge) {
+                run.close();
+            }
+            merge.clear();
+        }
+        buffer = new ArrayList<Tuple>();
+    }
+
+    private static void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+        writeString(out, t.context);
+        writeString(out, t.core);
+        out.writeInt(t.compound);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A sorted run of tuples, positioned on its current tuple.
+     */
+    private abstract static class Run {
+        final int order;
+        Tuple     current;
+
+        Run(int order) {
+            this.order = order;
+        }
+
+        abstract void advance() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static final class MemoryRun extends Run {
+        private final Iterator<Tuple> tuples;
+
+        MemoryRun(Iterator<Tuple> tuples, int order) {
+            super(order);
+            this.tuples = tuples;
+            advance();
+        }
+
+        @Override
+        void advance() {
+            current = tuples.hasNext() ? tuples.next() : null;
+        }
+    }
+
+    private static final class FileRun extends Run {
+        private final DataInputStream in;
+
+        FileRun(File file, int order) throws IOException {
+            super(order);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+            advance();
+        }
+
+        @Override
+        void advance() throws IOException {
+            String context;
+            try {
+                context = readString(in);
+            } catch (EOFException e) {
+                current = null;
+                in.close();
+                return;
+            }
+            current = new Tuple(context, readString(in), in.readInt());
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+ */
+package org.erlwood.knime.nodes.mmp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.RDKit.ChemicalReaction;
+import org.RDKit.RDKFuncs;
+import org.RDKit.ROMol;
+import org.RDKit.ROMol_Vect;
+import org.RDKit.ROMol_Vect_Vect;
+
+/**
+ * Cuts each acyclic single bond of a molecule and keeps the (context, core)
+ * pairs that qualify for matched pair detection. Safe to use from several
+ * threads: every thread runs its own copy of the fragmentation reaction.
+ *
+ * Call {@link #dispose()} once all threads are done to free the reactions.
+ */
+final class MoleculeFragmenter {
+
+    private static final String          REA_SMARTS        = "[*:1]!@!=!#[*:2]>>[*:1]-[*].[*:2]-[*]";
+
+    /** Largest core (in heavy atoms, excluding the attachment point) that is kept. */
+    private static final double          MAX_CORE_ATOMS    = 15D;
+
+    private final List<ChemicalReaction> reactions         = new ArrayList<ChemicalReaction>();
+
+    private final ThreadLocal<ChemicalReaction> reaction   = new ThreadLocal<ChemicalReaction>() {
+        @Override
+        protected ChemicalReaction initialValue() {
+            ChemicalReaction rxn = ChemicalReaction.ReactionFromSmarts(REA_SMARTS);
+            synchronized (reactions) {
+                reactions.add(rxn);
+            }
+            return rxn;
+        }
+    };
+
+    /**
+     * The fragmentation result of a single molecule.
+     */
+    static final class Fragments {
+        /** The canonical SMILES of the whole molecule. */
+        final String       origSmi;
+        /** The context SMILES, parallel to cores. */
+        final List<String> contexts = new ArrayList<String>();
+        /** The core SMILES, parallel to contexts. */
+        final List<String> cores    = new ArrayList<String>();
+
+        private Fragments(String origSmi) {
+            this.origSmi = origSmi;
+        }
+    }
+
+    /**
+     * Fragments the molecule. The molecule's native memory is released, as
+     * the single threaded implementation did.
+     *
+     * @param mol The molecule
+     * @return The fragments, or null if the reaction could not be run
+     */
+    Fragments fragment(ROMol mol) {
+        ChemicalReaction rxn = reaction.get();
+        ROMol_Vect_Vect prods = null;
+        ROMol_Vect rs = new ROMol_Vect(1L);
+        rs.set(0, mol);
+        Fragments result;
+        try {
+            prods = rxn.runReactants(rs);
+            result = new Fragments(RDKFuncs.MolToSmiles(mol, true));
+        } catch (Exception e) {
+            return null;
+        }
+        if (!prods.isEmpty()) {
+            for (int psetidx = 0; (long) psetidx < prods.size(); psetidx++) {
+                ROMol frag1 = null;
+                ROMol frag2 = null;
+                try {
+                    frag1 = prods.get(psetidx).get(0);
+                    frag2 = prods.get(psetidx).get(1);
+
+                    long natoms1 = frag1.getNumAtoms() - 1L;
+                    long natoms2 = frag2.getNumAtoms() - 1L;
+
+                    float ratio = (float) natoms1 / (float) natoms2;
+
+                    String smi1 = RDKFuncs.MolToSmiles(frag1, true);
+                    String smi2 = RDKFuncs.MolToSmiles(frag2, true);
+
+                    if ((double) natoms2 <= MAX_CORE_ATOMS && (double) ratio >= 1.0D) {
+                        result.contexts.add(smi1);
+                        result.cores.add(smi2);
+                    }
+                } catch (Exception e) {
+                    continue;
+                } finally {
+                    if (frag1 != null) {
+                        frag1.delete();
+                    }
+                    if (frag2 != null) {
+                        frag2.delete();
+                    }
+                }
+            }
+        }
+        rs.get(0).delete();
+        rs.delete();
+        prods.delete();
+        return result;
+    }
+
+    /**
+     * Releases the reactions created by the worker threads.
+     */
+    void dispose() {
+        synchronized (reactions) {
+            for (ChemicalReaction rxn : reactions) {
+                rxn.delete();
+            }
+            reactions.clear();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+ */
+package org.erlwood.knime.nodes.mmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The matched pair neighbours of each compound, collected on disk. Pairs are buffered
+ * as packed longs up to a memory budget, sorted and written to spill files, and then 
+ * merged back in compound order.
+ */
+final class NeighbourSpill implements Closeable {
+
+    private static final int    IO_BUFFER = 1 << 16;
+
+    /** The most spill files merged at once, so the open file limit is not reached. */
+    private static final int    MAX_FAN_IN = 64;
+
+    private final File          dir;
+    private final int           capacity;
+    private long[]              buffer    = new long[1024];
+    private int                 buffered;
+    private List<File>          runs      = new ArrayList<File>();
+
+    private PriorityQueue<Run>  merge;
+    private long                last      = -1;
+
+    /**
+     * @param dir The directory for the spill files
+     * @param budget The number of bytes to buffer before spilling
+     */
+    NeighbourSpill(File dir, long budget) {
+        this.dir = dir;
+        this.capacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, budget / 8));
+    }
+
+    /**
+     * Records that compound b is a neighbour of compound a.
+     */
+    void add(int a, int b) throws IOException {
+        if (buffered == buffer.length) {
+            if (buffer.length < capacity) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, 2L * buffer.length));
+            } else {
+                spill();
+            }
+        }
+        buffer[buffered++] = ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Gets the distinct neighbours of a compound. Must be called with increasing 
+     * compound indices once all pairs are added.
+     * @return The neighbours, sorted
+     */
+    int[] getNeighbours(int a) throws IOException {
+        if (merge == null) {
+            startMerge();
+        }
+        int[] neighbours = new int[4];
+        int n = 0;
+        while (!merge.isEmpty() && (merge.peek().current >>> 32) <= a) {
+            Run run = merge.poll();
+            long value = run.current;
+            if (value != last && (value >>> 32) == a) {
+                if (n == neighbours.length) {
+                    neighbours = Arrays.copyOf(neighbours, n * 2);
+                }
+                neighbours[n++] = (int) value;
+            }
+            last = value;
+            if (run.advance()) {
+                merge.add(run);
+            }
+        }
+        return Arrays.copyOf(neighbours, n);
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(buffer, 0, buffered);
+        File file = new File(dir, "neighbours" + runs.size() + ".bin");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER));
+        try {
+            for (int i = 0; i < buffered; i++) {
+                if (i == 0 || buffer[i] != buffer[i - 1]) {
+                    out.writeLong(buffer[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        runs.add(file);
+        buffered = 0;
+    }
+
+    private void startMerge() throws IOException {
+        compactRuns();
+        merge = createQueue(runs.size() + 1);
+        for (File file : runs) {
+            Run run = openRun(file);
+            if (run.advance()) {
+                merge.add(run);
+            } 
+        }
+        Arrays.sort(buffer, 0, buffered);
+        Run memory = new Run(buffer, buffered);
+        if (memory.advance()) {
+            merge.add(memory);
+        }
+    }
+
+    /**
+     * Merges spill files until no more than {@link #MAX_FAN_IN} are left.
+     */
+    private void compactRuns() throws IOException {
+        int pass = 0;
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> compacted = new ArrayList<File>();
+            for (int start = 0; start < runs.size(); start += MAX_FAN_IN) {
+                List<File> batch = runs.subList(start, Math.min(start + MAX_FAN_IN, runs.size()));
+                if (batch.size() == 1) {
+                    compacted.add(batch.get(0));
+                    continue;
+                }
+                File file = new File(dir, "neighbours" + pass + "_" + compacted.size() + ".bin");
+                PriorityQueue<Run> queue = createQueue(batch.size());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                        IO_BUFFER));
+                try {
+                    for (File merged : batch) {
+                        Run run = openRun(merged);
+                        if (run.advance()) {
+                            queue.add(run);
+                        }
+                    }
+                    long previous = -1;
+                    while (!queue.isEmpty()) {
+                        Run run = queue.poll();
+                        if (run.current != previous) {
+                            out.writeLong(run.current);
+                            previous = run.current;
+                        }
+                        if (run.advance()) {
+                            queue.add(run);
+                        }
+                    }
+                } finally {
+                    out.close();
+                    for (Run run : queue) {
+                        run.close();
+                    }
+                }
+                for (File merged : batch) {
+                    merged.delete();
+                }
+                compacted.add(file);
+            }
+            runs = compacted;
+            pass++;
+        }
+    }
+
+    private static Run openRun(File file) throws IOException {
+        return new Run(new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER)));
+    }
+
+    private static PriorityQueue<Run> createQueue(int capacity) {
+        return new PriorityQueue<Run>(capacity, new Comparator<Run>() {
+            @Override
+            public int compare(Run r1, Run r2) {
+                return Long.compare(r1.current, r2.current);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (merge != null) {
+            for (Run run : merge) {
+                run.close();
+            }
+            merge.clear();
+        }
+    }
+
+    /**
+     * A sorted run of packed pairs, read from a file or from the memory buffer.
+     */
+    private static final class Run {
+        private final DataInputStream in;
+        private final long[]          values;
+        private final int             size;
+        private int                   next;
+        long                          current;
+
+        Run(DataInputStream in) {
+            this.in = in;
+            this.values = null;
+            this.size = 0;
+        }
+
+        Run(long[] values, int size) {
+            this.in = null;
+            this.values = values;
+            this.size = size;
+        }
+
+        /** @return false if the run is exhausted */
+        boolean advance() throws IOException {
+            if (in == null) {
+                if (next == size) {
+                    return false;
+                }
+                current = values[next++];
+                return true;
+            }
+            try {
+                current = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.awt.Container;
 import java.awt.FlowLayout;
 
 import javax.swing.JScrollPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.erlwood.knime.datatypes.converters.MoleculeDataTypeConverter;
 import org.erlwood.knime.utils.gui.ConverterDataColumnSpecListCellRenderer;
@@ -39,10 +41,12 @@ import org.knime.core.node.defaultnodesettings.DialogComponentButtonGroup;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnFilter;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentLabel;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelFilterString;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.DataValueColumnFilter;
 import org.rdkit.knime.types.RDKitMolValue;
@@ -72,6 +76,9 @@ public class RDKitMMPNodeDialog extends DefaultNodeSettingsPane {
     private final SettingsModelString       mInvertPrecedence = new SettingsModelString("precedence",
                                                                       RDKitMMPNodeModel.PRECEDENCE_OPTIONS[0]);
 
+    private final SettingsModelBoolean      mExternal         = RDKitMMPNodeModel.createExternalModel();
+    private final SettingsModelIntegerBounded mMemoryBudget   = RDKitMMPNodeModel.createMemoryBudgetModel();
+
     protected RDKitMMPNodeDialog() {
         this.createNewGroup("");
 
@@ -97,6 +104,25 @@ public class RDKitMMPNodeDialog extends DefaultNodeSettingsPane {
         mConnectionPointsSel.getComponentPanel().setLayout(new FlowLayout(FlowLayout.LEADING));
         super.addDialogComponent(mConnectionPointsSel);
 
+        DialogComponentNumber mThreadsSel = new DialogComponentNumber(RDKitMMPNodeModel.createThreadsModel(),
+                "Number of threads : ", 1);
+        mThreadsSel.getComponentPanel().setLayout(new FlowLayout(FlowLayout.LEADING));
+        super.addDialogComponent(mThreadsSel);
+
+        DialogComponentBoolean mExternalSel = new DialogComponentBoolean(mExternal, "Use disk-backed context index");
+        mExternalSel.getComponentPanel().setLayout(new FlowLayout(FlowLayout.LEADING));
+        super.addDialogComponent(mExternalSel);
+        DialogComponentNumber mMemoryBudgetSel = new DialogComponentNumber(mMemoryBudget, "Memory budget (MB) : ", 64);
+        mMemoryBudgetSel.getComponentPanel().setLayout(new FlowLayout(FlowLayout.LEADING));
+        super.addDialogComponent(mMemoryBudgetSel);
+        mExternal.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                mMemoryBudget.setEnabled(mExternal.getBooleanValue());
+            }
+        });
+        mMemoryBudget.setEnabled(mExternal.getBooleanValue());
+
         this.closeCurrentGroup();
         DataValueColumnFilter pvalueFilter = new DataValueColumnFilter(DoubleValue.class, IntValue.class);
         mPvalueInCol = new SettingsModelColumnName(RDKitMMPNodeModel.PVALUE_IN_COL, "");
@@ -135,6 +161,12 @@ public class RDKitMMPNodeDialog extends DefaultNodeSettingsPane {
 
     }
 
+    @Override
+    public void onOpen() {
+        // the listener does not fire if the loaded value equals the previous one
+        mMemoryBudget.setEnabled(mExternal.getBooleanValue());
+    }
+
     public void saveAdditionalSettingsTo(final NodeSettingsWO settings) throws InvalidSettingsException {
         assert settings != null;
         mPvalueInCol.saveSettingsTo(settings);
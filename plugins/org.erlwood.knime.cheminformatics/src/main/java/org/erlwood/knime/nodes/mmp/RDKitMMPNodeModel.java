@@ -24,20 +24,19 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
-import org.RDKit.ChemicalReaction;
 import org.RDKit.RDKFuncs;
 import org.RDKit.ROMol;
-import org.RDKit.ROMol_Vect;
-import org.RDKit.ROMol_Vect_Vect;
 import org.RDKit.RWMol;
 import org.erlwood.knime.datatypes.converters.MoleculeDataTypeConverter;
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
 import org.erlwood.knime.utils.network.AdjacencyMatrix;
 import org.knime.chem.types.RxnCell;
 import org.knime.chem.types.RxnCellFactory;
@@ -52,6 +51,7 @@ import org.knime.core.data.DoubleValue;
 import org.knime.core.data.IntValue;
 import org.knime.core.data.RowIterator;
 import org.knime.core.data.RowKey;
+import org.knime.core.data.append.AppendedColumnRow;
 import org.knime.core.data.collection.CollectionCellFactory;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
@@ -70,7 +70,9 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelFilterString;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.util.FileUtil;
 import org.rdkit.knime.types.RDKitMolValue;
 
 import chemaxon.formats.MFileFormat;
@@ -122,13 +124,40 @@ public class RDKitMMPNodeModel extends NodeModel {
                                                                              PRECEDENCE_OPTIONS[0]);
 
     public static final String                PRECEDENCE_OPTIONS[]   = { "R / L and R - L", "L / R and L - R" };
-    private final Map<String, Set<data>>      dict                   = new Hashtable<String, Set<data>>();
+    public static final String                CFG_THREADS            = "threads";
+    private final SettingsModelIntegerBounded mThreads               = createThreadsModel();
+
+    public static final String                CFG_EXTERNAL           = "disk backed index";
+    private final SettingsModelBoolean        mExternal              = createExternalModel();
+
+    public static final String                CFG_MEMORY_BUDGET      = "memory budget";
+    private final SettingsModelIntegerBounded mMemoryBudget          = createMemoryBudgetModel();
+
+    /** The number of input rows fragmented per work unit. */
+    private static final int                  CHUNK_SIZE             = 200;
+
+    /** The number of canonical SMILES kept in the cache. */
+    private static final int                  SMILES_CACHE_SIZE      = 100000;
+
+    // contexts are paired in sorted order, and the compounds of a context in the order
+    // they were found, so the output is the same for the disk-backed index
+    private final Map<String, Set<data>>      dict                   = new TreeMap<String, Set<data>>();
     private final Map<String, Set<data>>      idd                    = new Hashtable<String, Set<data>>();
     private final Map<Integer, List<Integer>> alist                  = new Hashtable<Integer, List<Integer>>();
-    private static final String               REA_SMARTS             = "[*:1]!@!=!#[*:2]>>[*:1]-[*].[*:2]-[*]";
 
-    private Map<String, ROMol>                smiles2MolMap          = new HashMap<String, ROMol>();
-    private Map<ROMol, String>                mol2SmilesMap          = new HashMap<ROMol, String>();
+    private final Map<String, String>         canonicalSmiles        = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > SMILES_CACHE_SIZE;
+        }
+    };
+
+    // the disk-backed index, only set while a disk-backed run executes
+    private CompoundStore                     compoundStore;
+    private ContextSpill                      contextSpill;
+    private NeighbourSpill                    neighbourSpill;
 
     /**
      * Constructor for the node model.
@@ -137,38 +166,57 @@ public class RDKitMMPNodeModel extends NodeModel {
         super(1, 2);
     }
 
-    private ROMol getMol(String smiles) {
-        ROMol mol = smiles2MolMap.get(smiles);
-        if (mol == null) {
-            mol = RWMol.MolFromSmiles(smiles);
-            smiles2MolMap.put(smiles, mol);
-        }
-        return mol;
+    /**
+     * Canonicalises a SMILES. Only the strings are cached, the molecule is released
+     * straight away.
+     */
+    private String getCanonicalSmiles(String smiles) {
+        String canonical = canonicalSmiles.get(smiles);
+        if (canonical == null) {
+            ROMol mol = RWMol.MolFromSmiles(smiles);
+            canonical = RDKFuncs.MolToSmiles(mol, true);
+            mol.delete();
+            canonicalSmiles.put(smiles, canonical);
+        }
+        return canonical;
     }
 
-    private String getSmiles(ROMol mol) {
-        String smiles = mol2SmilesMap.get(mol);
-        if (smiles == null) {
-            smiles = RDKFuncs.MolToSmiles(mol, true);
-            mol2SmilesMap.put(mol, smiles);
-        }
-        return smiles;
+    static SettingsModelIntegerBounded createThreadsModel() {
+        return new SettingsModelIntegerBounded(CFG_THREADS, OrderedChunkExecutor.getDefaultThreadCount(), 1,
+                OrderedChunkExecutor.MAX_THREAD_SETTING);
     }
 
-    protected BufferedDataTable[] execute(BufferedDataTable inData[], ExecutionContext exec) throws Exception {
+    static SettingsModelBoolean createExternalModel() {
+        return new SettingsModelBoolean(CFG_EXTERNAL, false);
+    }
+
+    static SettingsModelIntegerBounded createMemoryBudgetModel() {
+        return new SettingsModelIntegerBounded(CFG_MEMORY_BUDGET, 512, 16, Integer.MAX_VALUE);
+    }
 
-        smiles2MolMap.clear();
-        mol2SmilesMap.clear();
+    protected BufferedDataTable[] execute(BufferedDataTable inData[], ExecutionContext exec) throws Exception {
 
-        ChemicalReaction rxn = ChemicalReaction.ReactionFromSmarts(REA_SMARTS);
+        canonicalSmiles.clear();
 
         List<String> ratioCols = mRatioColumns.getIncludeList();
         List<String> diffCols = mDiffColumns.getIncludeList();
 
         BufferedDataTable input = inData[0];
 
-        int molIndex = input.getSpec().findColumnIndex(mMolInCol.getStringValue());
-        int idIndex = input.getSpec().findColumnIndex(mIdInCol.getColumnName());
+        final int molIndex = input.getSpec().findColumnIndex(mMolInCol.getStringValue());
+        final int idIndex = input.getSpec().findColumnIndex(mIdInCol.getColumnName());
+        final boolean useRowID = mIdInCol.useRowID();
+        final MoleculeDataTypeConverter.ValueConverter<RDKitMolValue> molConverter = MoleculeDataTypeConverter
+                .getValueConverter(input.getSpec().getColumnSpec(molIndex).getType(), RDKitMolValue.class);
+
+        final int[] ratioIndices = new int[ratioCols.size()];
+        for (int i = 0; i < ratioIndices.length; i++) {
+            ratioIndices[i] = input.getSpec().findColumnIndex(ratioCols.get(i));
+        }
+        final int[] diffIndices = new int[diffCols.size()];
+        for (int i = 0; i < diffIndices.length; i++) {
+            diffIndices[i] = input.getSpec().findColumnIndex(diffCols.get(i));
+        }
 
         DataColumnSpec idDataSpec = null;
         if (idIndex > -1) {
@@ -177,148 +225,235 @@ public class RDKitMMPNodeModel extends NodeModel {
 
         BufferedDataContainer container = exec.createDataContainer(createSpec(idDataSpec));
 
-        RowIterator rows = input.iterator();
-        double count = 0.0D;
-        while (rows.hasNext()) {
-            DataRow dataRow = rows.next();
-            DataCell mcell = dataRow.getCell(molIndex);
-
-            if (mcell.isMissing()) {
-                continue;
+        File spillDir = null;
+        try {
+            if (mExternal.getBooleanValue()) {
+                long budget = mMemoryBudget.getIntValue() * 1024L * 1024L;
+                spillDir = FileUtil.createTempDir("RDKitMMP");
+                compoundStore = new CompoundStore(spillDir);
+                contextSpill = new ContextSpill(spillDir, budget / 2);
+                neighbourSpill = new NeighbourSpill(spillDir, budget / 2);
             }
+
+            // Fragment the molecules in parallel, the results are merged into the
+            // context index in input order so the index is the same as for a
+            // single threaded run
+            final MoleculeFragmenter fragmenter = new MoleculeFragmenter();
+            final double[] merged = new double[] { 0.0D };
+            OrderedChunkExecutor<DataRow, FragmentedRow> executor = new OrderedChunkExecutor<DataRow, FragmentedRow>(
+                    "RDKitMMP", mThreads.getIntValue(), CHUNK_SIZE);
             try {
+                executor.execute(exec.createSubProgress(0.5D), input.iterator(), input.getRowCount(),
+                        new OrderedChunkExecutor.ChunkProcessor<DataRow, FragmentedRow>() {
+                            @Override
+                            public List<FragmentedRow> process(List<DataRow> chunk) {
+                                List<FragmentedRow> result = new ArrayList<FragmentedRow>(chunk.size());
+                                for (DataRow dataRow : chunk) {
+                                    result.add(fragmentRow(dataRow, molIndex, molConverter, idIndex, useRowID,
+                                            ratioIndices, diffIndices, fragmenter));
+                                }
+                                return result;
+                            }
+                        }, new OrderedChunkExecutor.ResultConsumer<FragmentedRow>() {
+                            @Override
+                            public void accept(FragmentedRow row) throws IOException {
+                                if (row == null) {
+                                    return;
+                                }
+                                if (row.failed) {
+                                    setWarningMessage((new StringBuilder("Error parsing Smiles for row: "))
+                                            .append((int) (merged[0] + 1.0D)).toString());
+                                    return;
+                                }
+                                mergeFragments(row, (int) merged[0]);
+                                merged[0]++;
+                            }
+                        });
+            } finally {
+                fragmenter.dispose();
+            }
+
+            if (contextSpill != null) {
+                LOG.debug("Context index spilled to " + contextSpill.getRunCount() + " files");
+                pairSpilledContexts(idDataSpec, container, exec);
+            } else {
+                int count = 0;
+                double c = 0.0D;
+                for (Map.Entry<String, Set<data>> entry : dict.entrySet()) {
+                    count = pairContext(entry.getKey(), entry.getValue(), idDataSpec, container, count);
+                    c++;
+                    double progress = c / (double) dict.size();
+                    exec.setProgress(0.5D * progress + 0.5D);
+                }
+            }
 
-                RDKitMolValue sv = MoleculeDataTypeConverter.getValue(mcell, RDKitMolValue.class);
+            container.close();
+            BufferedDataTable out = container.getTable();
+            BufferedDataContainer container2 = exec.createDataContainer(createSpec1(inData[0].getDataTableSpec(), molIndex));
 
-                ROMol molecule = sv.readMoleculeValue();
-                String id = dataRow.getKey().getString();
+            RowIterator rows2 = input.iterator();
+            int rowCount = inData[0].getRowCount();
+            for (int k = 0; rows2.hasNext(); k++) {
+                DataRow row = rows2.next();
+                int[] neighbours = getNeighbours(k);
+                double[] weights = new double[neighbours.length];
+                Arrays.fill(weights, 1.0D);
+                AdjacencyMatrix amatrix = new AdjacencyMatrix(k, false, rowCount, neighbours, weights);
 
-                if (!mIdInCol.useRowID()) {
-                    id = dataRow.getCell(idIndex).toString();
-                }
-                List<Double> rprop = new ArrayList<Double>();
-                List<Double> dprop = new ArrayList<Double>();
-
-                for (String prop : ratioCols) {
-                    DataCell cell = dataRow.getCell(inData[0].getSpec().findColumnIndex(prop));
-                    if (cell.isMissing()) {
-                        rprop.add(null);
-                    } else {
-                        Double d = Double.valueOf(Double.parseDouble(cell.toString()));
-                        rprop.add(d);
-                    }
-                }
+                container2.addRowToTable(new AppendedColumnRow(row, amatrix));
+            }
 
-                for (String prop : diffCols) {
-                    DataCell cell = dataRow.getCell(inData[0].getSpec().findColumnIndex(prop));
-                    if (cell.isMissing()) {
-                        dprop.add(null);
-                    } else {
-                        Double d = Double.valueOf(Double.parseDouble(cell.toString()));
-                        dprop.add(d);
-                    }
-                }
+            container2.close();
 
-                if (rprop.size() == 0 || dprop.size() == 0) {
-                    LOG.debug("????");
-                }
+            return (new BufferedDataTable[] { out, container2.getTable() });
+        } finally {
+            closeSpills();
+            if (spillDir != null) {
+                FileUtil.deleteRecursively(spillDir);
+            }
+        }
+    }
 
-                processMolecule(molecule, count, id, rprop, dprop, rxn);
-                molecule.delete();
-            } catch (Exception e1) {
-                setWarningMessage((new StringBuilder("Error parsing Smiles for row: ")).append((int) (count + 1.0D)).toString());
-                continue;
+    /**
+     * Pairs the compounds of each context read back from the disk-backed index. Only
+     * one context is held in memory at a time.
+     */
+    private void pairSpilledContexts(DataColumnSpec idDataSpec, BufferedDataContainer container, ExecutionContext exec)
+            throws Exception {
+        int count = 0;
+        double total = contextSpill.size();
+        List<ContextSpill.Tuple> group;
+        while ((group = contextSpill.nextGroup()) != null) {
+            String context = group.get(0).context;
+            Set<data> dvalues = new LinkedHashSet<data>();
+            for (ContextSpill.Tuple tuple : group) {
+                CompoundStore.Compound compound = compoundStore.get(tuple.compound);
+                dvalues.add(new data(tuple.compound, tuple.core, compound.id, compound.rprop, compound.dprop,
+                        compound.origSmi, context));
             }
-            count++;
+            count = pairContext(context, dvalues, idDataSpec, container, count);
+            exec.checkCanceled();
+            exec.setProgress(0.5D * (contextSpill.getRead() / total) + 0.5D);
         }
+    }
 
-        count = 0.0D;
-        double c = 0.0D;
+    /**
+     * Writes the matched pairs of a single context.
+     * @param count The number of pairs found so far, used for the row keys
+     * @return The number of pairs found including this context
+     */
+    private int pairContext(String context, Set<data> dvalues, DataColumnSpec idDataSpec,
+            BufferedDataContainer container, int count) throws Exception {
 
-        for (String context : dict.keySet()) {
+        addHTransformation(context, dvalues);
+        if (dvalues.size() <= 1) {
+            return count;
+        }
 
-            addHTransformation(context);
-            Set<data> dvalues = dict.get(context);
-            if (dvalues.size() <= 1) {
-                c++;
-            } else {
+        List<data> lstDataValues = new ArrayList<data>(dvalues);
+        
+        for (int i = 0; i < lstDataValues.size(); i++) {                   
+            for (int j = i + 1; j < lstDataValues.size(); j++) {
+                count++;
                 
-                List<data> lstDataValues = new ArrayList<data>(dvalues);
+                RowKey key = new RowKey((new StringBuilder("Row ")).append(count).toString());
+                data left = (data) lstDataValues.get(i).clone();
+                data right = (data) lstDataValues.get(j).clone();
                 
-                for (int i = 0; i < lstDataValues.size(); i++) {                   
-                    for (int j = i + 1; j < lstDataValues.size(); j++) {
-                        count++;
-                        
-                        RowKey key = new RowKey((new StringBuilder("Row ")).append((int) count).toString());
-                        data left = (data) lstDataValues.get(i).clone();
-                        data right = (data) lstDataValues.get(j).clone();
-                        
-                        //  Ignore same fragment
-                        if (left.sfrag.equals(right.sfrag)) {
-                            continue;
-                        }
-                        
-                        
-                        boolean canonical = isCanonical(left, right);
-                        if (!canonical) {
-                            try {
-                                data temp = (data) left.clone();
-                                left = (data) right.clone();
-                                right = (data) temp.clone();
-                            } catch (CloneNotSupportedException e) {
-                                LOG.error(e.getMessage(), e);
-                            }
-                        }
-                        DataRow row = generateMP(idDataSpec, context, left, right, key, !mPrecedence.getStringValue()
-                                .equalsIgnoreCase(PRECEDENCE_OPTIONS[0]));
-                        container.addRowToTable(row);
-                        if (mDuplicate.getBooleanValue()) {
-                            RowKey key2 = new RowKey((new StringBuilder("Row ")).append((int) count).append("(inverse)")
-                                    .toString());
-                            DataRow row2 = generateMP(idDataSpec, context, right, left, key2, !mPrecedence.getStringValue()
-                                    .equalsIgnoreCase(PRECEDENCE_OPTIONS[0]));
-                            container.addRowToTable(row2);
-                        }
-
+                //  Ignore same fragment
+                if (left.sfrag.equals(right.sfrag)) {
+                    continue;
+                }
+                
+                
+                boolean canonical = isCanonical(left, right);
+                if (!canonical) {
+                    try {
+                        data temp = (data) left.clone();
+                        left = (data) right.clone();
+                        right = (data) temp.clone();
+                    } catch (CloneNotSupportedException e) {
+                        LOG.error(e.getMessage(), e);
                     }
-
+                }
+                DataRow row = generateMP(idDataSpec, context, left, right, key, !mPrecedence.getStringValue()
+                        .equalsIgnoreCase(PRECEDENCE_OPTIONS[0]));
+                container.addRowToTable(row);
+                if (mDuplicate.getBooleanValue()) {
+                    RowKey key2 = new RowKey((new StringBuilder("Row ")).append(count).append("(inverse)")
+                            .toString());
+                    DataRow row2 = generateMP(idDataSpec, context, right, left, key2, !mPrecedence.getStringValue()
+                            .equalsIgnoreCase(PRECEDENCE_OPTIONS[0]));
+                    container.addRowToTable(row2);
                 }
 
-                c++;
-                double progress = c / (double) dict.size();
-                exec.setProgress(0.5D * progress + 0.5D);
             }
-        }
 
-        container.close();
-        BufferedDataTable out = container.getTable();
-        BufferedDataContainer container2 = exec.createDataContainer(createSpec1(inData[0].getDataTableSpec(), molIndex));
+        }
+        return count;
+    }
 
-        RowIterator rows2 = input.iterator();
-        for (int k = 0; rows2.hasNext(); k++) {
-            DataRow row = rows2.next();
-            double w[] = new double[inData[0].getRowCount()];
-            Arrays.fill(w, 0.0D);
-            List<Integer> v = alist.get(Integer.valueOf(k));
-            if (v != null) {
-                for (int i : v) {
-                    w[i] = 1.0D;
-                }
+    /**
+     * @return The distinct neighbours of the compound in the given row, sorted
+     */
+    private int[] getNeighbours(int k) throws IOException {
+        if (neighbourSpill != null) {
+            return neighbourSpill.getNeighbours(k);
+        }
+        int[] neighbours = new int[0];
+        List<Integer> v = alist.get(Integer.valueOf(k));
+        if (v != null) {
+            neighbours = new int[v.size()];
+            for (int i = 0; i < neighbours.length; i++) {
+                neighbours[i] = v.get(i);
             }
-            AdjacencyMatrix amatrix = new AdjacencyMatrix(k, false, w);
-            List<DataCell> cells = new ArrayList<DataCell>();
-
-            for (DataCell dc : row) {
-                cells.add(dc);
+            // the same pair can be found through several contexts
+            Arrays.sort(neighbours);
+            int n = 0;
+            for (int i = 0; i < neighbours.length; i++) {
+                if (n == 0 || neighbours[i] != neighbours[n - 1]) {
+                    neighbours[n++] = neighbours[i];
+                }
             }
+            neighbours = Arrays.copyOf(neighbours, n);
+        }
+        return neighbours;
+    }
 
-            cells.add(amatrix);
-            container2.addRowToTable(new DefaultRow(row.getKey(), cells));
+    private void addNeighbours(int a, int b) throws IOException {
+        if (neighbourSpill != null) {
+            neighbourSpill.add(a, b);
+            neighbourSpill.add(b, a);
+            return;
         }
+        if (!alist.containsKey(a)) {
+            alist.put(a, new ArrayList<Integer>());
+        }
+
+        alist.get(a).add(b);
 
-        container2.close();
+        if (!alist.containsKey(b)) {
+            alist.put(b, new ArrayList<Integer>());
+        }
+        alist.get(b).add(a);
+    }
 
-        return (new BufferedDataTable[] { out, container2.getTable() });
+    private void closeSpills() throws IOException {
+        try {
+            if (contextSpill != null) {
+                contextSpill.close();
+            }
+            if (neighbourSpill != null) {
+                neighbourSpill.close();
+            }
+            if (compoundStore != null) {
+                compoundStore.close();
+            }
+        } finally {
+            contextSpill = null;
+            neighbourSpill = null;
+            compoundStore = null;
+        }
     }
 
     /**
@@ -331,8 +466,7 @@ public class RDKitMMPNodeModel extends NodeModel {
         dict.clear();
         idd.clear();
         alist.clear();
-        smiles2MolMap.clear();
-        mol2SmilesMap.clear();
+        canonicalSmiles.clear();
     }
 
     private DataTableSpec createSpec1(DataTableSpec in, int colIndex) {
@@ -430,12 +564,8 @@ public class RDKitMMPNodeModel extends NodeModel {
     }
 
     private boolean isCanonical(data left, data right) {
-        ROMol tmol2 = getMol(new StringBuilder(left.sfrag).append(".").append(right.sfrag).toString());
-        String cantrans = getSmiles(tmol2);
-        tmol2.delete();
-        ROMol tmol3 = getMol(cantrans.split("[.]")[0]);
-        String canFragL = getSmiles(tmol3);
-        tmol3.delete();
+        String cantrans = getCanonicalSmiles(new StringBuilder(left.sfrag).append(".").append(right.sfrag).toString());
+        String canFragL = getCanonicalSmiles(cantrans.split("[.]")[0]);
         return canFragL.equals(left.sfrag);
     }
 
@@ -469,7 +599,7 @@ public class RDKitMMPNodeModel extends NodeModel {
                                data left,
                                data right,
                                RowKey key,
-                               boolean inversePrecedence) throws CloneNotSupportedException {
+                               boolean inversePrecedence) throws CloneNotSupportedException, IOException {
         List<String> ratioCols = mRatioColumns.getIncludeList();
         List<String> diffCols = mDiffColumns.getIncludeList();
         String fragL = left.sfrag;
@@ -483,16 +613,7 @@ public class RDKitMMPNodeModel extends NodeModel {
         String idR = right.id;
         int ridR = right.index;
 
-        if (!alist.containsKey(ridL)) {
-            alist.put(ridL, new ArrayList<Integer>());
-        }
-
-        alist.get(ridL).add(ridR);
-
-        if (!alist.containsKey(ridR)) {
-            alist.put(ridR, new ArrayList<Integer>());
-        }
-        alist.get(ridR).add(ridL);
+        addNeighbours(ridL, ridR);
 
         List<Double> prR = right.ratioProp;
         List<Double> pdR = right.diffProp;
@@ -580,76 +701,105 @@ public class RDKitMMPNodeModel extends NodeModel {
         return new DefaultRow(key, cells);
     }
 
-    private int processMolecule(ROMol mol, double count, String id, List<Double> rprop, List<Double> dprop, ChemicalReaction rxn) {
-        ROMol_Vect_Vect prods = null;
-        ROMol frag1 = null;
-        ROMol frag2 = null;
-        ROMol_Vect rs = new ROMol_Vect(1L);
-        rs.set(0, mol);
-        int fragsize = 0;
-        String origSmi = "";
-        try {
-            prods = rxn.runReactants(rs);
-            fragsize = (int) prods.size();
-            origSmi = getSmiles(mol);
-            Set<data> iddl = idd.get(origSmi);
-            if (iddl == null) {
-                iddl = new HashSet<data>();
-                idd.put(origSmi, iddl);
-            }
-            data d = new data((int) count, id, rprop, dprop);
-            // if (!iddl.contains(d)) {
-            iddl.add(d);
-            // }
-        } catch (Exception e) {
-            return -1;
+    /**
+     * Reads and fragments a single input row. Runs on the worker threads, so
+     * it must not touch the context index.
+     *
+     * @return The fragmentation result, or null if the molecule is missing
+     */
+    private static FragmentedRow fragmentRow(DataRow dataRow, int molIndex,
+            MoleculeDataTypeConverter.ValueConverter<RDKitMolValue> molConverter, int idIndex, boolean useRowID,
+            int[] ratioIndices, int[] diffIndices, MoleculeFragmenter fragmenter) {
+        DataCell mcell = dataRow.getCell(molIndex);
+
+        if (mcell.isMissing()) {
+            return null;
         }
-        if (!prods.isEmpty()) {
-            for (int psetidx = 0; (long) psetidx < prods.size(); psetidx++) {
-                try {
-                    frag1 = prods.get(psetidx).get(0);
-                    frag2 = prods.get(psetidx).get(1);
+        FragmentedRow result = new FragmentedRow();
+        try {
 
-                    Long natoms1 = Long.valueOf(frag1.getNumAtoms() - 1L);
-                    Long natoms2 = Long.valueOf(frag2.getNumAtoms() - 1L);
+            RDKitMolValue sv = molConverter.getValue(mcell);
 
-                    float ratio = (float) natoms1.longValue() / (float) natoms2.longValue();
+            ROMol molecule = sv.readMoleculeValue();
+            result.id = dataRow.getKey().getString();
 
-                    String smi1 = getSmiles(frag1);
-                    String smi2 = getSmiles(frag2);
+            if (!useRowID) {
+                result.id = dataRow.getCell(idIndex).toString();
+            }
+            result.rprop = readProperties(dataRow, ratioIndices);
+            result.dprop = readProperties(dataRow, diffIndices);
 
-                    if ((double) natoms2.longValue() <= 15D && (double) ratio >= 1.0D) {
-                        Set<data> vec = dict.get(smi1);
+            result.fragments = fragmenter.fragment(molecule);
+            molecule.delete();
+        } catch (Exception e1) {
+            result.failed = true;
+        }
+        return result;
+    }
 
-                        if (vec == null) {
-                            vec = new HashSet<data>();
-                            dict.put(smi1, vec);
-                        }
-                        vec.add(new data((int) count, smi2, id, rprop, dprop, origSmi, smi1));
+    private static List<Double> readProperties(DataRow dataRow, int[] indices) {
+        List<Double> props = new ArrayList<Double>(indices.length);
+        for (int index : indices) {
+            DataCell cell = dataRow.getCell(index);
+            if (cell.isMissing()) {
+                props.add(null);
+            } else {
+                props.add(Double.valueOf(Double.parseDouble(cell.toString())));
+            }
+        }
+        return props;
+    }
 
-                    }
-                } catch (Exception e) {
-                    continue;
-                }
-                frag1.delete();
-                frag2.delete();
+    /**
+     * Adds the fragments of one molecule to the context index. Must be called
+     * in input order.
+     */
+    private void mergeFragments(FragmentedRow row, int count) throws IOException {
+        MoleculeFragmenter.Fragments fragments = row.fragments;
+        if (fragments == null) {
+            return;
+        }
+        if (contextSpill != null) {
+            compoundStore.add(count, row.id, fragments.origSmi, row.rprop, row.dprop);
+            for (int i = 0; i < fragments.contexts.size(); i++) {
+                contextSpill.add(fragments.contexts.get(i), fragments.cores.get(i), count);
             }
+            return;
+        }
+        Set<data> iddl = idd.get(fragments.origSmi);
+        if (iddl == null) {
+            iddl = new LinkedHashSet<data>();
+            idd.put(fragments.origSmi, iddl);
+        }
+        iddl.add(new data(count, row.id, row.rprop, row.dprop));
+
+        for (int i = 0; i < fragments.contexts.size(); i++) {
+            String smi1 = fragments.contexts.get(i);
+            Set<data> vec = dict.get(smi1);
 
+            if (vec == null) {
+                vec = new LinkedHashSet<data>();
+                dict.put(smi1, vec);
+            }
+            vec.add(new data(count, fragments.cores.get(i), row.id, row.rprop, row.dprop, fragments.origSmi, smi1));
         }
-        rs.get(0).delete();
-        rs.delete();
-        prods.delete();
-        return fragsize;
     }
 
-    private void addHTransformation(String smi) {
-        RWMol tmol1 = RWMol.MolFromSmiles(smi.replace("*", "[H]"));
-        String contextH = getSmiles(tmol1);
-        tmol1.delete();
-        Set<data> lst = idd.get(contextH);
+    private void addHTransformation(String smi, Set<data> dvalues) throws IOException {
+        String contextH = getCanonicalSmiles(smi.replace("*", "[H]"));
+        Set<data> lst;
+        if (compoundStore != null) {
+            // the same set the in-memory index keeps, one entry per ID
+            lst = new LinkedHashSet<data>();
+            for (CompoundStore.Compound compound : compoundStore.findBySmiles(contextH)) {
+                lst.add(new data(compound.index, compound.id, compound.rprop, compound.dprop));
+            }
+        } else {
+            lst = idd.get(contextH);
+        }
         if (lst != null) {
             for (data d : lst) {
-                dict.get(smi).add(new data(d.index, "[*H]", d.id, d.ratioProp, d.diffProp, contextH, smi));
+                dvalues.add(new data(d.index, "[*H]", d.id, d.ratioProp, d.diffProp, contextH, smi));
             }
         }
     }
@@ -668,6 +818,9 @@ public class RDKitMMPNodeModel extends NodeModel {
         mDuplicate.saveSettingsTo(settings);
         mPrecedence.saveSettingsTo(settings);
         mConnectionPointString.saveSettingsTo(settings);
+        mThreads.saveSettingsTo(settings);
+        mExternal.saveSettingsTo(settings);
+        mMemoryBudget.saveSettingsTo(settings);
 
     }
 
@@ -692,6 +845,19 @@ public class RDKitMMPNodeModel extends NodeModel {
         } catch (Exception e) {
             LOG.warn("Please re-configure the node with the required property columns (new functionality)");
         }
+        try {
+            mThreads.loadSettingsFrom(settings);
+        } catch (InvalidSettingsException e) {
+            // this node instance predates the threads setting
+            mThreads.setIntValue(OrderedChunkExecutor.getDefaultThreadCount());
+        }
+        try {
+            mExternal.loadSettingsFrom(settings);
+            mMemoryBudget.loadSettingsFrom(settings);
+        } catch (InvalidSettingsException e) {
+            // this node instance predates the disk-backed index
+            mExternal.setBooleanValue(false);
+        }
 
     }
 
@@ -804,6 +970,17 @@ public class RDKitMMPNodeModel extends NodeModel {
         }
     }
 
+    /**
+     * The per row output of the fragmentation stage.
+     */
+    private static final class FragmentedRow {
+        private boolean                        failed;
+        private String                         id;
+        private List<Double>                   rprop;
+        private List<Double>                   dprop;
+        private MoleculeFragmenter.Fragments   fragments;
+    }
+
     public int countFirstFragmentSize(String smiles) {
         int c = 0;
         for (int j = 0; j < smiles.length(); j++) {
@@ -178,11 +178,13 @@ public class MoleculeEditorNodeModel extends NodeModel {
 		int index = inData[0].getDataTableSpec().findColumnIndex(
 				mColumn.getStringValue());
 		RowIterator rows = inData[0].iterator();
+		MoleculeDataTypeConverter.ValueConverter<MrvValue> converter = MoleculeDataTypeConverter.getValueConverter(
+				inData[0].getDataTableSpec().getColumnSpec(index).getType(), MrvValue.class);
 
 		int molCount = 0;
 		while (rows.hasNext()) {
 			DataRow row = rows.next();
-			MrvValue val = MoleculeDataTypeConverter.getValue(row.getCell(index), MrvValue.class);
+			MrvValue val = converter.getValue(row.getCell(index));
 			
 			Molecule readMol = val.getMolecule();
 
@@ -26,6 +26,8 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import javax.swing.JPanel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.erlwood.knime.utils.gui.ChemFileReaderConfigPanel;
 import org.erlwood.knime.utils.gui.ChemFileReaderConfigPanel.PropertyObject;
@@ -34,7 +36,10 @@ import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.NotConfigurableException;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.defaultnodesettings.SettingsModelStringArray;
 import org.knime.core.node.port.PortObjectSpec;
@@ -79,6 +84,33 @@ public class MolFileReaderNodeDialog extends DefaultNodeSettingsPane {
         ((JPanel) this.getTab("Options")).add(mPnlConfig);
     }
 
+    /**
+     * Add the tab for reading a range or a random sample of the records
+     * through the SD file record index.
+     */
+    public void addRecordSelectionTab() {
+        createNewTab("Record Selection");
+        final SettingsModelBoolean useIndex = MolFileReaderNodeModel.createUseIndexModel();
+        final SettingsModelInteger sampleSize = MolFileReaderNodeModel.createSampleSizeModel();
+        final SettingsModelInteger sampleSeed = MolFileReaderNodeModel.createSampleSeedModel();
+        
+        ChangeListener l = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                sampleSize.setEnabled(useIndex.getBooleanValue());
+                sampleSeed.setEnabled(useIndex.getBooleanValue());
+            }
+        };
+        useIndex.addChangeListener(l);
+        l.stateChanged(null);
+        
+        addDialogComponent(new DialogComponentBoolean(useIndex, "Use record index (uncompressed local SD files)"));
+        addDialogComponent(new DialogComponentNumber(MolFileReaderNodeModel.createFirstRecordModel(), "First record", 1000, 12));
+        addDialogComponent(new DialogComponentNumber(MolFileReaderNodeModel.createMaxRecordsModel(), "Maximum records (0 = all)", 1000, 12));
+        addDialogComponent(new DialogComponentNumber(sampleSize, "Random sample size (0 = no sampling)", 100, 12));
+        addDialogComponent(new DialogComponentNumber(sampleSeed, "Random seed", 1, 12));
+    }
+
     @Override
     public void loadAdditionalSettingsFrom(final NodeSettingsRO settings, final PortObjectSpec[] specs)
             throws NotConfigurableException {
@@ -72,7 +72,7 @@ public class MolFileReaderNodeFactory extends AbstractErlWoodNodeFactory<ChemCon
     @Override
     public NodeDialogPane createNodeDialogPane()
     {
-        return new MolFileReaderNodeDialog(
+        MolFileReaderNodeDialog dialog = new MolFileReaderNodeDialog(
         	MolFileReaderNodeModel.CFG_FILENAME,
         	MolFileReaderNodeModel.CFG_FILEPROPS, 
         	MolFileReaderNodeModel.CFG_OUT_OPTIONS,
@@ -85,6 +85,8 @@ public class MolFileReaderNodeFactory extends AbstractErlWoodNodeFactory<ChemCon
         	MolFileReaderNodeModel.ARR_DEFAULT_OPTIONS,
         	MolFileReaderNodeModel.ARR_DEFAULT_COLS
         );
+        dialog.addRecordSelectionTab();
+        return dialog;
     }
 
 }
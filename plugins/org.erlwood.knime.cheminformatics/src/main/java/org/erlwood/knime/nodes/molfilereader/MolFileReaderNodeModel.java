@@ -20,6 +20,7 @@
 */
 package org.erlwood.knime.nodes.molfilereader;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -27,13 +28,14 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
+import java.util.Locale;
 
 import jp.co.infocom.cheminfo.marvin.type.MrvCell;
 import jp.co.infocom.cheminfo.marvin.type.MrvCellFactory;
 
 import org.erlwood.knime.nodes.rxnfilereader.RxnFileReaderNodeModel;
 import org.erlwood.knime.utils.KnimenodeUtils;
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
 import org.erlwood.knime.utils.nodes.ChemContentsNodeModel;
 import org.knime.bio.types.PdbCell;
 import org.knime.chem.types.CMLCell;
@@ -64,8 +66,11 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.defaultnodesettings.SettingsModelStringArray;
+import org.knime.core.util.FileUtil;
 
 import chemaxon.formats.MolImporter;
 import chemaxon.struc.Molecule;
@@ -90,6 +95,11 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
     public static final String CFG_LAST_DIRECTORY  	= "mol_file_reader_last_directory";
     public static final String CFG_FOUND_PROPS   	= "mol_file_reader_founds_props";
     public static final String CFG_REQUIRES_SCAN   	= "mol_file_reader_requires_scan";
+    public static final String CFG_USE_INDEX   		= "mol_file_reader_use_index";
+    public static final String CFG_FIRST_RECORD   	= "mol_file_reader_first_record";
+    public static final String CFG_MAX_RECORDS   	= "mol_file_reader_max_records";
+    public static final String CFG_SAMPLE_SIZE   	= "mol_file_reader_sample_size";
+    public static final String CFG_SAMPLE_SEED   	= "mol_file_reader_sample_seed";
     
 	public static final String[] ARR_DEFAULT_OPTIONS = new String[] {
 			"Aromatize molecules:1", "Strip salts:1" };
@@ -107,6 +117,12 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
 	public static final String COL_NAME_PDB = "PDB String";
 	public static final String COL_NAME_SOURCE = "Source String";
 
+	/** The number of records parsed together on one worker thread. */
+	private static final int CHUNK_SIZE = 64;
+	
+	/** How often the number of read molecules is reported. */
+	private static final int PROGRESS_ROWS = 10000;
+
 	private static final DataColumnSpecCreator CHEMAXON_CREATOR = new DataColumnSpecCreator(
 			COL_NAME_CHEMAXON, MrvCell.TYPE);
 	
@@ -126,6 +142,12 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
 	private final SettingsModelBoolean	   mRequiresScan	= new SettingsModelBoolean(CFG_REQUIRES_SCAN, true);
     private final SettingsModelStringArray mFoundProps  	= new SettingsModelStringArray(CFG_FOUND_PROPS, new String[]{});
     
+    private final SettingsModelBoolean	   mUseIndex		= createUseIndexModel();
+    private final SettingsModelInteger	   mFirstRecord		= createFirstRecordModel();
+    private final SettingsModelInteger	   mMaxRecords		= createMaxRecordsModel();
+    private final SettingsModelInteger	   mSampleSize		= createSampleSizeModel();
+    private final SettingsModelInteger	   mSampleSeed		= createSampleSeedModel();
+    
 	private String[] files = new String[0];
 
 	/**
@@ -136,6 +158,41 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
 		super(0, 2);
 	}
 
+	/**
+	 * @return The settings model for using the SD file record index
+	 */
+	static SettingsModelBoolean createUseIndexModel() {
+		return new SettingsModelBoolean(CFG_USE_INDEX, false);
+	}
+
+	/**
+	 * @return The settings model for the first record to read
+	 */
+	static SettingsModelInteger createFirstRecordModel() {
+		return new SettingsModelIntegerBounded(CFG_FIRST_RECORD, 1, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return The settings model for the maximum number of records to read, 0 for all
+	 */
+	static SettingsModelInteger createMaxRecordsModel() {
+		return new SettingsModelIntegerBounded(CFG_MAX_RECORDS, 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return The settings model for the random sample size, 0 for no sampling
+	 */
+	static SettingsModelInteger createSampleSizeModel() {
+		return new SettingsModelIntegerBounded(CFG_SAMPLE_SIZE, 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return The settings model for the random sample seed
+	 */
+	static SettingsModelInteger createSampleSeedModel() {
+		return new SettingsModelInteger(CFG_SAMPLE_SEED, 42);
+	}
+
 	private DataTableSpec createSpec() {
 		List<DataColumnSpec> colSpecs = new ArrayList<DataColumnSpec>();
 
@@ -212,6 +269,39 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
 		if (files.length == 0) {		
 			throw new IllegalStateException("You must specify at least one filename");
 		}
+		
+		//	Resolve the output columns once for all files
+		DataTableSpec spec = createSpec();
+		eColumn[] columns = new eColumn[spec.getNumColumns()];
+		boolean hasMol = spec.containsName(COL_NAME_CHEMAXON);
+		boolean parse = false;
+		int nProps = 0;
+		for (int i = 0; i < columns.length; ++i) {
+			columns[i] = eColumn.fromName(spec.getColumnSpec(i).getName());
+			if (columns[i] == null) {
+				nProps++;
+			} else if (columns[i] != eColumn.SOURCE) {
+				parse = true;
+			}
+		}
+		String[] propKeys = new String[0];
+		if (hasMol && nProps > 0) {
+			propKeys = mProperties.getStringArrayValue();
+		}
+		
+		boolean aromatize = true, stripSalts = true;
+		String[] tmp = mOutputOptions.getStringArrayValue();
+		if (null != tmp) {
+			for (String s : tmp) {
+				int i = s.lastIndexOf(':');
+				assert (-1 != i);
+				if ("Aromatize molecules".equalsIgnoreCase(s.substring(0, i))) {
+					aromatize = s.substring(i + 1).startsWith("1");
+				} else if ("Strip salts".equalsIgnoreCase(s.substring(0, i))) {
+					stripSalts = s.substring(i + 1).startsWith("1");
+				}
+			}
+		}
 		   
         int count = 0;
         
@@ -224,174 +314,27 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
 				throw new InvalidSettingsException(error);
 			}
 	
-			InputStream input = null;
-			try {
-				URL url = new URL(fname);
-				input = url.openStream();
-			} catch (MalformedURLException ex) {
-				input = new FileInputStream(fname);
-			}
-	
-			BufferedDataContainer container = exec
-					.createDataContainer(createSpec());
-	
-			boolean hasMol = container.getTableSpec().containsName(
-					COL_NAME_CHEMAXON);
-			boolean hasSrc = container.getTableSpec().containsName(COL_NAME_SOURCE);
-	
+			BufferedDataContainer container = exec.createDataContainer(spec);
 			
-			MolImporter importer = new MolImporter(input);
-			Molecule readMol = null;
-			String source = null;
-			/*
-			if (hasMol) {
-				readMol = importer.read();
-				source = null != readMol ? importer.getGrabbedMoleculeString()
-						: null;
-			} else if (hasSrc) {
-				source = importer.readRecordAsText();
-			} else {
-				throw new RuntimeException(
-						"Needs at least one of ChemaxonMolecule or Source column");
-			}
-	*/
-			boolean aromatize = true, stripSalts = true;
-			String[] tmp = mOutputOptions.getStringArrayValue();
-			if (null != tmp) {
-				for (String s : tmp) {
-					int i = s.lastIndexOf(':');
-					assert (-1 != i);
-					if ("Aromatize molecules".equalsIgnoreCase(s.substring(0, i))) {
-						aromatize = s.substring(i + 1).startsWith("1");
-					} else if ("Strip salts".equalsIgnoreCase(s.substring(0, i))) {
-						stripSalts = s.substring(i + 1).startsWith("1");
-					}
-				}
-			}
-			tmp = mProperties.getStringArrayValue();
+			//	One thread splits the file into records, the workers parse and export them
+			//	and the rows are written back here in file order.
+			MolRecordReader reader = openReader(fname, parse, exec);
+			RecordParser parser = new RecordParser(columns, propKeys, reader.getMode().getFormat(),
+					parse, aromatize, stripSalts);
+			RowWriter writer = new RowWriter(exec, container, errorContainer, fname, count);
 			
+			OrderedChunkExecutor<MolRecordReader.Record, ParsedRecord> executor = new OrderedChunkExecutor<MolRecordReader.Record, ParsedRecord>(
+					"MolFileReader", OrderedChunkExecutor.getDefaultThreadCount(), CHUNK_SIZE);
 			try {
-				int molNumber = 0;
-				while (true) {
-					try {
-						source = null;
-						
-						if (hasMol) {							
-							molNumber++;
-							readMol = importer.read();							
-							source = null != readMol ? importer.getGrabbedMoleculeString() : null;
-						} else if (hasSrc) {
-							source = importer.readRecordAsText();
-						}
-					
-						if (source == null) {
-							break;
-						}
-						Properties props = new Properties();
-						int pcount = readMol.getPropertyCount();
-						for (int i = 0; i < pcount; i++) {
-							String key = readMol.getPropertyKey(i);
-							props.put(key, readMol.getPropertyObject(key));
-						}
-		
-						if (hasMol) {
-							if (aromatize) {
-								readMol.aromatize();
-							}
-							if (stripSalts && readMol.getAtomCount() > 0) {
-								MoleculeGraph[] frags = readMol
-										.findFrags(Molecule.class);
-								readMol = (Molecule) frags[0];
-								for (int i = 1; i < frags.length; ++i) {
-									if (readMol.getAtomCount() < frags[i]
-											.getAtomCount()) {
-										readMol = (Molecule) frags[i];
-									}
-								}
-							}
-						}
-						List<DataCell> cells = new ArrayList<DataCell>();
-						for (int i = 0; i < container.getTableSpec().getNumColumns(); ++i) {
-							if (hasMol) {
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_CHEMAXON))
-								{
-									cells.add(MrvCellFactory.create(readMol));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_CTAB))
-								{
-									cells.add(CtabCellFactory.create(readMol
-											.toFormat("mol")));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_SDF))
-								{
-									cells.add(SdfCellFactory.create(readMol
-											.toFormat("sdf")));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_SMILES))
-								{
-									cells.add(new SmilesCell(readMol.toFormat("smiles")));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_MOL2))
-								{
-									cells.add(Mol2CellFactory.create(readMol
-											.toFormat("mol2")));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_CML))
-								{
-									cells.add(CMLCellFactory.create(readMol.toFormat("cml")));
-								}
-								if (container.getTableSpec().getColumnSpec(i).getName()
-										.equals(COL_NAME_PDB))
-								{
-									cells.add(new PdbCell(readMol.toFormat("pdb")));
-								}
-							}
-							if (container.getTableSpec().getColumnSpec(i).getName()
-									.equals(COL_NAME_SOURCE))
-							{
-								cells.add(new StringCell(source));
-							}
-						}
-						if (hasMol) {
-							for (String pkey : tmp) {
-								String propValue = props.getProperty(pkey);
-								cells.add(new StringCell(null != propValue ? propValue
-										: ""));
-							}
-						}
-						count += 1;
-						RowKey key = new RowKey(Integer.toString(count));
-						DefaultRow row = new DefaultRow(key, cells);
-						container.addRowToTable(row);
-					
-					} catch(Throwable ex) {
-						ex.printStackTrace();
-						DataCell[] errorCells = new DataCell[3];
-		        		errorCells[0] = new StringCell(fname);
-		        		errorCells[1] = new IntCell(molNumber);	        		
-		        		errorCells[2] = new StringCell(ex.getMessage() == null ? "Unknown Error" : ex.getMessage());
-		        		
-		        		DefaultRow errorRow = new DefaultRow(RowKey.createRowKey(errorContainer.size() + 1), errorCells);
-		        		errorContainer.addRowToTable(errorRow);
-		        		continue;							
-					}
-	
-				}
+				executor.execute(exec, reader, reader.getRecordCount(), parser, writer);
 			} catch (Exception e) {
 				LOG.error(e.getMessage(), e);
-				importer.close();
-				input.close();
 				throw e;
+			} finally {
+				reader.close();
 			}
+			count = writer.getCount();
 	
-			importer.close();
-			input.close();
 			container.close();
 			tables.add(container.getTable());
         }
@@ -400,12 +343,248 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
         return new BufferedDataTable[] { exec.createConcatenateTable(exec, tables.toArray(new BufferedDataTable[0])),  errorContainer.getTable() };        
 	}
 
+	/**
+	 * Open a file for reading. Uncompressed local SD files are read through
+	 * their record index if it is enabled, which lets the workers read the
+	 * records themselves and allows random sampling.
+	 */
+	private MolRecordReader openReader(String fname, boolean parse, ExecutionContext exec) throws Exception {
+		int first = mFirstRecord.getIntValue();
+		int max = mMaxRecords.getIntValue();
+		int sample = mSampleSize.getIntValue();
+		
+		if (mUseIndex.getBooleanValue() && MolRecordReader.getSplitMode(fname) == MolRecordReader.eSplitMode.SDF
+				&& !fname.toLowerCase(Locale.ENGLISH).endsWith(".gz")) {
+			File file = getLocalFile(fname);
+			if (file != null && file.isFile()) {
+				exec.setMessage("Indexing " + file.getName());
+				SdfRecordIndex index = SdfRecordIndex.get(file, exec);
+				if (index != null) {
+					return new MolRecordReader(file, index, first, max, sample, mSampleSeed.getIntValue());
+				}
+			}
+		}
+		if (sample > 0) {
+			throw new InvalidSettingsException("Random sampling needs a record index, which is only available for uncompressed local SD files: " + fname);
+		}
+		
+		InputStream input = null;
+		try {
+			URL url = new URL(fname);
+			input = url.openStream();
+		} catch (MalformedURLException ex) {
+			input = new FileInputStream(fname);
+		}
+		return new MolRecordReader(input, fname, parse, first, max);
+	}
+
+	private static File getLocalFile(String fname) {
+		try {
+			return FileUtil.getFileFromURL(new URL(fname));
+		} catch (MalformedURLException ex) {
+			return new File(fname);
+		}
+	}
+
+	/** The output columns with a fixed meaning. */
+	private enum eColumn {
+		MOLECULE(COL_NAME_CHEMAXON), CTAB(COL_NAME_CTAB), SDF(COL_NAME_SDF), SMILES(COL_NAME_SMILES),
+		MOL2(COL_NAME_MOL2), CML(COL_NAME_CML), PDB(COL_NAME_PDB), SOURCE(COL_NAME_SOURCE);
+
+		private final String colName;
+
+		private eColumn(String colName) {
+			this.colName = colName;
+		}
+
+		/**
+		 * @param name The column name
+		 * @return The matching column, null for a property column
+		 */
+		static eColumn fromName(String name) {
+			for (eColumn c : values()) {
+				if (c.colName.equals(name)) {
+					return c;
+				}
+			}
+			return null;
+		}
+	}
+
+	/** The result of parsing a single record, either the row cells or an error. */
+	private static final class ParsedRecord {
+		private final int number;
+		private final DataCell[] cells;
+		private final String error;
+
+		private ParsedRecord(int number, DataCell[] cells, String error) {
+			this.number = number;
+			this.cells = cells;
+			this.error = error;
+		}
+	}
+
+	/** Parses the records and creates the output cells, called on the worker threads. */
+	private static final class RecordParser implements OrderedChunkExecutor.ChunkProcessor<MolRecordReader.Record, ParsedRecord> {
+		private final eColumn[] columns;
+		private final String[] propKeys;
+		private final String format;
+		private final boolean parse;
+		private final boolean aromatize;
+		private final boolean stripSalts;
+
+		private RecordParser(eColumn[] columns, String[] propKeys, String format, boolean parse,
+				boolean aromatize, boolean stripSalts) {
+			this.columns = columns;
+			this.propKeys = propKeys;
+			this.format = format;
+			this.parse = parse;
+			this.aromatize = aromatize;
+			this.stripSalts = stripSalts;
+		}
+
+		@Override
+		public List<ParsedRecord> process(List<MolRecordReader.Record> chunk) {
+			List<ParsedRecord> result = new ArrayList<ParsedRecord>(chunk.size());
+			for (MolRecordReader.Record record : chunk) {
+				try {
+					result.add(new ParsedRecord(record.getNumber(), createCells(record), null));
+				} catch (Throwable ex) {
+					LOG.debug(ex.getMessage(), ex);
+					result.add(new ParsedRecord(record.getNumber(), null,
+							ex.getMessage() == null ? "Unknown Error" : ex.getMessage()));
+				}
+			}
+			return result;
+		}
+
+		private DataCell[] createCells(MolRecordReader.Record record) throws Throwable {
+			if (record.getError() != null) {
+				throw record.getError();
+			}
+			String source = record.getText();
+			Molecule readMol = record.getMolecule();
+			if (parse && readMol == null) {
+				readMol = format == null ? MolImporter.importMol(source) : MolImporter.importMol(source, format);
+			}
+
+			//	Take the properties before the salts are stripped, the fragments do not keep them
+			String[] propValues = new String[propKeys.length];
+			for (int i = 0; i < propKeys.length; i++) {
+				Object value = readMol.getPropertyObject(propKeys[i]);
+				propValues[i] = value instanceof String ? (String) value : "";
+			}
+
+			if (parse) {
+				if (aromatize) {
+					readMol.aromatize();
+				}
+				if (stripSalts && readMol.getAtomCount() > 0) {
+					MoleculeGraph[] frags = readMol
+							.findFrags(Molecule.class);
+					readMol = (Molecule) frags[0];
+					for (int i = 1; i < frags.length; ++i) {
+						if (readMol.getAtomCount() < frags[i]
+								.getAtomCount()) {
+							readMol = (Molecule) frags[i];
+						}
+					}
+				}
+			}
+
+			DataCell[] cells = new DataCell[columns.length];
+			int prop = 0;
+			for (int i = 0; i < columns.length; ++i) {
+				if (columns[i] == null) {
+					cells[i] = new StringCell(propValues[prop++]);
+					continue;
+				}
+				switch (columns[i]) {
+				case MOLECULE:
+					cells[i] = MrvCellFactory.create(readMol);
+					break;
+				case CTAB:
+					cells[i] = CtabCellFactory.create(readMol.toFormat("mol"));
+					break;
+				case SDF:
+					cells[i] = SdfCellFactory.create(readMol.toFormat("sdf"));
+					break;
+				case SMILES:
+					cells[i] = new SmilesCell(readMol.toFormat("smiles"));
+					break;
+				case MOL2:
+					cells[i] = Mol2CellFactory.create(readMol.toFormat("mol2"));
+					break;
+				case CML:
+					cells[i] = CMLCellFactory.create(readMol.toFormat("cml"));
+					break;
+				case PDB:
+					cells[i] = new PdbCell(readMol.toFormat("pdb"));
+					break;
+				case SOURCE:
+					cells[i] = new StringCell(source);
+					break;
+				default:
+					break;
+				}
+			}
+			return cells;
+		}
+	}
+
+	/** Writes the parsed records in file order, called on the executing thread. */
+	private static final class RowWriter implements OrderedChunkExecutor.ResultConsumer<ParsedRecord> {
+		private final ExecutionContext exec;
+		private final BufferedDataContainer container;
+		private final BufferedDataContainer errorContainer;
+		private final String fname;
+		private int count;
+
+		private RowWriter(ExecutionContext exec, BufferedDataContainer container,
+				BufferedDataContainer errorContainer, String fname, int count) {
+			this.exec = exec;
+			this.container = container;
+			this.errorContainer = errorContainer;
+			this.fname = fname;
+			this.count = count;
+		}
+
+		@Override
+		public void accept(ParsedRecord result) {
+			if (result.error != null) {
+				DataCell[] errorCells = new DataCell[3];
+        		errorCells[0] = new StringCell(fname);
+        		errorCells[1] = new IntCell(result.number);	        		
+        		errorCells[2] = new StringCell(result.error);
+        		
+        		DefaultRow errorRow = new DefaultRow(RowKey.createRowKey(errorContainer.size() + 1), errorCells);
+        		errorContainer.addRowToTable(errorRow);
+        		return;
+			}
+			count += 1;
+			container.addRowToTable(new DefaultRow(new RowKey(Integer.toString(count)), result.cells));
+			if (count % PROGRESS_ROWS == 0) {
+				exec.setMessage("Read " + count + " molecules");
+			}
+		}
+
+		/**
+		 * @return The number of rows written so far, over all files
+		 */
+		int getCount() {
+			return count;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
 			throws InvalidSettingsException {
+		if (mSampleSize.getIntValue() > 0 && !mUseIndex.getBooleanValue()) {
+			throw new InvalidSettingsException("Random sampling needs the record index to be enabled");
+		}
 		return new DataTableSpec[] { createSpec(), createErrorSpec() };
 	}
 
@@ -430,6 +609,11 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
         mLastDirectory.saveSettingsTo(settings);
         mRequiresScan.saveSettingsTo(settings);
         mFoundProps.saveSettingsTo(settings);
+        mUseIndex.saveSettingsTo(settings);
+        mFirstRecord.saveSettingsTo(settings);
+        mMaxRecords.saveSettingsTo(settings);
+        mSampleSize.saveSettingsTo(settings);
+        mSampleSeed.saveSettingsTo(settings);
 	}
 
 	/**
@@ -486,6 +670,20 @@ public class MolFileReaderNodeModel extends ChemContentsNodeModel {
         } catch(InvalidSettingsException ex) {
         	//	Do nothing
         }
+        
+        //	Added with the record index, older workflows read whole files
+        try {
+        	mUseIndex.loadSettingsFrom(settings);
+        	mFirstRecord.loadSettingsFrom(settings);
+        	mMaxRecords.loadSettingsFrom(settings);
+        	mSampleSize.loadSettingsFrom(settings);
+        	mSampleSeed.loadSettingsFrom(settings);
+        } catch(InvalidSettingsException ex) {
+        	mUseIndex.setBooleanValue(false);
+        	mFirstRecord.setIntValue(1);
+        	mMaxRecords.setIntValue(0);
+        	mSampleSize.setIntValue(0);
+        }
 	}
 
 	/**
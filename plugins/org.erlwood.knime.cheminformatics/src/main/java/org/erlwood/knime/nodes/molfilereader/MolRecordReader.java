@@ -0,0 +1,434 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.molfilereader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import chemaxon.formats.MolFormatException;
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.Molecule;
+
+/**
+ * Splits a chemical structure file into single records.
+ * 
+ * SD files are split on the <code>$$$$</code> terminator and Tripos mol2 files
+ * on the <code>@&lt;TRIPOS&gt;MOLECULE</code> tag without parsing anything, so
+ * the file is read at disk speed and the records can be parsed on other
+ * threads. All other formats are read through a MolImporter, which then also
+ * parses the molecules if asked to.
+ * 
+ * With a {@link SdfRecordIndex} the records of an SD file are not read here
+ * at all: each record only carries its position and the text is read by
+ * whichever thread asks for it. This also allows reading a range of records
+ * or a random sample of them without touching the rest of the file.
+ */
+final class MolRecordReader implements Iterator<MolRecordReader.Record>, Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final String SDF_END = "$$$$";
+	private static final String MOL2_START = "@<TRIPOS>MOLECULE";
+
+	/** How a file is split into records. */
+	enum eSplitMode {
+		SDF("sdf"), MOL2("mol2"), IMPORTER(null);
+
+		private final String format;
+
+		private eSplitMode(String format) {
+			this.format = format;
+		}
+
+		/**
+		 * @return The MolImporter format of the split records, null if the
+		 *         records are read by a MolImporter
+		 */
+		public String getFormat() {
+			return format;
+		}
+	}
+
+	/** A single record of the file. */
+	static final class Record {
+		private final int number;
+		private final String text;
+		private final Molecule molecule;
+		private final Throwable error;
+		private final SdfRecordIndex index;
+		private final FileChannel channel;
+
+		private Record(int number, String text, Molecule molecule, Throwable error) {
+			this.number = number;
+			this.text = text;
+			this.molecule = molecule;
+			this.error = error;
+			this.index = null;
+			this.channel = null;
+		}
+
+		private Record(int number, SdfRecordIndex index, FileChannel channel) {
+			this.number = number;
+			this.text = null;
+			this.molecule = null;
+			this.error = null;
+			this.index = index;
+			this.channel = channel;
+		}
+
+		/**
+		 * @return The 1 based position of the record in the file
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * Get the record text. For indexed records the text is read from the
+		 * file by the calling thread.
+		 * @return The record text, null if the record could not be read
+		 * @throws IOException On Error
+		 */
+		public String getText() throws IOException {
+			if (index != null) {
+				return index.readRecord(channel, number - 1);
+			}
+			return text;
+		}
+
+		/**
+		 * @return The molecule if it was already parsed while reading, null otherwise
+		 */
+		public Molecule getMolecule() {
+			return molecule;
+		}
+
+		/**
+		 * @return The error raised while reading the record, null if there was none
+		 */
+		public Throwable getError() {
+			return error;
+		}
+	}
+
+	private final eSplitMode mode;
+	private final boolean parse;
+	private final InputStream input;
+	private final BufferedReader reader;
+	private final MolImporter importer;
+	private final StringBuilder buffer = new StringBuilder();
+
+	/** The number of records to skip and the position after the last record to read. */
+	private final int skip;
+	private final int limit;
+
+	private final SdfRecordIndex index;
+	private final FileChannel channel;
+	private final Random random;
+	private final long recordCount;
+	private int sampleLeft;
+
+	private String pendingLine;
+	private Record next;
+	private boolean finished;
+	private int count;
+
+	/**
+	 * Constructor for reading a stream from the start.
+	 * @param input The stream to read, gzip compressed content is detected
+	 * @param name The file name or URL, used to determine the format
+	 * @param parse Whether the molecules have to be parsed. Only relevant for
+	 *        formats which are read by a MolImporter.
+	 * @param first The 1 based number of the first record to read
+	 * @param max The maximum number of records to read, 0 for all
+	 * @throws IOException On Error
+	 */
+	MolRecordReader(InputStream input, String name, boolean parse, int first, int max) throws IOException {
+		this.input = input;
+		this.parse = parse;
+		this.mode = getSplitMode(name);
+		this.skip = Math.max(0, first - 1);
+		this.limit = max > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) skip + max) : Integer.MAX_VALUE;
+		this.index = null;
+		this.channel = null;
+		this.random = null;
+		this.sampleLeft = -1;
+		this.recordCount = 0;
+
+		BufferedInputStream in = new BufferedInputStream(input, BUFFER_SIZE);
+		if (mode == eSplitMode.IMPORTER) {
+			// MolImporter deals with compressed input itself
+			reader = null;
+			importer = new MolImporter(in);
+		} else {
+			reader = new BufferedReader(new InputStreamReader(isGZip(in) ? new GZIPInputStream(in, BUFFER_SIZE)
+					: in), BUFFER_SIZE);
+			importer = null;
+		}
+	}
+
+	/**
+	 * Constructor for reading an indexed SD file. The records are read in file
+	 * order, sampled records as well.
+	 * @param sdf The SD file
+	 * @param index The record index of the file
+	 * @param first The 1 based number of the first record to read
+	 * @param max The maximum number of records to read, 0 for all
+	 * @param sample The number of records to pick at random from the range, 0 for all
+	 * @param seed The seed for the random sample
+	 * @throws IOException On Error
+	 */
+	MolRecordReader(File sdf, SdfRecordIndex index, int first, int max, int sample, long seed) throws IOException {
+		this.input = null;
+		this.parse = false;
+		this.mode = eSplitMode.SDF;
+		this.reader = null;
+		this.importer = null;
+		this.index = index;
+		this.skip = Math.min(index.size(), Math.max(0, first - 1));
+		this.limit = max > 0 ? (int) Math.min(index.size(), (long) skip + max) : index.size();
+		this.count = skip;
+		if (sample > 0 && sample < limit - skip) {
+			this.random = new Random(seed);
+			this.sampleLeft = sample;
+		} else {
+			this.random = null;
+			this.sampleLeft = -1;
+		}
+		this.recordCount = sampleLeft >= 0 ? sampleLeft : limit - skip;
+		this.channel = SdfRecordIndex.open(sdf);
+	}
+
+	/**
+	 * Determine how a file is split from its name.
+	 * @param name The file name or URL
+	 * @return The split mode
+	 */
+	static eSplitMode getSplitMode(String name) {
+		String lname = name.toLowerCase(Locale.ENGLISH);
+		if (lname.endsWith(".gz")) {
+			lname = lname.substring(0, lname.length() - 3);
+		}
+		if (lname.endsWith(".sdf") || lname.endsWith(".sd")) {
+			return eSplitMode.SDF;
+		}
+		if (lname.endsWith(".mol2")) {
+			return eSplitMode.MOL2;
+		}
+		return eSplitMode.IMPORTER;
+	}
+
+	private static boolean isGZip(BufferedInputStream in) throws IOException {
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		return b1 == 0x1f && b2 == 0x8b;
+	}
+
+	/**
+	 * @return The split mode of this reader
+	 */
+	public eSplitMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The number of records this reader returns, 0 if it is not known in advance
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !finished) {
+			try {
+				next = readRecord();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			finished = next == null;
+		}
+		return next != null;
+	}
+
+	@Override
+	public Record next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Record r = next;
+		next = null;
+		return r;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			return;
+		}
+		try {
+			if (importer != null) {
+				importer.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private Record readRecord() throws IOException {
+		if (index != null) {
+			return readIndexedRecord();
+		}
+		while (count < skip) {
+			if (!skipRecord()) {
+				return null;
+			}
+		}
+		if (count >= limit) {
+			return null;
+		}
+		switch (mode) {
+		case SDF:
+			return toRecord(readSdfRecord());
+		case MOL2:
+			return toRecord(readMol2Record());
+		default:
+			return readImporterRecord();
+		}
+	}
+
+	private boolean skipRecord() throws IOException {
+		String text;
+		switch (mode) {
+		case SDF:
+			text = readSdfRecord();
+			break;
+		case MOL2:
+			text = readMol2Record();
+			break;
+		default:
+			try {
+				text = importer.readRecordAsText();
+			} catch (MolFormatException ex) {
+				text = "";
+			}
+			break;
+		}
+		if (text == null) {
+			return false;
+		}
+		count++;
+		return true;
+	}
+
+	private Record readIndexedRecord() {
+		while (count < limit) {
+			int i = count++;
+			if (sampleLeft == 0) {
+				return null;
+			}
+			if (sampleLeft > 0) {
+				// Selection sampling, pick the record with probability needed / remaining
+				if (random.nextDouble() * (limit - i) >= sampleLeft) {
+					continue;
+				}
+				sampleLeft--;
+			}
+			return new Record(i + 1, index, channel);
+		}
+		return null;
+	}
+
+	private Record toRecord(String text) {
+		return text == null ? null : new Record(++count, text, null, null);
+	}
+
+	private String readSdfRecord() throws IOException {
+		buffer.setLength(0);
+		boolean blank = true;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(SDF_END)) {
+				if (blank) {
+					// Skip empty records
+					buffer.setLength(0);
+					continue;
+				}
+				buffer.append(line).append('\n');
+				return buffer.toString();
+			}
+			buffer.append(line).append('\n');
+			if (blank && line.trim().length() > 0) {
+				blank = false;
+			}
+		}
+		// The last record does not need to be terminated
+		return blank ? null : buffer.toString();
+	}
+
+	private String readMol2Record() throws IOException {
+		String line = pendingLine;
+		pendingLine = null;
+		// Skip anything before the first molecule
+		while (line == null || !line.startsWith(MOL2_START)) {
+			line = reader.readLine();
+			if (line == null) {
+				return null;
+			}
+		}
+		buffer.setLength(0);
+		buffer.append(line).append('\n');
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(MOL2_START)) {
+				pendingLine = line;
+				break;
+			}
+			buffer.append(line).append('\n');
+		}
+		return buffer.toString();
+	}
+
+	private Record readImporterRecord() throws IOException {
+		try {
+			if (parse) {
+				Molecule mol = importer.read();
+				return mol == null ? null : new Record(++count, importer.getGrabbedMoleculeString(), mol, null);
+			}
+			return toRecord(importer.readRecordAsText());
+		} catch (MolFormatException ex) {
+			return new Record(++count, null, null, ex);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.molfilereader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * The byte offsets of the records of an uncompressed SD file.
+ * 
+ * The index is built in a single scan over the raw bytes of the file and is
+ * stored next to it in a sidecar file (<code>&lt;file&gt;.sdfidx</code>). The
+ * sidecar records the size and modification time of the SD file and is
+ * rebuilt as soon as either of them changes. If the sidecar cannot be written
+ * the index is only kept in memory.
+ * 
+ * Records are split exactly as {@link MolRecordReader} splits them: a record
+ * ends with its <code>$$$$</code> line and records without any content are
+ * skipped.
+ */
+final class SdfRecordIndex {
+	private static final NodeLogger LOG = NodeLogger.getLogger(SdfRecordIndex.class);
+
+	/** The extension of the sidecar file. */
+	static final String SUFFIX = ".sdfidx";
+
+	private static final long MAGIC = 0x45524C5344464958L; // "ERLSDFIX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** The record boundaries, record i spans offsets[i] to offsets[i + 1]. */
+	private final long[] offsets;
+	private final int size;
+
+	private SdfRecordIndex(long[] offsets, int size) {
+		this.offsets = offsets;
+		this.size = size;
+	}
+
+	/**
+	 * Get the index for an SD file, loading the sidecar if it is still valid
+	 * and building it otherwise.
+	 * @param sdf The SD file
+	 * @param exec The ExecutionMonitor used for cancellation, may be null
+	 * @return The index, or null if the file is compressed
+	 * @throws Exception On Error, or if the execution was cancelled
+	 */
+	static SdfRecordIndex get(File sdf, ExecutionMonitor exec) throws Exception {
+		long length = sdf.length();
+		long modified = sdf.lastModified();
+		File idxFile = getIndexFile(sdf);
+		if (idxFile.isFile()) {
+			try {
+				SdfRecordIndex index = load(idxFile, length, modified);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException ex) {
+				LOG.warn("Could not read record index " + idxFile + " : " + ex.getMessage());
+			}
+		}
+		SdfRecordIndex index = build(sdf, exec);
+		if (index != null) {
+			try {
+				index.save(idxFile, length, modified);
+			} catch (IOException ex) {
+				LOG.warn("Could not write record index " + idxFile + ", keeping it in memory : " + ex.getMessage());
+				idxFile.delete();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @param sdf The SD file
+	 * @return The sidecar index file of the SD file
+	 */
+	static File getIndexFile(File sdf) {
+		return new File(sdf.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Scan an SD file for its record boundaries.
+	 * @param sdf The SD file
+	 * @param exec The ExecutionMonitor used for cancellation, may be null
+	 * @return The index, or null if the file is compressed
+	 * @throws Exception On Error, or if the execution was cancelled
+	 */
+	static SdfRecordIndex build(File sdf, ExecutionMonitor exec) throws Exception {
+		try (FileChannel ch = FileChannel.open(sdf.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			long[] offsets = new long[1024];
+			int size = 0;
+
+			boolean lineStart = true;
+			boolean lineBlank = true;
+			boolean recordBlank = true;
+			int dollars = 0;
+			long pos = 0;
+
+			offsets[0] = 0;
+			while (ch.read(buf) != -1) {
+				if (exec != null) {
+					exec.checkCanceled();
+				}
+				buf.flip();
+				if (pos == 0 && buf.remaining() >= 2 && (buf.get(0) & 0xff) == 0x1f && (buf.get(1) & 0xff) == 0x8b) {
+					return null;
+				}
+				while (buf.hasRemaining()) {
+					byte b = buf.get();
+					pos++;
+					if (lineStart) {
+						lineStart = false;
+						lineBlank = true;
+						dollars = 0;
+					}
+					if (b == '\n') {
+						if (dollars == 4) {
+							if (recordBlank) {
+								// Add the empty record to the previous one, or skip it at the start
+								offsets[size] = pos;
+							} else {
+								size++;
+								if (size + 1 >= offsets.length) {
+									offsets = Arrays.copyOf(offsets, offsets.length * 2);
+								}
+								offsets[size] = pos;
+							}
+							recordBlank = true;
+						} else if (!lineBlank) {
+							recordBlank = false;
+						}
+						lineStart = true;
+						continue;
+					}
+					if (dollars >= 0 && dollars < 4) {
+						dollars = b == '$' ? dollars + 1 : -1;
+					}
+					if (b != ' ' && b != '\t' && b != '\r') {
+						lineBlank = false;
+					}
+				}
+				buf.clear();
+			}
+			// The last line or record does not need to be terminated
+			if (!lineStart) {
+				if (dollars == 4) {
+					if (recordBlank) {
+						offsets[size] = pos;
+					} else {
+						offsets[++size] = pos;
+					}
+					recordBlank = true;
+				} else if (!lineBlank) {
+					recordBlank = false;
+				}
+			}
+			if (!recordBlank) {
+				offsets[++size] = pos;
+			}
+			return new SdfRecordIndex(offsets, size);
+		}
+	}
+
+	/**
+	 * Load a sidecar index.
+	 * @return The index, or null if it does not match the SD file any more
+	 */
+	private static SdfRecordIndex load(File idxFile, long length, long modified) throws IOException {
+		try (FileChannel ch = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && ch.read(header) != -1) {
+				// keep reading
+			}
+			if (header.hasRemaining()) {
+				return null;
+			}
+			header.flip();
+			if (header.getLong() != MAGIC || header.getInt() != VERSION
+					|| header.getLong() != length || header.getLong() != modified) {
+				return null;
+			}
+			int size = header.getInt();
+			if (size < 0 || ch.size() != HEADER_SIZE + 8L * (size + 1)) {
+				return null;
+			}
+			long[] offsets = new long[size + 1];
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			int n = 0;
+			while (n < offsets.length) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), 8L * (offsets.length - n)));
+				while (buf.hasRemaining()) {
+					if (ch.read(buf) == -1) {
+						return null;
+					}
+				}
+				buf.flip();
+				int count = buf.remaining() / 8;
+				buf.asLongBuffer().get(offsets, n, count);
+				n += count;
+			}
+			return new SdfRecordIndex(offsets, size);
+		}
+	}
+
+	private void save(File idxFile, long length, long modified) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(idxFile), BUFFER_SIZE))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeInt(size);
+			for (int i = 0; i <= size; i++) {
+				out.writeLong(offsets[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of records
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param record The 0 based record
+	 * @return The byte offset at which the record starts
+	 */
+	long getStart(int record) {
+		return offsets[record];
+	}
+
+	/**
+	 * @param record The 0 based record
+	 * @return The byte offset after the end of the record
+	 */
+	long getEnd(int record) {
+		return offsets[record + 1];
+	}
+
+	/**
+	 * Read a single record. Safe to call from several threads on the same channel.
+	 * @param ch The channel of the SD file
+	 * @param record The 0 based record
+	 * @return The record text, with \n line endings
+	 * @throws IOException On Error
+	 */
+	String readRecord(FileChannel ch, int record) throws IOException {
+		long start = getStart(record);
+		ByteBuffer buf = ByteBuffer.allocate((int) (getEnd(record) - start));
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, start + buf.position()) == -1) {
+				throw new IOException("Unexpected end of file, the record index is out of date");
+			}
+		}
+		String text = new String(buf.array());
+		if (text.indexOf('\r') != -1) {
+			text = text.replace("\r\n", "\n");
+		}
+		// Empty records after the terminator were added to this one, drop them
+		int end = text.indexOf("\n$$$$");
+		if (end != -1) {
+			int nl = text.indexOf('\n', end + 1);
+			if (nl != -1 && nl + 1 < text.length()) {
+				text = text.substring(0, nl + 1);
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Open an SD file for reading records, see {@link #readRecord(FileChannel, int)}.
+	 * @param sdf The SD file
+	 * @return The channel
+	 * @throws IOException On Error
+	 */
+	static FileChannel open(File sdf) throws IOException {
+		return FileChannel.open(sdf.toPath(), StandardOpenOption.READ);
+	}
+}
@@ -27,6 +27,7 @@ import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.workflow.CredentialsProvider;
 import org.knime.core.node.workflow.FlowVariable;
 
+import org.erlwood.knime.nodes.openphacts.exec.RequestExecutor;
 import org.erlwood.knime.utils.settings.AbstractSettings;
 import org.erlwood.knime.utils.settings.WebServiceSettings;
 /**
@@ -50,6 +51,12 @@ public interface IExec<T extends AbstractSettings>  {
 			WebServiceSettings wsSettings,
 			BufferedDataTable input, T settings);
 	
+	/**
+	 * Sets the executor used to run the requests.
+	 * @param executor The executor, owned by the node
+	 */
+	void setRequestExecutor(RequestExecutor executor);
+	
 	/**
 	 * Execute the OpenPhacts call.
 	 * 
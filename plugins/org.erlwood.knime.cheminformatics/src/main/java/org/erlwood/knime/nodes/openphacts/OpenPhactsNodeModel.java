@@ -27,6 +27,7 @@ import java.net.URISyntaxException;
 
 import org.erlwood.knime.CheminformaticsActivator;
 import org.erlwood.knime.WebServiceCoreActivator;
+import org.erlwood.knime.nodes.openphacts.exec.RequestExecutor;
 import org.erlwood.knime.nodes.openphacts.exec.assay.GetAssayExec;
 import org.erlwood.knime.nodes.openphacts.exec.chemicalstructuresearch.GetCompoundURIExec;
 import org.erlwood.knime.nodes.openphacts.exec.chemicalstructuresearch.GetCompoundsBySimilarityExec;
@@ -80,6 +81,9 @@ public class OpenPhactsNodeModel extends AbstractWebServiceNodeModel {
 	
 	private DataTable rawDataTable;
 	
+	/** Runs the requests, created on execute and shut down on reset and dispose. */
+	private RequestExecutor requestExecutor;
+	
 	public enum eMethod {	
 		//	
 		GetAssay("Get Assay", "Assays", GetAssayExec.class),
@@ -171,6 +175,7 @@ public class OpenPhactsNodeModel extends AbstractWebServiceNodeModel {
 	    
 	    IExec methodExec = openPhactsSettings.getMethod().getExec();
 	    
+	    methodExec.setRequestExecutor(getRequestExecutor());
 	    methodExec.setup(getAvailableFlowVariables(org.knime.core.node.workflow.VariableType.StringType.INSTANCE, org.knime.core.node.workflow.VariableType.DoubleType.INSTANCE, org.knime.core.node.workflow.VariableType.IntType.INSTANCE), getCredentialsProvider(), wsSettings, input, openPhactsSettings);
 	    output = methodExec.executeCall(input, exec);	  
 	    if (methodExec.getWarningMessage() != null) {
@@ -188,7 +193,37 @@ public class OpenPhactsNodeModel extends AbstractWebServiceNodeModel {
 	 */
 	@Override
 	protected void reset() {
+		shutdownRequestExecutor();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onDispose() {
+		shutdownRequestExecutor();
+		super.onDispose();
+	}
 
+	/**
+	 * @return The executor for the requests, using the current concurrency limit.
+	 */
+	private synchronized RequestExecutor getRequestExecutor() {
+		if (requestExecutor != null 
+				&& requestExecutor.getMaxConcurrent() != openPhactsSettings.getMaxConcurrentRequests()) {
+			shutdownRequestExecutor();
+		}
+		if (requestExecutor == null) {
+			requestExecutor = new RequestExecutor(openPhactsSettings.getMaxConcurrentRequests());
+		}
+		return requestExecutor;
+	}
+
+	private synchronized void shutdownRequestExecutor() {
+		if (requestExecutor != null) {
+			requestExecutor.shutdown();
+			requestExecutor = null;
+		}
 	}
 
 	/**
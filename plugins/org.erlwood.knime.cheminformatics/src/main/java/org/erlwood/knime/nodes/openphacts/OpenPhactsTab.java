@@ -21,10 +21,14 @@
 package org.erlwood.knime.nodes.openphacts;
 
 import java.awt.CardLayout;
+import java.awt.FlowLayout;
 
 import javax.swing.BorderFactory;
 import javax.swing.JCheckBox;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 
 import org.erlwood.knime.nodes.openphacts.OpenPhactsNodeModel.eMethod;
 import org.erlwood.knime.nodes.openphacts.settings.OpenPhactsSettings;
@@ -87,6 +91,8 @@ final class OpenPhactsTab extends JPanel {
 
 	private JCheckBox	chkAppend = new JCheckBox("Append");
 	
+	private JSpinner	spnMaxConcurrentRequests = new JSpinner(new SpinnerNumberModel(OpenPhactsSettings.DEFAULT_MAX_CONCURRENT_REQUESTS, 1, 100, 1));
+	
 	@SuppressWarnings("unchecked")
 	private ISettingsPanel<OpenPhactsNodeModel.eMethod, OpenPhactsSettings>[]	panels = new ISettingsPanel[] {
 			new GetAssay(),
@@ -233,7 +239,7 @@ final class OpenPhactsTab extends JPanel {
 	
 	private JPanel getMethodPanel() {
         JPanel methodPanel = new JPanel();
-        methodPanel.setLayout(new TableLayout(new double[][] {{TableLayout.FILL}, {TableLayout.PREFERRED, 5, TableLayout.PREFERRED, 10, TableLayout.PREFERRED, 10, TableLayout.PREFERRED, TableLayout.FILL}}));
+        methodPanel.setLayout(new TableLayout(new double[][] {{TableLayout.FILL}, {TableLayout.PREFERRED, 5, TableLayout.PREFERRED, 10, TableLayout.PREFERRED, 10, TableLayout.PREFERRED, 10, TableLayout.PREFERRED, TableLayout.FILL}}));
         
        // List<eMethod> methods = new ArrayList<eMethod>();
         for (ISettingsPanel<OpenPhactsNodeModel.eMethod, OpenPhactsSettings> p : panels) {
@@ -260,6 +266,11 @@ final class OpenPhactsTab extends JPanel {
         methodPanel.add(cboMethodType,                              	"0,2");
         methodPanel.add(cardPanel,                                  	"0,4");
         methodPanel.add(chkAppend,                                  	"0,6");
+        
+        JPanel concurrencyPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        concurrencyPanel.add(new JLabel("Max. concurrent requests  "));
+        concurrencyPanel.add(spnMaxConcurrentRequests);
+        methodPanel.add(concurrencyPanel,                           	"0,8");
       
         return methodPanel;
     }
@@ -274,6 +285,7 @@ final class OpenPhactsTab extends JPanel {
         	p.updateSettings(openPhactsSettings);
         }
 		openPhactsSettings.setAppend(chkAppend.isSelected());
+		openPhactsSettings.setMaxConcurrentRequests((Integer) spnMaxConcurrentRequests.getValue());
 	}
 		
 	private void updateUI(final PortObjectSpec[ ] specs) {
@@ -287,6 +299,7 @@ final class OpenPhactsTab extends JPanel {
         	p.updateUI(openPhactsSettings, specs);
         }
 		chkAppend.setSelected(openPhactsSettings.isAppend());
+		spnMaxConcurrentRequests.setValue(openPhactsSettings.getMaxConcurrentRequests());
 	}
 	
 	/** Load the settings to this dialog tab.
@@ -30,8 +30,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -121,6 +119,9 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 
 	private String warningMessage;
 
+	/** The node's executor for the requests. **/
+	private RequestExecutor requestExecutor;
+
 	protected static enum DataType {
 		String(1), Integer(2), Double(4);
 
@@ -168,6 +169,21 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 		initialiseSettings(input, settings);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setRequestExecutor(RequestExecutor executor) {
+		this.requestExecutor = executor;
+	}
+
+	/** 
+	 * @return The node's executor for the requests.
+	 */
+	protected RequestExecutor getRequestExecutor() {
+		return requestExecutor;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -181,8 +197,6 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 			return execRow(exec, null, null, 0);
 		}
 
-		ExecutorService executor = Executors.newFixedThreadPool(20);
-		
 		// Ok, we have an input so use it..
 		BufferedDataTable[] outputs = new BufferedDataTable[(int) input.size()];
 		BufferedDataTable[] rawOutputs = new BufferedDataTable[(int) input.size()];
@@ -208,11 +222,10 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 
 			});
 		}
-		List<Future<BufferedDataTable[]>> results = executor.invokeAll(tasks);
+		List<BufferedDataTable[]> results = requestExecutor.invokeAll(exec, tasks);
 
 		count = 0;
-		for (Future<BufferedDataTable[]> f : results) {
-			BufferedDataTable[] r = f.get();
+		for (BufferedDataTable[] r : results) {
 			outputs[count] = r[0];
 			rawOutputs[count] = r[1];
 			count++;
@@ -346,9 +359,7 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 
 		exec.checkCanceled();
 		
-		ExecutorService pool = Executors.newFixedThreadPool(2);
-		
-		Future<List<byte[]>> primaryFuture = pool.submit(new Callable<List<byte[]>>() {
+		Future<List<byte[]>> primaryFuture = requestExecutor.submit(exec, new Callable<List<byte[]>>() {
 
 			@Override
 			public List<byte[]> call() throws Exception {
@@ -379,7 +390,7 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 		}
 		
 		if (secondaryFormat != null) {
-			Future<List<byte[]>> secondaryFuture = pool.submit(new Callable<List<byte[]>>() {
+			Future<List<byte[]>> secondaryFuture = requestExecutor.submit(exec, new Callable<List<byte[]>>() {
 
 				@Override
 				public List<byte[]> call() throws Exception {
@@ -390,18 +401,16 @@ public abstract class AbstractExec implements IExec<OpenPhactsSettings>, IOTimin
 			Optional<DataCellFactory> dcf = dt.getCellFactory(exec);
 			
 			List<DataCell> cells = new ArrayList<DataCell>();
-			for (byte[] s : secondaryFuture.get()) {
+			for (byte[] s : RequestExecutor.get(exec, secondaryFuture)) {
 				cells.add(((FromString)dcf.get()).createCell(new String(s)));
 			}
 		
 			rawOutputContainer = createRawContainer(exec, dataTableSpec, row, callNumber, dt, cells);
 		}
-		pool.shutdown();
-		
 		List<List<Object>> extractedRows = new ArrayList<List<Object>>();
 		
 		StringBuilder dataBuffer = new StringBuilder();
-		for (byte[] s : primaryFuture.get()) {
+		for (byte[] s : RequestExecutor.get(exec, primaryFuture)) {
 			dataBuffer.append(new String(s));
 		}
 		
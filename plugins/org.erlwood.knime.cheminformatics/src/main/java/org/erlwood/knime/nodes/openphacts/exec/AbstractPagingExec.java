@@ -26,9 +26,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.function.Predicate;
 
 import org.erlwood.knime.utils.clients.RESTWebServiceClient.ParameterType;
@@ -65,8 +62,6 @@ public abstract class AbstractPagingExec extends AbstractExec {
 						
 		int iterations = totalSize / 500;
 		
-		ExecutorService pool = Executors.newFixedThreadPool(Math.min(5, Math.max(iterations, 1)));
-		
 		List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
 		
 		for (int i = 0; i <= iterations; i++) {
@@ -84,15 +79,9 @@ public abstract class AbstractPagingExec extends AbstractExec {
 			});
 		}
 		
-				
-		List<Future<byte[]>> results = pool.invokeAll(tasks);
-		pool.shutdown();
 		
-		List<byte[]> retVal = new ArrayList<byte[]>();		
-		for (Future<byte[]> f : results) {
-			retVal.add(f.get());			
-		}
-		return retVal;
+		//	Runs in parallel only if this row is not already a task of the executor.
+		return getRequestExecutor().invokeAll(exec, tasks);
 	}
 
 
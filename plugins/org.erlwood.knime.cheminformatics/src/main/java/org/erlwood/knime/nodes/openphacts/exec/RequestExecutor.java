@@ -0,0 +1,225 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.openphacts.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Runs the OpenPHACTS requests of a node on a bounded pool of threads.
+ * 
+ * At most maxConcurrent requests run at the same time and at most as many
+ * again are queued; further submissions block until a slot is free. A task
+ * submitted from one of the pool's own threads (e.g. the pages of a row) is
+ * run directly on that thread, so nested submissions cannot deadlock the pool.
+ * 
+ * One instance is owned by the node model and shut down on reset and dispose.
+ */
+public final class RequestExecutor {
+	/** How long to wait before checking for cancellation again. */
+	private static final long POLL_MILLIS = 100;
+	
+	/** How long idle threads are kept alive. */
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	
+	/** The executor of the task running on the current thread, if any. */
+	private static final ThreadLocal<RequestExecutor> CURRENT = new ThreadLocal<RequestExecutor>();
+	
+	/** The maximum number of concurrent requests. */
+	private final int maxConcurrent;
+	
+	/** Permits for running and queued tasks, used for the back-pressure. */
+	private final Semaphore slots;
+	
+	/** The worker threads. */
+	private final ThreadPoolExecutor pool;
+	
+	/**
+	 * Constructor.
+	 * @param maxConcurrent The maximum number of concurrent requests, at least 1.
+	 */
+	public RequestExecutor(int maxConcurrent) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.slots = new Semaphore(this.maxConcurrent * 2);
+		this.pool = new ThreadPoolExecutor(this.maxConcurrent, this.maxConcurrent, 
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory( ) {
+			
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(runnable);
+						thread.setName("OpenPHACTS_" + thread.getId( ));
+						thread.setDaemon(true);
+						return thread;
+					}
+					
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+	
+	/** 
+	 * @return The maximum number of concurrent requests.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	/**
+	 * Submits a task, blocking while the pool is saturated.
+	 * @param exec The ExecutionMonitor used for cancellation while blocked, may be null
+	 * @param task The task
+	 * @param <T> The result type
+	 * @return The Future of the task
+	 * @throws Exception If the execution was cancelled while waiting
+	 */
+	public <T> Future<T> submit(ExecutionMonitor exec, final Callable<T> task) throws Exception {
+		if (CURRENT.get() == this) {
+			FutureTask<T> inline = new FutureTask<T>(task);
+			inline.run();
+			return inline;
+		}
+		
+		while (!slots.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (exec != null) {
+				exec.checkCanceled();
+			}
+		}
+		SlotTask<T> slotTask = new SlotTask<T>(task);
+		try {
+			pool.execute(slotTask);
+		} catch (RuntimeException ex) {
+			// completes the task, which returns its slot
+			slotTask.cancel(false);
+			throw ex;
+		}
+		return slotTask;
+	}
+	
+	/**
+	 * Runs all tasks and returns their results in the order of the tasks.
+	 * If a task fails, or the execution is cancelled, the remaining tasks are cancelled.
+	 * @param exec The ExecutionMonitor used for cancellation, may be null
+	 * @param tasks The tasks
+	 * @param <T> The result type
+	 * @return The results
+	 * @throws Exception The exception of the first failed task, or if the execution was cancelled
+	 */
+	public <T> List<T> invokeAll(ExecutionMonitor exec, List<? extends Callable<T>> tasks) throws Exception {
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		try {
+			for (Callable<T> task : tasks) {
+				futures.add(submit(exec, task));
+			}
+			List<T> results = new ArrayList<T>(futures.size());
+			for (Future<T> f : futures) {
+				results.add(get(exec, f));
+			}
+			return results;
+		} finally {
+			for (Future<T> f : futures) {
+				f.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for a Future, checking for cancellation.
+	 * @param exec The ExecutionMonitor used for cancellation, may be null
+	 * @param future The Future
+	 * @param <T> The result type
+	 * @return The result
+	 * @throws Exception The exception thrown by the task, or if the execution was cancelled
+	 */
+	public static <T> T get(ExecutionMonitor exec, Future<T> future) throws Exception {
+		try {
+			while (true) {
+				if (exec != null) {
+					exec.checkCanceled();
+				}
+				try {
+					return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// not finished yet, check for cancellation and wait again
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				// Only report the cause exception to the user
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Stops all running and queued tasks. The executor can not be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+	
+	/**
+	 * @return The number of tasks that can be submitted without blocking.
+	 */
+	int getAvailableSlots() {
+		return slots.availablePermits();
+	}
+	
+	/**
+	 * A task holding one of the slots. The slot is returned when the task completes
+	 * in any way, including when it is cancelled before it has started.
+	 */
+	private final class SlotTask<T> extends FutureTask<T> {
+		
+		SlotTask(final Callable<T> task) {
+			super(task);
+		}
+		
+		@Override
+		public void run() {
+			CURRENT.set(RequestExecutor.this);
+			try {
+				super.run();
+			} finally {
+				CURRENT.remove();
+			}
+		}
+		
+		@Override
+		protected void done() {
+			slots.release();
+		}
+	}
+}
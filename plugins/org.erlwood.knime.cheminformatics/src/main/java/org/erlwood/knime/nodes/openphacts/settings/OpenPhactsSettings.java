@@ -137,6 +137,11 @@ public class OpenPhactsSettings extends AbstractSettings<OpenPhactsNodeModel.eMe
 	};
 	
 	private boolean bAppend;
+	
+	/** The default maximum number of concurrent requests. */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 20;
+	
+	private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
 		
 	/** Load the settings to this dialog tab.
 	 * @param settings The settings to load the configuration from. 
@@ -182,6 +187,7 @@ public class OpenPhactsSettings extends AbstractSettings<OpenPhactsNodeModel.eMe
 		freeTextSearchSettings.loadSettingsFrom(settings);
 		
 		bAppend = settings.getBoolean("append", false);
+		maxConcurrentRequests = settings.getInt("max_concurrent_requests", DEFAULT_MAX_CONCURRENT_REQUESTS);
 	}
 	
 	/** Save the settings of this dialog tab.
@@ -225,6 +231,7 @@ public class OpenPhactsSettings extends AbstractSettings<OpenPhactsNodeModel.eMe
 		
 		
 		settings.addBoolean("append", bAppend);
+		settings.addInt("max_concurrent_requests", maxConcurrentRequests);
 	}
 	
 	public void validateSettings(NodeSettingsRO settings) throws InvalidSettingsException {
@@ -404,6 +411,17 @@ public class OpenPhactsSettings extends AbstractSettings<OpenPhactsNodeModel.eMe
 		bAppend = b;
 	}
 
+	/** 
+	 * @return The maximum number of requests run at the same time.
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+	
+	public void setMaxConcurrentRequests(int i) {
+		maxConcurrentRequests = i;
+	}
+
 	public ApplicationIdSetting getApplicationIdSetting() {
 		return appId;
 	}
@@ -0,0 +1,346 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.paretoranking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Non-dominated sorting of rows of objective values, all of which are
+ * minimised. Row a dominates row b if it is smaller in at least one objective
+ * and larger in none. The rank of a row is 1 for rows nobody dominates and
+ * otherwise one more than the highest rank of the rows dominating it.
+ *
+ * One to three objectives are ranked with a sweep in lexicographic order, in
+ * O(n log n) for two and O(n log^2 n) for three objectives. More objectives,
+ * or data containing NaN (which compares neither smaller nor larger than
+ * anything), use Deb's fast non-dominated sort with the dominance counts
+ * computed in parallel.
+ */
+final class NonDominatedSorting {
+
+	/** The number of rows per work unit of the parallel dominance count. */
+	private static final int CHUNK_SIZE = 64;
+
+	/** How often the sweeps check for cancellation. */
+	private static final int CHECK_INTERVAL = 4096;
+
+	private NonDominatedSorting() {
+	}
+
+	/**
+	 * Ranks the rows.
+	 *
+	 * @param data The objective values, one array per row
+	 * @param skip Rows to leave out, they get rank 0
+	 * @param threads The number of threads for the parallel dominance count
+	 * @param exec For progress and cancellation
+	 * @return The rank of every row
+	 * @throws Exception On Error, or if the execution was cancelled
+	 */
+	static int[] rank(double[][] data, boolean[] skip, int threads,
+			ExecutionMonitor exec) throws Exception {
+		int[] rows = new int[data.length];
+		int n = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (!skip[i]) {
+				rows[n++] = i;
+			}
+		}
+		int[] res = new int[data.length];
+		if (n == 0) {
+			return res;
+		}
+		int m = data[rows[0]].length;
+
+		boolean hasNaN = false;
+		double[][] points = new double[n][];
+		for (int k = 0; k < n; k++) {
+			points[k] = new double[m];
+			for (int p = 0; p < m; p++) {
+				double v = data[rows[k]][p];
+				hasNaN |= Double.isNaN(v);
+				// + 0.0 turns -0.0 into 0.0, which the comparisons treat as equal
+				points[k][p] = v + 0.0;
+			}
+		}
+
+		int[] ranks;
+		if (hasNaN || m > 3) {
+			ranks = fastNonDominatedSort(points, threads, exec);
+		} else if (m == 3) {
+			ranks = sweep3(points, exec);
+		} else {
+			ranks = sweep2(points, exec);
+		}
+		for (int k = 0; k < n; k++) {
+			res[rows[k]] = ranks[k];
+		}
+		exec.setProgress(1.0);
+		return res;
+	}
+
+	/**
+	 * One or two objectives. In lexicographic order every row is preceded by
+	 * all rows dominating it, and an earlier row dominates a later one if its
+	 * second objective is not larger. The fronts are therefore described by
+	 * the smallest second objective seen so far in each, which grows with the
+	 * front number and can be binary searched.
+	 */
+	private static int[] sweep2(double[][] points, ExecutionMonitor exec)
+			throws Exception {
+		int n = points.length;
+		Integer[] order = lexicographicOrder(points);
+		int[] ranks = new int[n];
+		double[] minY = new double[n];
+		int fronts = 0;
+		int i = 0;
+		int steps = 0;
+		while (i < n) {
+			double[] p = points[order[i]];
+			double y = p.length > 1 ? p[1] : 0.0;
+
+			int lo = 0;
+			int hi = fronts;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (minY[mid] <= y) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			if (lo == fronts) {
+				fronts++;
+			}
+			minY[lo] = y;
+
+			// identical rows do not dominate each other
+			int end = i + 1;
+			while (end < n && Arrays.equals(points[order[end]], p)) {
+				end++;
+			}
+			for (int k = i; k < end; k++) {
+				ranks[order[k]] = lo + 1;
+			}
+			i = end;
+			if (++steps % CHECK_INTERVAL == 0) {
+				exec.checkCanceled();
+				exec.setProgress((double) i / (double) n);
+			}
+		}
+		return ranks;
+	}
+
+	/**
+	 * Three objectives. As for two, but every front keeps the staircase of
+	 * its rows in the second and third objective: keys ascending, values
+	 * descending, so the best third objective among all rows with a second
+	 * objective no larger than y is found at the floor entry of y.
+	 */
+	private static int[] sweep3(double[][] points, ExecutionMonitor exec)
+			throws Exception {
+		int n = points.length;
+		Integer[] order = lexicographicOrder(points);
+		int[] ranks = new int[n];
+		List<TreeMap<Double, Double>> fronts = new ArrayList<TreeMap<Double, Double>>();
+		int i = 0;
+		int steps = 0;
+		while (i < n) {
+			double[] p = points[order[i]];
+			double y = p[1];
+			double z = p[2];
+
+			int lo = 0;
+			int hi = fronts.size();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				Map.Entry<Double, Double> e = fronts.get(mid).floorEntry(y);
+				if (e != null && e.getValue() <= z) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			if (lo == fronts.size()) {
+				fronts.add(new TreeMap<Double, Double>());
+			}
+			TreeMap<Double, Double> front = fronts.get(lo);
+			Iterator<Map.Entry<Double, Double>> it = front.tailMap(y, true)
+					.entrySet().iterator();
+			while (it.hasNext() && it.next().getValue() >= z) {
+				it.remove();
+			}
+			front.put(y, z);
+
+			int end = i + 1;
+			while (end < n && Arrays.equals(points[order[end]], p)) {
+				end++;
+			}
+			for (int k = i; k < end; k++) {
+				ranks[order[k]] = lo + 1;
+			}
+			i = end;
+			if (++steps % CHECK_INTERVAL == 0) {
+				exec.checkCanceled();
+				exec.setProgress((double) i / (double) n);
+			}
+		}
+		return ranks;
+	}
+
+	/**
+	 * Deb's fast non-dominated sort. Each row's dominance count and the rows
+	 * it dominates are computed independently, which is done in parallel.
+	 * Rows on a dominance cycle (only possible with NaN) keep rank 0.
+	 */
+	private static int[] fastNonDominatedSort(final double[][] points,
+			int threads, ExecutionMonitor exec) throws Exception {
+		final int n = points.length;
+		final int[] dominatedBy = new int[n];
+		final int[][] dominates = new int[n][];
+
+		List<Integer> indices = new ArrayList<Integer>(n);
+		for (int i = 0; i < n; i++) {
+			indices.add(i);
+		}
+		OrderedChunkExecutor<Integer, int[]> executor = new OrderedChunkExecutor<Integer, int[]>(
+				"ParetoRanking", threads, CHUNK_SIZE);
+		executor.execute(exec.createSubProgress(0.9), indices.iterator(), n,
+				new OrderedChunkExecutor.ChunkProcessor<Integer, int[]>() {
+					@Override
+					public List<int[]> process(List<Integer> chunk) {
+						List<int[]> result = new ArrayList<int[]>(chunk.size());
+						int[] buffer = new int[n + 1];
+						for (int i : chunk) {
+							// buffer[0] is the dominance count, followed by
+							// the rows i dominates
+							int size = 1;
+							int count = 0;
+							for (int j = 0; j < n; j++) {
+								int d = compare(points[i], points[j]);
+								if (d < 0) {
+									buffer[size++] = j;
+								} else if (d > 0) {
+									count++;
+								}
+							}
+							buffer[0] = count;
+							result.add(Arrays.copyOf(buffer, size));
+						}
+						return result;
+					}
+				}, new OrderedChunkExecutor.ResultConsumer<int[]>() {
+					private int i = 0;
+
+					@Override
+					public void accept(int[] result) {
+						dominatedBy[i] = result[0];
+						dominates[i] = result;
+						i++;
+					}
+				});
+
+		int[] ranks = new int[n];
+		int[] front = new int[n];
+		int frontSize = 0;
+		for (int i = 0; i < n; i++) {
+			if (dominatedBy[i] == 0) {
+				front[frontSize++] = i;
+			}
+		}
+		int[] next = new int[n];
+		int rank = 1;
+		while (frontSize > 0) {
+			int nextSize = 0;
+			for (int f = 0; f < frontSize; f++) {
+				int i = front[f];
+				ranks[i] = rank;
+				int[] dom = dominates[i];
+				for (int k = 1; k < dom.length; k++) {
+					if (--dominatedBy[dom[k]] == 0) {
+						next[nextSize++] = dom[k];
+					}
+				}
+				dominates[i] = null;
+			}
+			int[] tmp = front;
+			front = next;
+			next = tmp;
+			frontSize = nextSize;
+			rank++;
+			exec.checkCanceled();
+		}
+		return ranks;
+	}
+
+	/**
+	 * @return -1 if a dominates b, 1 if b dominates a, 0 otherwise
+	 */
+	private static int compare(double[] a, double[] b) {
+		int dom1 = 0;
+		int dom2 = 0;
+		for (int p = 0; p < a.length; p++) {
+			if (a[p] < b[p]) {
+				dom1 += 1;
+			} else if (a[p] > b[p]) {
+				dom2 += 1;
+			}
+		}
+		if (dom1 > 0 && dom2 == 0) {
+			return -1;
+		}
+		if (dom2 > 0 && dom1 == 0) {
+			return 1;
+		}
+		return 0;
+	}
+
+	private static Integer[] lexicographicOrder(final double[][] points) {
+		Integer[] order = new Integer[points.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.parallelSort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				double[] pa = points[a];
+				double[] pb = points[b];
+				for (int p = 0; p < pa.length; p++) {
+					int c = Double.compare(pa[p], pb[p]);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return 0;
+			}
+		});
+		return order;
+	}
+}
@@ -23,12 +23,11 @@ package org.erlwood.knime.nodes.paretoranking;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.erlwood.knime.utils.KnimenodeUtils;
 import org.erlwood.knime.utils.gui.ParetoObjectivesBean;
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
@@ -66,8 +65,6 @@ public class ParetoRankingNodeModel extends NodeModel {
 	private static final int OPT_VALUE = ParetoObjectivesBean.ParetoCondition.OPT_VALUE;
 	private static final int OPT_INTERVAL = ParetoObjectivesBean.ParetoCondition.OPT_INTERVAL;
 	private static final int OPT_MAXIMIZE = ParetoObjectivesBean.ParetoCondition.OPT_MAXIMIZE;
-	
-	private double mTotalOps;
 
 	/**
 	 * Constructor for the node model.
@@ -99,8 +96,7 @@ public class ParetoRankingNodeModel extends NodeModel {
 						+ cond.getPropertyName());
 			}
 		}
-		mTotalOps = dataTable.getRowCount() * dataTable.getRowCount()
-				+ dataTable.getRowCount();
+		ExecutionMonitor readExec = exec.createSubProgress(0.1);
 		int r = 0;
 		for (DataRow row : dataTable) {
 			for (int c = 0; c < mConfProps.size() && !rowHasMissingCell[r]; ++c) {
@@ -129,16 +125,13 @@ public class ParetoRankingNodeModel extends NodeModel {
 				}
 			}
 			r += 1;
-			exec.setProgress(r / mTotalOps);
+			readExec.setProgress((double) r / (double) data.length);
+			readExec.checkCanceled();
 		}
-		int[] ranks = null;
-		
-		
-		ranks = paretoRank(data, mConfProps, exec, rowHasMissingCell);
-		
-		
-		final int[] ranks2 = ranks;
 		
+		final int[] ranks2 = NonDominatedSorting.rank(data, rowHasMissingCell,
+				OrderedChunkExecutor.getDefaultThreadCount(),
+				exec.createSubProgress(0.8));
 		
 		final boolean[] missingCell = rowHasMissingCell;
 		ColumnRearranger colRearr = new ColumnRearranger(
@@ -160,81 +153,7 @@ public class ParetoRankingNodeModel extends NodeModel {
 		
 
 		return new BufferedDataTable[] { exec.createColumnRearrangeTable(
-				inData[0], colRearr, exec) };
-	}
-
-	private int[] paretoRank(double[][] data,
-			List<ParetoObjectivesBean.ParetoCondition> conds,
-			final ExecutionContext exec, boolean[] missingRow)
-			throws CanceledExecutionException {
-		int[] res = new int[data.length];
-		// solution at i is dominated by dominatedBy[i] other solutions
-		int[] dominatedBy = new int[data.length];
-		List<Integer> currFront = new ArrayList<Integer>();
-		Map<Integer, List<Integer>> dominates = new HashMap<Integer, List<Integer>>();
-
-		for (int i = 0; i < data.length; ++i) {
-			if (missingRow[i]) {
-				continue;
-			}
-			for (int j = i + 1; j < data.length; ++j) {
-				if (missingRow[j]) {
-					continue;
-				}
-				int dom1 = 0, dom2 = 0;
-				for (int p = 0; p < conds.size(); ++p) {
-					if (data[i][p] < data[j][p]) {
-						dom1 += 1;
-					} else if (data[i][p] > data[j][p]) {
-						dom2 += 1;
-					}
-				}
-				if (dom1 > 0 && dom2 == 0) {
-					dominatedBy[j] += 1;
-					if (null == dominates.get(i)) {
-						dominates.put(i, new ArrayList<Integer>());
-					}
-					dominates.get(i).add(j);
-				} else if (dom2 > 0 && dom1 == 0) {
-					dominatedBy[i] += 1;
-					if (null == dominates.get(j)) {
-						dominates.put(j, new ArrayList<Integer>());
-					}
-					dominates.get(j).add(i);
-				}
-				exec.setProgress((data.length + i * data.length + j)
-						/ mTotalOps);
-				exec.checkCanceled();
-			}
-			if (0 == dominatedBy[i]) {
-				currFront.add(i);
-			}
-		
-		}
-
-		int rank = 1;
-		while (0 < currFront.size()) {
-			List<Integer> newFront = new ArrayList<Integer>();
-			for (int i : currFront) {
-				while (missingRow[i]) {
-					i++;
-				}
-				res[i] = rank;
-				List<Integer> domInd = dominates.get(i);
-				if (null != domInd) {
-					for (int di : domInd) {
-						dominatedBy[di] -= 1;
-						if (0 == dominatedBy[di]) {
-							newFront.add(di);
-						}
-					}
-				}
-			}
-			currFront = newFront;
-			rank += 1;
-		}
-
-		return res;
+				inData[0], colRearr, exec.createSubExecutionContext(0.1)) };
 	}
 
 	/**
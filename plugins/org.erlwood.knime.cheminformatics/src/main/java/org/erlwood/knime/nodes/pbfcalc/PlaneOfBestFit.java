@@ -0,0 +1,275 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.pbfcalc;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+/**
+ * Plane of best fit (PBF) of the atoms of a molecule: the mean distance of
+ * the atoms from the plane through their centroid whose normal is the
+ * eigenvector of the smallest eigenvalue of the coordinate covariance matrix.
+ * 
+ * The eigenvector is found in closed form. Only when the smallest eigenvalue
+ * is (nearly) degenerate, where the closed form loses precision, Jacobi
+ * rotations are used instead. The calculation keeps no state, so it can run
+ * for many molecules in parallel.
+ */
+final class PlaneOfBestFit {
+
+    /** Relative eigenvalue gap below which the Jacobi method is used. */
+    private static final double MIN_RELATIVE_GAP = 1e-4;
+
+    /** Maximum number of Jacobi sweeps. */
+    private static final int    MAX_SWEEPS       = 50;
+
+    private PlaneOfBestFit() {
+    }
+
+    /**
+     * @param mol The molecule
+     * @return The mean distance of the atoms from their plane of best fit, or
+     *         NaN if the molecule has no atoms
+     */
+    static double calculate(Molecule mol) {
+        int nAtoms = mol.getAtomCount();
+        double[] x = new double[nAtoms];
+        double[] y = new double[nAtoms];
+        double[] z = new double[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            MolAtom atom = mol.getAtom(i);
+            x[i] = atom.getX();
+            y[i] = atom.getY();
+            z[i] = atom.getZ();
+        }
+        return calculate(x, y, z);
+    }
+
+    /**
+     * @param x The x coordinates of the atoms
+     * @param y The y coordinates of the atoms
+     * @param z The z coordinates of the atoms
+     * @return The mean distance of the atoms from their plane of best fit, or
+     *         NaN if there are no atoms
+     */
+    static double calculate(double[] x, double[] y, double[] z) {
+        int nAtoms = x.length;
+        if (nAtoms == 0) {
+            return Double.NaN;
+        }
+
+        // locate origin
+        double ox = 0;
+        double oy = 0;
+        double oz = 0;
+        for (int i = 0; i < nAtoms; i++) {
+            ox += x[i];
+            oy += y[i];
+            oz += z[i];
+        }
+        ox /= nAtoms;
+        oy /= nAtoms;
+        oz /= nAtoms;
+
+        // covariance matrix
+        double sumXX = 0;
+        double sumXY = 0;
+        double sumXZ = 0;
+        double sumYY = 0;
+        double sumYZ = 0;
+        double sumZZ = 0;
+        for (int i = 0; i < nAtoms; i++) {
+            double dx = x[i] - ox;
+            double dy = y[i] - oy;
+            double dz = z[i] - oz;
+            sumXX += dx * dx;
+            sumXY += dx * dy;
+            sumXZ += dx * dz;
+            sumYY += dy * dy;
+            sumYZ += dy * dz;
+            sumZZ += dz * dz;
+        }
+        sumXX /= nAtoms;
+        sumXY /= nAtoms;
+        sumXZ /= nAtoms;
+        sumYY /= nAtoms;
+        sumYZ /= nAtoms;
+        sumZZ /= nAtoms;
+
+        double[] normal = new double[3];
+        smallestEigenvector(sumXX, sumXY, sumXZ, sumYY, sumYZ, sumZZ, normal);
+
+        // mean distance from the plane, the normal has unit length
+        double res = 0.0;
+        for (int i = 0; i < nAtoms; i++) {
+            res += Math.abs((x[i] - ox) * normal[0] + (y[i] - oy) * normal[1] + (z[i] - oz) * normal[2]);
+        }
+        return res / nAtoms;
+    }
+
+    /**
+     * Unit eigenvector of the smallest eigenvalue of the symmetric matrix
+     * [[a, b, c], [b, d, e], [c, e, f]].
+     */
+    static void smallestEigenvector(double a, double b, double c, double d, double e, double f, double[] v) {
+        double p1 = b * b + c * c + e * e;
+        if (p1 == 0.0) {
+            // diagonal matrix
+            v[0] = 0;
+            v[1] = 0;
+            v[2] = 0;
+            if (a <= d && a <= f) {
+                v[0] = 1;
+            } else if (d <= f) {
+                v[1] = 1;
+            } else {
+                v[2] = 1;
+            }
+            return;
+        }
+
+        // eigenvalues by the trigonometric method
+        double q = (a + d + f) / 3.0;
+        double p2 = (a - q) * (a - q) + (d - q) * (d - q) + (f - q) * (f - q) + 2.0 * p1;
+        double p = Math.sqrt(p2 / 6.0);
+        double ba = (a - q) / p;
+        double bd = (d - q) / p;
+        double bf = (f - q) / p;
+        double bb = b / p;
+        double bc = c / p;
+        double be = e / p;
+        double r = (ba * (bd * bf - be * be) - bb * (bb * bf - be * bc) + bc * (bb * be - bd * bc)) / 2.0;
+        double phi = r <= -1 ? Math.PI / 3.0 : (r >= 1 ? 0.0 : Math.acos(r) / 3.0);
+        double largest = q + 2.0 * p * Math.cos(phi);
+        double smallest = q + 2.0 * p * Math.cos(phi + 2.0 * Math.PI / 3.0);
+        double middle = 3.0 * q - largest - smallest;
+
+        double scale = Math.max(Math.abs(largest), Math.abs(smallest));
+        if (middle - smallest <= MIN_RELATIVE_GAP * scale) {
+            jacobi(a, b, c, d, e, f, v);
+            return;
+        }
+
+        // the eigenvector is orthogonal to the rows of A - smallest * I, take
+        // the best conditioned cross product of two of them
+        double r0x = a - smallest;
+        double r0y = b;
+        double r0z = c;
+        double r1x = b;
+        double r1y = d - smallest;
+        double r1z = e;
+        double r2x = c;
+        double r2y = e;
+        double r2z = f - smallest;
+
+        double c01x = r0y * r1z - r0z * r1y;
+        double c01y = r0z * r1x - r0x * r1z;
+        double c01z = r0x * r1y - r0y * r1x;
+        double c02x = r0y * r2z - r0z * r2y;
+        double c02y = r0z * r2x - r0x * r2z;
+        double c02z = r0x * r2y - r0y * r2x;
+        double c12x = r1y * r2z - r1z * r2y;
+        double c12y = r1z * r2x - r1x * r2z;
+        double c12z = r1x * r2y - r1y * r2x;
+
+        double n01 = c01x * c01x + c01y * c01y + c01z * c01z;
+        double n02 = c02x * c02x + c02y * c02y + c02z * c02z;
+        double n12 = c12x * c12x + c12y * c12y + c12z * c12z;
+
+        double len;
+        if (n01 >= n02 && n01 >= n12) {
+            len = Math.sqrt(n01);
+            v[0] = c01x / len;
+            v[1] = c01y / len;
+            v[2] = c01z / len;
+        } else if (n02 >= n12) {
+            len = Math.sqrt(n02);
+            v[0] = c02x / len;
+            v[1] = c02y / len;
+            v[2] = c02z / len;
+        } else {
+            len = Math.sqrt(n12);
+            v[0] = c12x / len;
+            v[1] = c12y / len;
+            v[2] = c12z / len;
+        }
+    }
+
+    /**
+     * Cyclic Jacobi method, used where the smallest eigenvalue is (nearly)
+     * degenerate.
+     */
+    private static void jacobi(double a, double b, double c, double d, double e, double f, double[] v) {
+        double[][] m = { { a, b, c }, { b, d, e }, { c, e, f } };
+        double[][] vec = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double off = m[0][1] * m[0][1] + m[0][2] * m[0][2] + m[1][2] * m[1][2];
+            if (off == 0.0) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (m[p][q] == 0.0) {
+                        continue;
+                    }
+                    double theta = (m[q][q] - m[p][p]) / (2.0 * m[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1.0));
+                    if (theta == 0.0) {
+                        t = 1.0;
+                    }
+                    double cs = 1.0 / Math.sqrt(t * t + 1.0);
+                    double sn = t * cs;
+
+                    for (int k = 0; k < 3; k++) {
+                        double mkp = m[k][p];
+                        double mkq = m[k][q];
+                        m[k][p] = cs * mkp - sn * mkq;
+                        m[k][q] = sn * mkp + cs * mkq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double mpk = m[p][k];
+                        double mqk = m[q][k];
+                        m[p][k] = cs * mpk - sn * mqk;
+                        m[q][k] = sn * mpk + cs * mqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = vec[k][p];
+                        double vkq = vec[k][q];
+                        vec[k][p] = cs * vkp - sn * vkq;
+                        vec[k][q] = sn * vkp + cs * vkq;
+                    }
+                }
+            }
+        }
+
+        int n = 0;
+        if (m[1][1] < m[n][n]) {
+            n = 1;
+        }
+        if (m[2][2] < m[n][n]) {
+            n = 2;
+        }
+        v[0] = vec[0][n];
+        v[1] = vec[1][n];
+        v[2] = vec[2][n];
+    }
+}
@@ -23,17 +23,26 @@ package org.erlwood.knime.nodes.rowpairer;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 import org.knime.chem.types.SmilesCell;
 import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
 import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.append.AppendedColumnRow;
+import org.knime.core.data.container.CloseableRowIterator;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
 import org.knime.core.data.def.StringCell;
+import org.knime.core.data.sort.BufferedDataTableSorter;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -74,6 +83,18 @@ public class RowPairerNodeModel extends NodeModel {
     private SettingsModelBoolean      mDuplicate           = new SettingsModelBoolean(CFG_DUPLICATE, true);
     private final SettingsModelString mPrecedence          = new SettingsModelString("precedence", PRECEDENCE_OPTIONS[0]);
 
+    /** Multiplier used to combine the cell hashes of a bucket key. */
+    private static final long         HASH_MULTIPLIER      = 0x9E3779B97F4A7C15L;
+
+    /** Number of rows between progress updates. */
+    private static final int          PROGRESS_INTERVAL    = 1000;
+
+    /**
+     * Number of rows of a bucket held in memory. Larger buckets are written to
+     * a table of their own and paired block by block.
+     */
+    private static final int          MAX_BUCKET_ROWS      = 10000;
+
     /**
      * Constructor for the node model.
      */
@@ -105,6 +126,10 @@ public class RowPairerNodeModel extends NodeModel {
         private DataTableSpec outSpec;
         private int[]         mRatCol;
         private int[]         mDiffCol;
+        /** The output columns that are neither ratio nor difference columns. */
+        private int[]         mOutOnlyCol;
+        /** The difference columns that are not also ratio columns. */
+        private int[]         mDiffOnlyCol;
         private List<String>  mActualDiffs;
         private int           leftRow;
 
@@ -117,9 +142,34 @@ public class RowPairerNodeModel extends NodeModel {
             this.mDiffCol = mDiffCol;
             this.mRatCol = mRatCol;
             this.leftRow = -1;
+
+            List<String> ratios = mColRatio.getIncludeList();
+            List<String> diffs = mColDiff.getIncludeList();
+            List<Integer> outOnly = new ArrayList<Integer>();
+            for (String cn : mOutColList.getIncludeList()) {
+                if (!ratios.contains(cn) && !diffs.contains(cn)) {
+                    outOnly.add(inSpec.findColumnIndex(cn));
+                }
+            }
+            List<Integer> diffOnly = new ArrayList<Integer>();
+            for (String cn : diffs) {
+                if (!ratios.contains(cn)) {
+                    diffOnly.add(inSpec.findColumnIndex(cn));
+                }
+            }
+            this.mOutOnlyCol = toArray(outOnly);
+            this.mDiffOnlyCol = toArray(diffOnly);
         }
     }
 
+    private static int[] toArray(List<Integer> list) {
+        int[] res = new int[list.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = list.get(i);
+        }
+        return res;
+    }
+
     private ParamsStruct initParams(DataTableSpec inSpec, DataTableSpec outSpec) {
         List<String> selColsN = mInColList.getIncludeList();
         int[] selCols = new int[selColsN.size()];
@@ -137,29 +187,246 @@ public class RowPairerNodeModel extends NodeModel {
         return new ParamsStruct(selColsN, selCols, inSpec, outSpec, -1, rcols, dcols);
     }
 
-    private void findPairs(BufferedDataTable dataTable, BufferedDataContainer outPairs, ExecutionContext exec) {
+    /**
+     * Finds all pairs of rows that differ in exactly one of the selected
+     * columns. The pairs are written in the order of a loop over every row
+     * and, for each, over all rows before it.
+     * 
+     * Two rows that differ only in selected column j agree on all other
+     * selected columns, so for every j the rows are put into buckets keyed on
+     * the hash of the other selected columns, and only rows in the same bucket
+     * are compared. The buckets are formed by sorting, which spills to disk
+     * for large tables, and a final sort restores the original pair order.
+     * Buckets of more than {@link #MAX_BUCKET_ROWS} rows are spilled as well,
+     * see {@link #pairSpilledBucket}.
+     */
+    private void findPairs(BufferedDataTable dataTable, BufferedDataContainer outPairs, ExecutionContext exec)
+            throws CanceledExecutionException {
         ParamsStruct prms = initParams(dataTable.getSpec(), outPairs.getTableSpec());
-        double c = 0.0;
-        List<DataRow> rows = new ArrayList<DataRow>();
-
-        for (DataRow row1 : dataTable) {
-            for (DataRow row2 : rows) {
-                int nDiff = compareRows(row1, row2, prms);
-                if (1 == nDiff) {
-                    if (mDuplicate.getBooleanValue()) {
-                        DataRow[] tr = processPairedRows(row1, row2, prms, mDuplicate.getBooleanValue());
-                        outPairs.addRowToTable(tr[0]);
-                        outPairs.addRowToTable(tr[1]);
-                    } else {
-                        outPairs.addRowToTable(processPairedRows(row1, row2, prms, mDuplicate.getBooleanValue())[0]);
+        int nSel = prms.selCols.length;
+        if (nSel == 0) {
+            return;
+        }
+        DataTableSpec inSpec = dataTable.getDataTableSpec();
+        final int hashCol = inSpec.getNumColumns();
+        final int indexCol = hashCol + 1;
+
+        // 1. One table per selected column, each row tagged with its bucket
+        // key and its index
+        DataTableSpec bucketSpec = new DataTableSpec(inSpec, new DataTableSpec(
+                new DataColumnSpecCreator(DataTableSpec.getUniqueColumnName(inSpec, "Bucket"), LongCell.TYPE).createSpec(),
+                new DataColumnSpecCreator(DataTableSpec.getUniqueColumnName(inSpec, "Index"), LongCell.TYPE).createSpec()));
+        BufferedDataContainer[] buckets = new BufferedDataContainer[nSel];
+        for (int j = 0; j < nSel; j++) {
+            buckets[j] = exec.createDataContainer(bucketSpec);
+        }
+        ExecutionMonitor bucketExec = exec.createSubProgress(0.2);
+        long nRows = dataTable.size();
+        long index = 0;
+        for (DataRow row : dataTable) {
+            for (int j = 0; j < nSel; j++) {
+                buckets[j].addRowToTable(new AppendedColumnRow(row, new LongCell(bucketHash(row, prms.selCols, j)),
+                        new LongCell(index)));
+            }
+            index++;
+            if (index % PROGRESS_INTERVAL == 0) {
+                bucketExec.checkCanceled();
+                bucketExec.setProgress((double) index / (double) nRows);
+            }
+        }
+        for (int j = 0; j < nSel; j++) {
+            buckets[j].close();
+        }
+
+        Comparator<DataRow> bucketOrder = new Comparator<DataRow>() {
+            @Override
+            public int compare(DataRow a, DataRow b) {
+                int c = Long.compare(getLong(a, hashCol), getLong(b, hashCol));
+                return c != 0 ? c : Long.compare(getLong(a, indexCol), getLong(b, indexCol));
+            }
+        };
+
+        // 2. Pair up the rows within each bucket, tagging every output row
+        // with its position in the original loop
+        DataTableSpec outSpec = outPairs.getTableSpec();
+        final int nOut = outSpec.getNumColumns();
+        DataTableSpec pairSpec = new DataTableSpec(outSpec, new DataTableSpec(
+                new DataColumnSpecCreator(DataTableSpec.getUniqueColumnName(outSpec, "Index 1"), LongCell.TYPE).createSpec(),
+                new DataColumnSpecCreator(DataTableSpec.getUniqueColumnName(outSpec, "Index 2"), LongCell.TYPE).createSpec(),
+                new DataColumnSpecCreator(DataTableSpec.getUniqueColumnName(outSpec, "Copy"), IntCell.TYPE).createSpec()));
+        BufferedDataContainer pairs = exec.createDataContainer(pairSpec);
+        for (int j = 0; j < nSel; j++) {
+            BufferedDataTable sorted = new BufferedDataTableSorter(buckets[j].getTable(), bucketOrder)
+                    .sort(exec.createSubExecutionContext(0.5 / nSel));
+            List<DataRow> bucket = new ArrayList<DataRow>();
+            BufferedDataContainer spill = null;
+            long currentHash = 0;
+            for (DataRow row : sorted) {
+                long h = getLong(row, hashCol);
+                if ((spill != null || !bucket.isEmpty()) && h != currentHash) {
+                    finishBucket(bucket, spill, j, indexCol, prms, pairs, exec);
+                    bucket.clear();
+                    spill = null;
+                    exec.checkCanceled();
+                }
+                currentHash = h;
+                if (spill != null) {
+                    spill.addRowToTable(row);
+                } else {
+                    bucket.add(row);
+                    if (bucket.size() > MAX_BUCKET_ROWS) {
+                        spill = exec.createDataContainer(sorted.getDataTableSpec());
+                        for (DataRow r : bucket) {
+                            spill.addRowToTable(r);
+                        }
+                        bucket.clear();
                     }
                 }
-                c++;
-                exec.setProgress(c / (0.5 * dataTable.getRowCount() * dataTable.getRowCount() - dataTable.getRowCount()));
             }
-            rows.add(row1);
+            finishBucket(bucket, spill, j, indexCol, prms, pairs, exec);
+            exec.clearTable(buckets[j].getTable());
+        }
+        pairs.close();
+
+        // 3. Restore the order of the original loop
+        Comparator<DataRow> pairOrder = new Comparator<DataRow>() {
+            @Override
+            public int compare(DataRow a, DataRow b) {
+                int c = Long.compare(getLong(a, nOut), getLong(b, nOut));
+                if (c == 0) {
+                    c = Long.compare(getLong(a, nOut + 1), getLong(b, nOut + 1));
+                }
+                return c != 0 ? c : Integer.compare(((IntValue) a.getCell(nOut + 2)).getIntValue(),
+                        ((IntValue) b.getCell(nOut + 2)).getIntValue());
+            }
+        };
+        BufferedDataTable sortedPairs = new BufferedDataTableSorter(pairs.getTable(), pairOrder)
+                .sort(exec.createSubExecutionContext(0.2));
+        exec.clearTable(pairs.getTable());
+        ExecutionMonitor outExec = exec.createSubProgress(0.1);
+        long nPairs = sortedPairs.size();
+        long done = 0;
+        for (DataRow row : sortedPairs) {
+            DataCell[] cells = new DataCell[nOut];
+            for (int i = 0; i < nOut; i++) {
+                cells[i] = row.getCell(i);
+            }
+            outPairs.addRowToTable(new DefaultRow(row.getKey(), cells));
+            if (++done % PROGRESS_INTERVAL == 0) {
+                outExec.checkCanceled();
+                outExec.setProgress((double) done / (double) nPairs);
+            }
+        }
+    }
 
+    /**
+     * Pairs up a completed bucket, held either in memory or, if it grew too
+     * large, in the spill container.
+     */
+    private void finishBucket(List<DataRow> bucket, BufferedDataContainer spill, int j, int indexCol, ParamsStruct prms,
+            BufferedDataContainer pairs, ExecutionContext exec) throws CanceledExecutionException {
+        if (spill == null) {
+            pairBucket(bucket, j, indexCol, prms, pairs);
+            return;
         }
+        spill.close();
+        BufferedDataTable table = spill.getTable();
+        pairSpilledBucket(table, j, indexCol, prms, pairs, exec);
+        exec.clearTable(table);
+    }
+
+    /**
+     * Pairs up the rows of a bucket of the given selected column. Of every two
+     * rows the later one is row 1, as in the original loop.
+     */
+    private void pairBucket(List<DataRow> bucket, int j, int indexCol, ParamsStruct prms, BufferedDataContainer pairs) {
+        boolean duplicate = mDuplicate.getBooleanValue();
+        for (int b = 1; b < bucket.size(); b++) {
+            DataRow row1 = bucket.get(b);
+            for (int a = 0; a < b; a++) {
+                pairRows(row1, bucket.get(a), j, indexCol, prms, duplicate, pairs);
+            }
+        }
+    }
+
+    /**
+     * Pairs up the rows of a bucket too large to be held in memory. The bucket
+     * is read in blocks of {@link #MAX_BUCKET_ROWS} rows, and each block is
+     * paired within itself and then with every earlier row of the bucket,
+     * streamed from the table. At most one block is held in memory.
+     */
+    private void pairSpilledBucket(BufferedDataTable bucket, int j, int indexCol, ParamsStruct prms,
+            BufferedDataContainer pairs, ExecutionContext exec) throws CanceledExecutionException {
+        boolean duplicate = mDuplicate.getBooleanValue();
+        List<DataRow> block = new ArrayList<DataRow>(MAX_BUCKET_ROWS);
+        long blockStart = 0;
+        CloseableRowIterator blocks = bucket.iterator();
+        try {
+            while (blocks.hasNext()) {
+                block.clear();
+                while (blocks.hasNext() && block.size() < MAX_BUCKET_ROWS) {
+                    block.add(blocks.next());
+                }
+                pairBucket(block, j, indexCol, prms, pairs);
+                CloseableRowIterator earlier = bucket.iterator();
+                try {
+                    for (long n = 0; n < blockStart; n++) {
+                        DataRow row2 = earlier.next();
+                        for (DataRow row1 : block) {
+                            pairRows(row1, row2, j, indexCol, prms, duplicate, pairs);
+                        }
+                        if (n % PROGRESS_INTERVAL == 0) {
+                            exec.checkCanceled();
+                        }
+                    }
+                } finally {
+                    earlier.close();
+                }
+                blockStart += block.size();
+                exec.checkCanceled();
+            }
+        } finally {
+            blocks.close();
+        }
+    }
+
+    /**
+     * Adds the pair of the given rows of a bucket of selected column j, if
+     * they differ in that column only. Row 1 is the later row.
+     */
+    private void pairRows(DataRow row1, DataRow row2, int j, int indexCol, ParamsStruct prms, boolean duplicate,
+            BufferedDataContainer pairs) {
+        int col = prms.selCols[j];
+        // Pairs differing in another column (hash collisions) are found in the
+        // bucket of that column
+        if (row1.getCell(col).equals(row2.getCell(col))) {
+            return;
+        }
+        if (1 == compareRows(row1, row2, prms)) {
+            DataRow[] tr = processPairedRows(row1, row2, prms, duplicate);
+            LongCell index1 = new LongCell(getLong(row1, indexCol));
+            LongCell index2 = new LongCell(getLong(row2, indexCol));
+            for (int t = 0; t < tr.length; t++) {
+                pairs.addRowToTable(new AppendedColumnRow(tr[t], index1, index2, new IntCell(t)));
+            }
+        }
+    }
+
+    /**
+     * @return The hash of all selected columns but the one at position skip
+     */
+    private static long bucketHash(DataRow row, int[] selCols, int skip) {
+        long h = 1;
+        for (int i = 0; i < selCols.length; i++) {
+            if (i != skip) {
+                h = h * HASH_MULTIPLIER + row.getCell(selCols[i]).hashCode();
+            }
+        }
+        return h;
+    }
+
+    private static long getLong(DataRow row, int col) {
+        return ((LongValue) row.getCell(col)).getLongValue();
     }
 
     private int[] compareCells(DataCell c1, DataCell c2, List<String> actualDiffs, int leftRow) {
@@ -171,7 +438,9 @@ public class RowPairerNodeModel extends NodeModel {
             if (-1 == leftRow) {
 
                 if (c1.getType().isCompatible(DoubleValue.class)) {
-                    if (Double.valueOf(s1) < Double.valueOf(s2)) {
+                    double d1 = c1 instanceof DoubleValue ? ((DoubleValue) c1).getDoubleValue() : Double.valueOf(s1);
+                    double d2 = c2 instanceof DoubleValue ? ((DoubleValue) c2).getDoubleValue() : Double.valueOf(s2);
+                    if (d1 < d2) {
                         leftRow = 1;
                     } else {
                         leftRow = 2;
@@ -196,29 +465,20 @@ public class RowPairerNodeModel extends NodeModel {
         return res;
     }
 
-    private int copyColsForOnePairMember(DataRow row, DataTableSpec spec, DataCell[] cells, int i) {
-        List<String> outCols = mOutColList.getIncludeList();
-
+    private int copyColsForOnePairMember(DataRow row, ParamsStruct prms, DataCell[] cells, int i) {
         cells[i] = new StringCell(row.getKey().toString());
         i += 2;
-        for (String cn : outCols) {
-            if (!mColRatio.getIncludeList().contains(cn) && !mColDiff.getIncludeList().contains(cn)) {
-                cells[i] = row.getCell(spec.findColumnIndex(cn));
-                i += 2;
-            }
+        for (int col : prms.mOutOnlyCol) {
+            cells[i] = row.getCell(col);
+            i += 2;
         }
-        for (int j = 0; j < mColRatio.getIncludeList().size(); j++) {
-            String colDiff = mColRatio.getIncludeList().get(j);
-            cells[i] = row.getCell(spec.findColumnIndex(colDiff));
+        for (int col : prms.mRatCol) {
+            cells[i] = row.getCell(col);
             i += 2;
         }
-        for (int j = 0; j < mColDiff.getIncludeList().size(); j++) {
-            String colDiff = mColDiff.getIncludeList().get(j);
-
-            if (!mColRatio.getIncludeList().contains(colDiff)) {
-                cells[i] = row.getCell(spec.findColumnIndex(colDiff));
-                i += 2;
-            }
+        for (int col : prms.mDiffOnlyCol) {
+            cells[i] = row.getCell(col);
+            i += 2;
         }
         return i - 1;
     }
@@ -227,8 +487,8 @@ public class RowPairerNodeModel extends NodeModel {
         DataCell[] cells = new DataCell[prms.outSpec.getNumColumns()];
         int i;
         if (!invert) {
-            /* int i = */copyColsForOnePairMember(row1, prms.inSpec, cells, 0);
-            i = copyColsForOnePairMember(row2, prms.inSpec, cells, 1);
+            /* int i = */copyColsForOnePairMember(row1, prms, cells, 0);
+            i = copyColsForOnePairMember(row2, prms, cells, 1);
 
             cells[i] = new SmilesCell(prms.mActualDiffs.get(0));
             i += 1;
@@ -330,8 +590,8 @@ public class RowPairerNodeModel extends NodeModel {
                 }
             }
         } else {
-            copyColsForOnePairMember(row1, prms.inSpec, cells, 1);
-            i = copyColsForOnePairMember(row2, prms.inSpec, cells, 0) + 1;
+            copyColsForOnePairMember(row1, prms, cells, 1);
+            i = copyColsForOnePairMember(row2, prms, cells, 0) + 1;
             cells[i] = new SmilesCell(prms.mActualDiffs.get(1));
             i += 1;
             cells[i] = new SmilesCell(prms.mActualDiffs.get(0));
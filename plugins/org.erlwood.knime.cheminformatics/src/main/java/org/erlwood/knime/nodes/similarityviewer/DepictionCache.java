@@ -0,0 +1,178 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.similarityviewer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Renders structure depictions on a background thread, only for the rows a
+ * view actually asks for, and keeps the most recently used ones.
+ * 
+ * Requests are served newest first and only the latest few are kept, so rows
+ * which have been scrolled past are dropped instead of rendered.
+ */
+final class DepictionCache {
+	private static final NodeLogger LOG = NodeLogger.getLogger(DepictionCache.class);
+
+	private static final String FORMAT = "png:h150,w150";
+
+	/** The maximum number of depictions kept. */
+	private static final int MAX_CACHED = 500;
+
+	/** The maximum number of depictions waiting to be rendered. */
+	private static final int MAX_QUEUED = 64;
+
+	private final SimilarityViewerNodeModel model;
+	private final Runnable onRendered;
+
+	private final Object lock = new Object();
+	private final Deque<Integer> queue = new ArrayDeque<Integer>();
+	private final Set<Integer> pending = new HashSet<Integer>();
+	private final Map<Integer, ImageIcon> cache = new LinkedHashMap<Integer, ImageIcon>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ImageIcon> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private Thread worker;
+	private int generation;
+	private boolean stopped;
+
+	/**
+	 * Constructor.
+	 * @param model The model to take the structures from
+	 * @param onRendered Called on the event dispatch thread whenever a depiction is ready
+	 */
+	DepictionCache(SimilarityViewerNodeModel model, Runnable onRendered) {
+		this.model = model;
+		this.onRendered = onRendered;
+	}
+
+	/**
+	 * Get the depiction of a row, queueing it for rendering if it is not available yet.
+	 * @param row The row index
+	 * @return The depiction, or null while it is being rendered
+	 */
+	ImageIcon getIcon(int row) {
+		synchronized (lock) {
+			ImageIcon icon = cache.get(row);
+			if (icon != null || stopped) {
+				return icon;
+			}
+			if (pending.add(row)) {
+				queue.addFirst(row);
+				while (queue.size() > MAX_QUEUED) {
+					pending.remove(queue.pollLast());
+				}
+				if (worker == null) {
+					worker = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							renderLoop();
+						}
+					}, "SimilarityViewer_Depictions");
+					worker.setDaemon(true);
+					worker.start();
+				}
+				lock.notifyAll();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Drop all depictions, e.g. because the data has changed.
+	 */
+	void clear() {
+		synchronized (lock) {
+			generation++;
+			cache.clear();
+			pending.clear();
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Stop the render thread and drop all depictions.
+	 */
+	void dispose() {
+		synchronized (lock) {
+			stopped = true;
+			worker = null;
+			lock.notifyAll();
+		}
+		clear();
+	}
+
+	private void renderLoop() {
+		while (true) {
+			int row;
+			int gen;
+			synchronized (lock) {
+				while (queue.isEmpty() && !stopped) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				row = queue.pollFirst();
+				gen = generation;
+			}
+
+			ImageIcon icon = render(row);
+
+			synchronized (lock) {
+				if (gen != generation || stopped) {
+					continue;
+				}
+				pending.remove(row);
+				cache.put(row, icon);
+			}
+			SwingUtilities.invokeLater(onRendered);
+		}
+	}
+
+	private ImageIcon render(int row) {
+		try {
+			return new ImageIcon(model.getMolecule(row).toBinFormat(FORMAT));
+		} catch (Exception e) {
+			LOG.debug(e.getMessage(), e);
+			return new ImageIcon();
+		}
+	}
+}
@@ -23,11 +23,10 @@ package org.erlwood.knime.nodes.similarityviewer;
 import java.io.File;
 import java.io.IOException;
 
-import javax.swing.ImageIcon;
-
 import jp.co.infocom.cheminfo.marvin.type.MrvValue;
 
 import org.erlwood.knime.datatypes.converters.MoleculeDataTypeConverter;
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.BufferedDataTable;
@@ -61,11 +60,12 @@ public class SimilarityViewerNodeModel extends NodeModel implements BufferedData
     private final SettingsModelBoolean mIsDm          = new SettingsModelBoolean(CFG_IS_DM, false);
 
     private String[]                   mRowIds;
-    private Molecule[]                 mMols;
-    private ImageIcon[]                mIcons;
+    private DataCell[]                 mStructures;
     private DistanceVectorDataValue[]  mDvs;
     private BufferedDataTable          mData;
 
+    private MoleculeDataTypeConverter.ValueConverter<MrvValue> mConverter;
+
     /**
      * Constructor for the node model.
      */
@@ -90,30 +90,36 @@ public class SimilarityViewerNodeModel extends NodeModel implements BufferedData
 
         int rc = getData().getRowCount();
         setRowIds(new String[rc]);
-        setMols(new Molecule[rc]);
-        setIcons(new ImageIcon[rc]);
+        mStructures = new DataCell[rc];
         setDvs(new DistanceVectorDataValue[rc]);
 
+        // The structures are only converted and rendered when a view asks for them
+        mConverter = MoleculeDataTypeConverter.getValueConverter(
+                getData().getSpec().getColumnSpec(structCol).getType(), MrvValue.class);
         int currRow = 0;
         for (DataRow row : getData()) {
             if (null != exec) {
                 exec.checkCanceled();
                 exec.setProgress((double) currRow / rc);
             }
-            MrvValue mrvVal = MoleculeDataTypeConverter.getValue(row.getCell(structCol), MrvValue.class);
             getRowIds()[currRow] = row.getKey().toString();
-            getMols()[currRow] = mrvVal.getMolecule();
-
-            try {
-                getIcons()[currRow] = new ImageIcon(getMols()[currRow].toBinFormat("png:h150,w150"));
-            } catch (Exception e) {
-                getIcons()[currRow] = new ImageIcon();
-            }
+            mStructures[currRow] = row.getCell(structCol);
             getDvs()[currRow] = (DistanceVectorDataValue) row.getCell(dmCol);
             currRow += 1;
         }
     }
 
+    /**
+     * Converts the structure of a row. Each call returns the molecule of the
+     * cell, callers which modify it should work on a copy.
+     * 
+     * @param row The row index
+     * @return The molecule
+     */
+    public Molecule getMolecule(int row) {
+        return mConverter.getValue(mStructures[row]).getMolecule();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -122,8 +128,8 @@ public class SimilarityViewerNodeModel extends NodeModel implements BufferedData
         setData(null);
         setRowIds(new String[] {});
         setDvs(new DistanceVectorDataValue[] {});
-        setMols(new Molecule[] {});
-        setIcons(new ImageIcon[] {});
+        mStructures = new DataCell[] {};
+        mConverter = null;
     }
 
     /**
@@ -215,14 +221,6 @@ public class SimilarityViewerNodeModel extends NodeModel implements BufferedData
         this.mRowIds = mRowIds;
     }
 
-    public Molecule[] getMols() {
-        return mMols;
-    }
-
-    public void setMols(Molecule[] mMols) {
-        this.mMols = mMols;
-    }
-
     public BufferedDataTable getData() {
         return mData;
     }
@@ -230,12 +228,4 @@ public class SimilarityViewerNodeModel extends NodeModel implements BufferedData
     public void setData(BufferedDataTable mData) {
         this.mData = mData;
     }
-
-    public ImageIcon[] getIcons() {
-        return mIcons;
-    }
-
-    public void setIcons(ImageIcon[] mIcons) {
-        this.mIcons = mIcons;
-    }
 }
@@ -239,7 +239,7 @@ public class SimilarityViewerNodeView extends
 					.ceil(y / point_h) - 1;
 			try {
 				SimilarityViewerNodeModel m = getNodeModel();
-				byte[] png = m.getMols()[indx].toBinFormat("png:w150,h150");
+				byte[] png = m.getMolecule(indx).toBinFormat("png:w150,h150");
 				ImageIcon img = new ImageIcon(png);
 				mCmp1.setIcon(img);
 				String t = getNodeModel().getRowIds()[indx] + " (# "
@@ -247,7 +247,7 @@ public class SimilarityViewerNodeView extends
 				mPnl1.setBorder(BorderFactory.createTitledBorder("Compound ID "
 						+ t));
 
-				png = m.getMols()[indy].toBinFormat("png:w150,h150");
+				png = m.getMolecule(indy).toBinFormat("png:w150,h150");
 				img = new ImageIcon(png);
 				mCmp2.setIcon(img);
 				t = getNodeModel().getRowIds()[indy] + " (# "
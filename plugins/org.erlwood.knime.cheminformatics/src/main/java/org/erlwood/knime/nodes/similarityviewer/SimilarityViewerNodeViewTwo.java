@@ -81,6 +81,9 @@ public final class SimilarityViewerNodeViewTwo extends
 
 	private Map<String, Object[]> mColData = new HashMap<String, Object[]>();
 
+	/** Depictions are only rendered for the rows which are shown. */
+	private final DepictionCache mDepictions;
+
 	/**
 	 * Creates a new view.
 	 * 
@@ -91,6 +94,13 @@ public final class SimilarityViewerNodeViewTwo extends
 	protected SimilarityViewerNodeViewTwo(
 			final SimilarityViewerNodeModel nodeModel) {
 		super(nodeModel);
+		mDepictions = new DepictionCache(nodeModel, new Runnable() {
+			@Override
+			public void run() {
+				mTbl.repaint();
+				mCmbMol.repaint();
+			}
+		});
 		JPanel mainPnl = new JPanel(new BorderLayout());
 
 		JPanel selPnl = new JPanel();
@@ -207,16 +217,18 @@ public final class SimilarityViewerNodeViewTwo extends
 				}
 			}
 			try {
-				Molecule[] mols = getNodeModel().getMols();
+				int nRows = getNodeModel().getRowIds().length;
 				BufferedWriter bwr = new BufferedWriter(new FileWriter(
 						fc.getSelectedFile()));
-				for (int i = 0; i < mols.length; ++i) {
-					Molecule mol = mols[(int) mTblVals[i][0]];
+				for (int i = 0; i < nRows; ++i) {
+					int rowi = mRanking.getRow(i);
+					// the properties go on a copy, not on the input molecule
+					Molecule mol = getNodeModel().getMolecule(rowi).cloneMolecule();
 					mol.setPropertyObject("Rank", Integer.valueOf(i + 1));
 					mol.setPropertyObject("Identifier", getNodeModel()
-							.getRowIds()[(int) mTblVals[i][0]]);
+							.getRowIds()[rowi]);
 					mol.setPropertyObject("Distance_to_target",
-							String.format("%.3f", mTblVals[i][1]));
+							String.format("%.3f", mRanking.getValue(i)));
 					TblMdl mdl = (TblMdl) mTbl.getModel();
 					for (int c = 4; c < mdl.getColumnCount(); ++c) {
 						String fmt = "%.3f";
@@ -231,7 +243,7 @@ public final class SimilarityViewerNodeViewTwo extends
 								mdl.getColumnName(c),
 								String.format(
 										fmt,
-										mColData.get(mdl.getColumnName(c))[(int) mTblVals[i][0]]));
+										mColData.get(mdl.getColumnName(c))[rowi]));
 					}
 					bwr.write(mol.toFormat("sdf"));
 				}
@@ -268,7 +280,7 @@ public final class SimilarityViewerNodeViewTwo extends
 				}
 			}
 			try {
-				Molecule[] mols = getNodeModel().getMols();
+				int nRows = getNodeModel().getRowIds().length;
 				BufferedWriter bwr = new BufferedWriter(new FileWriter(
 						fc.getSelectedFile()));
 				TblMdl mdl = (TblMdl) mTbl.getModel();
@@ -278,13 +290,13 @@ public final class SimilarityViewerNodeViewTwo extends
 					bwr.write(mdl.getColumnName(c));
 				}
 				bwr.newLine();
-				for (int i = 0; i < mols.length; ++i) {
+				for (int i = 0; i < nRows; ++i) {
 					bwr.write(mdl.getValueAt(i, 0).toString());
 					for (int c = 1; c < mdl.getColumnCount(); ++c) {
 						bwr.write(",");
 						if ("Structure".equals(mdl.getColumnName(c))) {
 							try {
-								bwr.write(mols[(int) mTblVals[i][0]]
+								bwr.write(getNodeModel().getMolecule(mRanking.getRow(i))
 										.toFormat("smiles:-H"));
 							} catch (Exception ex) {
 								bwr.write("Unable to convert to SMILES");
@@ -316,7 +328,7 @@ public final class SimilarityViewerNodeViewTwo extends
 		}
 		mCmbMol.removeItemListener(this);
 		mCmbMol.removeAllItems();
-		for (int i = 0; i < getNodeModel().getMols().length; ++i) {
+		for (int i = 0; i < getNodeModel().getRowIds().length; ++i) {
 			mCmbMol.addItem(getNodeModel().getRowIds()[i]);
 		}
 		mCmbMol.addItemListener(this);
@@ -329,10 +341,16 @@ public final class SimilarityViewerNodeViewTwo extends
 	protected void modelChanged() {
 		SimilarityViewerNodeModel nodeModel = (SimilarityViewerNodeModel) getNodeModel();
 		assert nodeModel != null;
+		mDepictions.clear();
 		if (null != nodeModel.getData()) {
 			((TblMdl) mTbl.getModel()).resetColumns();
 			buildColumnsMenu();
 			populateTargetComboBox();
+			// the ranking belongs to the previous data
+			mQuery = -1;
+			if (nodeModel.getDvs().length > 0) {
+				queryChanged(0);
+			}
 		}
 	}
 
@@ -341,6 +359,7 @@ public final class SimilarityViewerNodeViewTwo extends
 	 */
 	@Override
 	protected void onClose() {
+		mDepictions.dispose();
 	}
 
 	/**
@@ -360,7 +379,7 @@ public final class SimilarityViewerNodeViewTwo extends
 	}
 
 	private int mQuery = -1;
-	private double[][] mTblVals;
+	private PartialRanking mRanking = new PartialRanking(new double[0], false);
 	private boolean mAsc;
 
 	public void queryChanged(int newq) {
@@ -369,34 +388,122 @@ public final class SimilarityViewerNodeViewTwo extends
 			DistanceVectorDataValue[] dst = getNodeModel().getDvs();
 			DistanceVectorDataValue qDst = dst[newq];
 
-			mTblVals = new double[dst.length][2];
-
+			double[] values = new double[dst.length];
 			for (int i = 0; i < dst.length; ++i) {
-				mTblVals[i][0] = i;
-				mTblVals[i][1] = qDst.getDistance(dst[i]);
+				values[i] = qDst.getDistance(dst[i]);
 			}
 
 			mAsc = getNodeModel().getmIsDm().getBooleanValue();
-			Arrays.sort(mTblVals, new ArComparator(1, !mAsc));
+			mRanking = new PartialRanking(values, !mAsc);
 
 			mTbl.invalidate();
 			mTbl.repaint();
 		}
 	}
 
-	private class ArComparator implements Comparator<double[]> {
-		private int mCol;
-		private boolean mDesc;
+	/**
+	 * Ranks the rows by their value for the current query. Only the top of the
+	 * ranking is sorted up front, further blocks are selected and sorted when
+	 * the table scrolls down to them. Ties keep the input order.
+	 */
+	private static final class PartialRanking {
+		/** The number of rows sorted when the query changes. */
+		private static final int TOP_N = 256;
 
-		public ArComparator(int onCol, boolean desc) {
-			mCol = onCol;
+		private final double[] mValues;
+		private final boolean mDesc;
+		private final int[] mOrder;
+		private int mSorted;
+
+		public PartialRanking(double[] values, boolean desc) {
+			mValues = values;
 			mDesc = desc;
+			mOrder = new int[values.length];
+			for (int i = 0; i < mOrder.length; ++i) {
+				mOrder[i] = i;
+			}
+			ensureSorted(TOP_N);
 		}
 
-		public int compare(double[] o1, double[] o2) {
-			return (o1[mCol] == o2[mCol] ? 0
-					: mDesc ? (o1[mCol] > o2[mCol] ? -1 : 1)
-							: (o1[mCol] > o2[mCol] ? 1 : -1));
+		/**
+		 * @param rank The 0 based rank
+		 * @return The row index at that rank
+		 */
+		public int getRow(int rank) {
+			ensureSorted(rank + 1);
+			return mOrder[rank];
+		}
+
+		/**
+		 * @param rank The 0 based rank
+		 * @return The value of the row at that rank
+		 */
+		public double getValue(int rank) {
+			return mValues[getRow(rank)];
+		}
+
+		private void ensureSorted(int n) {
+			if (n <= mSorted) {
+				return;
+			}
+			int end = Math.min(mOrder.length, Math.max(n, Math.max(TOP_N, mSorted * 2)));
+			if (end < mOrder.length) {
+				select(mSorted, mOrder.length - 1, end - 1);
+			}
+			Integer[] block = new Integer[end - mSorted];
+			for (int i = 0; i < block.length; ++i) {
+				block[i] = mOrder[mSorted + i];
+			}
+			Arrays.sort(block, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return PartialRanking.this.compare(o1, o2);
+				}
+			});
+			for (int i = 0; i < block.length; ++i) {
+				mOrder[mSorted + i] = block[i];
+			}
+			mSorted = end;
+		}
+
+		/** Moves the k smallest rows of mOrder[lo..hi] to the front of the range. */
+		private void select(int lo, int hi, int k) {
+			while (hi > lo) {
+				int pivot = mOrder[(lo + hi) >>> 1];
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while (compare(mOrder[i], pivot) < 0) {
+						i++;
+					}
+					while (compare(mOrder[j], pivot) > 0) {
+						j--;
+					}
+					if (i <= j) {
+						int t = mOrder[i];
+						mOrder[i] = mOrder[j];
+						mOrder[j] = t;
+						i++;
+						j--;
+					}
+				}
+				if (k <= j) {
+					hi = j;
+				} else if (k >= i) {
+					lo = i;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private int compare(int r1, int r2) {
+			double v1 = mValues[r1];
+			double v2 = mValues[r2];
+			if (v1 != v2) {
+				return mDesc ? (v1 > v2 ? -1 : 1) : (v1 > v2 ? 1 : -1);
+			}
+			return r1 < r2 ? -1 : (r1 == r2 ? 0 : 1);
 		}
 	}
 
@@ -420,7 +527,7 @@ public final class SimilarityViewerNodeViewTwo extends
 					setForeground(list.getForeground());
 				}
 
-				ImageIcon icon = getNodeModel().getIcons()[selectedIndex];
+				ImageIcon icon = selectedIndex < 0 ? null : mDepictions.getIcon(selectedIndex);
 				setIcon(icon);
 			}
 			setAlignmentX(RIGHT_ALIGNMENT);
@@ -521,13 +628,13 @@ public final class SimilarityViewerNodeViewTwo extends
 			if (0 == col) {
 				return row + 1;
 			} else if (1 == col) {
-				return getNodeModel().getRowIds()[(int) mTblVals[row][0]];
+				return getNodeModel().getRowIds()[mRanking.getRow(row)];
 			} else if (2 == col) {
-				return getNodeModel().getIcons()[(int) mTblVals[row][0]];
+				return mDepictions.getIcon(mRanking.getRow(row));
 			} else if (3 == col) {
-				return mTblVals[row][1];
+				return mRanking.getValue(row);
 			} else {
-				return mColData.get(mColumns.get(col).getName())[(int) mTblVals[row][0]];
+				return mColData.get(mColumns.get(col).getName())[mRanking.getRow(row)];
 			}
 		}
 
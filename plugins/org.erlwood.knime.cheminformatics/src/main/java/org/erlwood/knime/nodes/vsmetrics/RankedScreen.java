@@ -0,0 +1,181 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.vsmetrics;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A screening result in rank order, from which the metrics can be computed for the
+ * whole set or for a bootstrap resample of it. A resample is a count per rank
+ * position, so each replicate costs a single pass over the ranking and nothing is 
+ * sorted again.
+ */
+final class RankedScreen {
+    /** EF, AUROC, RIE, BEDROC and ROC enrichment. */
+    private static final int METRICS = 5;
+
+    /** The above plus awROC enrichment and awAUROC. */
+    private static final int CLUSTER_METRICS = 7;
+
+    private final boolean[] active;
+    private final int[] cluster;
+    private final int clusterCount;
+    private final double percent;
+    private final double alpha;
+
+    /**
+     * @param active Whether the compound at each rank position is active
+     * @param cluster The cluster index of the compound at each rank position, or null 
+     * @param clusterCount The number of distinct cluster indices
+     * @param percent The fraction of the ranking used for the enrichments
+     * @param alpha The RIE and BEDROC alpha
+     */
+    RankedScreen(boolean[] active, int[] cluster, int clusterCount, double percent, double alpha) {
+        this.active = active;
+        this.cluster = cluster;
+        this.clusterCount = clusterCount;
+        this.percent = percent;
+        this.alpha = alpha;
+    }
+
+    /** @return The number of compounds */
+    int size() {
+        return active.length;
+    }
+
+    /** @return The number of metrics computed */
+    int getMetricCount() {
+        return cluster == null ? METRICS : CLUSTER_METRICS;
+    }
+
+    /**
+     * Buffers for computing the metrics, so that replicates do not allocate. Not thread
+     * safe, each thread needs its own.
+     */
+    final class Workspace {
+        private final int[] counts = new int[active.length];
+        private final int[] ranks = new int[active.length];
+        private final int[] clusterSizes = cluster == null ? null : new int[active.length];
+        private final int[] clusterCounts = cluster == null ? null : new int[clusterCount];
+    }
+
+    Workspace createWorkspace() {
+        return new Workspace();
+    }
+
+    /**
+     * Computes the metrics for the ranking as it is.
+     * @param ws The buffers to use
+     * @return The metrics
+     */
+    double[] compute(Workspace ws) {
+        Arrays.fill(ws.counts, 1);
+        return compute(ws, ws.counts);
+    }
+
+    /**
+     * Computes the metrics for a bootstrap resample, drawing as many compounds as there
+     * are in the ranking with replacement.
+     * @param ws The buffers to use
+     * @param random The random numbers for this replicate
+     * @return The metrics
+     */
+    double[] computeResample(Workspace ws, SplittableRandom random) {
+        int size = active.length;
+        Arrays.fill(ws.counts, 0);
+        for (int i = 0; i < size; i++) {
+            ws.counts[random.nextInt(size)]++;
+        }
+        return compute(ws, ws.counts);
+    }
+
+    private double[] compute(Workspace ws, int[] counts) {
+        int size = active.length;
+        int distinctClusters = 0;
+        if (cluster != null) {
+            Arrays.fill(ws.clusterCounts, 0);
+            for (int p = 0; p < size; p++) {
+                if (counts[p] > 0) {
+                    if (ws.clusterCounts[cluster[p]] == 0) {
+                        distinctClusters++;
+                    }
+                    ws.clusterCounts[cluster[p]] += counts[p];
+                }
+            }
+        }
+
+        // copies of the same compound take consecutive ranks
+        int rank = 0;
+        int n = 0;
+        for (int p = 0; p < size; p++) {
+            int k = counts[p];
+            if (active[p]) {
+                for (int j = 0; j < k; j++) {
+                    ws.ranks[n] = rank + j + 1;
+                    if (cluster != null) {
+                        ws.clusterSizes[n] = ws.clusterCounts[cluster[p]];
+                    }
+                    n++;
+                }
+            }
+            rank += k;
+        }
+
+        double[] metrics = new double[getMetricCount()];
+        metrics[0] = VSMetrics.computeEF(ws.ranks, percent, n, rank);
+        metrics[1] = VSMetrics.computeAUROC(ws.ranks, n, rank);
+        metrics[2] = VSMetrics.computeRIE(ws.ranks, alpha, n, rank);
+        metrics[3] = VSMetrics.computeBEDROC(metrics[2], alpha, n, rank);
+        metrics[4] = VSMetrics.computeROCE(ws.ranks, percent, n, rank);
+        if (cluster != null) {
+            metrics[5] = VSMetrics.computeawROCE(ws.ranks, ws.clusterSizes, distinctClusters, percent, n, rank);
+            metrics[6] = VSMetrics.computeawAUC(ws.ranks, ws.clusterSizes, distinctClusters, n, rank);
+        }
+        return metrics;
+    }
+
+    /**
+     * Gets a percentile of the replicate values, ignoring replicates where the metric
+     * is undefined.
+     * @param values The replicate values, sorted in place
+     * @param fraction The percentile, between 0 and 1
+     * @return The value, or NaN if no replicate defines the metric
+     */
+    static double percentile(double[] values, double fraction) {
+        // NaN sorts last
+        Arrays.sort(values);
+        int defined = values.length;
+        while (defined > 0 && Double.isNaN(values[defined - 1])) {
+            defined--;
+        }
+        if (defined == 0) {
+            return Double.NaN;
+        }
+        double pos = fraction * (defined - 1);
+        int lo = (int) Math.floor(pos);
+        int hi = Math.min(lo + 1, defined - 1);
+        if (values[lo] == values[hi]) {
+            return values[lo];
+        }
+        return values[lo] + (pos - lo) * (values[hi] - values[lo]);
+    }
+}
@@ -23,22 +23,37 @@ package org.erlwood.knime.nodes.vsmetrics;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Virtual screening metrics, computed from the 1-based ranks of the actives in ascending 
+ * order. The array versions only read the first n entries of the arrays, so that buffers
+ * can be reused between bootstrap replicates.
+ */
 public final class VSMetrics {
     private VSMetrics() {
 
     }
 
     public static double computeawAUC(List<Integer> ranks, List<Integer> clusters, double n, double n2, Map<Integer, Integer> h) {
+        return computeawAUC(toArray(ranks), clusterSizes(clusters, h), h.size(), n, n2);
+    }
+
+    /**
+     * @param ranks The ranks of the actives
+     * @param clusterSizes The size of the cluster of each active
+     * @param clusterCount The number of clusters, counting the inactives as one
+     * @param n The number of actives
+     * @param n2 The number of compounds
+     * @return The arithmetic weighted AUC
+     */
+    public static double computeawAUC(int[] ranks, int[] clusterSizes, double clusterCount, double n, double n2) {
         double ranksum = 0.0;
-        int i = 0;
-        for (int ri : ranks) {
-            double t = (double) ri;
+        for (int i = 0; i < (int) n; i++) {
+            double t = (double) ranks[i];
             double decSeen = t - (double) i - 1.0;
-            ranksum = ranksum + (decSeen / (double) h.get(clusters.get(i)));
-            i++;
+            ranksum = ranksum + (decSeen / (double) clusterSizes[i]);
         }
         // inactives are regarded as "cluster" --> subtract one from table size
-        return 1.0 - (ranksum / ((double) (h.size() - 1.0) * (n2 - n)));
+        return 1.0 - (ranksum / ((double) (clusterCount - 1.0) * (n2 - n)));
     }
 
     public static double computeawROCE(List<Integer> ranks,
@@ -47,51 +62,71 @@ public final class VSMetrics {
                                        double n,
                                        double n2,
                                        Map<Integer, Integer> h) {
+        return computeawROCE(toArray(ranks), clusterSizes(clusters, h), h.size(), percent, n, n2);
+    }
+
+    /**
+     * @param ranks The ranks of the actives
+     * @param clusterSizes The size of the cluster of each active
+     * @param clusterCount The number of clusters, counting the inactives as one
+     * @param percent The false positive rate to compute the enrichment at
+     * @param n The number of actives
+     * @param n2 The number of compounds
+     * @return The arithmetic weighted ROC enrichment
+     */
+    public static double computeawROCE(int[] ranks,
+                                       int[] clusterSizes,
+                                       double clusterCount,
+                                       double percent,
+                                       double n,
+                                       double n2) {
 
         double sum = 0.0;
         double headSize = (n2 - n) * percent;
-        int i = 0;
-        for (int ri : ranks) {
-            double t = (double) ri;
+        for (int i = 0; i < (int) n; i++) {
+            double t = (double) ranks[i];
             double decSeen = t - (double) i - 1.0;
             double fpRate = decSeen / (n2 - n);
             if (fpRate > percent) {
-                decSeen = headSize;
                 break;
             }
-            sum = sum + (1.0 / (double) h.get(clusters.get(i)));
-            i++;
+            sum = sum + (1.0 / (double) clusterSizes[i]);
         }
 
-        return (sum / (double) (h.size() - 1.0)) / ((headSize) / (n2 - n));
+        return (sum / (double) (clusterCount - 1.0)) / ((headSize) / (n2 - n));
     }
 
     public static double computeROCE(List<Integer> ranks, double percent, double n, double n2) {
+        return computeROCE(toArray(ranks), percent, n, n2);
+    }
+
+    public static double computeROCE(int[] ranks, double percent, double n, double n2) {
 
         double sum = 0.0;
         double headSize = (n2 - n) * percent;
-        int i = 0;
-        for (int ri : ranks) {
-            double t = (double) ri;
+        for (int i = 0; i < (int) n; i++) {
+            double t = (double) ranks[i];
             double decSeen = t - (double) i - 1.0;
             double fpRate = decSeen / (n2 - n);
             if (fpRate > percent) {
-                decSeen = headSize;
                 break;
             }
             sum++;
-            i++;
         }
 
         return (sum / n) / ((headSize) / (n2 - n));
     }
 
     public static double computeEF(List<Integer> ranks, double percent, double n, double n2) {
+        return computeEF(toArray(ranks), percent, n, n2);
+    }
+
+    public static double computeEF(int[] ranks, double percent, double n, double n2) {
         double expAct = n * percent;
         double sum = 0.0;
         double headSize = n2 * percent;
-        for (int ri : ranks) {
-            double t = (double) ri;
+        for (int i = 0; i < (int) n; i++) {
+            double t = (double) ranks[i];
             if (t <= headSize) {
                 sum++;
             } else {
@@ -102,9 +137,13 @@ public final class VSMetrics {
     }
 
     public static double computeAUROC(List<Integer> ranks, double n, double n2) {
+        return computeAUROC(toArray(ranks), n, n2);
+    }
+
+    public static double computeAUROC(int[] ranks, double n, double n2) {
         double ranksum = 0.0;
-        for (int ri : ranks) {
-            double t = (double) ri;
+        for (int i = 0; i < (int) n; i++) {
+            double t = (double) ranks[i];
             ranksum += t;
         }
 
@@ -112,9 +151,13 @@ public final class VSMetrics {
     }
 
     public static double computeRIE(List<Integer> ranks, double alpha, double n, double n2) {
+        return computeRIE(toArray(ranks), alpha, n, n2);
+    }
+
+    public static double computeRIE(int[] ranks, double alpha, double n, double n2) {
         double ranksum = 0.0;
-        for (int ri : ranks) {
-            double t = Math.exp(-alpha * ((double) ri) / n2);
+        for (int i = 0; i < (int) n; i++) {
+            double t = Math.exp(-alpha * ((double) ranks[i]) / n2);
             ranksum += t;
         }
         ranksum /= n;
@@ -129,4 +172,83 @@ public final class VSMetrics {
         double t = 1.0 / (1.0 - Math.exp(alpha * (n2 - n) / n2));
         return nom / den - t;
     }
+
+    /**
+     * Orders the compounds by score, most promising first, without boxing. Compounds with
+     * equal scores are ordered inactives first, so that ties never inflate the metrics, 
+     * and then by input order. Missing (NaN) scores are ranked last.
+     * @param scores The score of each compound
+     * @param actives Whether each compound is active
+     * @param descending true if higher scores are more promising
+     * @return The indices of the compounds in rank order
+     */
+    public static int[] rankOrder(double[] scores, boolean[] actives, boolean descending) {
+        int size = scores.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // stable merge sort, so equal keys keep their input order
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, size);
+                if (compare(scores, actives, descending, order[mid - 1], order[mid]) <= 0) {
+                    continue;
+                }
+                int a = lo, b = mid, k = lo;
+                while (a < mid && b < hi) {
+                    if (compare(scores, actives, descending, order[b], order[a]) < 0) {
+                        buffer[k++] = order[b++];
+                    } else {
+                        buffer[k++] = order[a++];
+                    }
+                }
+                while (a < mid) {
+                    buffer[k++] = order[a++];
+                }
+                while (b < hi) {
+                    buffer[k++] = order[b++];
+                }
+                System.arraycopy(buffer, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+
+    private static int compare(double[] scores, boolean[] actives, boolean descending, int i, int j) {
+        double a = scores[i];
+        double b = scores[j];
+        boolean missingA = Double.isNaN(a);
+        boolean missingB = Double.isNaN(b);
+        if (missingA != missingB) {
+            return missingA ? 1 : -1;
+        }
+        if (!missingA && a != b) {
+            return (a > b) == descending ? -1 : 1;
+        }
+        if (actives[i] != actives[j]) {
+            return actives[i] ? 1 : -1;
+        }
+        return 0;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        int i = 0;
+        for (int v : values) {
+            array[i++] = v;
+        }
+        return array;
+    }
+
+    private static int[] clusterSizes(List<Integer> clusters, Map<Integer, Integer> h) {
+        int[] sizes = new int[clusters.size()];
+        int i = 0;
+        for (int c : clusters) {
+            sizes[i++] = h.get(c);
+        }
+        return sizes;
+    }
 }
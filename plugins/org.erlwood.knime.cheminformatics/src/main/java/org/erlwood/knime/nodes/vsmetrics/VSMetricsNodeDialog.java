@@ -23,7 +23,11 @@ package org.erlwood.knime.nodes.vsmetrics;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
 import org.knime.core.data.DataValue;
+import org.knime.core.data.DoubleValue;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.data.def.IntCell;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
@@ -34,7 +38,9 @@ import org.knime.core.node.defaultnodesettings.DialogComponentNumberEdit;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.ColumnFilter;
 import org.knime.core.node.util.DataValueColumnFilter;
 
@@ -59,6 +65,13 @@ public class VSMetricsNodeDialog extends DefaultNodeSettingsPane {
     private SettingsModelDoubleBounded  mAlpha      = new SettingsModelDoubleBounded(VSMetricsNodeModel.CFG_ALPHA, 20.0, 0.0,
                                                             1000.0);
     private SettingsModelIntegerBounded mEf         = new SettingsModelIntegerBounded(VSMetricsNodeModel.CFG_EF, 10, 1, 100);
+    private SettingsModelString         mScoreCol   = VSMetricsNodeModel.createScoreColumnModel();
+    private SettingsModelBoolean        mDescending = VSMetricsNodeModel.createDescendingModel();
+    private SettingsModelBoolean        mBootstrap  = VSMetricsNodeModel.createBootstrapModel();
+    private SettingsModelIntegerBounded mReplicates = VSMetricsNodeModel.createReplicatesModel();
+    private SettingsModelDoubleBounded  mConfidence = VSMetricsNodeModel.createConfidenceModel();
+    private SettingsModelInteger        mSeed       = VSMetricsNodeModel.createSeedModel();
+    private SettingsModelIntegerBounded mThreads    = VSMetricsNodeModel.createThreadsModel();
 
     /**
      * New pane for configuring the FingerprintSimilarity node.
@@ -89,6 +102,48 @@ public class VSMetricsNodeDialog extends DefaultNodeSettingsPane {
         cluSel.getModel().setEnabled(false);
         addDialogComponent(cluSel);
 
+        createNewGroup("Ranking");
+        addDialogComponent(new DialogComponentColumnNameSelection(mScoreCol, "Score column", 0, false, true,
+                new DataValueColumnFilter(DoubleValue.class)));
+        addDialogComponent(new DialogComponentBoolean(mDescending, "Higher scores rank first"));
+
+        createNewGroup("Bootstrap confidence intervals");
+        addDialogComponent(new DialogComponentBoolean(mBootstrap, "Compute confidence intervals"));
+        addDialogComponent(new DialogComponentNumber(mReplicates, "Replicates", 100));
+        addDialogComponent(new DialogComponentNumber(mConfidence, "Confidence level", 0.01));
+        addDialogComponent(new DialogComponentNumberEdit(mSeed, "Random seed"));
+        addDialogComponent(new DialogComponentNumber(mThreads, "Number of threads", 1));
+        closeCurrentGroup();
+
+        mScoreCol.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                updateEnabled();
+            }
+        });
+        mBootstrap.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                updateEnabled();
+            }
+        });
+        updateEnabled();
+    }
+
+    @Override
+    public void onOpen() {
+        // the listeners do not fire if the loaded values equal the previous ones
+        updateEnabled();
+    }
+
+    private void updateEnabled() {
+        String score = mScoreCol.getStringValue();
+        mDescending.setEnabled(score != null && !score.isEmpty());
+        boolean bootstrap = mBootstrap.getBooleanValue();
+        mReplicates.setEnabled(bootstrap);
+        mConfidence.setEnabled(bootstrap);
+        mSeed.setEnabled(bootstrap);
+        mThreads.setEnabled(bootstrap);
     }
 
 }
@@ -23,16 +23,18 @@ package org.erlwood.knime.nodes.vsmetrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 
+import org.erlwood.knime.utils.jobhandling.OrderedChunkExecutor;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.data.RowIterator;
+import org.knime.core.data.DoubleValue;
 import org.knime.core.data.RowKey;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
@@ -50,7 +52,10 @@ import org.knime.core.node.defaultnodesettings.SettingsModel;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelColumnName;
 import org.knime.core.node.defaultnodesettings.SettingsModelDouble;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 /**
  * This is the model implementation of FingerprintSimilarity.
@@ -64,6 +69,16 @@ public class VSMetricsNodeModel extends NodeModel {
     public static final String      CFG_ALPHA           = "alpha";
     public static final String      CFG_EF              = "ef";
     public static final String      CFG_CLUSTER         = "do_cluster";
+    public static final String      CFG_SCORE_COLUMN    = "score_column";
+    public static final String      CFG_DESCENDING      = "score_descending";
+    public static final String      CFG_BOOTSTRAP       = "bootstrap";
+    public static final String      CFG_REPLICATES      = "bootstrap_replicates";
+    public static final String      CFG_CONFIDENCE      = "bootstrap_confidence";
+    public static final String      CFG_SEED            = "bootstrap_seed";
+    public static final String      CFG_THREADS         = "threads";
+
+    /** The number of bootstrap replicates computed per task. */
+    private static final int        REPLICATE_CHUNK     = 16;
 
     private SettingsModelColumnName mActCol             = new SettingsModelColumnName(CFG_ACTIVITY_COLUMN, "Activity");
     private SettingsModelColumnName mClusterCol         = new SettingsModelColumnName(CFG_CLUSTER_COLUMN, "Cluster");
@@ -71,9 +86,19 @@ public class VSMetricsNodeModel extends NodeModel {
     private SettingsModelDouble     mAlpha              = new SettingsModelDouble(CFG_ALPHA, 20.0);
     private SettingsModelInteger    mEf                 = new SettingsModelInteger(CFG_EF, 10);
 
+    private SettingsModelString         mScoreCol       = createScoreColumnModel();
+    private SettingsModelBoolean        mDescending     = createDescendingModel();
+    private SettingsModelBoolean        mBootstrap      = createBootstrapModel();
+    private SettingsModelIntegerBounded mReplicates     = createReplicatesModel();
+    private SettingsModelDoubleBounded  mConfidence     = createConfidenceModel();
+    private SettingsModelInteger        mSeed           = createSeedModel();
+    private SettingsModelIntegerBounded mThreads        = createThreadsModel();
+
     private SettingsModel[]         config              = new SettingsModel[] { mActCol, mAlpha, mEf, mClusterCol, mClustering };
 
-    private Map<Integer, Integer>   h                   = new Hashtable<Integer, Integer>();
+    /** The settings added with score ranking and bootstrapping. */
+    private SettingsModel[]         bootstrapConfig     = new SettingsModel[] { mScoreCol, mDescending, mBootstrap, 
+            mReplicates, mConfidence, mSeed, mThreads };
 
     /**
      * Constructor for the node model.
@@ -82,86 +107,192 @@ public class VSMetricsNodeModel extends NodeModel {
         super(1, 1);
     }
 
-    protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec) throws Exception {
+    static SettingsModelString createScoreColumnModel() {
+        return new SettingsModelString(CFG_SCORE_COLUMN, null);
+    }
 
-        h = new Hashtable<Integer, Integer>();
-        BufferedDataContainer container = exec.createDataContainer(createSpec());
-        int actInd = inData[0].getDataTableSpec().findColumnIndex(mActCol.getStringValue());
-        int cluInd = inData[0].getDataTableSpec().findColumnIndex(mClusterCol.getStringValue());
+    static SettingsModelBoolean createDescendingModel() {
+        return new SettingsModelBoolean(CFG_DESCENDING, true);
+    }
 
-        List<Integer> activesRanks = new ArrayList<Integer>();
-        RowIterator rows = inData[0].iterator();
-        int c = 1;
-        double n = 0;
-        double n2 = 0;
+    static SettingsModelBoolean createBootstrapModel() {
+        return new SettingsModelBoolean(CFG_BOOTSTRAP, false);
+    }
 
-        if (mClustering.getBooleanValue()) {
-            initClusters(inData[0], cluInd);
-        }
-        List<Integer> clusters = new ArrayList<Integer>();
-        while (rows.hasNext()) {
-            DataRow row = rows.next();
-            DataCell acell = row.getCell(actInd);
-            boolean act = false;
-            if (acell instanceof DoubleCell) {
-                DoubleCell newName = (DoubleCell) acell;
-                act = (newName.getDoubleValue() > 0.0);
-            } else {
-                if (acell instanceof IntCell) {
-                    IntCell newName = (IntCell) acell;
-                    act = (newName.getIntValue() > 0);
-                }
+    static SettingsModelIntegerBounded createReplicatesModel() {
+        return new SettingsModelIntegerBounded(CFG_REPLICATES, 1000, 10, 1000000);
+    }
+
+    static SettingsModelDoubleBounded createConfidenceModel() {
+        return new SettingsModelDoubleBounded(CFG_CONFIDENCE, 0.95, 0.5, 0.999);
+    }
+
+    static SettingsModelInteger createSeedModel() {
+        return new SettingsModelInteger(CFG_SEED, 42);
+    }
+
+    static SettingsModelIntegerBounded createThreadsModel() {
+        return new SettingsModelIntegerBounded(CFG_THREADS, OrderedChunkExecutor.getDefaultThreadCount(), 1,
+                OrderedChunkExecutor.MAX_THREAD_SETTING);
+    }
+
+    protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec) throws Exception {
+
+        BufferedDataContainer container = exec.createDataContainer(createSpec());
+        DataTableSpec spec = inData[0].getDataTableSpec();
+        int actInd = spec.findColumnIndex(mActCol.getStringValue());
+        int cluInd = spec.findColumnIndex(mClusterCol.getStringValue());
+        int scoreInd = getScoreColumnIndex(spec);
+
+        // read the table once into primitive arrays
+        int size = inData[0].getRowCount();
+        boolean[] actives = new boolean[size];
+        double[] scores = scoreInd < 0 ? null : new double[size];
+        int[] clusters = mClustering.getBooleanValue() ? new int[size] : null;
+        Map<Integer, Integer> clusterIndex = new HashMap<Integer, Integer>();
+        int c = 0;
+        for (DataRow row : inData[0]) {
+            actives[c] = isActive(row.getCell(actInd));
+            if (scores != null) {
+                DataCell scell = row.getCell(scoreInd);
+                scores[c] = scell.isMissing() ? Double.NaN : ((DoubleValue) scell).getDoubleValue();
             }
-            if (act) {
-                activesRanks.add(c);
-                if (mClustering.getBooleanValue()) {
-                    clusters.add(row.getCell(cluInd).toString().hashCode());
+            if (clusters != null) {
+                int hash = row.getCell(cluInd).toString().hashCode();
+                Integer index = clusterIndex.get(hash);
+                if (index == null) {
+                    index = clusterIndex.size();
+                    clusterIndex.put(hash, index);
                 }
-                n++;
+                clusters[c] = index;
             }
             c++;
-            n2++;
         }
-        List<DataCell> cells = new ArrayList<DataCell>();
-        double ef = VSMetrics.computeEF(activesRanks, ((double) mEf.getIntValue()) / 100.0, n, n2);
-        exec.checkCanceled();
-        exec.setProgress(0.2);
-        double auroc = VSMetrics.computeAUROC(activesRanks, n, n2);
-        exec.checkCanceled();
-        exec.setProgress(0.4);
-        double rie = VSMetrics.computeRIE(activesRanks, mAlpha.getDoubleValue(), n, n2);
-        exec.checkCanceled();
-        exec.setProgress(0.6);
-        double bedroc = VSMetrics.computeBEDROC(rie, mAlpha.getDoubleValue(), n, n2);
         exec.checkCanceled();
-        exec.setProgress(0.8);
 
-        double roce = VSMetrics.computeROCE(activesRanks, ((double) mEf.getIntValue()) / 100.0, n, n2);
+        // without a score column the input is expected to be sorted already
+        boolean[] rankedActives = actives;
+        int[] rankedClusters = clusters;
+        if (scores != null) {
+            int[] order = VSMetrics.rankOrder(scores, actives, mDescending.getBooleanValue());
+            rankedActives = new boolean[size];
+            rankedClusters = clusters == null ? null : new int[size];
+            for (int p = 0; p < size; p++) {
+                rankedActives[p] = actives[order[p]];
+                if (clusters != null) {
+                    rankedClusters[p] = clusters[order[p]];
+                }
+            }
+        }
         exec.checkCanceled();
-
-        cells.add(new DoubleCell(ef));
-        cells.add(new DoubleCell(auroc));
-        cells.add(new DoubleCell(rie));
-        cells.add(new DoubleCell(bedroc));
-        cells.add(new DoubleCell(roce));
-
-        double awROCE = Double.NaN;
-        double awAUC = Double.NaN;
-        if (mClustering.getBooleanValue()) {
-            awAUC = VSMetrics.computeawAUC(activesRanks, clusters, n, n2, h);
-            awROCE = VSMetrics.computeawROCE(activesRanks, clusters, ((double) mEf.getIntValue()) / 100.0, n, n2, h);
-            cells.add(new DoubleCell(awROCE));
-            cells.add(new DoubleCell(awAUC));
+        exec.setProgress(0.1);
+
+        RankedScreen screen = new RankedScreen(rankedActives, rankedClusters, clusterIndex.size(),
+                ((double) mEf.getIntValue()) / 100.0, mAlpha.getDoubleValue());
+        container.addRowToTable(createRow("Metrics", screen.compute(screen.createWorkspace())));
+
+        if (mBootstrap.getBooleanValue()) {
+            double[][] replicates = bootstrap(screen, exec.createSubProgress(0.9));
+            double tail = (1.0 - mConfidence.getDoubleValue()) / 2.0;
+            double[] lower = new double[replicates.length];
+            double[] upper = new double[replicates.length];
+            for (int m = 0; m < replicates.length; m++) {
+                lower[m] = RankedScreen.percentile(replicates[m], tail);
+                upper[m] = RankedScreen.percentile(replicates[m], 1.0 - tail);
+            }
+            container.addRowToTable(createRow("CI lower", lower));
+            container.addRowToTable(createRow("CI upper", upper));
         }
         exec.setProgress(1.0);
-        DefaultRow drow = new DefaultRow(new RowKey("Metrics"), cells);
-        container.addRowToTable(drow);
 
         container.close();
 
         return new BufferedDataTable[] { container.getTable() };
     }
 
+    /**
+     * Computes the metrics for each bootstrap replicate in parallel. Each replicate has 
+     * its own seed, drawn up front, so the result does not depend on the number of threads.
+     * @return The replicate values, indexed by metric and then by replicate
+     */
+    private double[][] bootstrap(final RankedScreen screen, final ExecutionMonitor exec) throws Exception {
+        final int replicates = mReplicates.getIntValue();
+        SplittableRandom seeds = new SplittableRandom(mSeed.getIntValue());
+        final long[] replicateSeeds = new long[replicates];
+        List<Integer> indices = new ArrayList<Integer>(replicates);
+        for (int r = 0; r < replicates; r++) {
+            replicateSeeds[r] = seeds.nextLong();
+            indices.add(r);
+        }
+        final double[][] values = new double[screen.getMetricCount()][replicates];
+
+        OrderedChunkExecutor<Integer, double[]> executor = new OrderedChunkExecutor<Integer, double[]>(
+                "VSMetrics", mThreads.getIntValue(), REPLICATE_CHUNK);
+        executor.execute(exec, indices.iterator(), replicates,
+                new OrderedChunkExecutor.ChunkProcessor<Integer, double[]>() {
+                    @Override
+                    public List<double[]> process(List<Integer> chunk) {
+                        RankedScreen.Workspace ws = screen.createWorkspace();
+                        List<double[]> result = new ArrayList<double[]>(chunk.size());
+                        for (int r : chunk) {
+                            result.add(screen.computeResample(ws, new SplittableRandom(replicateSeeds[r])));
+                        }
+                        return result;
+                    }
+                }, new OrderedChunkExecutor.ResultConsumer<double[]>() {
+                    private int r = 0;
+
+                    @Override
+                    public void accept(double[] metrics) {
+                        for (int m = 0; m < metrics.length; m++) {
+                            values[m][r] = metrics[m];
+                        }
+                        r++;
+                    }
+                });
+        return values;
+    }
+
+    private static boolean isActive(DataCell acell) {
+        boolean act = false;
+        if (acell instanceof DoubleCell) {
+            DoubleCell newName = (DoubleCell) acell;
+            act = (newName.getDoubleValue() > 0.0);
+        } else {
+            if (acell instanceof IntCell) {
+                IntCell newName = (IntCell) acell;
+                act = (newName.getIntValue() > 0);
+            }
+        }
+        return act;
+    }
+
+    private static DataRow createRow(String key, double[] metrics) {
+        List<DataCell> cells = new ArrayList<DataCell>();
+        for (double m : metrics) {
+            cells.add(new DoubleCell(m));
+        }
+        return new DefaultRow(new RowKey(key), cells);
+    }
+
+    /**
+     * @return The index of the score column, or -1 if the input is ranked by row order
+     */
+    private int getScoreColumnIndex(DataTableSpec spec) throws InvalidSettingsException {
+        String name = mScoreCol.getStringValue();
+        if (name == null || name.isEmpty()) {
+            return -1;
+        }
+        int index = spec.findColumnIndex(name);
+        if (index < 0) {
+            throw new InvalidSettingsException("Score column \"" + name + "\" not found in input table");
+        }
+        if (!spec.getColumnSpec(index).getType().isCompatible(DoubleValue.class)) {
+            throw new InvalidSettingsException("Score column \"" + name + "\" is not numeric");
+        }
+        return index;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -173,7 +304,7 @@ public class VSMetricsNodeModel extends NodeModel {
      * {@inheritDoc}
      */
     protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
-
+        getScoreColumnIndex(inSpecs[0]);
         return new DataTableSpec[] { createSpec() };
 
     }
@@ -207,6 +338,9 @@ public class VSMetricsNodeModel extends NodeModel {
         for (SettingsModel model : config) {
             model.saveSettingsTo(settings);
         }
+        for (SettingsModel model : bootstrapConfig) {
+            model.saveSettingsTo(settings);
+        }
     }
 
     /**
@@ -217,6 +351,16 @@ public class VSMetricsNodeModel extends NodeModel {
         for (SettingsModel model : config) {
             model.loadSettingsFrom(settings);
         }
+        if (settings.containsKey(CFG_SCORE_COLUMN)) {
+            for (SettingsModel model : bootstrapConfig) {
+                model.loadSettingsFrom(settings);
+            }
+        } else {
+            // this node instance predates score ranking, keep the input order
+            mScoreCol.setStringValue(null);
+            mDescending.setBooleanValue(true);
+            mBootstrap.setBooleanValue(false);
+        }
     }
 
     /**
@@ -227,6 +371,11 @@ public class VSMetricsNodeModel extends NodeModel {
         for (SettingsModel model : config) {
             model.validateSettings(settings);
         }
+        if (settings.containsKey(CFG_SCORE_COLUMN)) {
+            for (SettingsModel model : bootstrapConfig) {
+                model.validateSettings(settings);
+            }
+        }
     }
 
     /**
@@ -244,20 +393,4 @@ public class VSMetricsNodeModel extends NodeModel {
     protected void saveInternals(final File internDir, final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
     }
-
-    private void initClusters(BufferedDataTable table, int col) {
-        RowIterator rows = table.iterator();
-
-        while (rows.hasNext()) {
-            DataRow row = rows.next();
-            int x = row.getCell(col).toString().hashCode();
-            if (!h.containsKey(x)) {
-                h.put(x, 1);
-            } else {
-                int i = h.get(x);
-                h.remove(x);
-                h.put(x, i + 1);
-            }
-        }
-    }
 }
@@ -31,6 +31,15 @@ import org.knime.core.data.DataValue;
  *
  */
 public interface IMoleculeConverter {
+	/** Relative cost of taking or handing over an in-memory molecule. */
+	int COST_NATIVE = 1;
+	
+	/** Relative cost of parsing or writing a molecule as text. */
+	int COST_TEXT = 10;
+	
+	/** Extra cost of writing a format which loses information, e.g. coordinates. */
+	int COST_LOSSY = 5;
+	
 	/**
 	 * Holder for a valid conversion pairing.
 	 * @author Luke Bullard
@@ -61,5 +70,16 @@ public interface IMoleculeConverter {
 	 */
 	String getName();
 	
+	/**
+	 * The relative cost of a single conversion, used to pick the cheapest route when a
+	 * conversion needs more than one converter. 
+	 * @param sourceType The type of the source.
+	 * @param outputType The output type.
+	 * @return The cost, by default that of parsing and writing text
+	 */
+	default int getConversionCost(Class<? extends DataValue> sourceType, Class<? extends DataValue> outputType) {
+		return 2 * COST_TEXT;
+	}
+	
 	
 }
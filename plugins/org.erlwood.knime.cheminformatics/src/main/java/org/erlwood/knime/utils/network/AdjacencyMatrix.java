@@ -20,6 +20,10 @@
 */
 package org.erlwood.knime.utils.network;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -29,24 +33,103 @@ import org.knime.core.data.collection.CollectionDataValue;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.distmatrix.type.DistanceVectorDataValue;
 
-@SuppressWarnings("serial")
+/**
+ * One row of a network adjacency matrix. Only the non-zero edges are stored,
+ * as sorted index and weight arrays, so a row costs memory in the number of
+ * neighbours rather than in the number of rows of the table. All zero edges
+ * are still reported through {@link #getEdge(int)} and the collection
+ * iterator.
+ */
 public class AdjacencyMatrix extends DataCell implements
 		DistanceVectorDataValue, CollectionDataValue {
+	/**
+	 * The identifier of the class as it was with a dense edge array, kept so
+	 * cells saved by older versions can still be read.
+	 */
+	private static final long serialVersionUID = 4007629783995187601L;
+
+	/**
+	 * The serialized form. "edges" is only set by older versions, which stored
+	 * every edge, the sparse form uses "length", "indices" and "weights".
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("id", int.class),
+			new ObjectStreamField("edges", double[].class),
+			new ObjectStreamField("symmetric", boolean.class),
+			new ObjectStreamField("maxdist", double.class),
+			new ObjectStreamField("length", int.class),
+			new ObjectStreamField("indices", int[].class),
+			new ObjectStreamField("weights", double[].class) };
+
 	public static final DataType TYPE = DataType.getType(AdjacencyMatrix.class,
 			DoubleCell.TYPE);
-	private final int id;
-	private final double[] edges;
-	private final boolean symmetric;
 
-	private final double maxdist = Double.POSITIVE_INFINITY;
+	private static final double MAX_DIST = Double.POSITIVE_INFINITY;
+
+	private static final long ZERO_BITS = Double.doubleToLongBits(0.0);
+
+	private int id;
+	private int length;
+	private int[] indices;
+	private double[] weights;
+	private boolean symmetric;
 
 	public AdjacencyMatrix(int id, boolean directed, final double[] distances) {
 		this.id = id;
-		this.edges = distances;
 		this.symmetric = !directed;
+		setDense(distances);
+	}
+
+	/**
+	 * Creates a row from its non-zero edges.
+	 * 
+	 * @param id
+	 *            The identifier of the row
+	 * @param directed
+	 *            Whether the network is directed
+	 * @param length
+	 *            The number of edges, including the zero ones
+	 * @param indices
+	 *            The strictly ascending indices of the non-zero edges
+	 * @param weights
+	 *            The weights of the non-zero edges
+	 */
+	public AdjacencyMatrix(int id, boolean directed, int length,
+			final int[] indices, final double[] weights) {
+		if (indices.length != weights.length) {
+			throw new IllegalArgumentException(
+					"Indices and weights must have the same length");
+		}
+		for (int i = 0; i < indices.length; i++) {
+			if (indices[i] < 0 || indices[i] >= length
+					|| (i > 0 && indices[i] <= indices[i - 1])) {
+				throw new IllegalArgumentException(
+						"Indices must be ascending and within the row length");
+			}
+		}
+		this.id = id;
+		this.symmetric = !directed;
+		this.length = length;
+		this.indices = indices;
+		this.weights = weights;
+	}
+
+	private void setDense(double[] distances) {
+		int n = 0;
+		for (double d : distances) {
+			if (Double.doubleToLongBits(d) != ZERO_BITS) {
+				n++;
+			}
+		}
+		length = distances.length;
+		indices = new int[n];
+		weights = new double[n];
+		n = 0;
 		for (int i = 0; i < distances.length; i++) {
-			if (distances[i] > maxdist) {
-				distances[i] = maxdist;
+			if (Double.doubleToLongBits(distances[i]) != ZERO_BITS) {
+				indices[n] = i;
+				weights[n] = distances[i];
+				n++;
 			}
 		}
 	}
@@ -59,7 +142,7 @@ public class AdjacencyMatrix extends DataCell implements
 
 	@Override
 	public int size() {
-		return edges.length;
+		return length;
 	}
 
 	@Override
@@ -72,19 +155,24 @@ public class AdjacencyMatrix extends DataCell implements
 		return new Iterator<DataCell>() {
 
 			private int index = 0;
+			private int next = 0;
 
 			@Override
 			public boolean hasNext() {
-				return index < edges.length;
+				return index < length;
 			}
 
 			@Override
 			public DataCell next() {
+				double edge = 0.0;
+				if (next < indices.length && indices[next] == index) {
+					edge = weights[next++];
+				}
 				index++;
-				if (Double.isNaN(edges[index - 1])) {
+				if (Double.isNaN(edge)) {
 					return DataType.getMissingCell();
 				}
-				return new DoubleCell(edges[index - 1]);
+				return new DoubleCell(edge);
 			}
 
 			@Override
@@ -98,15 +186,28 @@ public class AdjacencyMatrix extends DataCell implements
 	// DataCell methods
 	@Override
 	public String toString() {
-		return Arrays.toString(edges);
+		StringBuilder sb = new StringBuilder("[");
+		int next = 0;
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			if (next < indices.length && indices[next] == i) {
+				sb.append(weights[next++]);
+			} else {
+				sb.append(0.0);
+			}
+		}
+		return sb.append(']').toString();
 	}
 
 	@Override
 	protected boolean equalsDataCell(DataCell dc) {
 		if (dc instanceof AdjacencyMatrix) {
 			AdjacencyMatrix newName = (AdjacencyMatrix) dc;
-			return (this.id == newName.id && Arrays.equals(this.edges,
-					newName.edges));
+			return (this.id == newName.id && this.length == newName.length
+					&& Arrays.equals(this.indices, newName.indices) && Arrays
+						.equals(this.weights, newName.weights));
 
 		}
 		return false;
@@ -114,7 +215,7 @@ public class AdjacencyMatrix extends DataCell implements
 
 	@Override
 	public int hashCode() {
-		return edges.hashCode();
+		return 31 * Arrays.hashCode(indices) + Arrays.hashCode(weights);
 	}
 
 	// DistanceVectorValue methods
@@ -132,14 +233,14 @@ public class AdjacencyMatrix extends DataCell implements
 		if (getIdentifier() == other.getIdentifier()) {
 			return 0.0;
 		}
-		if (other.getIdentifier() >= edges.length || other.getIdentifier() < 0) {
+		if (other.getIdentifier() >= length || other.getIdentifier() < 0) {
 			if (symmetric && getIdentifier() >= 0.0
-					&& getIdentifier() < ((AdjacencyMatrix) other).edges.length) {
+					&& getIdentifier() < ((AdjacencyMatrix) other).length) {
 				return other.getDistance(this);
 			}
-			return maxdist;
+			return MAX_DIST;
 		}
-		return edges[other.getIdentifier()];
+		return getEdge(other.getIdentifier());
 	}
 
 	@Override
@@ -158,7 +259,7 @@ public class AdjacencyMatrix extends DataCell implements
 	 * @return The edge length.
 	 */
 	public int getEdgeLength() {
-		return edges.length;
+		return length;
 	}
 
 	/**
@@ -169,6 +270,68 @@ public class AdjacencyMatrix extends DataCell implements
 	 * @return The edge value.
 	 */
 	public double getEdge(int index) {
-		return edges[index];
+		if (index < 0 || index >= length) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		int pos = Arrays.binarySearch(indices, index);
+		return pos < 0 ? 0.0 : weights[pos];
+	}
+
+	/**
+	 * Gets the number of non-zero edges.
+	 * 
+	 * @return The number of non-zero edges.
+	 */
+	public int getNeighbourCount() {
+		return indices.length;
+	}
+
+	/**
+	 * Gets the index of a non-zero edge.
+	 * 
+	 * @param i
+	 *            The position of the edge, 0 to getNeighbourCount() - 1
+	 * @return The index of the edge, ascending with i.
+	 */
+	public int getNeighbourIndex(int i) {
+		return indices[i];
+	}
+
+	/**
+	 * Gets the weight of a non-zero edge.
+	 * 
+	 * @param i
+	 *            The position of the edge, 0 to getNeighbourCount() - 1
+	 * @return The edge value.
+	 */
+	public double getNeighbourWeight(int i) {
+		return weights[i];
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("id", id);
+		fields.put("symmetric", symmetric);
+		fields.put("maxdist", MAX_DIST);
+		fields.put("length", length);
+		fields.put("indices", indices);
+		fields.put("weights", weights);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		id = fields.get("id", 0);
+		symmetric = fields.get("symmetric", false);
+		double[] edges = (double[]) fields.get("edges", null);
+		if (edges != null) {
+			// written by a version which stored every edge
+			setDense(edges);
+		} else {
+			length = fields.get("length", 0);
+			indices = (int[]) fields.get("indices", new int[0]);
+			weights = (double[]) fields.get("weights", new double[0]);
+		}
 	}
 }
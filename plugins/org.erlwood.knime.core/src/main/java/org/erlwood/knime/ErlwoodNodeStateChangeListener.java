@@ -20,13 +20,16 @@
 */
 package org.erlwood.knime;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+import org.erlwood.knime.NodeExecutionMetrics.Execution;
 import org.erlwood.knime.utils.iotiming.IOTiming;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.Node;
@@ -48,13 +51,17 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
     private static final NodeLogger LOG = NodeLogger.getLogger(ErlwoodNodeStateChangeListener.class.getName());
     
     private final WorkflowManager                                             	workflowManager;
-    private final Map<NodeID, ErlwoodNodeStateChangeListener>                  	listenerMap       = new LinkedHashMap<NodeID, ErlwoodNodeStateChangeListener>();
+    private final Map<NodeID, ErlwoodNodeStateChangeListener>                  	listenerMap       = new ConcurrentHashMap<NodeID, ErlwoodNodeStateChangeListener>();
     private final NodeAddRemoveListener                                       	addRemoveListener = new NodeAddRemoveListener();
-	private static final List<NodeExecutionListener> 							nodeExecutionListeners = new ArrayList<NodeExecutionListener>();
+	private static final List<NodeExecutionListener> 							nodeExecutionListeners = new CopyOnWriteArrayList<NodeExecutionListener>();
 
-    private static final Map<WorkflowName, Map<NodeID, NodeExecutionDetails>> 	CURRENT_EXECUTIONS = new TreeMap<WorkflowName, Map<NodeID, NodeExecutionDetails>>();
+    private static final Map<WorkflowName, Map<NodeID, NodeExecutionDetails>> 	CURRENT_EXECUTIONS = new ConcurrentSkipListMap<WorkflowName, Map<NodeID, NodeExecutionDetails>>();
     
-    private static final Map<NodeContainer, Long>      							NODE_CONTAINER_START	=	new WeakHashMap<NodeContainer, Long>();
+    private static final Map<NodeContainer, ExecutionStart>   					NODE_CONTAINER_START	=	new ConcurrentHashMap<NodeContainer, ExecutionStart>();
+    
+    private static final NodeExecutionMetrics									METRICS = new NodeExecutionMetrics();
+    
+    private static final ThreadMXBean											THREAD_BEAN = ManagementFactory.getThreadMXBean();
     
 
     public static ErlwoodNodeStateChangeListener getInstance() {
@@ -102,6 +109,7 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
         }
 
         CURRENT_EXECUTIONS.remove(new WorkflowName(nc.getParent().getID(), nc.getParent().getDisplayLabel()));
+        NODE_CONTAINER_START.remove(nc);
 
         nc.removeNodeStateChangeListener(this);
     }
@@ -119,12 +127,15 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
 
             if (nc.getNodeContainerState().isExecutionInProgress()) {
             	if (nc.getState().equals(NodeContainer.State.PREEXECUTE)) {
-            		NODE_CONTAINER_START.put(nc,  System.currentTimeMillis());            		
+            		NODE_CONTAINER_START.put(nc, new ExecutionStart(countRows(nnc, true)));
             	}            	
         		
                 if (nodeMap == null) {
-                    nodeMap = new TreeMap<NodeID, NodeExecutionDetails>();
-                    CURRENT_EXECUTIONS.put(wfn, nodeMap);
+                    Map<NodeID, NodeExecutionDetails> newMap = new ConcurrentSkipListMap<NodeID, NodeExecutionDetails>();
+                    nodeMap = CURRENT_EXECUTIONS.putIfAbsent(wfn, newMap);
+                    if (nodeMap == null) {
+                    	nodeMap = newMap;
+                    }
                 }
 
                 NodeExecutionDetails ned = nodeMap.get(nc.getID());
@@ -142,48 +153,69 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
                     }
                 }
                 
-                if (nc.getNodeContainerState().isExecuted()) {
-                
-                	long executionTime = 0;
-                	Long startTime = NODE_CONTAINER_START.get(nc);
-                	if (startTime != null) {
-                		executionTime = System.currentTimeMillis() - startTime;
-                		
-						Node n = ((NativeNodeContainer) nc).getNode();
-						NodeModel nm = n.getNodeModel();
-						long ioTiming = 0;
-						if (nm instanceof IOTiming) {
-							ioTiming = ((IOTiming)nm).getTiming();
-						}
-						
-					
-						for (NodeExecutionListener l : nodeExecutionListeners) {
-							l.nodeExecuted(n.getName(), nc.getID(), executionTime, ioTiming);
-						}
-						
+                // an execution that failed or was cancelled is not recorded
+                ExecutionStart start = NODE_CONTAINER_START.remove(nc);
+                if (start != null && nc.getNodeContainerState().isExecuted()) {
+                	Node n = nnc.getNode();
+                	NodeModel nm = n.getNodeModel();
+                	long ioTiming = 0;
+                	if (nm instanceof IOTiming) {
+                		ioTiming = ((IOTiming)nm).getTiming();
                 	}
-                
-                	int rowCount = -1;
                 	
-                    ConnectionContainer cc = nnc.getParent().getIncomingConnectionFor(nnc.getID(), 1);
-                	if (cc != null) {
-                		try {
-		                	PortObject po = nnc.getParent().getNodeContainer(cc.getSource()).getOutPort(cc.getSourcePort()).getPortObject();
-		                	
-		                	if (po != null && po instanceof BufferedDataTable) {
-		                		rowCount = ((BufferedDataTable)po).getRowCount();
-		                	}
-                		} catch(Exception ex) {
-                			//	Do nothing
-                		}
+                	Execution execution = new Execution(n.getName(), nc.getID(), 
+                			start.getWallTime(), start.getCpuTime(), 
+                			start.rowsIn, countRows(nnc, false), ioTiming);
+                	METRICS.record(execution);
+                	
+                	for (NodeExecutionListener l : nodeExecutionListeners) {
+                		l.nodeExecuted(execution);
                 	}
-
-                } 
+                }
             }
 
         }
 
     }
+    
+    /**
+     * Sums the rows of the data tables at the input or output ports of a node. 
+     * Port 0 is the flow variable port and is skipped.
+     * @return The row count, or -1 if there are no data tables
+     */
+    private static long countRows(NativeNodeContainer nnc, boolean inputs) {
+    	long rows = -1;
+    	try {
+    		WorkflowManager parent = nnc.getParent();
+    		int ports = inputs ? nnc.getNrInPorts() : nnc.getNrOutPorts();
+    		for (int i = 1; i < ports; i++) {
+    			PortObject po;
+    			if (inputs) {
+    				ConnectionContainer cc = parent.getIncomingConnectionFor(nnc.getID(), i);
+    				if (cc == null) {
+    					continue;
+    				}
+    				po = parent.getNodeContainer(cc.getSource()).getOutPort(cc.getSourcePort()).getPortObject();
+    			} else {
+    				po = nnc.getOutPort(i).getPortObject();
+    			}
+    			if (po instanceof BufferedDataTable) {
+    				rows = Math.max(rows, 0) + ((BufferedDataTable)po).size();
+    			}
+    		}
+    	} catch(Exception ex) {
+    		//	Do nothing
+    	}
+    	return rows;
+    }
+    
+    /**
+     * The metrics registry of all node executions since startup.
+     * @return The metrics registry
+     */
+    public NodeExecutionMetrics getMetrics() {
+    	return METRICS;
+    }
 
     private final class NodeAddRemoveListener implements WorkflowListener {
 
@@ -229,6 +261,41 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
         }
     }
 
+    /**
+     * Start of a node execution. The CPU time is only measured when the execution 
+     * finishes on the thread that started it.
+     */
+    private static final class ExecutionStart {
+    	private final long rowsIn;
+    	private final long startNanos = System.nanoTime();
+    	private final Thread thread = Thread.currentThread();
+    	private final long startCpu = currentThreadCpuTime();
+    	
+    	private ExecutionStart(long rowsIn) {
+    		this.rowsIn = rowsIn;
+    	}
+    	
+    	private long getWallTime() {
+    		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    	}
+    	
+    	private long getCpuTime() {
+    		long cpu = currentThreadCpuTime();
+    		if (startCpu < 0 || cpu < 0 || thread != Thread.currentThread()) {
+    			return -1;
+    		}
+    		return TimeUnit.NANOSECONDS.toMillis(cpu - startCpu);
+    	}
+    	
+    	private static long currentThreadCpuTime() {
+    		try {
+    			return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : -1;
+    		} catch(UnsupportedOperationException ex) {
+    			return -1;
+    		}
+    	}
+    }
+
     private static final class NodeExecutionDetails {
         private final String name;
         private String       state;
@@ -256,7 +323,16 @@ public class ErlwoodNodeStateChangeListener implements NodeStateChangeListener {
        
     public interface NodeExecutionListener {
 
-		void nodeExecuted(String name, NodeID id, long executionTime, long ioTiming);
+		default void nodeExecuted(String name, NodeID id, long executionTime, long ioTiming) {
+		}
+		
+		/**
+		 * Called when a node has executed successfully, possibly from several threads at once.
+		 * @param execution The metrics of the execution
+		 */
+		default void nodeExecuted(Execution execution) {
+			nodeExecuted(execution.getName(), execution.getId(), execution.getWallTime(), execution.getIOTiming());
+		}
     	
     }
 
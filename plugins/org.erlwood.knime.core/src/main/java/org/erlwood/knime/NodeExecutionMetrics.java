@@ -0,0 +1,213 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.knime.core.node.workflow.NodeID;
+
+/**
+ * Registry of node execution metrics, aggregated per node name. Counters are lock-free
+ * so executions finishing on many threads at once can be recorded without contention.
+ */
+public final class NodeExecutionMetrics {
+	
+	private final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+	
+	/**
+	 * Records a single node execution.
+	 * @param execution The execution to record
+	 */
+	public void record(Execution execution) {
+		Totals t = totals.get(execution.getName());
+		if (t == null) {
+			Totals newTotals = new Totals(execution.getName());
+			t = totals.putIfAbsent(execution.getName(), newTotals);
+			if (t == null) {
+				t = newTotals;
+			}
+		}
+		t.add(execution);
+	}
+	
+	/**
+	 * @param name The node name
+	 * @return The totals for the node, or null if it has not been executed
+	 */
+	public Totals getTotals(String name) {
+		return totals.get(name);
+	}
+	
+	/**
+	 * @return The totals of all executed nodes, in no particular order
+	 */
+	public List<Totals> getAllTotals() {
+		return new ArrayList<Totals>(totals.values());
+	}
+	
+	/**
+	 * Removes all recorded metrics.
+	 */
+	public void clear() {
+		totals.clear();
+	}
+	
+	/**
+	 * Rows per second over the given wall time. Rows processed are taken as the larger of
+	 * the rows in and out, so sources, sinks and filters are all measured.
+	 */
+	private static double rowsPerSecond(long rowsIn, long rowsOut, long wallTime) {
+		if (wallTime <= 0) {
+			return 0;
+		}
+		return Math.max(rowsIn, rowsOut) * 1000.0 / wallTime;
+	}
+	
+	/**
+	 * Metrics of a single node execution. Times are in milliseconds, row counts are -1 
+	 * when the node has no data table ports and CPU time is -1 when it could not be measured.
+	 */
+	public static final class Execution {
+		private final String name;
+		private final NodeID id;
+		private final long wallTime;
+		private final long cpuTime;
+		private final long rowsIn;
+		private final long rowsOut;
+		private final long ioTiming;
+		
+		/**
+		 * Constructor.
+		 * @param name The node name
+		 * @param id The node id
+		 * @param wallTime The wall clock time
+		 * @param cpuTime The CPU time of the executing thread
+		 * @param rowsIn The total rows of the input tables
+		 * @param rowsOut The total rows of the output tables
+		 * @param ioTiming The I/O time reported by the node model
+		 */
+		public Execution(String name, NodeID id, long wallTime, long cpuTime, 
+				long rowsIn, long rowsOut, long ioTiming) {
+			this.name 		= name;
+			this.id 		= id;
+			this.wallTime 	= wallTime;
+			this.cpuTime 	= cpuTime;
+			this.rowsIn 	= rowsIn;
+			this.rowsOut 	= rowsOut;
+			this.ioTiming 	= ioTiming;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public NodeID getId() {
+			return id;
+		}
+
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		public long getRowsIn() {
+			return rowsIn;
+		}
+
+		public long getRowsOut() {
+			return rowsOut;
+		}
+
+		public long getIOTiming() {
+			return ioTiming;
+		}
+		
+		public double getRowsPerSecond() {
+			return rowsPerSecond(rowsIn, rowsOut, wallTime);
+		}
+	}
+	
+	/**
+	 * Running totals for all executions of a node. Each counter is updated atomically, 
+	 * though a reader may see an execution partly added.
+	 */
+	public static final class Totals {
+		private final String name;
+		private final LongAdder executions 	= new LongAdder();
+		private final LongAdder wallTime 	= new LongAdder();
+		private final LongAdder cpuTime 	= new LongAdder();
+		private final LongAdder rowsIn 		= new LongAdder();
+		private final LongAdder rowsOut 	= new LongAdder();
+		private final LongAdder ioTiming 	= new LongAdder();
+		
+		private Totals(String name) {
+			this.name = name;
+		}
+		
+		private void add(Execution e) {
+			wallTime.add(e.getWallTime());
+			cpuTime.add(Math.max(0, e.getCpuTime()));
+			rowsIn.add(Math.max(0, e.getRowsIn()));
+			rowsOut.add(Math.max(0, e.getRowsOut()));
+			ioTiming.add(e.getIOTiming());
+			executions.increment();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getExecutions() {
+			return executions.sum();
+		}
+
+		public long getWallTime() {
+			return wallTime.sum();
+		}
+
+		public long getCpuTime() {
+			return cpuTime.sum();
+		}
+
+		public long getRowsIn() {
+			return rowsIn.sum();
+		}
+
+		public long getRowsOut() {
+			return rowsOut.sum();
+		}
+
+		public long getIOTiming() {
+			return ioTiming.sum();
+		}
+		
+		public double getRowsPerSecond() {
+			return rowsPerSecond(getRowsIn(), getRowsOut(), getWallTime());
+		}
+	}
+}
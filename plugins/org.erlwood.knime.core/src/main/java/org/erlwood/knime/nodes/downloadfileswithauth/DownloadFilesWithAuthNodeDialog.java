@@ -36,6 +36,7 @@ import org.knime.core.node.defaultnodesettings.DialogComponent;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 
 /** Dialog for the Download Files with Authentication Node.
  * @author Tom Wilkin */
@@ -88,6 +89,36 @@ public class DownloadFilesWithAuthNodeDialog extends DefaultNodeSettingsPane {
 		addDialogComponent(outDirComponent);
 		closeCurrentGroup( );
 		
+		// transfer options
+		createNewGroup("Transfer:");
+		DialogComponent parallelComponent = new DialogComponentNumber(
+				nodeSettings.getParallelTransfersModel( ), 
+				"Parallel Transfers:", 
+				1
+		);
+		parallelComponent.setToolTipText("The maximum number of files to download at once.");
+		addDialogComponent(parallelComponent);
+		DialogComponent bufferComponent = new DialogComponentNumber(
+				nodeSettings.getBufferSizeModel( ), 
+				"Buffer Size (KB):", 
+				256
+		);
+		bufferComponent.setToolTipText("The size of the buffer used to copy each file.");
+		addDialogComponent(bufferComponent);
+		DialogComponent resumeComponent = new DialogComponentBoolean(
+				nodeSettings.getResumeModel( ), 
+				"Resume Partial Downloads"
+		);
+		resumeComponent.setToolTipText("Continue files left incomplete in the output directory by an earlier execution.");
+		addDialogComponent(resumeComponent);
+		DialogComponent verifyComponent = new DialogComponentBoolean(
+				nodeSettings.getVerifyModel( ), 
+				"Verify Before Resuming"
+		);
+		verifyComponent.setToolTipText("Compare a checksum of the end of each local file with the remote file before resuming it.");
+		addDialogComponent(verifyComponent);
+		closeCurrentGroup( );
+		
 		// add listeners to prevent invalid options
 		ChangeListener listener = new ChangeListener( ) {
 			@Override
@@ -97,6 +128,7 @@ public class DownloadFilesWithAuthNodeDialog extends DefaultNodeSettingsPane {
 		};
 		nodeSettings.getDeleteTempModel( ).addChangeListener(listener);
 		nodeSettings.getOutputDirectoryEnabledModel( ).addChangeListener(listener);
+		nodeSettings.getResumeModel( ).addChangeListener(listener);
 	}
 	
 	@Override
@@ -137,6 +169,7 @@ public class DownloadFilesWithAuthNodeDialog extends DefaultNodeSettingsPane {
 			nodeSettings.getDeleteTempModel( ).setEnabled(true);		
 			nodeSettings.getOutputDirectoryModel( ).setEnabled(false);
 		}
+		nodeSettings.getVerifyModel( ).setEnabled(nodeSettings.getResumeModel( ).getBooleanValue( ));
 	}
     
 };
@@ -20,18 +20,29 @@
 */
 package org.erlwood.knime.nodes.downloadfileswithauth;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
-import org.erlwood.knime.utils.FileTransferUpdateThread;
 import org.erlwood.knime.utils.auth.AuthenticationUtils;
 import org.erlwood.knime.utils.auth.SambaUtility;
 import org.knime.base.data.append.column.AppendedColumnRow;
@@ -79,6 +90,9 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 	/** The base name for the temporary directory. */
 	private static final String TEMP_DIR_BASENAME = "knime_download_files_with_auth_";
 	
+	/** The interval between progress updates and cancellation checks in milliseconds. */
+	private static final long PROGRESS_INTERVAL = 250;
+	
 	/** The settings for the node configuration. */
 	private DownloadFilesWithAuthSettings nodeSettings;
 
@@ -94,10 +108,6 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 	 */
 	private AuthenticationContext credentials;
 	
-	/** A thread used to update the progress and check for cancellation while the
-	 * download is underway. */
-	private FileTransferUpdateThread thread;
-	
 	DownloadFilesWithAuthNodeModel() {
 		super(1, 1);
 
@@ -138,50 +148,38 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 		DataTableSpec inputSpec = inData[0].getSpec();
 		int urlColIndex = inputSpec.findColumnIndex(nodeSettings.getUrlColumn());
 
-		// start the progress update thread
-		int rowCount = 1;
-		if (inData[0] != null) {
-			rowCount = inData[0].getRowCount();
-		}
-		double fraction = 1.0 / (double) rowCount;
-		thread = new FileTransferUpdateThread(exec, fraction);
-		thread.start();
-
-		// iterate through the input data
-		BufferedDataContainer container = exec.createDataContainer(createOutSpec(inputSpec));
-		for (DataRow row : inData[0]) {
-			// update the output
-			String path;
-			DataCell cell = row.getCell(urlColIndex);
-			if (cell.getType().isCompatible(StringValue.class)) {
-				path = ((StringValue) cell).getStringValue();
-			} else {
-				throw new InvalidSettingsException("Cannot convert path to string for row '" + row.getKey() + "'.");
+		// list every file to download in a single pass, reusing one connection per share
+		Map<String, File> rowOutputs = new HashMap<String, File>();
+		Map<String, DownloadTransfer> transfers = new LinkedHashMap<String, DownloadTransfer>();
+		Map<String, SharedConnection> connections = new HashMap<String, SharedConnection>();
+		try {
+			exec.setMessage("Listing files");
+			for (DataRow row : inData[0]) {
+				String path = getPath(row, urlColIndex);
+				exec.checkCanceled();
+				try {
+					rowOutputs.put(path, listFiles(path, connections, transfers));
+				} catch (Exception e) {
+					throw translateException(path, e);
+				}
 			}
-			exec.setProgress("Downloading file '" + path + "'.");
-			exec.checkCanceled();
-			thread.nextRow();
-
-			// download the file from samba
-			File out = null;
-			try {
-				out = download(path);
-			} catch (SmbAuthException e) {
-				if (credentials != null) {
-					throw new InvalidSettingsException(
-							"User '" + credentials.getUsername() + "' is not authorised to access file '" + path + "'.",
-							e);
+	
+			// download the files
+			downloadAll(new ArrayList<DownloadTransfer>(transfers.values()), exec);
+		} finally {
+			for (SharedConnection connection : connections.values()) {
+				try {
+					connection.close();
+				} catch (Exception e) {
+					LOGGER.debug("Could not close connection.", e);
 				}
-				throw new InvalidSettingsException("User is not authorised to access" + " file '" + path + "'.", e);
-			} catch (FileNotFoundException e) {
-				throw new Exception("Cannot find file '" + path + "'.", e);
-			} catch (MalformedURLException e) {
-				throw new Exception("Cannot create URL to file '" + path + "'", e);
-			} catch (IOException e) {
-				throw new Exception("Cannot download file '" + path + "', do you have access?", e);
 			}
+		}
 
-			// output the path
+		// output the paths
+		BufferedDataContainer container = exec.createDataContainer(createOutSpec(inputSpec));
+		for (DataRow row : inData[0]) {
+			File out = rowOutputs.get(getPath(row, urlColIndex));
 			DataCell[] cells = new DataCell[2];
 			cells[0] = new StringCell(out.getAbsolutePath());
 			cells[1] = new StringCell(out.toURI().toURL().toString());
@@ -194,6 +192,44 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 		BufferedDataTable output = container.getTable();
 		return new BufferedDataTable[] { output };
 	}
+	
+	/** Get the path to download from the URL column of a row.
+	 * @param row The input row.
+	 * @param urlColIndex The index of the URL column.
+	 * @return The path to download. */
+	private static String getPath(final DataRow row, final int urlColIndex) 
+			throws InvalidSettingsException
+	{
+		DataCell cell = row.getCell(urlColIndex);
+		if (cell.getType().isCompatible(StringValue.class)) {
+			return ((StringValue) cell).getStringValue();
+		}
+		throw new InvalidSettingsException("Cannot convert path to string for row '" + row.getKey() + "'.");
+	}
+	
+	/** Convert an exception raised while downloading a path into the message shown to the user.
+	 * @param path The path being downloaded.
+	 * @param e The exception raised.
+	 * @return The exception to throw. */
+	private Exception translateException(final String path, final Exception e) {
+		if (e instanceof InvalidSettingsException || e instanceof CanceledExecutionException) {
+			return e;
+		} else if (e instanceof SmbAuthException) {
+			if (credentials != null) {
+				return new InvalidSettingsException(
+						"User '" + credentials.getUsername() + "' is not authorised to access file '" + path + "'.",
+						e);
+			}
+			return new InvalidSettingsException("User is not authorised to access" + " file '" + path + "'.", e);
+		} else if (e instanceof FileNotFoundException) {
+			return new Exception("Cannot find file '" + path + "'.", e);
+		} else if (e instanceof MalformedURLException) {
+			return new Exception("Cannot create URL to file '" + path + "'", e);
+		} else if (e instanceof IOException) {
+			return new Exception("Cannot download file '" + path + "', do you have access?", e);
+		}
+		return e;
+	}
 
 	@Override
 	protected DataTableSpec[] configure(DataTableSpec[] inSpecs)
@@ -334,42 +370,41 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 				TEMP_DIR_BASENAME + id.toString());
 	}
 	
-	/** Download the file/directory at the specified path.
+	/** List the file/directory at the specified path and add the files to download 
+	 * to the manifest.
 	 * @param path The path to the file/directory to download.
+	 * @param connections The open connections by server and share.
+	 * @param transfers The manifest of files to download by local path.
 	 * @return The downloaded file/directory on the local file system. */
-	private File download(final String path) 
+	private File listFiles(final String path, final Map<String, SharedConnection> connections,
+			final Map<String, DownloadTransfer> transfers) 
 			throws Exception
 	{
-		SharedConnection sharedConnection = null;
 		String inPath = SambaUtility.makeURL(path, false);
 		if(SambaUtility.isSambaURL(inPath)) {
-			try {
-				SmbFile file = new SmbFile(inPath);
-				
+			SmbFile file = new SmbFile(inPath);
+			
+			String key = file.getServer() + "/" + file.getShare();
+			SharedConnection sharedConnection = connections.get(key);
+			if (sharedConnection == null) {
 				if (credentials != null) {
 					sharedConnection = new SharedConnection(file.getServer(), file.getShare(), credentials);
 				} else {
 					AuthenticationContext authenticationContext = AuthenticationContext.anonymous();
 					sharedConnection = new SharedConnection(file.getServer(), file.getShare(), authenticationContext);
 				}
-				
-				String parentFolder = SambaUtility.fixSambaPath(StringUtils.substringAfter(file.getPath(), file.getShare()));
-				SharedDirectory sharedDirectory = new SharedDirectory(sharedConnection, parentFolder);
-	
-				// calculate the total file size
-				thread.newFile(calculateSize(sharedDirectory, parentFolder,sharedConnection));
-				
-				if(sharedDirectory.isDirectory( )) {
-					return downloadDirectory(sharedDirectory, outDir);
-				} else {
-					SharedFile sharedFile = new SharedFile(sharedConnection, parentFolder);
-					return downloadFile(sharedFile, outDir);
-				}
-				
-			} finally {
-				if(sharedConnection != null) {
-					sharedConnection.close();
-				}
+				connections.put(key, sharedConnection);
+			}
+			
+			String parentFolder = SambaUtility.fixSambaPath(StringUtils.substringAfter(file.getPath(), file.getShare()));
+			SharedDirectory sharedDirectory = new SharedDirectory(sharedConnection, parentFolder);
+
+			if(sharedDirectory.isDirectory( )) {
+				listDirectory(path, sharedDirectory, transfers);
+				return outDir;
+			} else {
+				SharedFile sharedFile = new SharedFile(sharedConnection, parentFolder);
+				return addTransfer(path, sharedFile, transfers);
 			}
 		} else {
 			throw new InvalidSettingsException("Download of local file '"
@@ -377,36 +412,31 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 		}
 	}
 	
-	/** Download the specified directory and content into the given out
-	 * directory.
-	 * @param path The path to the directory to download.
-	 * @param outDir The out directory to download to.
-	 * @return The directory downloaded on the local file system. */
-	private File downloadDirectory(final SharedDirectory sharedDirectory, final File outDir) 
+	/** Add the content of the specified directory to the manifest, creating empty
+	 * directories in the out directory.
+	 * @param path The path from the input table.
+	 * @param sharedDirectory The directory to download.
+	 * @param transfers The manifest of files to download by local path. */
+	private void listDirectory(final String path, final SharedDirectory sharedDirectory, 
+			final Map<String, DownloadTransfer> transfers) 
 			throws InvalidSettingsException, IOException
 	{
-		// ensure the output directory exists
-		if(!outDir.exists( )) {
-			outDir.mkdirs( );
-		}
-		
 		try {
 			// create an empty directory if necessary
-			if(sharedDirectory.getFiles().isEmpty()) {
+			List<SharedFile> files = sharedDirectory.getFiles();
+			if(files.isEmpty()) {
 				File outFile = new File(outDir.getAbsolutePath() 
 						+ File.separator + sharedDirectory.getPath());
 				outFile.mkdirs( );
 			}
 	        
 			for (SharedDirectory dir : sharedDirectory.getDirectories()) {
-				downloadDirectory(dir, outDir);
+				listDirectory(path, dir, transfers);
     		}
 			
-		    for (SharedFile sharedFile : sharedDirectory.getFiles()) {
-		    	downloadFile(sharedFile, outDir);
+		    for (SharedFile sharedFile : files) {
+		    	addTransfer(path, sharedFile, transfers);
 		    }
-			 
-			return outDir;
 		} catch (SmbAuthException e) {
 			if(credentials != null) {
         		throw new InvalidSettingsException(
@@ -424,95 +454,88 @@ public class DownloadFilesWithAuthNodeModel extends NodeModel {
 		}
 	}
 	
-	/** Download the specified file and copy it to the specified out directory.
-	 * @param path The path to the file to download
-	 * @param outDir The directory to download the file to.
-	 * @return The output file that was downloaded. */
-	private File downloadFile(final SharedFile sharedFile, final File outDir) 
-			throws InvalidSettingsException, IOException
+	/** Add a file to the manifest unless another row already downloads it.
+	 * @param path The path from the input table.
+	 * @param sharedFile The file to download.
+	 * @param transfers The manifest of files to download by local path.
+	 * @return The local file the file is downloaded to. */
+	private File addTransfer(final String path, final SharedFile sharedFile, 
+			final Map<String, DownloadTransfer> transfers) throws IOException
 	{
-		InputStream in = null;
-		OutputStream out = null;
-		
-		try {
-			in = sharedFile.getInputStream();
-			
-			// open the output file and copy the file to it
-			File outFile = new File(outDir.getAbsolutePath() + File.separator
-					+ sharedFile.getPath());
-			outFile.getParentFile().mkdirs();
-			out = new BufferedOutputStream(new FileOutputStream(outFile));
-			byte[] buffer = new byte[4096];
-			int n;
-			while ((n = in.read(buffer)) > 0) {
-				thread.increment(n);
-				out.write(buffer, 0, n);
-			}
-
-			return outFile;
-		} catch (MalformedURLException e) {
-			throw new InvalidSettingsException("Network share path '" + sharedFile.getPath()
-					+ "' is not a valid location.", e);
-		} catch (SmbAuthException e) {
-			if(credentials != null) {
-        		throw new InvalidSettingsException(
-        				"User '" + credentials.getUsername() 
-        				+ "' is not authorised to access share location '" + sharedFile.getPath() + "'.", 
-        				e
-        		);
-        	}
-			throw new InvalidSettingsException(
-					"User is not authorised to access share location '" + sharedFile.getPath()
-							+ "'.", e);
-		} catch (SmbException e) {
-			throw new InvalidSettingsException("Could not access share path '"
-					+ sharedFile.getPath() + "'.", e);
-		} finally {
-			// close the streams
-			try {
-				if (in != null) {
-					in.close();
-				}
-			} catch (IOException e) {
-				LOGGER.error(e);
-			}
-
-			try {
-				if (out != null) {
-					out.close();
-				}
-			} catch (IOException e) {
-				LOGGER.error(e);
-			}
+		File outFile = new File(outDir.getAbsolutePath() + File.separator
+				+ sharedFile.getPath());
+		if (!transfers.containsKey(outFile.getAbsolutePath())) {
+			transfers.put(outFile.getAbsolutePath(), new DownloadTransfer(path, sharedFile, outFile));
 		}
+		return outFile;
 	}
 	
-	/**
-	 * Calculate the size of the given remote file (or recursively for a 
-	 * directory).
-	 * 
-	 * @param file
-	 *            The file/directory to get the size of.
-	 * @return The size of the file/directory.
-	 * @throws SmbException 
-	 */
-	private long calculateSize(final SharedDirectory sharedDirectory, String parentFolder,
-			SharedConnection sharedConnection) throws Exception {
-		long size = 0;
-
-		if (sharedDirectory.isFile()) {
-			SharedFile sharedFile = new SharedFile(sharedConnection, parentFolder);
-			return sharedFile.getFileSize();
-		} else {
-			for (SharedFile file : sharedDirectory.getFiles()) {
-				size += file.getFileSize();
+	/** Download all files in the manifest, running up to the configured number of 
+	 * transfers at once.
+	 * @param transfers The files to download.
+	 * @param exec The execution context to report progress to. */
+	private void downloadAll(final List<DownloadTransfer> transfers, final ExecutionContext exec)
+			throws Exception
+	{
+		if (transfers.isEmpty()) {
+			return;
+		}
+		
+		// start the largest files first so one big file does not finish on its own at the end
+		Collections.sort(transfers, new Comparator<DownloadTransfer>() {
+			@Override
+			public int compare(final DownloadTransfer o1, final DownloadTransfer o2) {
+				return Long.compare(o2.getSize(), o1.getSize());
 			}
-			for (SharedDirectory dir : sharedDirectory.getDirectories()) {
-				size += calculateSize(dir, "", sharedConnection);
+		});
+		
+		long totalSize = 0;
+		AtomicLong transferred = new AtomicLong();
+		for (DownloadTransfer transfer : transfers) {
+			transfer.setOptions(nodeSettings.getBufferSize(), nodeSettings.isResume(), 
+					nodeSettings.isVerify(), transferred);
+			totalSize += transfer.getSize();
+		}
+		
+		int threads = Math.min(nodeSettings.getParallelTransfers(), transfers.size());
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory( ) {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("DownloadFilesWithAuth_" + thread.getId( ));
+				thread.setDaemon(true);
+				return thread;
 			}
+		});
+		try {
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(pool);
+			Map<Future<Void>, DownloadTransfer> futures = new HashMap<Future<Void>, DownloadTransfer>();
+			for (DownloadTransfer transfer : transfers) {
+				futures.put(completion.submit(transfer), transfer);
+			}
+			
+			int done = 0;
+			while (done < transfers.size()) {
+				Future<Void> future = completion.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+				exec.checkCanceled();
+				if (future != null) {
+					done++;
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause() != null ? e.getCause() : e;
+						Exception ex = cause instanceof Exception ? (Exception) cause : e;
+						throw translateException(futures.get(future).getRowPath(), ex);
+					}
+				}
+				double progress = totalSize > 0 ? (double) transferred.get() / (double) totalSize 
+						: (double) done / (double) transfers.size();
+				exec.setProgress(Math.min(1.0, progress), 
+						"Downloaded " + done + " of " + transfers.size() + " files.");
+			}
+		} finally {
+			pool.shutdownNow();
 		}
-
-		return size;
 	}
 
 };
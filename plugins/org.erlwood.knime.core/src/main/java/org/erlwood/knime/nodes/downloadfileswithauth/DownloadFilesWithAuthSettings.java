@@ -25,6 +25,7 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 /** Settings store for the Download Files with Authentication node.
@@ -43,6 +44,18 @@ class DownloadFilesWithAuthSettings extends AuthenticationSettings {
 	/** Storage name for the output directory option. */
 	private final String OUTPUT_DIRECTORY_SETTING = "outputDirectory";
 	
+	/** Storage name for the number of parallel transfers option. */
+	private final String PARALLEL_TRANSFERS_SETTING = "parallelTransfers";
+	
+	/** Storage name for the buffer size option. */
+	private final String BUFFER_SIZE_SETTING = "bufferSizeKB";
+	
+	/** Storage name for the resume partial downloads option. */
+	private final String RESUME_SETTING = "resume";
+	
+	/** Storage name for the verify partial downloads option. */
+	private final String VERIFY_SETTING = "verifyResume";
+	
 	/** The column containing the URLs of the files to download. */
 	private SettingsModelString urlCol;
 	
@@ -55,11 +68,27 @@ class DownloadFilesWithAuthSettings extends AuthenticationSettings {
 	/** The custom output directory to download the files to. */
 	private SettingsModelString outputDirectory;
 	
+	/** The maximum number of files to download at once. */
+	private SettingsModelIntegerBounded parallelTransfers;
+	
+	/** The size of the copy buffer in KB. */
+	private SettingsModelIntegerBounded bufferSize;
+	
+	/** Whether partially downloaded files are resumed. */
+	private SettingsModelBoolean resume;
+	
+	/** Whether partially downloaded files are checked against the remote file before resuming. */
+	private SettingsModelBoolean verify;
+	
 	DownloadFilesWithAuthSettings( ) {
 		urlCol = new SettingsModelString(URL_COLUMN_SETTING, "");
 		deleteTemp = new SettingsModelBoolean(DELETE_TEMP_SETTING, true);
 		outputDirectoryEnabled = new SettingsModelBoolean(OUTPUT_DIRECTORY_ENABLED_SETTING, false);
 		outputDirectory = new SettingsModelString(OUTPUT_DIRECTORY_SETTING, "");
+		parallelTransfers = new SettingsModelIntegerBounded(PARALLEL_TRANSFERS_SETTING, 4, 1, 32);
+		bufferSize = new SettingsModelIntegerBounded(BUFFER_SIZE_SETTING, 1024, 4, 65536);
+		resume = new SettingsModelBoolean(RESUME_SETTING, false);
+		verify = new SettingsModelBoolean(VERIFY_SETTING, false);
 	}
 	
 	/** @return The Settings Model for the URL column. */
@@ -102,12 +131,56 @@ class DownloadFilesWithAuthSettings extends AuthenticationSettings {
 		return outputDirectory.getStringValue( );
 	}
 	
+	/** @return The Settings Model for the number of parallel transfers. */
+	SettingsModelIntegerBounded getParallelTransfersModel( ) {
+		return parallelTransfers;
+	}
+	
+	/** @return The maximum number of files to download at once. */
+	int getParallelTransfers( ) {
+		return parallelTransfers.getIntValue( );
+	}
+	
+	/** @return The Settings Model for the buffer size in KB. */
+	SettingsModelIntegerBounded getBufferSizeModel( ) {
+		return bufferSize;
+	}
+	
+	/** @return The size of the copy buffer in bytes. */
+	int getBufferSize( ) {
+		return bufferSize.getIntValue( ) * 1024;
+	}
+	
+	/** @return The Settings Model for the resume option. */
+	SettingsModelBoolean getResumeModel( ) {
+		return resume;
+	}
+	
+	/** @return Whether partially downloaded files are resumed. */
+	boolean isResume( ) {
+		return resume.getBooleanValue( );
+	}
+	
+	/** @return The Settings Model for the verify option. */
+	SettingsModelBoolean getVerifyModel( ) {
+		return verify;
+	}
+	
+	/** @return Whether partially downloaded files are checked before being resumed. */
+	boolean isVerify( ) {
+		return verify.getBooleanValue( );
+	}
+	
 	@Override
 	public void saveSettingsTo(final NodeSettingsWO settings) {
 		urlCol.saveSettingsTo(settings);
 		deleteTemp.saveSettingsTo(settings);
 		outputDirectoryEnabled.saveSettingsTo(settings);
 		outputDirectory.saveSettingsTo(settings);
+		parallelTransfers.saveSettingsTo(settings);
+		bufferSize.saveSettingsTo(settings);
+		resume.saveSettingsTo(settings);
+		verify.saveSettingsTo(settings);
 		
 		super.saveSettingsTo(settings);
 	}
@@ -126,6 +199,19 @@ class DownloadFilesWithAuthSettings extends AuthenticationSettings {
 			outputDirectory.setStringValue("");
 		}
 		
+		try {
+			parallelTransfers.loadSettingsFrom(settings);
+			bufferSize.loadSettingsFrom(settings);
+			resume.loadSettingsFrom(settings);
+			verify.loadSettingsFrom(settings);
+		} catch(InvalidSettingsException e) {
+			// this must be an old workflow without the transfer settings, so use defaults
+			parallelTransfers.setIntValue(4);
+			bufferSize.setIntValue(1024);
+			resume.setBooleanValue(false);
+			verify.setBooleanValue(false);
+		}
+		
 		super.loadSettingsFrom(settings);
 	}
 	
@@ -142,6 +228,13 @@ class DownloadFilesWithAuthSettings extends AuthenticationSettings {
 		} catch(InvalidSettingsException e) {
 			// ignore as this is an old workflow without this settings
 		}
+		
+		if (settings.containsKey(PARALLEL_TRANSFERS_SETTING)) {
+			parallelTransfers.validateSettings(settings);
+			bufferSize.validateSettings(settings);
+			resume.validateSettings(settings);
+			verify.validateSettings(settings);
+		}
 	}
 
 }
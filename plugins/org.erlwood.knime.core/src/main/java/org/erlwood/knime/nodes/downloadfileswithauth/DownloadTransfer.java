@@ -0,0 +1,243 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.downloadfileswithauth;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import ch.swaechter.smbjwrapper.SharedFile;
+
+/**
+ * Transfer of a single remote file to the local file system. A local file left by
+ * an earlier, interrupted transfer is resumed from its current size, optionally
+ * after checking that its last block matches the remote file. Local files that are
+ * older than the last change to the remote file are always downloaded again.
+ */
+final class DownloadTransfer implements Callable<Void> {
+	
+	/** The number of bytes compared when verifying a partial download. */
+	static final int VERIFY_WINDOW = 64 * 1024;
+	
+	/** The remote side of a transfer. */
+	interface RemoteFile {
+		/** @return The path of the file on the share. */
+		String getPath( );
+		
+		/** @return The size of the file in bytes. */
+		long getSize( ) throws IOException;
+		
+		/** @return The last write time of the file in milliseconds since the epoch. */
+		long getLastModified( ) throws IOException;
+		
+		/** @return A new stream over the contents of the file. */
+		InputStream getInputStream( ) throws IOException;
+	}
+	
+	/** The path from the input table that this file was found from. */
+	private final String rowPath;
+	
+	/** The remote file. */
+	private final RemoteFile remoteFile;
+	
+	/** The size of the remote file, read once when the manifest was built. */
+	private final long size;
+	
+	/** The local file to download to. */
+	private final File outFile;
+	
+	private int bufferSize = 1024 * 1024;
+	private boolean resume = false;
+	private boolean verify = false;
+	private AtomicLong transferred = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * @param rowPath The path from the input table
+	 * @param sharedFile The remote file
+	 * @param outFile The local file to download to
+	 * @throws IOException If the size of the remote file cannot be read
+	 */
+	DownloadTransfer(final String rowPath, final SharedFile sharedFile, final File outFile) 
+			throws IOException {
+		this(rowPath, new RemoteFile( ) {
+			
+			@Override
+			public String getPath( ) {
+				return sharedFile.getPath( );
+			}
+			
+			@Override
+			public long getSize( ) {
+				return sharedFile.getFileSize( );
+			}
+			
+			@Override
+			public long getLastModified( ) {
+				return sharedFile.getLastWriteTime( ).toEpochMillis( );
+			}
+			
+			@Override
+			public InputStream getInputStream( ) {
+				return sharedFile.getInputStream( );
+			}
+			
+		}, outFile);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param rowPath The path from the input table
+	 * @param remoteFile The remote file
+	 * @param outFile The local file to download to
+	 * @throws IOException If the size of the remote file cannot be read
+	 */
+	DownloadTransfer(final String rowPath, final RemoteFile remoteFile, final File outFile) 
+			throws IOException {
+		this.rowPath = rowPath;
+		this.remoteFile = remoteFile;
+		this.size = remoteFile.getSize( );
+		this.outFile = outFile;
+	}
+	
+	/**
+	 * Sets the transfer options.
+	 * @param bufferSize The copy buffer size in bytes
+	 * @param resume Whether partial local files are resumed
+	 * @param verify Whether partial local files are checked before being resumed
+	 * @param transferred Counter of transferred bytes, shared by all transfers
+	 */
+	void setOptions(final int bufferSize, final boolean resume, final boolean verify, 
+			final AtomicLong transferred) {
+		this.bufferSize = bufferSize;
+		this.resume = resume;
+		this.verify = verify;
+		this.transferred = transferred;
+	}
+	
+	/** @return The path from the input table. */
+	String getRowPath( ) {
+		return rowPath;
+	}
+	
+	/** @return The size of the remote file. */
+	long getSize( ) {
+		return size;
+	}
+
+	@Override
+	public Void call( ) throws IOException {
+		long offset = 0;
+		if (resume && outFile.isFile( )) {
+			long local = outFile.length( );
+			// a local file written before the remote file last changed is stale
+			if (local <= size && outFile.lastModified( ) >= remoteFile.getLastModified( )
+					&& (!verify || local == 0 || tailMatches(local))) {
+				if (local == size) {
+					// already complete
+					transferred.addAndGet(size);
+					return null;
+				}
+				offset = local;
+			}
+		}
+		
+		outFile.getParentFile( ).mkdirs( );
+		try (InputStream in = remoteFile.getInputStream( );
+				OutputStream out = new FileOutputStream(outFile, offset > 0)) {
+			skipFully(in, offset);
+			transferred.addAndGet(offset);
+			
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				if (Thread.interrupted( )) {
+					throw new InterruptedIOException("Download of '" + remoteFile.getPath( ) + "' was interrupted.");
+				}
+				out.write(buffer, 0, n);
+				transferred.addAndGet(n);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Compares the checksum of the block before the given offset in the local and remote files.
+	 * @param offset The offset the transfer would resume from
+	 * @return Whether the local file can be resumed
+	 */
+	private boolean tailMatches(final long offset) throws IOException {
+		long length = Math.min(VERIFY_WINDOW, offset);
+		long start = offset - length;
+		
+		long local;
+		try (InputStream in = new FileInputStream(outFile)) {
+			skipFully(in, start);
+			local = checksum(in, length);
+		}
+		long remote;
+		try (InputStream in = remoteFile.getInputStream( )) {
+			skipFully(in, start);
+			remote = checksum(in, length);
+		}
+		return local == remote;
+	}
+	
+	/** @return The CRC32 checksum of the next length bytes of the stream. */
+	private static long checksum(final InputStream in, final long length) throws IOException {
+		CRC32 crc = new CRC32( );
+		byte[] buffer = new byte[(int) Math.min(length, 8192)];
+		long remaining = length;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new EOFException( );
+			}
+			crc.update(buffer, 0, n);
+			remaining -= n;
+		}
+		return crc.getValue( );
+	}
+	
+	/** Skips exactly n bytes of the stream. */
+	private static void skipFully(final InputStream in, final long n) throws IOException {
+		long remaining = n;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				// skip may give up early, so fall back to reading a byte
+				if (in.read( ) < 0) {
+					throw new EOFException( );
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -21,12 +21,17 @@
 package org.erlwood.knime.nodes.graph;
 
 import java.awt.Color;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.knime.core.node.NodeLogger;
 
 
 public final class DataPoint {
 	private static final NodeLogger LOG = NodeLogger.getLogger(DataPoint.class);
+	/** Incremented whenever a point changes in a way that affects how it is drawn. */
+	private static final AtomicLong STATE_VERSION = new AtomicLong();
+	/** Incremented whenever the position or size of a point changes. */
+	private static final AtomicLong GEOMETRY_VERSION = new AtomicLong();
 	private TransformMatrix dPoint, trDPoint;
 	private float screenX, screenY;
 	private Color color, selColor;
@@ -91,8 +96,25 @@ public final class DataPoint {
 		}
 	}
 
+	/**
+	 * @return A counter that changes whenever the position, colour, size, visibility,
+	 * selection or hilite of any point changes. Used to invalidate cached plot images.
+	 */
+	public static long getStateVersion() {
+		return STATE_VERSION.get();
+	}
+
+	/**
+	 * @return A counter that changes whenever the position or size of any point
+	 * changes. Used to invalidate indexes over the point positions.
+	 */
+	public static long getGeometryVersion() {
+		return GEOMETRY_VERSION.get();
+	}
+
 	public void setColor(Color c) {
 		color = c;
+		STATE_VERSION.incrementAndGet();
 		
 		int r = c.getRed() / 2;
 		int g = c.getGreen() / 2;
@@ -114,14 +136,20 @@ public final class DataPoint {
 
 	public void setRawX(double d) {
 		dPoint.getData()[0][0] = d;
+		STATE_VERSION.incrementAndGet();
+		GEOMETRY_VERSION.incrementAndGet();
 	}
 
 	public void setRawY(double d) {
 		dPoint.getData()[1][0] = d;
+		STATE_VERSION.incrementAndGet();
+		GEOMETRY_VERSION.incrementAndGet();
 	}
 
 	public void setRawZ(double d) {
 		dPoint.getData()[2][0] = d;
+		STATE_VERSION.incrementAndGet();
+		GEOMETRY_VERSION.incrementAndGet();
 	}
 
 	public double getTrX() {
@@ -184,6 +212,8 @@ public final class DataPoint {
 
 	public void setSize(int size) {
 		this.size = size;
+		STATE_VERSION.incrementAndGet();
+		GEOMETRY_VERSION.incrementAndGet();
 	}
 
 	public String getSizeLabel() {
@@ -200,6 +230,7 @@ public final class DataPoint {
 
 	public void setVisible(boolean visible) {
 		this.visible = visible;
+		STATE_VERSION.incrementAndGet();
 	}
 
 	public static int getDefsize() {
@@ -228,6 +259,7 @@ public final class DataPoint {
 
 	public void setSelected(boolean selected) {
 		this.selected = selected;
+		STATE_VERSION.incrementAndGet();
 	}
 
 	public boolean isInZoomRegion() {
@@ -236,6 +268,7 @@ public final class DataPoint {
 
 	public void setInZoomRegion(boolean inZoomRegion) {
 		this.inZoomRegion = inZoomRegion;
+		STATE_VERSION.incrementAndGet();
 	}
 
 	public String getID() {
@@ -252,6 +285,7 @@ public final class DataPoint {
 
 	public void setSelColor(Color selColor) {
 		this.selColor = selColor;
+		STATE_VERSION.incrementAndGet();
 	}
 
 	public boolean isHilited() {
@@ -260,6 +294,7 @@ public final class DataPoint {
 
 	public void setHilited(boolean hilited) {
 		this.hilited = hilited;
+		STATE_VERSION.incrementAndGet();
 	}
 
 }
@@ -0,0 +1,338 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.graph;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+/**
+ * Renders the points of a scatter plot into a cached image. Large plots are rendered 
+ * on a background thread, and the image is reused until the points, the scale or the
+ * plot size change.
+ * <p>
+ * When there are more points to draw than pixels in the plot, the points are binned
+ * by screen pixel and only the last point drawn in each pixel is kept. This bounds the
+ * drawing to one point per pixel, and gives the same picture as drawing every point 
+ * up to sub-pixel differences. Once the zoom region holds fewer points than pixels,
+ * every point is drawn again.
+ */
+final class ScatterRenderer {
+	
+	/** Plots with up to this many points are rendered directly on the EDT. */
+	static final int SYNC_LIMIT = 20000;
+	
+	/** Margin around the plot area so points on the edge are not cut off. */
+	static final int PAD = 8;
+	
+	/** How often a background render checks whether it is still needed. */
+	private static final int CHECK_INTERVAL = 8192;
+	
+	/** Thread shared by all plots for background renders. */
+	private static final ExecutorService RENDER_THREAD = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					Thread thread = new Thread(runnable, "ScatterRenderer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	/** The component to repaint when a background render completes. */
+	private final JComponent owner;
+	
+	/** The key of the latest render request. */
+	private volatile Key requested;
+	
+	/** The latest completed render, only accessed on the EDT. */
+	private Frame frame;
+	
+	ScatterRenderer(JComponent owner) {
+		this.owner = owner;
+	}
+	
+	/**
+	 * Gets the rendered points for the given view. If the view has changed, a new render
+	 * is started and the previous frame is returned until it completes.
+	 * @param points The points to plot
+	 * @param tr The data to view transform
+	 * @param width The width of the plot area
+	 * @param height The height of the plot area
+	 * @param hiliteColor The colour of the hilite ring
+	 * @param dataVersion The version of the point list
+	 * @return The latest frame, or null if nothing has been rendered yet
+	 */
+	Frame getFrame(List<DataPoint> points, TransformMatrix tr, int width, int height, 
+			Color hiliteColor, long dataVersion) {
+		if (tr == null || width <= 0 || height <= 0) {
+			return null;
+		}
+		final Key key = new Key(tr, width, height, hiliteColor, dataVersion, DataPoint.getStateVersion());
+		if (frame != null && key.equals(frame.key)) {
+			return frame;
+		}
+		if (key.equals(requested)) {
+			// still rendering
+			return frame;
+		}
+		requested = key;
+		
+		final DataPoint[] snapshot = points.toArray(new DataPoint[points.size()]);
+		if (snapshot.length <= SYNC_LIMIT) {
+			frame = render(key, snapshot);
+			return frame;
+		}
+		RENDER_THREAD.submit(new Runnable() {
+			@Override
+			public void run() {
+				final Frame f = render(key, snapshot);
+				if (f == null) {
+					return;
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (key.equals(requested)) {
+							frame = f;
+							owner.repaint();
+						}
+					}
+				});
+			}
+		});
+		return frame;
+	}
+	
+	/**
+	 * @return The latest completed frame, for picking points on screen.
+	 */
+	Frame getCurrentFrame() {
+		return frame;
+	}
+	
+	/**
+	 * Projects a data point to the plot area, as {@link DataPoint#projectPoint} does, 
+	 * without modifying any point.
+	 * @return The screen x and y
+	 */
+	static float[] project(TransformMatrix tr, double x, double y, double z, int width, int height) {
+		float[] xy = new float[2];
+		project(tr.getData(), x, y, z, width, height, xy);
+		return xy;
+	}
+	
+	private static void project(double[][] m, double x, double y, double z, int width, int height, 
+			float[] xy) {
+		double tx = m[0][0] * x + m[0][1] * y + m[0][2] * z + m[0][3];
+		double ty = m[1][0] * x + m[1][1] * y + m[1][2] * z + m[1][3];
+		double tw = m[3][0] * x + m[3][1] * y + m[3][2] * z + m[3][3];
+		xy[0] = (float) ((tx / tw + 1.0) * width / 2);
+		xy[1] = (float) ((1.0 - ty / tw) * height / 2);
+	}
+	
+	/**
+	 * Projects the points and draws them into a new image.
+	 * @return The frame, or null if a newer render was requested first
+	 */
+	private Frame render(Key key, DataPoint[] points) {
+		int n = points.length;
+		float[] xs = new float[n];
+		float[] ys = new float[n];
+		float[] xy = new float[2];
+		double[][] m = key.tr.getData();
+		int drawable = 0;
+		for (int i = 0; i < n; i++) {
+			if (i % CHECK_INTERVAL == 0 && key != requested) {
+				return null;
+			}
+			DataPoint p = points[i];
+			project(m, p.getRawX(), p.getRawY(), p.getRawZ(), key.width, key.height, xy);
+			xs[i] = xy[0];
+			ys[i] = xy[1];
+			if (p.isVisible() && p.isInZoomRegion()) {
+				drawable++;
+			}
+		}
+		
+		// keep only the top point, and the top hilite ring, in each pixel
+		boolean[] drawPoint = null;
+		boolean[] drawRing = null;
+		boolean lod = drawable > (long) key.width * key.height;
+		if (lod) {
+			int[] topPoint = new int[key.width * key.height];
+			int[] topRing = new int[key.width * key.height];
+			Arrays.fill(topPoint, -1);
+			Arrays.fill(topRing, -1);
+			for (int i = 0; i < n; i++) {
+				DataPoint p = points[i];
+				int px = (int) xs[i];
+				int py = (int) ys[i];
+				if (p.isVisible() && p.isInZoomRegion() && px >= 0 && px < key.width 
+						&& py >= 0 && py < key.height) {
+					topPoint[py * key.width + px] = i;
+					if (p.isHilited()) {
+						topRing[py * key.width + px] = i;
+					}
+				}
+			}
+			drawPoint = new boolean[n];
+			drawRing = new boolean[n];
+			for (int j = 0; j < topPoint.length; j++) {
+				if (topPoint[j] >= 0) {
+					drawPoint[topPoint[j]] = true;
+				}
+				if (topRing[j] >= 0) {
+					drawRing[topRing[j]] = true;
+				}
+			}
+		}
+		
+		BufferedImage image = new BufferedImage(key.width + 2 * PAD, key.height + 2 * PAD, 
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			if (!lod) {
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			}
+			g.translate(PAD, PAD);
+			for (int i = 0; i < n; i++) {
+				if (i % CHECK_INTERVAL == 0 && key != requested) {
+					return null;
+				}
+				DataPoint pp = points[i];
+				if (!pp.isVisible() || !pp.isInZoomRegion()) {
+					continue;
+				}
+				if (pp.isHilited() && (drawRing == null || drawRing[i])) {
+					g.setColor(key.hiliteColor);
+					g.fillOval((int) (xs[i] - (pp.getSize() + 4) / 2),
+							(int) (ys[i] - (pp.getSize() + 4) / 2), pp.getSize() + 4,
+							pp.getSize() + 4);
+				}
+				if (drawPoint == null || drawPoint[i]) {
+					g.setColor(pp.isSelected() ? pp.getSelColor() : pp.getColor());
+					g.fillOval((int) (xs[i] - pp.getSize() / 2),
+							(int) (ys[i] - pp.getSize() / 2), pp.getSize(), pp.getSize());
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+		return new Frame(key, image, points, xs, ys, new ScreenIndex(points, xs, ys));
+	}
+	
+	/**
+	 * A rendered image together with the screen positions it was drawn from.
+	 */
+	static final class Frame {
+		private final Key key;
+		private final BufferedImage image;
+		private final DataPoint[] points;
+		private final float[] xs;
+		private final float[] ys;
+		private final ScreenIndex index;
+		
+		private Frame(Key key, BufferedImage image, DataPoint[] points, float[] xs, float[] ys,
+				ScreenIndex index) {
+			this.key = key;
+			this.image = image;
+			this.points = points;
+			this.xs = xs;
+			this.ys = ys;
+			this.index = index;
+		}
+		
+		/** @return The image, offset by {@link ScatterRenderer#PAD} from the plot origin. */
+		BufferedImage getImage() {
+			return image;
+		}
+		
+		int size() {
+			return points.length;
+		}
+		
+		DataPoint getPoint(int i) {
+			return points[i];
+		}
+		
+		float getScreenX(int i) {
+			return xs[i];
+		}
+		
+		float getScreenY(int i) {
+			return ys[i];
+		}
+		
+		/** @return The index over the screen positions, for picking */
+		ScreenIndex getIndex() {
+			return index;
+		}
+	}
+	
+	/**
+	 * Everything a rendered image depends on. The transform is compared by identity, as 
+	 * the plot creates a new one whenever the scale changes.
+	 */
+	private static final class Key {
+		private final TransformMatrix tr;
+		private final int width;
+		private final int height;
+		private final Color hiliteColor;
+		private final long dataVersion;
+		private final long stateVersion;
+		
+		private Key(TransformMatrix tr, int width, int height, Color hiliteColor, 
+				long dataVersion, long stateVersion) {
+			this.tr = tr;
+			this.width = width;
+			this.height = height;
+			this.hiliteColor = hiliteColor;
+			this.dataVersion = dataVersion;
+			this.stateVersion = stateVersion;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return tr == k.tr && width == k.width && height == k.height 
+					&& dataVersion == k.dataVersion && stateVersion == k.stateVersion
+					&& (hiliteColor == null ? k.hiliteColor == null : hiliteColor.equals(k.hiliteColor));
+		}
+		
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(tr) * 31 + (int) (stateVersion ^ dataVersion);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.graph;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A uniform grid over the screen positions of plotted points, used to find the point
+ * under the mouse and the points in a selection box without scanning every point.
+ * <p>
+ * The index is a snapshot of one projection, so the plots rebuild it when the transform,
+ * the plot size or the points change. Building it is linear in the number of points.
+ */
+final class ScreenIndex {
+	
+	/** The average number of points per grid cell to aim for. */
+	private static final int POINTS_PER_CELL = 4;
+	
+	/** The largest grid, in cells along each side. */
+	private static final int MAX_CELLS = 2048;
+	
+	private final DataPoint[] points;
+	private final float[] xs;
+	private final float[] ys;
+	
+	private final float minX;
+	private final float minY;
+	private final float cellWidth;
+	private final float cellHeight;
+	private final int cols;
+	private final int rows;
+	
+	/** The points in cell c are cellItems[cellStart[c]] to cellItems[cellStart[c + 1] - 1]. */
+	private final int[] cellStart;
+	private final int[] cellItems;
+	
+	/** Half the size of the largest point, so box queries include points overlapping the box. */
+	private final int maxHalfSize;
+	
+	/**
+	 * Indexes the points at the given screen positions. Points with no finite position
+	 * are left out.
+	 * @param points The points
+	 * @param xs The screen x coordinate of each point
+	 * @param ys The screen y coordinate of each point
+	 */
+	ScreenIndex(DataPoint[] points, float[] xs, float[] ys) {
+		this.points = points;
+		this.xs = xs;
+		this.ys = ys;
+		
+		int n = points.length;
+		float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY;
+		float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY;
+		int count = 0;
+		int maxSize = 0;
+		for (int i = 0; i < n; i++) {
+			if (!isFinite(i)) {
+				continue;
+			}
+			count++;
+			x0 = Math.min(x0, xs[i]);
+			x1 = Math.max(x1, xs[i]);
+			y0 = Math.min(y0, ys[i]);
+			y1 = Math.max(y1, ys[i]);
+			maxSize = Math.max(maxSize, points[i].getSize());
+		}
+		maxHalfSize = maxSize / 2 + 1;
+		if (count == 0) {
+			x0 = y0 = 0;
+			x1 = y1 = 1;
+		}
+		
+		// Aim for square cells holding a few points each
+		float spanX = Math.max(x1 - x0, 1f);
+		float spanY = Math.max(y1 - y0, 1f);
+		double cellSide = Math.sqrt(spanX * (double) spanY * POINTS_PER_CELL / Math.max(count, 1));
+		cols = (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(spanX / cellSide)));
+		rows = (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(spanY / cellSide)));
+		minX = x0;
+		minY = y0;
+		// Slightly wider than the span so the maximum coordinate falls in the last cell
+		cellWidth = spanX / cols * 1.0001f;
+		cellHeight = spanY / rows * 1.0001f;
+		
+		// Counting sort of the points by cell
+		int[] cellOf = new int[n];
+		cellStart = new int[cols * rows + 1];
+		for (int i = 0; i < n; i++) {
+			if (!isFinite(i)) {
+				cellOf[i] = -1;
+				continue;
+			}
+			int c = column(xs[i]) + row(ys[i]) * cols;
+			cellOf[i] = c;
+			cellStart[c + 1]++;
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		cellItems = new int[count];
+		int[] fill = Arrays.copyOf(cellStart, cols * rows);
+		for (int i = 0; i < n; i++) {
+			if (cellOf[i] >= 0) {
+				cellItems[fill[cellOf[i]]++] = i;
+			}
+		}
+	}
+	
+	/**
+	 * Indexes the points at the screen positions they were last projected to.
+	 * @param points The points, after {@link DataPoint#projectPoint}
+	 * @return The index
+	 */
+	static ScreenIndex fromScreenPositions(List<DataPoint> points) {
+		DataPoint[] array = points.toArray(new DataPoint[points.size()]);
+		float[] xs = new float[array.length];
+		float[] ys = new float[array.length];
+		for (int i = 0; i < array.length; i++) {
+			xs[i] = array[i].getScreenX();
+			ys[i] = array[i].getScreenY();
+		}
+		return new ScreenIndex(array, xs, ys);
+	}
+	
+	DataPoint getPoint(int i) {
+		return points[i];
+	}
+	
+	/**
+	 * Finds the point closest to a screen position. Where points are equally close the 
+	 * one with the highest index wins, as that is the one drawn on top.
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @return The index of the closest point, or -1 if there are no points
+	 */
+	int getClosest(float x, float y) {
+		if (cellItems.length == 0) {
+			return -1;
+		}
+		int cx = column(x);
+		int cy = row(y);
+		int best = -1;
+		for (int r = 0; ; r++) {
+			int c0 = cx - r, c1 = cx + r, r0 = cy - r, r1 = cy + r;
+			// Visit the ring of cells at distance r
+			for (int row = Math.max(r0, 0); row <= Math.min(r1, rows - 1); row++) {
+				if (row == r0 || row == r1) {
+					for (int col = Math.max(c0, 0); col <= Math.min(c1, cols - 1); col++) {
+						best = closestInCell(col + row * cols, x, y, best);
+					}
+				} else {
+					if (c0 >= 0) {
+						best = closestInCell(c0 + row * cols, x, y, best);
+					}
+					if (c1 < cols && c1 != c0) {
+						best = closestInCell(c1 + row * cols, x, y, best);
+					}
+				}
+			}
+			double bestDist = best < 0 ? Double.MAX_VALUE : distance(best, x, y);
+			// Any cell not yet visited lies beyond the edges of the visited block
+			boolean done = true;
+			double bound = Double.MAX_VALUE;
+			if (c0 > 0) {
+				done = false;
+				bound = Math.min(bound, x - (minX + c0 * cellWidth));
+			}
+			if (c1 < cols - 1) {
+				done = false;
+				bound = Math.min(bound, minX + (c1 + 1) * cellWidth - x);
+			}
+			if (r0 > 0) {
+				done = false;
+				bound = Math.min(bound, y - (minY + r0 * cellHeight));
+			}
+			if (r1 < rows - 1) {
+				done = false;
+				bound = Math.min(bound, minY + (r1 + 1) * cellHeight - y);
+			}
+			if (done || (best >= 0 && bound > 0 && bound * bound > bestDist)) {
+				return best;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the points whose marker overlaps a box on screen.
+	 * @param x1 The left of the box
+	 * @param y1 The top of the box
+	 * @param x2 The right of the box
+	 * @param y2 The bottom of the box
+	 * @return The indices of the points, in ascending order
+	 */
+	int[] getInBox(float x1, float y1, float x2, float y2) {
+		int c0 = column(x1 - maxHalfSize);
+		int c1 = column(x2 + maxHalfSize);
+		int r0 = row(y1 - maxHalfSize);
+		int r1 = row(y2 + maxHalfSize);
+		int[] found = new int[16];
+		int count = 0;
+		for (int row = r0; row <= r1; row++) {
+			for (int col = c0; col <= c1; col++) {
+				int cell = col + row * cols;
+				for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+					int i = cellItems[k];
+					int half = points[i].getSize() / 2;
+					if (xs[i] + half > x1 && xs[i] - half < x2 
+							&& ys[i] + half > y1 && ys[i] - half < y2) {
+						if (count == found.length) {
+							found = Arrays.copyOf(found, count * 2);
+						}
+						found[count++] = i;
+					}
+				}
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+	
+	/** @return The closer of the given best point and the points in the cell */
+	private int closestInCell(int cell, float x, float y, int best) {
+		double bestDist = best < 0 ? Double.MAX_VALUE : distance(best, x, y);
+		for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+			int i = cellItems[k];
+			double dist = distance(i, x, y);
+			if (dist < bestDist || (dist == bestDist && i > best)) {
+				bestDist = dist;
+				best = i;
+			}
+		}
+		return best;
+	}
+	
+	/** @return The squared distance from the point to a screen position */
+	private double distance(int i, float x, float y) {
+		double dx = xs[i] - x;
+		double dy = ys[i] - y;
+		return dx * dx + dy * dy;
+	}
+	
+	private boolean isFinite(int i) {
+		return !Float.isNaN(xs[i]) && !Float.isInfinite(xs[i]) 
+				&& !Float.isNaN(ys[i]) && !Float.isInfinite(ys[i]);
+	}
+	
+	private int column(float x) {
+		return clamp((int) Math.floor((x - minX) / cellWidth), cols);
+	}
+	
+	private int row(float y) {
+		return clamp((int) Math.floor((y - minY) / cellHeight), rows);
+	}
+	
+	private static int clamp(int cell, int cells) {
+		return cell < 0 ? 0 : (cell >= cells ? cells - 1 : cell);
+	}
+}
@@ -72,6 +72,14 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 	private List<Edge> edges;
 	private List<DataPoint> vertices;
 	private Color hiliteColor;
+	
+	/** Index over the screen positions of the points, built when first needed for picking. */
+	private ScreenIndex screenIndex;
+	private TransformMatrix projectedTr;
+	private Dimension projectedSize;
+	private long dataVersion;
+	private long projectedDataVersion;
+	private long projectedGeometryVersion;
 
 	static final Comparator<DataPoint> ZORDER = new Comparator<DataPoint>() {
 
@@ -121,15 +129,18 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 	public DataPoint addPoint(double x, double y, double z) {
 		DataPoint pp = new DataPoint(x, y, z);
 		getpList().add(pp);
+		dataVersion++;
 		return pp;
 	}
 
 	public void addPoint(DataPoint d) {
 		getpList().add(d);
+		dataVersion++;
 	}
 
 	public void clearPoints() {
 		getpList().clear();
+		dataVersion++;
 	}
 
 	public void setXAxisTitle(String s) {
@@ -679,6 +690,9 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 		if (popupComponentProvider != null) {
 			PopupFactory factory = PopupFactory.getSharedInstance();
 			DataPoint dp = getPointClosestToClick(e.getX(), e.getY());
+			if (dp == null) {
+				return;
+			}
 			Component c = popupComponentProvider.getComponent(dp.getID());
 			if (popup != null) {
 				popup.hide();
@@ -711,12 +725,9 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 				p.setSelected(false);
 			}
 		}
-		for (DataPoint p : getpList()) {
-			if (p.getScreenX() + p.getSize() / 2 > bx1 && p.getScreenX() - p.getSize() / 2 < bx2
-					&& p.getScreenY() + p.getSize() / 2 > by1
-					&& p.getScreenY() - p.getSize() / 2 < by2) {
-				p.setSelected(true);
-			}
+		ScreenIndex index = getScreenIndex();
+		for (int i : index.getInBox(bx1, by1, bx2, by2)) {
+			index.getPoint(i).setSelected(true);
 		}
 	}
 
@@ -801,18 +812,20 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 	}
 
 	public DataPoint getPointClosestToClick(int x, int y) {
-		double minDist = Double.MAX_VALUE;
-		DataPoint rp = null;
-		for (int i = getpList().size() - 1; i >= 0; i--) {
-			DataPoint dp = getpList().get(i);
-			double dist = Math.sqrt((dp.getScreenX() - x) * (dp.getScreenX() - x)
-					+ (dp.getScreenY() - y) * (dp.getScreenY() - y));
-			if (dist < minDist) {
-				minDist = dist;
-				rp = dp;
-			}
+		ScreenIndex index = getScreenIndex();
+		int i = index.getClosest(x, y);
+		return i < 0 ? null : index.getPoint(i);
+	}
+
+	/**
+	 * Gets the index over the positions the points were last drawn at. It is rebuilt
+	 * only after the view, the plot size or the points have changed.
+	 */
+	private ScreenIndex getScreenIndex() {
+		if (screenIndex == null) {
+			screenIndex = ScreenIndex.fromScreenPositions(getpList());
 		}
-		return rp;
+		return screenIndex;
 	}
 
 	public void sortZOrder() {
@@ -838,6 +851,15 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 		for (DataPoint pp : getpList()) {
 			pp.projectPoint(currTr, d.width, d.height);
 		}
+		if (currTr != projectedTr || !d.equals(projectedSize) 
+				|| dataVersion != projectedDataVersion
+				|| DataPoint.getGeometryVersion() != projectedGeometryVersion) {
+			projectedTr = currTr;
+			projectedSize = d;
+			projectedDataVersion = dataVersion;
+			projectedGeometryVersion = DataPoint.getGeometryVersion();
+			screenIndex = null;
+		}
 
 		for (DataPoint pp : vertices) {
 			pp.projectPoint(currTr, d.width, d.height);
@@ -999,6 +1021,7 @@ public final class ThreeDGraph extends JPanel implements MouseWheelListener,
 
 	public void setpList(List<DataPoint> pList) {
 		this.pList = pList;
+		dataVersion++;
 	}
 
 	private class Edge {
@@ -78,6 +78,8 @@ public class TwoDGraph extends JPanel implements MouseListener,
 
 	private Color hiliteColor;
 	private TransformMatrix tr1, currTr;
+	private final ScatterRenderer renderer;
+	private long dataVersion;
 
 	public static void main(String[] args) {
 	}
@@ -98,20 +100,24 @@ public class TwoDGraph extends JPanel implements MouseListener,
 		nf1.setMinimumFractionDigits(4);
 		nf1.setMaximumFractionDigits(4);
 		hiliteColor = Color.yellow;
+		renderer = new ScatterRenderer(this);
 	}
 
 	public DataPoint addPoint(double x, double y) {
 		DataPoint pp = new DataPoint(x, y);
 		pList.add(pp);
+		dataVersion++;
 		return pp;
 	}
 
 	public void addPoint(DataPoint d) {
 		pList.add(d);
+		dataVersion++;
 	}
 
 	public void clearPoints() {
 		pList.clear();
+		dataVersion++;
 	}
 
 	public void setXAxisTitle(String s) {
@@ -178,13 +184,17 @@ public class TwoDGraph extends JPanel implements MouseListener,
 	public void makeAndShowPopup(MouseEvent e) {
 		if (popupComponentProvider != null) {
 			PopupFactory factory = PopupFactory.getSharedInstance();
-			DataPoint dp = getPointClosestToClick(e.getX() - AXISOFF, e.getY());
-			Component c = popupComponentProvider.getComponent(dp.getID());
+			int i = getIndexClosestToClick(e.getX() - AXISOFF, e.getY());
+			if (i < 0) {
+				return;
+			}
+			ScatterRenderer.Frame frame = renderer.getCurrentFrame();
+			Component c = popupComponentProvider.getComponent(frame.getPoint(i).getID());
 			if (popup != null) {
 				popup.hide();
 			}
-			popup = factory.getPopup(this, c, (int) dp.getScreenX()
-					+ getLocationOnScreen().x + AXISOFF, (int) dp.getScreenY()
+			popup = factory.getPopup(this, c, (int) frame.getScreenX(i)
+					+ getLocationOnScreen().x + AXISOFF, (int) frame.getScreenY(i)
 					+ this.getLocationOnScreen().y);
 			popup.show();
 		}
@@ -201,18 +211,21 @@ public class TwoDGraph extends JPanel implements MouseListener,
 	}
 
 	public DataPoint getPointClosestToClick(int x, int y) {
-		double minDist = Double.MAX_VALUE;
-		DataPoint rp = null;
-		for (int i = pList.size() - 1; i >= 0; i--) {
-			DataPoint dp = pList.get(i);
-			double dist = Math.sqrt((dp.getScreenX() - x) * (dp.getScreenX() - x)
-					+ (dp.getScreenY() - y) * (dp.getScreenY() - y));
-			if (dist < minDist) {
-				minDist = dist;
-				rp = dp;
-			}
+		int i = getIndexClosestToClick(x, y);
+		return i < 0 ? null : renderer.getCurrentFrame().getPoint(i);
+	}
+
+	/**
+	 * Finds the point closest to the click, using the screen positions of the plot
+	 * currently shown.
+	 * @return The index of the point in the current frame, or -1 if there is none
+	 */
+	private int getIndexClosestToClick(int x, int y) {
+		ScatterRenderer.Frame frame = renderer.getCurrentFrame();
+		if (frame == null) {
+			return -1;
 		}
-		return rp;
+		return frame.getIndex().getClosest(x, y);
 	}
 
 	public void selectPointsInBox(boolean add) {
@@ -237,13 +250,13 @@ public class TwoDGraph extends JPanel implements MouseListener,
 				p.setSelected(false);
 			}
 		}
-		for (DataPoint p : pList) {
-			if (p.getScreenX() + AXISOFF + inset.left + p.getSize() / 2 > bx1
-					&& p.getScreenX() + AXISOFF + inset.left - p.getSize() / 2 < bx2
-					&& p.getScreenY() + p.getSize() / 2 > by1
-					&& p.getScreenY() - p.getSize() / 2 < by2) {
-				p.setSelected(true);
-			}
+		ScatterRenderer.Frame frame = renderer.getCurrentFrame();
+		if (frame == null) {
+			return;
+		}
+		int xoff = AXISOFF + inset.left;
+		for (int i : frame.getIndex().getInBox(bx1 - xoff, by1, bx2 - xoff, by2)) {
+			frame.getPoint(i).setSelected(true);
 		}
 	}
 
@@ -577,10 +590,6 @@ public class TwoDGraph extends JPanel implements MouseListener,
 		int width = (int) (d.width - inset.left - inset.right - AXISOFF);
 		int height = (int) (d.height - inset.top - inset.bottom - AXISOFF);
 
-		for (DataPoint pp : pList) {
-			pp.projectPoint(currTr, width, height);
-		}
-
 		g.translate(inset.left + AXISOFF, d.height - AXISOFF + inset.top);
 		plotScale(g, xScal, width, TICKOFFX, LABOFFX, TITLEOFFX);
 		g.setTransform(at);
@@ -632,37 +641,24 @@ public class TwoDGraph extends JPanel implements MouseListener,
 		Shape c = g.getClip();
 		g.setClip(0, 0, d.width - AXISOFF, d.height - AXISOFF);
 
-		for (DataPoint pp : pList) {
-			if (pp.isHilited() && pp.isVisible() && pp.isInZoomRegion()) {
-				g.setColor(hiliteColor);
-				g.fillOval((int) (pp.getScreenX() - (pp.getSize() + 4) / 2),
-						(int) (pp.getScreenY() - (pp.getSize() + 4) / 2), pp.getSize() + 4,
-						pp.getSize() + 4);
-			}
-			if (pp.isSelected()) {
-				g.setColor(pp.getSelColor());
-			} else {
-				g.setColor(pp.getColor());
-			}
-			if (pp.isVisible() && pp.isInZoomRegion()) {
-				g.fillOval((int) (pp.getScreenX() - pp.getSize() / 2),
-						(int) (pp.getScreenY() - pp.getSize() / 2), pp.getSize(), pp.getSize());
-			}
-			
+		// the points are drawn into a cached image, which is only rendered again when 
+		// the points, the scale or the plot size change
+		ScatterRenderer.Frame frame = renderer.getFrame(pList, currTr, width, height, 
+				hiliteColor, dataVersion);
+		if (frame != null) {
+			g.drawImage(frame.getImage(), -ScatterRenderer.PAD, -ScatterRenderer.PAD, null);
 		}
 		g.setTransform(at);
 
-		if (showFitLine) {
+		if (showFitLine && currTr != null) {
 			// plot line
-			DataPoint p1 = new DataPoint(minX, minX * slope + intercept);
-			p1.projectPoint(currTr, width, height);
-			DataPoint p2 = new DataPoint(maxX, maxX * slope + intercept);
-			p2.projectPoint(currTr, width, height);
+			float[] p1 = ScatterRenderer.project(currTr, minX, minX * slope + intercept, 1.0, width, height);
+			float[] p2 = ScatterRenderer.project(currTr, maxX, maxX * slope + intercept, 1.0, width, height);
 			g.setColor(Color.blue);
 			g.translate(AXISOFF, 0.0);
 			GeneralPath p = new GeneralPath();
-			p.moveTo(p1.getScreenX(), p1.getScreenY());
-			p.lineTo(p2.getScreenX(), p2.getScreenY());
+			p.moveTo(p1[0], p1[1]);
+			p.lineTo(p2[0], p2[1]);
 			g.draw(p);
 			g.setTransform(at);
 
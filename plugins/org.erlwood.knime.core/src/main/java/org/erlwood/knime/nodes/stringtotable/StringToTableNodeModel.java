@@ -20,11 +20,10 @@
 */
 package org.erlwood.knime.nodes.stringtotable;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 
-import org.apache.commons.codec.binary.Base64;
+import org.erlwood.knime.utils.TableStringCodec;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.BufferedDataTable;
@@ -38,7 +37,6 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortType;
 import org.knime.core.data.StringValue;
-import org.knime.core.data.container.DataContainer;
 
 /** Node which converts a KNIME table in a string format back to its original table form.
  * @author Tom Wilkin */
@@ -85,10 +83,8 @@ public class StringToTableNodeModel extends NodeModel {
 		}
 		
 		// create the table from the serialised string
-		byte[ ] bytes = Base64.decodeBase64(data);
-		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
 		BufferedDataTable table = exec.createBufferedDataTable(
-				DataContainer.readFromStream(bais), 
+				TableStringCodec.decode(data), 
 				exec
 		);
 		return new BufferedDataTable[ ] { table };
@@ -20,18 +20,16 @@
 */
 package org.erlwood.knime.nodes.tabletostring;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 
-import org.apache.commons.codec.binary.Base64;
+import org.erlwood.knime.utils.TableStringCodec;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.RowKey;
-import org.knime.core.data.container.DataContainer;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.StringCell;
 import org.knime.core.node.BufferedDataContainer;
@@ -60,13 +58,8 @@ public class TableToStringNodeModel extends NodeModel {
 		// access the input table
 		BufferedDataTable inputTable = inData[0];
 		
-		// read the table into the stream
-		ByteArrayOutputStream baos = new ByteArrayOutputStream( );
-		DataContainer.writeToStream(inputTable, baos, exec);
-		
-		// create the string
-		String str = Base64.encodeBase64String(baos.toByteArray( ));
-		str = str.replaceAll("\n|\r", "");
+		// stream the compressed and encoded table into the string
+		String str = TableStringCodec.encode(inputTable, exec);
 		
 		// create the output table
 		DataTableSpec outSpec = createOutSpec( );
@@ -504,8 +504,20 @@ class XLSIterator extends CloseableRowIterator {
     }
 
     private String uniquifyRowHeader(final String newRowHeader) {
+        return uniquifyRowHeader(newRowHeader, m_rowIDhash);
+    }
+
+    /**
+     * Appends a suffix to the row header if it was seen before.
+     *
+     * @param newRowHeader the row header to make unique
+     * @param rowIDhash the row headers seen so far, updated by this method
+     * @return the unique row header
+     */
+    static String uniquifyRowHeader(final String newRowHeader,
+            final Hashtable<String, Number> rowIDhash) {
 
-        Number oldSuffix = m_rowIDhash.put(newRowHeader, NOSUFFIX);
+        Number oldSuffix = rowIDhash.put(newRowHeader, NOSUFFIX);
 
         if (oldSuffix == null) {
             // haven't seen the rowID so far.
@@ -525,17 +537,17 @@ class XLSIterator extends CloseableRowIterator {
             if (oldSuffix == NOSUFFIX) {
                 // until now the NOSUFFIX placeholder was in the hash
                 assert idx - 1 == NOSUFFIX.intValue();
-                m_rowIDhash.put(result, new MutableInteger(idx));
+                rowIDhash.put(result, new MutableInteger(idx));
             } else {
                 assert oldSuffix instanceof MutableInteger;
                 ((MutableInteger)oldSuffix).inc();
                 assert idx == oldSuffix.intValue();
                 // put back the old (incr.) suffix (overridden with NOSUFFIX).
-                m_rowIDhash.put(result, oldSuffix);
+                rowIDhash.put(result, oldSuffix);
             }
 
             result = result + "_" + idx;
-            oldSuffix = m_rowIDhash.put(result, NOSUFFIX);
+            oldSuffix = rowIDhash.put(result, NOSUFFIX);
 
         }
 
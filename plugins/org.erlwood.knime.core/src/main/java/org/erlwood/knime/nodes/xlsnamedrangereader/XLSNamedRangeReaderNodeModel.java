@@ -223,6 +223,12 @@ public class XLSNamedRangeReaderNodeModel extends NodeModel {
     @Override
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
+        // .xlsx files are streamed, without loading the workbook
+        BufferedDataTable streamed = XLSXStreamingReader.read(m_settings, exec);
+        if (streamed != null) {
+            return new BufferedDataTable[]{streamed};
+        }
+        // .xls files, or formulas that need to be evaluated
         // Execute is an isolated call so do not keep the workbook in memory
         Workbook wb = XLSTableSettings.getWorkbook(m_settings.getFileLocation());
         XLSTable table = new XLSTable(m_settings, wb);
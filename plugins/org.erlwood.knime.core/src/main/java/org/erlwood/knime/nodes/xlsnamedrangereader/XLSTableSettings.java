@@ -267,6 +267,22 @@ public class XLSTableSettings {
 
         lastColNum--; // now it's the index
 
+        setDataBounds(settings, firstColIdx, lastColNum, minRowIdx, maxRowIdx);
+    }
+
+    /**
+     * Sets the first/last column and row of the settings to the data area
+     * found in the sheet, keeping the bounds already set by the user.
+     *
+     * @param settings the settings to adjust
+     * @param firstColIdx the first column with data, or -1
+     * @param lastColNum the last column with data, or -1
+     * @param minRowIdx the index of the first row in the sheet
+     * @param maxRowIdx the index of the last row in the sheet, or -1
+     */
+    static void setDataBounds(final XLSUserSettings settings,
+            final int firstColIdx, final int lastColNum, final int minRowIdx,
+            final int maxRowIdx) {
         if (firstColIdx < 0 || lastColNum < 0 || lastColNum < firstColIdx) {
             if (settings.getFirstColumn() < 0) {
                 // only change first column if not set
@@ -370,7 +386,7 @@ public class XLSTableSettings {
         return result;
     }
 
-    private static void fillEmptyColHeaders(final XLSUserSettings settings,
+    static void fillEmptyColHeaders(final XLSUserSettings settings,
             final Set<Integer> skippedCols, final String[] colHdrs) {
         // XL Sheets don't have more than 256 columns
         HashSet<String> names = new HashSet<String>();
@@ -651,6 +667,22 @@ public class XLSTableSettings {
             }
         }
 
+        return removeSkippedColumns(settings, colTypes, skippedCols);
+    }
+
+    /**
+     * Turns the types of empty columns into generic ones (or skips these
+     * columns, if so configured) and removes the skipped columns.
+     *
+     * @param settings The user settings
+     * @param colTypes The detected types, one for each column between the
+     *            first and last column, null for empty columns
+     * @param skippedCols The skipped columns, empty columns are added
+     * @return The types of the columns that are not skipped
+     */
+    static ArrayList<DataType> removeSkippedColumns(
+            final XLSUserSettings settings, final ArrayList<DataType> colTypes,
+            final Set<Integer> skippedCols) {
         // null types represent empty columns (except skipped hidden cols)
 
         for (int c = 0; c < colTypes.size(); c++) {
@@ -784,7 +816,7 @@ public class XLSTableSettings {
         return result;
     }
 
-    private static String getUniqueName(final String name,
+    static String getUniqueName(final String name,
             final Set<String> names) {
         int cnt = 2;
         String unique = name;
@@ -0,0 +1,1223 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.nodes.xlsnamedrangereader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.date.DateAndTimeCell;
+import org.knime.core.data.date.DateAndTimeValue;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.util.FileUtil;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads a sheet of an .xlsx file with the SAX based XSSF event API, so the
+ * workbook is never loaded into memory as a whole. The sheet is parsed twice:
+ * once to find the data area, the column types and the column headers, and
+ * once to create the rows. Column types, column names and row IDs follow the
+ * rules of {@link XLSTableSettings} and {@link XLSIterator}.
+ *
+ * Formula cells are read from the results cached in the file. Everything the
+ * streaming reader can't handle this way (.xls files, formulas without a
+ * cached result, ...) is left to the DOM based {@link XLSTable}.
+ */
+final class XLSXStreamingReader {
+
+    private static final NodeLogger LOGGER = NodeLogger
+            .getLogger(XLSXStreamingReader.class);
+
+    private static final int MAX_COLUMNS = SpreadsheetVersion.EXCEL2007
+            .getMaxColumns();
+
+    private final XSSFReader m_reader;
+
+    private final SharedStrings m_sharedStrings;
+
+    private final StylesTable m_styles;
+
+    private final DataFormatter m_formatter = new DataFormatter();
+
+    // cell styles by index, looked up once per style
+    private final HashMap<Integer, XSSFCellStyle> m_cellStyles =
+            new HashMap<Integer, XSSFCellStyle>();
+
+    // sheet names and the ids of their parts, in workbook order
+    private final ArrayList<String> m_sheetNames = new ArrayList<String>();
+
+    private final ArrayList<String> m_sheetIds = new ArrayList<String>();
+
+    // defined names and the formulas they refer to, in workbook order
+    private final ArrayList<String> m_names = new ArrayList<String>();
+
+    private final ArrayList<String> m_nameFormulas = new ArrayList<String>();
+
+    private boolean m_date1904;
+
+    private ExecutionContext m_exec;
+
+    private XLSXStreamingReader(final OPCPackage pkg) throws Exception {
+        m_reader = new XSSFReader(pkg);
+        // phonetic runs are not part of the cell text in the DOM either
+        m_sharedStrings = new ReadOnlySharedStringsTable(pkg, false);
+        m_styles = m_reader.getStylesTable();
+        parse(m_reader.getWorkbookData(), new WorkbookHandler());
+    }
+
+    /**
+     * Reads the table described by the settings, if the file is an .xlsx
+     * workbook the streaming reader can handle. As {@link XLSTable}, a named
+     * range to read is stored as the area to read in the settings.
+     *
+     * @param settings the user settings
+     * @param exec the execution context
+     * @return the table, or null if the file has to be read with
+     *         {@link XLSTable}
+     * @throws Exception if the file can't be read, or on cancellation
+     */
+    static BufferedDataTable read(final XLSUserSettings settings,
+            final ExecutionContext exec) throws Exception {
+        String location = settings.getFileLocation();
+        File file;
+        try {
+            file = FileUtil.getFileFromURL(new URL(location));
+        } catch (MalformedURLException mue) {
+            // then it is a file
+            file = new File(location);
+        }
+
+        BufferedInputStream in =
+                XLSUserSettings.getBufferedInputStream(location);
+        OPCPackage pkg = null;
+        try {
+            if (FileMagic.valueOf(in) != FileMagic.OOXML) {
+                LOGGER.debug("Not an .xlsx file, reading it with the "
+                        + "workbook reader");
+                return null;
+            }
+            if (file != null) {
+                // random access to the zip entries, nothing is buffered
+                in.close();
+                pkg = OPCPackage.open(file, PackageAccess.READ);
+            } else {
+                pkg = OPCPackage.open(in);
+            }
+            XLSXStreamingReader reader = new XLSXStreamingReader(pkg);
+            reader.m_exec = exec;
+            return reader.readTable(settings);
+        } catch (UnsupportedWorkbookException e) {
+            LOGGER.debug(e.getMessage()
+                    + ", reading the file with the workbook reader");
+            return null;
+        } finally {
+            in.close();
+            if (pkg != null) {
+                // read only, nothing to save
+                pkg.revert();
+            }
+        }
+    }
+
+    private BufferedDataTable readTable(final XLSUserSettings settings)
+            throws Exception {
+
+        if (settings.getReadNamedRange()) {
+            // as XLSTable: the named range is the area to read
+            String formula = getNameFormula(settings.getNamedRange());
+            if (formula == null) {
+                throw new UnsupportedWorkbookException("Named range '"
+                        + settings.getNamedRange() + "' not found");
+            }
+            AreaReference aref =
+                    new AreaReference(formula, SpreadsheetVersion.EXCEL2007);
+            settings.setFirstColumn(aref.getFirstCell().getCol());
+            settings.setLastColumn(aref.getLastCell().getCol());
+            settings.setFirstRow(aref.getFirstCell().getRow());
+            settings.setLastRow(aref.getLastCell().getRow());
+        }
+
+        String errMsg = settings.getStatus(false);
+        if (errMsg != null) {
+            throw new IllegalArgumentException(errMsg);
+        }
+        XLSUserSettings userSettings = XLSUserSettings.clone(settings);
+        if (userSettings.getReadAllData()) {
+            // clear any possibly set first/last row/col
+            userSettings.setFirstColumn(-1);
+            userSettings.setLastColumn(-1);
+            userSettings.setFirstRow(-1);
+            userSettings.setLastRow(-1);
+            userSettings.setReadAllData(false);
+        }
+
+        String sheetName = userSettings.getSheetName();
+        if (sheetName == null || sheetName.isEmpty()) {
+            sheetName = getFirstSheetNameWithData();
+        }
+        String sheetId = getSheetId(sheetName);
+        if (sheetId == null) {
+            throw new UnsupportedWorkbookException("Sheet '" + sheetName
+                    + "' not found");
+        }
+
+        // first pass: data area, column types and headers
+        m_exec.setMessage("Analyzing sheet '" + sheetName + "'");
+        AnalysisHandler analysis = new AnalysisHandler(userSettings);
+        parse(m_reader.getSheet(sheetId), analysis);
+        if (userSettings.getLastColumn() < 0
+                || userSettings.getLastRow() < 0) {
+            XLSTableSettings.setDataBounds(userSettings,
+                    analysis.m_firstColIdx, analysis.m_lastColIdx,
+                    analysis.getFirstRowNum(), analysis.m_lastRowIdx);
+        }
+        HashSet<Integer> skippedCols = new HashSet<Integer>();
+        ArrayList<DataType> colTypes =
+                analysis.getColumnTypes(userSettings, skippedCols);
+        DataTableSpec spec = createSpec(userSettings, sheetName, colTypes,
+                skippedCols, analysis);
+
+        // second pass: the rows
+        BufferedDataContainer container = m_exec.createDataContainer(spec);
+        RowHandler rows = new RowHandler(userSettings, spec, skippedCols,
+                sheetName, container, Math.min(userSettings.getLastRow(),
+                        analysis.m_lastRowIdx));
+        try {
+            parse(m_reader.getSheet(sheetId), rows);
+        } finally {
+            container.close();
+        }
+        return container.getTable();
+    }
+
+    /**
+     * As {@link XLSTableSettings}: names from the header row, or generated.
+     */
+    private DataTableSpec createSpec(final XLSUserSettings settings,
+            final String sheetName, final ArrayList<DataType> columnTypes,
+            final Set<Integer> skippedCols, final AnalysisHandler analysis) {
+
+        int numOfCols = columnTypes.size();
+        String[] colHdrs = null;
+        if (settings.getHasColHeaders() && !settings.getKeepXLColNames()) {
+            colHdrs = readColumnHeaders(settings, sheetName, numOfCols,
+                    skippedCols, analysis);
+        }
+        if (colHdrs == null) {
+            colHdrs = new String[numOfCols];
+        }
+        XLSTableSettings.fillEmptyColHeaders(settings, skippedCols, colHdrs);
+
+        DataColumnSpec[] colSpecs = new DataColumnSpec[numOfCols];
+        for (int col = 0; col < numOfCols; col++) {
+            colSpecs[col] =
+                    new DataColumnSpecCreator(colHdrs[col],
+                            columnTypes.get(col)).createSpec();
+        }
+        String tableName =
+                settings.getSimpleFilename() + " [" + sheetName + "]";
+        return new DataTableSpec(tableName, colSpecs);
+    }
+
+    private String[] readColumnHeaders(final XLSUserSettings settings,
+            final String sheetName, final int numOfCols,
+            final Set<Integer> skippedCols, final AnalysisHandler analysis) {
+
+        String[] result = new String[numOfCols];
+        int hdrRow = settings.getColHdrRow();
+        if (hdrRow < 0 || hdrRow > analysis.m_lastRowIdx) {
+            LOGGER.warn("Specified column header row not contained "
+                    + "in sheet");
+            return result;
+        }
+
+        DataCell[] cells = new DataCell[numOfCols];
+        try {
+            int xlOffset = settings.getFirstColumn();
+            for (int colIdx = 0; colIdx < numOfCols; colIdx++) {
+                while (skippedCols.contains(xlOffset)) {
+                    xlOffset++;
+                }
+                StreamedCell cell = null;
+                if (analysis.m_headerCells != null) {
+                    cell = analysis.m_headerCells.get(xlOffset);
+                }
+                cells[colIdx] = createDataCell(cell, StringCell.TYPE, colIdx,
+                        settings, sheetName);
+                xlOffset++;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Caught exception while accessing file "
+                    + settings.getFileLocation()
+                    + ". Creating synthetic column names", e);
+            return result;
+        }
+
+        HashSet<String> names = new HashSet<String>();
+        for (int i = 0; i < cells.length; i++) {
+            if (!cells[i].isMissing()) {
+                result[i] = XLSTableSettings.getUniqueName(
+                        cells[i].toString().trim(), names);
+                names.add(result[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The formula the name refers to, or null if there's no such name
+     */
+    private String getNameFormula(final String name) {
+        if (name == null) {
+            return null;
+        }
+        // names are case insensitive, the first definition wins
+        for (int i = 0; i < m_names.size(); i++) {
+            if (m_names.get(i).equalsIgnoreCase(name)) {
+                String formula = m_nameFormulas.get(i).trim();
+                return formula.isEmpty() ? null : formula;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The id of the sheet's part, or null if there's no such sheet
+     */
+    private String getSheetId(final String sheetName) {
+        if (sheetName == null) {
+            return null;
+        }
+        for (int i = 0; i < m_sheetNames.size(); i++) {
+            if (m_sheetNames.get(i).equalsIgnoreCase(sheetName)) {
+                return m_sheetIds.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * As {@link XLSTable#getFirstSheetNameWithData(
+     * org.apache.poi.ss.usermodel.Workbook)}: the first sheet with a row.
+     */
+    private String getFirstSheetNameWithData() throws Exception {
+        for (int i = 0; i < m_sheetNames.size(); i++) {
+            if (m_sheetIds.get(i) == null) {
+                continue;
+            }
+            FirstRowHandler handler = new FirstRowHandler();
+            parse(m_reader.getSheet(m_sheetIds.get(i)), handler);
+            if (handler.m_hasRow) {
+                return m_sheetNames.get(i);
+            }
+        }
+        return m_sheetNames.isEmpty() ? null : m_sheetNames.get(0);
+    }
+
+    private static void parse(final InputStream in,
+            final DefaultHandler handler) throws Exception {
+        try {
+            XMLReader reader = XMLHelper.newXMLReader();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(in));
+        } catch (StopParsingException e) {
+            // the handler has seen everything it needs
+        } catch (SAXException e) {
+            if (e.getException() != null) {
+                throw e.getException();
+            }
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * ---------------- cell values ------------------------------------------
+     */
+
+    private static double getNumericValue(final StreamedCell cell) {
+        return cell.m_value.isEmpty() ? 0.0 : Double.parseDouble(cell.m_value);
+    }
+
+    private static boolean getBooleanValue(final StreamedCell cell) {
+        return "1".equals(cell.m_value);
+    }
+
+    private String getStringValue(final StreamedCell cell) {
+        if (cell.m_sharedString) {
+            if (cell.m_value.isEmpty()) {
+                return "";
+            }
+            return m_sharedStrings.getItemAt(Integer.parseInt(cell.m_value))
+                    .getString();
+        }
+        if (!cell.m_value.contains("_x")) {
+            return cell.m_value;
+        }
+        // decodes escaped characters (_xHHHH_)
+        return new XSSFRichTextString(cell.m_value).getString();
+    }
+
+    private XSSFCellStyle getCellStyle(final StreamedCell cell) {
+        if (m_styles == null || m_styles.getNumCellStyles() == 0) {
+            return null;
+        }
+        Integer idx = Integer.valueOf(cell.m_style);
+        if (!m_cellStyles.containsKey(idx)) {
+            m_cellStyles.put(idx, m_styles.getStyleAt(cell.m_style));
+        }
+        return m_cellStyles.get(idx);
+    }
+
+    /**
+     * As {@link DateUtil#isCellDateFormatted(org.apache.poi.ss.usermodel.Cell)}.
+     */
+    private boolean isCellDateFormatted(final StreamedCell cell) {
+        if (!DateUtil.isValidExcelDate(getNumericValue(cell))) {
+            return false;
+        }
+        XSSFCellStyle style = getCellStyle(cell);
+        return style != null && DateUtil.isADateFormat(style.getDataFormat(),
+                style.getDataFormatString());
+    }
+
+    /**
+     * Updates the type of a column with a cell, as
+     * {@link XLSTableSettings} does. Formula cells are typed by their cached
+     * result.
+     */
+    private DataType updateColumnType(final DataType colType,
+            final StreamedCell cell, final XLSUserSettings settings) {
+        switch (cell.m_type) {
+        case BLANK:
+            // missing cell - doesn't change any type
+            return colType;
+        case BOOLEAN:
+            // KNIME has no boolean - use String
+            return StringCell.TYPE;
+        case ERROR:
+            if (settings.getUseErrorPattern()) {
+                // error patterns are of type string
+                return StringCell.TYPE;
+            }
+            // a missing cell will be included, don't leave it null
+            return colType == null ? DataType.getType(DataCell.class)
+                    : colType;
+        case NUMERIC:
+            // numeric could be double, int or date
+            if (colType == StringCell.TYPE) {
+                // string takes all
+                return colType;
+            }
+            if (isCellDateFormatted(cell)) {
+                // we use StringCells for date format
+                return StringCell.TYPE;
+            }
+            Double num = getNumericValue(cell);
+            if (num.isInfinite() || num.isNaN()) {
+                // only Double supports NaN
+                return DoubleCell.TYPE;
+            }
+            if (new Double(num.intValue()).equals(num)) {
+                // could be represented as int
+                if (colType == null
+                        || colType == DataType.getType(DataCell.class)) {
+                    return IntCell.TYPE;
+                }
+                return colType;
+            }
+            return DoubleCell.TYPE;
+        case STRING:
+            return StringCell.TYPE;
+        default:
+            LOGGER.error("Unexpected cell type (" + cell.m_type + ")");
+            return colType;
+        }
+    }
+
+    /**
+     * Creates the KNIME cell, as {@link XLSIterator} does.
+     */
+    private DataCell createDataCell(final StreamedCell cell,
+            final DataType expectedType, final int colIdx,
+            final XLSUserSettings settings, final String sheetName) {
+        if (cell == null) {
+            return DataType.getMissingCell();
+        }
+        if (cell.m_formula) {
+            // the cached result
+            switch (cell.m_type) {
+            case BLANK:
+                return DataType.getMissingCell();
+            case BOOLEAN:
+                if (expectedType.isCompatible(StringValue.class)) {
+                    return new StringCell(Boolean.toString(
+                            getBooleanValue(cell)));
+                }
+                // falls through to the error pattern, as in XLSIterator
+            case ERROR:
+                return new StringCell(settings.getErrorPattern());
+            case STRING:
+                return new StringCell(getStringValue(cell));
+            default:
+                return createNumericCell(cell, expectedType, colIdx,
+                        sheetName);
+            }
+        }
+        switch (cell.m_type) {
+        case BLANK:
+            return DataType.getMissingCell();
+        case BOOLEAN:
+            if (expectedType.isCompatible(StringValue.class)) {
+                return new StringCell(Boolean.toString(getBooleanValue(cell)));
+            } else {
+                throw new IllegalStateException(
+                        "Invalid cell type in column idx " + colIdx
+                                + ", sheet '" + sheetName + "', row "
+                                + cell.m_row);
+            }
+        case ERROR:
+            if (settings.getUseErrorPattern()) {
+                if (expectedType.isCompatible(StringValue.class)) {
+                    return new StringCell(settings.getErrorPattern());
+                } else {
+                    throw new IllegalStateException(
+                            "Invalid cell type for error cell in column idx "
+                                    + colIdx + ", sheet '" + sheetName
+                                    + "', row " + cell.m_row);
+                }
+            } else {
+                return DataType.getMissingCell();
+            }
+        case NUMERIC:
+            return createNumericCell(cell, expectedType, colIdx, sheetName);
+        case STRING:
+            if (expectedType.isCompatible(StringValue.class)) {
+                String s = getStringValue(cell);
+                if (s.equals(settings.getMissValuePattern())) {
+                    return DataType.getMissingCell();
+                } else {
+                    return new StringCell(s);
+                }
+            } else {
+                throw new IllegalStateException(
+                        "Invalid cell type in column idx " + colIdx
+                                + ", sheet '" + sheetName + "', row "
+                                + cell.m_row);
+            }
+        default:
+            throw new IllegalStateException("Invalid cell type in column idx "
+                    + colIdx + ", sheet '" + sheetName + "', row "
+                    + cell.m_row);
+        }
+    }
+
+    private DataCell createNumericCell(final StreamedCell cell,
+            final DataType expectedType, final int colIdx,
+            final String sheetName) {
+        double value = getNumericValue(cell);
+        if (expectedType.isCompatible(DateAndTimeValue.class)) {
+            if (isCellDateFormatted(cell)) {
+                return new DateAndTimeCell(DateUtil.getJavaDate(value,
+                        m_date1904).getTime(), true, true, false);
+            } else {
+                throw new IllegalStateException(
+                        "Invalid cell type in column idx " + colIdx
+                                + " (expected Date), sheet '" + sheetName
+                                + "', row " + cell.m_row);
+            }
+        } else if (expectedType.isCompatible(IntValue.class)) {
+            Double num = value;
+            if (new Double(num.intValue()).equals(num)) {
+                return new IntCell(num.intValue());
+            } else {
+                throw new IllegalStateException(
+                        "Invalid cell type in column idx " + colIdx
+                                + " (is Double, expected Int), sheet '"
+                                + sheetName + "', row " + cell.m_row);
+            }
+        } else if (expectedType.isCompatible(DoubleValue.class)) {
+            return new DoubleCell(value);
+        } else if (expectedType.isCompatible(StringValue.class)) {
+            if (isCellDateFormatted(cell)) {
+                XSSFCellStyle style = getCellStyle(cell);
+                return new StringCell(m_formatter.formatRawCellContents(value,
+                        style.getDataFormat(), style.getDataFormatString(),
+                        m_date1904));
+            }
+            Double num = value;
+            return new StringCell(num.toString());
+        } else {
+            throw new IllegalStateException(
+                    "Invalid cell type in column idx " + colIdx + ", sheet '"
+                            + sheetName + "', row " + cell.m_row);
+        }
+    }
+
+    private void checkCanceled() throws SAXException {
+        try {
+            m_exec.checkCanceled();
+        } catch (CanceledExecutionException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /*
+     * ---------------- parsing ----------------------------------------------
+     */
+
+    /**
+     * A cell as found in the sheet. The type of formula cells is the type of
+     * their cached result.
+     */
+    private static final class StreamedCell {
+        private final int m_row;
+
+        private final CellType m_type;
+
+        private final boolean m_formula;
+
+        private final boolean m_sharedString;
+
+        // the raw value, or the text of inline strings
+        private final String m_value;
+
+        private final int m_style;
+
+        private StreamedCell(final int row, final CellType type,
+                final boolean formula, final boolean sharedString,
+                final String value, final int style) {
+            m_row = row;
+            m_type = type;
+            m_formula = formula;
+            m_sharedString = sharedString;
+            m_value = value;
+            m_style = style;
+        }
+    }
+
+    /**
+     * Thrown if the workbook has to be read by the DOM based reader.
+     */
+    private static final class UnsupportedWorkbookException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedWorkbookException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown by handlers to end parsing early.
+     */
+    private static final class StopParsingException extends SAXException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static boolean isTrue(final String attribute) {
+        return "1".equals(attribute) || "true".equals(attribute);
+    }
+
+    /**
+     * Collects the sheets and defined names of workbook.xml.
+     */
+    private final class WorkbookHandler extends DefaultHandler {
+        private StringBuilder m_formula;
+
+        @Override
+        public void startElement(final String uri, final String localName,
+                final String qName, final Attributes attributes) {
+            if ("workbookPr".equals(localName)) {
+                m_date1904 = isTrue(attributes.getValue("date1904"));
+            } else if ("sheet".equals(localName)) {
+                String id = null;
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    // r:id, the relationship to the sheet part
+                    if ("id".equals(attributes.getLocalName(i))
+                            && !attributes.getURI(i).isEmpty()) {
+                        id = attributes.getValue(i);
+                    }
+                }
+                m_sheetNames.add(attributes.getValue("name"));
+                m_sheetIds.add(id);
+            } else if ("definedName".equals(localName)) {
+                m_names.add(attributes.getValue("name"));
+                m_formula = new StringBuilder();
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start,
+                final int length) {
+            if (m_formula != null) {
+                m_formula.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName,
+                final String qName) {
+            if ("definedName".equals(localName)) {
+                m_nameFormulas.add(m_formula.toString());
+                m_formula = null;
+            }
+        }
+    }
+
+    /**
+     * Checks if a sheet has any row.
+     */
+    private static final class FirstRowHandler extends DefaultHandler {
+        private boolean m_hasRow = false;
+
+        @Override
+        public void startElement(final String uri, final String localName,
+                final String qName, final Attributes attributes)
+                throws SAXException {
+            if ("row".equals(localName)) {
+                m_hasRow = true;
+                throw new StopParsingException();
+            }
+        }
+    }
+
+    /**
+     * Turns the sheet XML into rows and cells. Rows must be in ascending
+     * order, as written by Excel.
+     */
+    private abstract class SheetHandler extends DefaultHandler {
+        private final StringBuilder m_text = new StringBuilder();
+
+        // array formula ranges, the cells in them are formula cells
+        private final ArrayList<CellRangeAddress> m_arrayFormulas =
+                new ArrayList<CellRangeAddress>();
+
+        private int m_rowIdx = -1;
+
+        private int m_colIdx;
+
+        private String m_cellType;
+
+        private int m_style;
+
+        private boolean m_hasValue;
+
+        private boolean m_hasFormula;
+
+        private boolean m_inText;
+
+        private boolean m_inInlineString;
+
+        private boolean m_inPhonetic;
+
+        /**
+         * Called for each column definition.
+         */
+        void column(final int min, final int max, final boolean hidden) {
+            // ignored by default
+        }
+
+        abstract void startRow(int rowIdx) throws SAXException;
+
+        abstract void cell(int colIdx, StreamedCell cell)
+                throws SAXException;
+
+        abstract void endRow() throws SAXException;
+
+        @Override
+        public void startElement(final String uri, final String localName,
+                final String qName, final Attributes attributes)
+                throws SAXException {
+            if ("c".equals(localName)) {
+                String ref = attributes.getValue("r");
+                m_colIdx = ref == null ? m_colIdx + 1 : getColumnIndex(ref);
+                if (m_colIdx >= MAX_COLUMNS) {
+                    throw unsupported("Invalid cell reference " + ref);
+                }
+                m_cellType = attributes.getValue("t");
+                String style = attributes.getValue("s");
+                m_style = style == null ? 0 : Integer.parseInt(style);
+                m_hasValue = false;
+                m_hasFormula = false;
+                m_text.setLength(0);
+            } else if ("v".equals(localName)) {
+                m_hasValue = true;
+                m_inText = true;
+            } else if ("f".equals(localName)) {
+                String type = attributes.getValue("t");
+                if (!"dataTable".equals(type)) {
+                    m_hasFormula = true;
+                }
+                String ref = attributes.getValue("ref");
+                if ("array".equals(type) && ref != null) {
+                    m_arrayFormulas.add(CellRangeAddress.valueOf(ref));
+                }
+            } else if ("is".equals(localName)) {
+                m_hasValue = true;
+                m_inInlineString = true;
+            } else if ("t".equals(localName)) {
+                m_inText = m_inInlineString && !m_inPhonetic;
+            } else if ("rPh".equals(localName)) {
+                m_inPhonetic = true;
+            } else if ("row".equals(localName)) {
+                checkCanceled();
+                String ref = attributes.getValue("r");
+                int rowIdx = ref == null ? m_rowIdx + 1
+                        : Integer.parseInt(ref) - 1;
+                if (rowIdx <= m_rowIdx) {
+                    throw unsupported("Rows not in ascending order");
+                }
+                m_rowIdx = rowIdx;
+                m_colIdx = -1;
+                startRow(rowIdx);
+            } else if ("col".equals(localName)) {
+                column(Integer.parseInt(attributes.getValue("min")) - 1,
+                        Integer.parseInt(attributes.getValue("max")) - 1,
+                        isTrue(attributes.getValue("hidden")));
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start,
+                final int length) {
+            if (m_inText) {
+                m_text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName,
+                final String qName) throws SAXException {
+            if ("v".equals(localName) || "t".equals(localName)) {
+                m_inText = false;
+            } else if ("is".equals(localName)) {
+                m_inInlineString = false;
+            } else if ("rPh".equals(localName)) {
+                m_inPhonetic = false;
+            } else if ("c".equals(localName)) {
+                cell(m_colIdx, createCell());
+            } else if ("row".equals(localName)) {
+                endRow();
+            }
+        }
+
+        private StreamedCell createCell() throws SAXException {
+            boolean formula = m_hasFormula || isInArrayFormula();
+            if (formula && !m_hasValue) {
+                // only the DOM reader can evaluate the formula
+                throw unsupported("Formula without cached result in row "
+                        + (m_rowIdx + 1));
+            }
+            CellType type;
+            if (m_cellType == null || "n".equals(m_cellType)) {
+                type = m_hasValue ? CellType.NUMERIC : CellType.BLANK;
+            } else if ("s".equals(m_cellType) || "str".equals(m_cellType)
+                    || "inlineStr".equals(m_cellType)) {
+                type = CellType.STRING;
+            } else if ("b".equals(m_cellType)) {
+                type = CellType.BOOLEAN;
+            } else if ("e".equals(m_cellType)) {
+                type = CellType.ERROR;
+            } else {
+                throw unsupported("Unsupported cell type '" + m_cellType
+                        + "'");
+            }
+            return new StreamedCell(m_rowIdx, type, formula,
+                    "s".equals(m_cellType), m_text.toString(), m_style);
+        }
+
+        private boolean isInArrayFormula() {
+            for (CellRangeAddress range : m_arrayFormulas) {
+                if (range.isInRange(m_rowIdx, m_colIdx)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int getColumnIndex(final String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length(); i++) {
+                char c = ref.charAt(i);
+                if (c < 'A' || c > 'Z') {
+                    break;
+                }
+                col = col * 26 + (c - 'A' + 1);
+            }
+            return col - 1;
+        }
+
+        private SAXException unsupported(final String message) {
+            return new SAXException(new UnsupportedWorkbookException(message));
+        }
+    }
+
+    /**
+     * First pass: the data area, the column types (as
+     * {@link XLSTableSettings}) and the column header cells.
+     */
+    private final class AnalysisHandler extends SheetHandler {
+        private final XLSUserSettings m_settings;
+
+        // the rows the column types are taken from
+        private final int m_typedFirstRow;
+
+        private final int m_typedLastRow;
+
+        // column types by XL column index
+        private final DataType[] m_types = new DataType[MAX_COLUMNS];
+
+        // column definitions, {min, max, hidden}
+        private final ArrayList<int[]> m_columns = new ArrayList<int[]>();
+
+        private boolean m_hasTypedRows = false;
+
+        private boolean m_typedRow;
+
+        private boolean m_headerRow;
+
+        private HashMap<Integer, StreamedCell> m_headerCells;
+
+        private int m_firstRowIdx = -1;
+
+        private int m_lastRowIdx = -1;
+
+        private int m_firstColIdx = -1;
+
+        private int m_lastColIdx = -1;
+
+        private AnalysisHandler(final XLSUserSettings settings) {
+            m_settings = settings;
+            if (settings.getFirstRow() < 0) {
+                // the data area is the whole sheet
+                m_typedFirstRow = 0;
+                m_typedLastRow = Integer.MAX_VALUE;
+            } else {
+                m_typedFirstRow = settings.getFirstRow();
+                m_typedLastRow = settings.getLastRow() < 0 ? Integer.MAX_VALUE
+                        : settings.getLastRow();
+            }
+        }
+
+        /**
+         * @return the index of the first row, 0 if there is none
+         */
+        private int getFirstRowNum() {
+            return m_firstRowIdx < 0 ? 0 : m_firstRowIdx;
+        }
+
+        @Override
+        void column(final int min, final int max, final boolean hidden) {
+            m_columns.add(new int[]{min, max, hidden ? 1 : 0});
+        }
+
+        @Override
+        void startRow(final int rowIdx) {
+            if (m_firstRowIdx < 0) {
+                m_firstRowIdx = rowIdx;
+            }
+            m_lastRowIdx = rowIdx;
+            m_headerRow = m_settings.getHasColHeaders()
+                    && rowIdx == m_settings.getColHdrRow();
+            if (m_headerRow) {
+                m_headerCells = new HashMap<Integer, StreamedCell>();
+            }
+            // the row that contains the column names is not typed
+            m_typedRow = rowIdx >= m_typedFirstRow && rowIdx <= m_typedLastRow
+                    && !m_headerRow;
+            m_hasTypedRows |= m_typedRow;
+        }
+
+        @Override
+        void cell(final int colIdx, final StreamedCell cell) {
+            if (m_firstColIdx < 0 || colIdx < m_firstColIdx) {
+                m_firstColIdx = colIdx;
+            }
+            if (colIdx > m_lastColIdx) {
+                m_lastColIdx = colIdx;
+            }
+            if (m_typedRow) {
+                m_types[colIdx] =
+                        updateColumnType(m_types[colIdx], cell, m_settings);
+            }
+            if (m_headerRow) {
+                m_headerCells.put(colIdx, cell);
+            }
+        }
+
+        @Override
+        void endRow() {
+            // nothing to do
+        }
+
+        /**
+         * As XSSFSheet#isColumnHidden: the first definition counts.
+         */
+        private boolean isColumnHidden(final int colIdx) {
+            for (int[] col : m_columns) {
+                if (col[0] <= colIdx && colIdx <= col[1]) {
+                    return col[2] != 0;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param settings the settings with the data area set
+         * @param skippedCols filled with the skipped columns
+         * @return the types of the columns to read
+         */
+        private ArrayList<DataType> getColumnTypes(
+                final XLSUserSettings settings, final Set<Integer> skippedCols) {
+            int colNum = settings.getLastColumn() - settings.getFirstColumn()
+                    + 1;
+            ArrayList<DataType> colTypes =
+                    new ArrayList<DataType>(Arrays.asList(new DataType[colNum]));
+            for (int c = 0; c < colNum; c++) {
+                int xlCol = settings.getFirstColumn() + c;
+                // columns are only skipped while looking at a row
+                if (m_hasTypedRows) {
+                    if (settings.getHasRowHeaders()
+                            && xlCol == settings.getRowHdrCol()) {
+                        // skip the column with the row IDs
+                        skippedCols.add(xlCol);
+                        continue;
+                    }
+                    if (isColumnHidden(xlCol)
+                            && settings.getSkipHiddenColumns()) {
+                        skippedCols.add(xlCol);
+                        continue;
+                    }
+                }
+                if (xlCol >= 0 && xlCol < MAX_COLUMNS) {
+                    colTypes.set(c, m_types[xlCol]);
+                }
+            }
+            return XLSTableSettings.removeSkippedColumns(settings, colTypes,
+                    skippedCols);
+        }
+    }
+
+    /**
+     * Second pass: creates the rows, as {@link XLSIterator}.
+     */
+    private final class RowHandler extends SheetHandler {
+        private final XLSUserSettings m_settings;
+
+        private final DataTableSpec m_spec;
+
+        private final Set<Integer> m_skippedCols;
+
+        private final String m_sheetName;
+
+        private final BufferedDataContainer m_container;
+
+        // the index of the last row to read, for the progress
+        private final int m_lastRowIdx;
+
+        private final Hashtable<String, Number> m_rowIDhash =
+                new Hashtable<String, Number>();
+
+        // the cells of the current row that are read
+        private final HashMap<Integer, StreamedCell> m_cells =
+                new HashMap<Integer, StreamedCell>();
+
+        private boolean m_rowHasCells;
+
+        private int m_currentRowIdx = -1;
+
+        private int m_rowCount = 0;
+
+        private RowHandler(final XLSUserSettings settings,
+                final DataTableSpec spec, final Set<Integer> skippedCols,
+                final String sheetName, final BufferedDataContainer container,
+                final int lastRowIdx) {
+            m_settings = settings;
+            m_spec = spec;
+            m_skippedCols = skippedCols;
+            m_sheetName = sheetName;
+            m_container = container;
+            m_lastRowIdx = lastRowIdx;
+        }
+
+        @Override
+        void startRow(final int rowIdx) throws SAXException {
+            // rows not in the sheet are read as empty rows
+            for (int r = Math.max(m_currentRowIdx + 1,
+                    m_settings.getFirstRow()); r < rowIdx; r++) {
+                addRow(r, false);
+            }
+            m_currentRowIdx = rowIdx;
+            m_cells.clear();
+            m_rowHasCells = false;
+        }
+
+        @Override
+        void cell(final int colIdx, final StreamedCell cell) {
+            m_rowHasCells = true;
+            if ((colIdx >= m_settings.getFirstColumn()
+                    && colIdx <= m_settings.getLastColumn())
+                    || colIdx == m_settings.getRowHdrCol()) {
+                m_cells.put(colIdx, cell);
+            }
+        }
+
+        @Override
+        void endRow() throws SAXException {
+            addRow(m_currentRowIdx, true);
+        }
+
+        private void addRow(final int rowIdx, final boolean exists)
+                throws SAXException {
+            if (rowIdx > m_settings.getLastRow()) {
+                // beyond range selected by user
+                throw new StopParsingException();
+            }
+            if (m_settings.getHasColHeaders()
+                    && rowIdx == m_settings.getColHdrRow()
+                    && m_settings.getNamedRange() == null) {
+                return;
+            }
+            if (rowIdx < m_settings.getFirstRow()) {
+                // skip rows outside the user range
+                return;
+            }
+            checkCanceled();
+            if (m_settings.getSkipEmptyRows() && (!exists || !m_rowHasCells)) {
+                return;
+            }
+
+            DataCell[] cells = new DataCell[m_spec.getNumColumns()];
+            int xlOffset = m_settings.getFirstColumn();
+            for (int colIdx = 0; colIdx < cells.length; colIdx++) {
+                while (m_skippedCols.contains(xlOffset)) {
+                    xlOffset++;
+                }
+                StreamedCell cell = exists ? m_cells.get(xlOffset) : null;
+                DataType t = m_spec.getColumnSpec(colIdx).getType();
+                cells[colIdx] = createDataCell(cell, t, colIdx, m_settings,
+                        m_sheetName);
+                xlOffset++;
+            }
+
+            String key = RowKey.createRowKey(m_rowCount).getString();
+            if (m_settings.getKeepXLColNames()) {
+                // XL row IDs are just the row numbers (1-based)
+                key = "" + (rowIdx + 1);
+            } else if (m_settings.getHasRowHeaders()) {
+                String xlHdr = getXLRowHdr(exists);
+                // if row id it empty keep the default KNIME row id style
+                if (xlHdr != null && !xlHdr.isEmpty()) {
+                    key = xlHdr;
+                }
+                if (m_settings.getUniquifyRowIDs()) {
+                    key = XLSIterator.uniquifyRowHeader(key, m_rowIDhash);
+                }
+            }
+
+            if (m_settings.getSkipEmptyRows()) {
+                // skip rows with all missing cells
+                boolean isEmpty = true;
+                for (DataCell c : cells) {
+                    if (!c.isMissing()) {
+                        isEmpty = false;
+                        break;
+                    }
+                }
+                if (isEmpty) {
+                    return;
+                }
+            }
+            m_container.addRowToTable(new DefaultRow(key, cells));
+            m_rowCount++;
+            if (m_rowCount % 1000 == 0 && m_lastRowIdx > 0) {
+                m_exec.setProgress((double)rowIdx / m_lastRowIdx, "Read "
+                        + m_rowCount + " rows");
+            }
+        }
+
+        private String getXLRowHdr(final boolean exists) {
+            if (!m_settings.getHasRowHeaders() || m_settings.getRowHdrCol() < 0) {
+                return null;
+            }
+            if (!exists || !m_rowHasCells) {
+                return null;
+            }
+            StreamedCell rowID = m_cells.get(m_settings.getRowHdrCol());
+            if (rowID == null) {
+                return null;
+            }
+            DataCell idCell = createDataCell(rowID, StringCell.TYPE,
+                    m_settings.getRowHdrCol(), m_settings, m_sheetName);
+            if (idCell instanceof StringValue) {
+                return ((StringValue)idCell).getStringValue();
+            } else {
+                return idCell.toString();
+            }
+        }
+    }
+}
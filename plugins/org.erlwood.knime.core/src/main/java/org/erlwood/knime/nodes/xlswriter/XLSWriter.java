@@ -96,6 +96,7 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.IndexedColorMap;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFColor;
@@ -122,11 +123,11 @@ public class XLSWriter {
 			.getLogger(XLSWriter.class);
 
 	/**
-	 * Excel (Ver. 2003) can handle datasheets up to 64k x 256 cells!
+	 * The number of rows kept in memory while streaming an xlsx sheet, older
+	 * rows are flushed to a temporary file. The size of a sheet is limited by
+	 * the file format: 65536 x 256 cells for xls, 1048576 x 16384 for xlsx.
 	 */
-	private static final int MAX_NUM_OF_ROWS = 65536;
-
-	private static final int MAX_NUM_OF_COLS = 256;
+	private static final int ROW_ACCESS_WINDOW = 1000;
 
 	private final XLSWriterSettings mSettings;
 	private final Map<String, DoubleColumnSettings> h = new Hashtable<String, DoubleColumnSettings>();
@@ -339,22 +340,67 @@ public class XLSWriter {
 			throws Exception, CanceledExecutionException {
 
 	    Workbook wb = getWorkbook();
-	    
+		Sheet sheet = getSheet(wb, table);
+
+		// rows of a new xlsx sheet are streamed, existing rows of the workbook
+		// are kept as they are. (Rows of an existing sheet are overwritten,
+		// which needs the sheet in memory.)
+		SXSSFWorkbook streamingWb = null;
+		if (wb instanceof XSSFWorkbook && sheet.getPhysicalNumberOfRows() == 0) {
+			streamingWb = new SXSSFWorkbook((XSSFWorkbook) wb, ROW_ACCESS_WINDOW, true);
+			sheet = streamingWb.getSheet(sheet.getSheetName());
+			wb = streamingWb;
+		}
+
+		try {
+			writeRows(wb, sheet, table, exec);
+
+			// Write the output to a file
+			OutputStream mOutStream = new FileOutputStream(mSettings.getFilename());
+			wb.write(mOutStream);
+			mOutStream.close();
+		} finally {
+			if (streamingWb != null) {
+				// deletes the temporary files
+				streamingWb.dispose();
+			}
+		}
+
+		// Only auto start if we are NOT headless..
+		if (mSettings.getAutostart()
+				&& !GraphicsEnvironment.getLocalGraphicsEnvironment()
+						.isHeadlessInstance()) {
+			String fi = (new File(mSettings.getFilename())).getAbsolutePath();
+			fi = fi.replaceAll("\\s", "%20");
+			String[] commands = { "cmd", "/C", "start", "file:" + fi };
+			Runtime.getRuntime().exec(commands);
+		}
+	}
+
+	/**
+	 * Writes the table into the sheet, continuing on new sheets if it doesn't
+	 * fit.
+	 */
+	private void writeRows(final Workbook wb, Sheet sheet,
+			final DataTable table, final ExecutionMonitor exec)
+			throws Exception, CanceledExecutionException {
+
 		// in case the table doesn't fit in one sheet
 		int sheetIdx = 0;
-		Sheet sheet = getSheet(wb, table);
 		String sheetName = sheet.getSheetName();
+		int maxRows = wb.getSpreadsheetVersion().getMaxRows();
+		int maxCols = wb.getSpreadsheetVersion().getMaxColumns();
 		
 		DataTableSpec inSpec = table.getDataTableSpec();
 		int numOfCols = inSpec.getNumColumns();
 		int rowHdrIncr = mSettings.writeRowID() ? 1 : 0;
 
-		if (numOfCols + rowHdrIncr > MAX_NUM_OF_COLS) {
+		if (numOfCols + rowHdrIncr > maxCols) {
 			LOGGER.warn("The table to write has too many columns! Can't put"
-					+ " more than " + MAX_NUM_OF_COLS
+					+ " more than " + maxCols
 					+ " columns in one sheet." + " Truncating columns "
-					+ (MAX_NUM_OF_COLS + 1) + " to " + numOfCols);
-			numOfCols = MAX_NUM_OF_COLS - rowHdrIncr;
+					+ (maxCols + 1) + " to " + numOfCols);
+			numOfCols = maxCols - rowHdrIncr;
 		}
 		int numOfRows = -1;
 		if (table instanceof BufferedDataTable) {
@@ -395,7 +441,7 @@ public class XLSWriter {
 			colIdx = 0;
 
 			// create a new sheet if the old one is full
-			if (rowIdx >= MAX_NUM_OF_ROWS) {
+			if (rowIdx >= maxRows) {
 				sheetIdx++;
 				sheet = wb.createSheet(sheet.getSheetName() + "(" + sheetIdx + ")");
 				rowIdx = 0;
@@ -505,23 +551,6 @@ public class XLSWriter {
 				sheet.addMergedRegion(CellRangeAddress.valueOf(sp));
 			}
 		}
-		
-		
-		// Write the output to a file
-		OutputStream mOutStream = new FileOutputStream(mSettings.getFilename());
-		wb.write(mOutStream);
-		mOutStream.close();
-
-
-		// Only auto start if we are NOT headless..
-		if (mSettings.getAutostart()
-				&& !GraphicsEnvironment.getLocalGraphicsEnvironment()
-						.isHeadlessInstance()) {
-			String fi = (new File(mSettings.getFilename())).getAbsolutePath();
-			fi = fi.replaceAll("\\s", "%20");
-			String[] commands = { "cmd", "/C", "start", "file:" + fi };
-			Runtime.getRuntime().exec(commands);
-		}
 	}
 
 	public void writePivoted(final DataTable table, final ExecutionMonitor exec)
@@ -537,13 +566,15 @@ public class XLSWriter {
 		DataTableSpec inSpec = table.getDataTableSpec();
 		int numOfCols = inSpec.getNumColumns();
 		int rowHdrIncr = mSettings.writeRowID() ? 1 : 0;
+		int maxRows = wb.getSpreadsheetVersion().getMaxRows();
+		int maxCols = wb.getSpreadsheetVersion().getMaxColumns();
 
-		if (numOfCols + rowHdrIncr > MAX_NUM_OF_COLS) {
+		if (numOfCols + rowHdrIncr > maxCols) {
 			LOGGER.warn("The table to write has too many columns! Can't put"
-					+ " more than " + MAX_NUM_OF_COLS
+					+ " more than " + maxCols
 					+ " columns in one sheet." + " Truncating columns "
-					+ (MAX_NUM_OF_COLS + 1) + " to " + numOfCols);
-			numOfCols = MAX_NUM_OF_COLS - rowHdrIncr;
+					+ (maxCols + 1) + " to " + numOfCols);
+			numOfCols = maxCols - rowHdrIncr;
 		}
 		int numOfRows = -1;
 		if (table instanceof BufferedDataTable) {
@@ -593,7 +624,7 @@ public class XLSWriter {
 			colIdx = 0;
 
 			// create a new sheet if the old one is full
-			if (rowIdx >= MAX_NUM_OF_ROWS) {
+			if (rowIdx >= maxRows) {
 				sheetIdx++;
 				sheet = wb.createSheet(sheetName + "(" + sheetIdx + ")");
 				rowIdx = 0;
@@ -0,0 +1,165 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.knime.core.data.DataTable;
+import org.knime.core.data.container.ContainerTable;
+import org.knime.core.data.container.DataContainer;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Converts a KNIME table to and from a string for storage and transfer. The table is
+ * streamed through Deflate and Base64 encoding, so the only full copy held in memory
+ * is the string itself.
+ * <p>
+ * Encoded strings start with {@link #HEADER}. Strings without the header are taken to
+ * be the uncompressed Base64 format written by earlier versions.
+ */
+public final class TableStringCodec {
+	
+	/** Header of the compressed format. The colon is not part of the Base64 alphabet. */
+	public static final String HEADER = "ERLZ1:";
+	
+	/** Size of the buffers between the streams. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/** No instances allowed. */
+	private TableStringCodec() {
+	}
+	
+	/**
+	 * Encodes a table as a compressed string.
+	 * @param table The table to encode
+	 * @param exec The monitor for progress and cancellation
+	 * @return The encoded table
+	 * @throws IOException If the table cannot be written
+	 * @throws CanceledExecutionException If the execution is cancelled
+	 */
+	public static String encode(final DataTable table, final ExecutionMonitor exec) 
+			throws IOException, CanceledExecutionException {
+		StringBuilder sb = new StringBuilder(HEADER);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try (OutputStream out = new DeflaterOutputStream(
+				new Base64OutputStream(new AsciiOutputStream(sb), true, 0, null), 
+				deflater, BUFFER_SIZE)) {
+			DataContainer.writeToStream(table, out, exec);
+		} finally {
+			deflater.end();
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Decodes a table from a string in either the compressed or the earlier format.
+	 * @param data The encoded table
+	 * @return The decoded table
+	 * @throws IOException If the string is not a valid table
+	 */
+	public static ContainerTable decode(final String data) throws IOException {
+		if (data.startsWith(HEADER)) {
+			Inflater inflater = new Inflater();
+			try (InputStream in = new InflaterInputStream(
+					new Base64InputStream(new AsciiInputStream(data, HEADER.length())), 
+					inflater, BUFFER_SIZE)) {
+				return DataContainer.readFromStream(in);
+			} finally {
+				inflater.end();
+			}
+		}
+		try (InputStream in = new Base64InputStream(new AsciiInputStream(data, 0))) {
+			return DataContainer.readFromStream(in);
+		}
+	}
+	
+	/**
+	 * Appends bytes as characters to a StringBuilder. Only used for the Base64 
+	 * alphabet, so each byte is one character.
+	 */
+	private static final class AsciiOutputStream extends OutputStream {
+		private final StringBuilder sb;
+		
+		private AsciiOutputStream(StringBuilder sb) {
+			this.sb = sb;
+		}
+
+		@Override
+		public void write(int b) {
+			sb.append((char) (b & 0xFF));
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			sb.ensureCapacity(sb.length() + len);
+			for (int i = off; i < off + len; i++) {
+				sb.append((char) (b[i] & 0xFF));
+			}
+		}
+	}
+	
+	/**
+	 * Reads the characters of a string as bytes, without copying the string.
+	 */
+	private static final class AsciiInputStream extends InputStream {
+		private final String data;
+		private int pos;
+		
+		private AsciiInputStream(String data, int start) {
+			this.data = data;
+			this.pos = start;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length() ? data.charAt(pos++) & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = Math.min(len, data.length() - pos);
+			if (n <= 0) {
+				return -1;
+			}
+			for (int i = 0; i < n; i++) {
+				b[off + i] = (byte) data.charAt(pos++);
+			}
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return data.length() - pos;
+		}
+	}
+}
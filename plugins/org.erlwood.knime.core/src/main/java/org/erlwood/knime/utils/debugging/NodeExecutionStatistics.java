@@ -46,6 +46,7 @@ import javax.swing.table.TableRowSorter;
 import org.knime.core.node.workflow.NodeID;
 
 import org.erlwood.knime.ErlwoodNodeStateChangeListener;
+import org.erlwood.knime.NodeExecutionMetrics.Execution;
 import org.erlwood.knime.ErlwoodNodeStateChangeListener.NodeExecutionListener;
 
 /**
@@ -155,14 +156,15 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 	}
 	
 	private class RawTableModel extends AbstractTableModel {
-		private String[]	columnNames = new String[] {"Name", "Id", "Execution Time", "IO Time"};
-		private List<NodeExecutionRecord> rows = new ArrayList<NodeExecutionRecord>();
+		private String[]	columnNames = new String[] {"Name", "Id", "Execution Time", "CPU Time", "Rows In", "Rows Out", "Rows/s", "IO Time"};
+		private List<Execution> rows = new ArrayList<Execution>();
 		
-		void addNodeExecution(String name, NodeID id, long executionTime, long ioTiming) {
-			rows.add(new NodeExecutionRecord(name, id, executionTime, ioTiming));
+		void addNodeExecution(final Execution execution) {
+			// executions are reported from the node threads, so only touch the rows on the EDT
 			SwingUtilities.invokeLater(new Runnable() {
 				@Override
 				public void run() {
+					rows.add(execution);
 					fireTableDataChanged();
 				}				
 			});
@@ -170,10 +172,10 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 		}
 		
 		public void clear() {
-			rows.clear();
 			SwingUtilities.invokeLater(new Runnable() {
 				@Override
 				public void run() {
+					rows.clear();
 					fireTableDataChanged();
 				}				
 			});
@@ -186,12 +188,11 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 					return String.class;
 				case 1:
 					return String.class;
-				case 2:
-					return Long.class;
-				case 3:
+				case 6:
+					return Double.class;
+				default:
 					return Long.class;
 			}			
-			return null;
 		}
 		
 		@Override
@@ -210,16 +211,24 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 
 		@Override
 		public Object getValueAt(int row, int col) {
-			NodeExecutionRecord ner = rows.get(row);
+			Execution ex = rows.get(row);
 			switch(col) {
 			case 0:
-				return ner.getName();				
+				return ex.getName();				
 			case 1:
-				return ner.getId();				
+				return ex.getId();				
 			case 2:
-				return ner.getExecutionTime();				
+				return ex.getWallTime();				
 			case 3:
-				return ner.getIOTiming() == 0 ? "" : ner.getIOTiming();				
+				return ex.getCpuTime() < 0 ? null : ex.getCpuTime();				
+			case 4:
+				return ex.getRowsIn() < 0 ? null : ex.getRowsIn();				
+			case 5:
+				return ex.getRowsOut() < 0 ? null : ex.getRowsOut();				
+			case 6:
+				return ex.getRowsPerSecond();				
+			case 7:
+				return ex.getIOTiming() == 0 ? null : ex.getIOTiming();				
 			}
 			return null;
 		}
@@ -233,32 +242,32 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 		private Map<String, NodeExecutionRecord> executionMap = new HashMap<String, NodeExecutionRecord>();
 		private long totalExecutionTime = 0;
 		
-		void addNodeExecution(String name, NodeID id, long executionTime, long ioTiming) {
-			NodeExecutionRecord ner = executionMap.get(name);
-			if (ner == null) {
-				ner = new NodeExecutionRecord(name, id, executionTime, ioTiming);
-				executionMap.put(name, ner);
-				rows.add(ner);	
-			} else {
-				ner.incrementExecutionTime(executionTime);
-				ner.incrementIOTiming(ioTiming);
-			}
-			totalExecutionTime += executionTime;
+		void addNodeExecution(final String name, final NodeID id, final long executionTime, final long ioTiming) {
 			SwingUtilities.invokeLater(new Runnable() {
 				@Override
 				public void run() {
+					NodeExecutionRecord ner = executionMap.get(name);
+					if (ner == null) {
+						ner = new NodeExecutionRecord(name, id, executionTime, ioTiming);
+						executionMap.put(name, ner);
+						rows.add(ner);	
+					} else {
+						ner.incrementExecutionTime(executionTime);
+						ner.incrementIOTiming(ioTiming);
+					}
+					totalExecutionTime += executionTime;
 					fireTableDataChanged();
 				}				
 			});			
 		}
 		
 		public void clear() {
-			rows.clear();
-			executionMap.clear();
-			totalExecutionTime = 0;
 			SwingUtilities.invokeLater(new Runnable() {
 				@Override
 				public void run() {
+					rows.clear();
+					executionMap.clear();
+					totalExecutionTime = 0;
 					fireTableDataChanged();
 				}				
 			});
@@ -315,9 +324,10 @@ public class NodeExecutionStatistics  extends JFrame implements NodeExecutionLis
 	}
 	
 	@Override
-	public void nodeExecuted(final String name, final NodeID id, final long executionTime, final long ioTiming) {
-		rawTableModel.addNodeExecution(name, id, executionTime, ioTiming);
-		aggregateTableModel.addNodeExecution(name, id, executionTime, ioTiming);
+	public void nodeExecuted(final Execution execution) {
+		rawTableModel.addNodeExecution(execution);
+		aggregateTableModel.addNodeExecution(execution.getName(), execution.getId(), 
+				execution.getWallTime(), execution.getIOTiming());
 	}
 	
 	private class NodeExecutionRecord {
@@ -21,25 +21,50 @@
 package org.erlwood.knime.utils.jobhandling;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
 
 /**
  * This class is designed to allow for job cancellation by the KNIME
  * ExecutionContext.
+ * <p>
+ * The job runs on the calling thread (or on an executor supplied by the caller),
+ * while a single scheduler thread shared by all jobs checks the execution monitor
+ * for cancellation. A cancelled job is interrupted, or has its future cancelled,
+ * and the {@link CanceledExecutionException} is rethrown to the caller.
  * @author Luke Bullard
  *
  * @param <T> The return type for the job execution.
  */
 public class CancellableJob<T> {
-	/** Prefix for service thread names.	 */
-	private final String threadPrefix;
+	/** Interval between cancellation checks in milliseconds. */
+	static final long CHECK_INTERVAL_MILLIS = 100;
+	
+	/** Scheduler shared by all jobs for the cancellation checks. */
+	private static final ScheduledThreadPoolExecutor CANCEL_CHECKER;
+	static {
+		CANCEL_CHECKER = new ScheduledThreadPoolExecutor(1, new ThreadFactory( ) {
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "CancellableJob_Checker");
+				thread.setDaemon(true);
+				return thread;
+			}
+			
+		});
+		// finished jobs must not leave their checks behind in the queue
+		CANCEL_CHECKER.setRemoveOnCancelPolicy(true);
+	}
 	
 	/**
 	 * Simple job execution interface.
@@ -56,103 +81,170 @@ public class CancellableJob<T> {
 		T execute() throws Exception;
 	};
 	
+	/**
+	 * Constructor.
+	 */
+	public CancellableJob( ) {
+	}
+	
 	/**
 	 * Constructor.
 	 * @param threadPrefix The thread prefix to use.
+	 * @deprecated Jobs no longer run on dedicated threads, so the prefix is ignored.
 	 */
+	@Deprecated
 	public CancellableJob(String threadPrefix) {
-		this.threadPrefix = threadPrefix;
 	}
 	
 	/**
-	 * Execute a job, whilst checking for job cancellation via the checkCanceled
-	 * method of ExecutionContext
-	 * @param exec The ExecutionContext
+	 * Execute a job on the calling thread, whilst checking for job cancellation via 
+	 * the checkCanceled method of the ExecutionMonitor. On cancellation the calling 
+	 * thread is interrupted, so the job should respond to interrupts in order to
+	 * stop early.
+	 * @param exec The ExecutionMonitor, may be null
 	 * @param theJob The job to run
 	 * @return T
 	 * @throws Throwable On Error
 	 */
-	@SuppressWarnings("unchecked")
-	public T execute(final ExecutionContext exec, final Job<T> theJob) throws Throwable {
+	public T execute(final ExecutionMonitor exec, final Job<T> theJob) throws Throwable {
+		if (exec == null) {
+			return theJob.execute();
+		}
+		exec.checkCanceled( );
 		
-		// initialise the thread pool
-		final ExecutorService threadPool = Executors.newFixedThreadPool(
-				2,
-				new ThreadFactory( ) {
-
-					@Override
-					public Thread newThread(final Runnable runnable) {
-						Thread thread = new Thread(runnable);
-						thread.setName(threadPrefix + "_" + thread.getId( ));
-						return thread;
-						
-					}
-					
-				}
-		);
-		CompletionService<Object> pool = new ExecutorCompletionService<Object>(threadPool);
+		CancelCheck check = new CancelCheck(exec, Thread.currentThread( ), null);
+		check.start( );
 		
-		// create monitor thread for cancellation
-		pool.submit(new Callable<Object>( ) {
-			
-			@Override
-			public Void call( ) throws Exception {
-				try {
-					while(!threadPool.isShutdown( )) {
-						// check for cancellation
-						if (exec != null) {
-							exec.checkCanceled( );
-						}
-						
-						// wait before checking again for cancellation
-						Thread.sleep(300);
-					}
-				} catch(InterruptedException e) {
-					// interrupted when service thread completes
-					Thread.currentThread( ).interrupt( );
-				} finally {
-					threadPool.shutdownNow( );
-				}
-				
-				return null;
-			}
-			
-		});
+		T result = null;
+		Throwable failure = null;
+		try {
+			result = theJob.execute();
+		} catch(Throwable ex) {
+			failure = ex;
+		}
 		
-		// Job execution thread
-		pool.submit(new Callable<Object>( ) {
-			
+		CanceledExecutionException cancelled = check.finish( );
+		if (cancelled != null) {
+			// Clear the interrupt delivered by the check
+			Thread.interrupted( );
+			throw cancelled;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return result;
+	}
+	
+	/**
+	 * Execute a job on the given executor, whilst checking for job cancellation via
+	 * the checkCanceled method of the ExecutionMonitor. On cancellation the job's future
+	 * is cancelled and this method returns immediately, even if the job ignores the 
+	 * interrupt.
+	 * @param exec The ExecutionMonitor, may be null
+	 * @param theJob The job to run
+	 * @param executor The executor to run the job on
+	 * @return T
+	 * @throws Throwable On Error
+	 */
+	public T execute(final ExecutionMonitor exec, final Job<T> theJob, 
+			final ExecutorService executor) throws Throwable {
+		if (exec != null) {
+			exec.checkCanceled( );
+		}
+		
+		Future<T> future = executor.submit(new Callable<T>( ) {
+
 			@Override
-			public Object call( ) throws Exception {
-				T result = null;
-				try {
-					result = theJob.execute();
-				} finally {
-					threadPool.shutdownNow( );
-				}
-				return result;
+			public T call( ) throws Exception {
+				return theJob.execute();
 			}
 			
 		});
 		
-		// extract the result
+		CancelCheck check = null;
+		if (exec != null) {
+			check = new CancelCheck(exec, null, future);
+			check.start( );
+		}
+		
 		try {
-			for(int i = 0; i < 2; i++) {
-				Object o = pool.take( ).get( );
-				if(o != null) {
-					return (T)o;
-				}
+			return future.get( );
+		} catch(CancellationException e) {
+			CanceledExecutionException cancelled = check == null ? null : check.finish( );
+			if (cancelled != null) {
+				throw cancelled;
 			}
-			
-			// Nothing was returned from either thread
-			return null;
+			throw e;
 		} catch(ExecutionException e) {
 			Throwable ex = e;
 			if(e.getCause( ) != null) {
 				// Only report the cause exception to the user
 				ex = e.getCause( );
 			}
-			throw ex;			
-		} 
+			throw ex;
+		} catch(InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		} finally {
+			if (check != null) {
+				check.finish( );
+			}
+		}
+	}
+	
+	/**
+	 * Periodic cancellation check for a single job, run on the shared scheduler.
+	 */
+	private static final class CancelCheck implements Runnable {
+		private final ExecutionMonitor exec;
+		private final Thread thread;
+		private final Future<?> future;
+		private ScheduledFuture<?> schedule;
+		private CanceledExecutionException cancelled;
+		private boolean finished;
+		
+		CancelCheck(ExecutionMonitor exec, Thread thread, Future<?> future) {
+			this.exec = exec;
+			this.thread = thread;
+			this.future = future;
+		}
+		
+		synchronized void start( ) {
+			schedule = CANCEL_CHECKER.scheduleWithFixedDelay(this, 
+					CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Stops the checks. Once this has returned the job will not be interrupted.
+		 * @return The cancellation exception if the job was cancelled, otherwise null
+		 */
+		synchronized CanceledExecutionException finish( ) {
+			if (!finished) {
+				finished = true;
+				schedule.cancel(false);
+			}
+			return cancelled;
+		}
+		
+		@Override
+		public void run( ) {
+			try {
+				exec.checkCanceled( );
+			} catch(CanceledExecutionException e) {
+				synchronized (this) {
+					if (finished) {
+						return;
+					}
+					finished = true;
+					cancelled = e;
+					schedule.cancel(false);
+					if (future != null) {
+						future.cancel(true);
+					} else {
+						thread.interrupt( );
+					}
+				}
+			}
+		}
 	}
 }
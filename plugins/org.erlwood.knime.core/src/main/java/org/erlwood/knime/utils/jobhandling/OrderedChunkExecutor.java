@@ -0,0 +1,266 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.utils.jobhandling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Splits an input sequence into chunks, processes the chunks on a bounded
+ * worker pool and hands the results back on the calling thread in the
+ * original input order.
+ *
+ * At most two chunks per worker are in flight at any time, so the input is
+ * only read as fast as the workers can keep up with it. Progress and
+ * cancellation are reported once per completed chunk.
+ *
+ * execute only returns, normally or with an exception, once every worker
+ * has stopped, so anything the processor uses can be released straight
+ * afterwards.
+ *
+ * @param <I> The input item type.
+ * @param <O> The result item type.
+ */
+public class OrderedChunkExecutor<I, O> {
+	/** How long to wait for a chunk before checking for cancellation again. */
+	private static final long POLL_MILLIS = 100;
+
+	/** The most worker threads started per available processor. */
+	private static final int MAX_THREADS_PER_PROCESSOR = 4;
+
+	/** Upper bound for the thread count settings of nodes that use this class. */
+	public static final int MAX_THREAD_SETTING = 256;
+
+	/** Prefix for worker thread names.	 */
+	private final String threadPrefix;
+
+	/** The number of worker threads. */
+	private final int threads;
+
+	/** The maximum number of input items per chunk. */
+	private final int chunkSize;
+
+	/**
+	 * Processes a single chunk of input.
+	 *
+	 * @param <I> The input item type.
+	 * @param <O> The result item type.
+	 */
+	public interface ChunkProcessor<I, O> {
+		/**
+		 * Process a chunk. Called concurrently from several worker threads.
+		 * @param chunk The input items
+		 * @return The results for the chunk, in input order
+		 * @throws Exception On Error
+		 */
+		List<O> process(List<I> chunk) throws Exception;
+	}
+
+	/**
+	 * Receives the results, always on the thread that called execute.
+	 *
+	 * @param <O> The result item type.
+	 */
+	public interface ResultConsumer<O> {
+		/**
+		 * Consume a single result.
+		 * @param result The result
+		 * @throws Exception On Error
+		 */
+		void accept(O result) throws Exception;
+	}
+
+	/**
+	 * Constructor.
+	 * @param threadPrefix The thread prefix to use.
+	 * @param threads The number of worker threads, at least 1. Values above
+	 * {@link #getMaxThreadCount()} are reduced to it.
+	 * @param chunkSize The number of input items per chunk, at least 1.
+	 */
+	public OrderedChunkExecutor(String threadPrefix, int threads, int chunkSize) {
+		this.threadPrefix = threadPrefix;
+		this.threads = Math.max(1, Math.min(threads, getMaxThreadCount()));
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * @return The default number of worker threads for this machine, at most
+	 * {@link #MAX_THREAD_SETTING}.
+	 */
+	public static int getDefaultThreadCount() {
+		return Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREAD_SETTING);
+	}
+
+	/**
+	 * @return The most worker threads used on this machine, whatever the requested count.
+	 */
+	public static int getMaxThreadCount() {
+		return MAX_THREADS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Process all items of the input.
+	 * @param exec The ExecutionMonitor used for progress and cancellation, may be null
+	 * @param input The input items
+	 * @param total The total number of input items, used for progress only
+	 * @param processor The chunk processor
+	 * @param consumer The result consumer
+	 * @throws Exception On Error, or if the execution was cancelled
+	 */
+	public void execute(final ExecutionMonitor exec, final Iterator<? extends I> input, final long total,
+			final ChunkProcessor<I, O> processor, final ResultConsumer<O> consumer) throws Exception {
+
+		final ExecutorService threadPool = Executors.newFixedThreadPool(
+				threads,
+				new ThreadFactory( ) {
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(runnable);
+						thread.setName(threadPrefix + "_" + thread.getId( ));
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				}
+		);
+
+		final int maxPending = threads * 2;
+		final Deque<PendingChunk<O>> pending = new ArrayDeque<PendingChunk<O>>();
+		long done = 0;
+		try {
+			while (input.hasNext()) {
+				final List<I> chunk = new ArrayList<I>(chunkSize);
+				while (chunk.size() < chunkSize && input.hasNext()) {
+					chunk.add(input.next());
+				}
+				Future<List<O>> future = threadPool.submit(new Callable<List<O>>() {
+					@Override
+					public List<O> call() throws Exception {
+						return processor.process(chunk);
+					}
+				});
+				pending.add(new PendingChunk<O>(future, chunk.size()));
+
+				while (pending.size() >= maxPending) {
+					done = drain(exec, pending.poll(), consumer, done, total);
+				}
+			}
+			while (!pending.isEmpty()) {
+				done = drain(exec, pending.poll(), consumer, done, total);
+			}
+		} finally {
+			for (PendingChunk<O> p : pending) {
+				p.future.cancel(true);
+			}
+			threadPool.shutdownNow();
+			awaitTermination(threadPool);
+		}
+	}
+
+	/**
+	 * Wait until all workers of the pool have stopped. A worker that is busy
+	 * in native code may not react to the interrupt from shutdownNow, so this
+	 * keeps waiting even if the calling thread is interrupted and restores
+	 * the interrupt flag afterwards.
+	 */
+	private static void awaitTermination(ExecutorService threadPool) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (threadPool.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for the given chunk and pass its results on.
+	 */
+	private long drain(ExecutionMonitor exec, PendingChunk<O> chunk, ResultConsumer<O> consumer,
+			long done, long total) throws Exception {
+
+		List<O> results;
+		try {
+			while (true) {
+				if (exec != null) {
+					exec.checkCanceled();
+				}
+				try {
+					results = chunk.future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					break;
+				} catch (TimeoutException e) {
+					// not finished yet, check for cancellation and wait again
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				// Only report the cause exception to the user
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+
+		for (O o : results) {
+			consumer.accept(o);
+		}
+
+		long newDone = done + chunk.size;
+		if (exec != null) {
+			if (total > 0) {
+				exec.setProgress((double) newDone / (double) total);
+			}
+			exec.checkCanceled();
+		}
+		return newDone;
+	}
+
+	/** A submitted chunk and the number of input items in it. */
+	private static final class PendingChunk<O> {
+		private final Future<List<O>> future;
+		private final int size;
+
+		private PendingChunk(Future<List<O>> future, int size) {
+			this.future = future;
+			this.size = size;
+		}
+	}
+}
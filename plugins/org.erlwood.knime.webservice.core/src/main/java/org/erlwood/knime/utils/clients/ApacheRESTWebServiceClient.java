@@ -31,6 +31,7 @@ import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.security.PrivilegedExceptionAction;
 import java.util.Map;
+import java.util.Objects;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipException;
 
@@ -50,6 +51,7 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.entity.BasicHttpEntity;
@@ -66,11 +68,6 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.SystemDefaultCredentialsProvider;
 import org.apache.http.impl.client.WinHttpClients;
-import org.apache.http.protocol.BasicHttpContext;
-import org.eclipse.core.runtime.CoreException;
-import org.eclipse.core.runtime.IConfigurationElement;
-import org.eclipse.core.runtime.IExtensionRegistry;
-import org.eclipse.core.runtime.Platform;
 import org.erlwood.knime.utils.auth.AuthenticationUtils;
 import org.erlwood.knime.utils.auth.ntlm.NTLMAuthentication;
 import org.erlwood.knime.utils.clients.schemefactories.ErlwoodWindowsNTLMSchemeFactory;
@@ -120,8 +117,11 @@ public class ApacheRESTWebServiceClient extends RESTWebServiceClient {
 	/** The target containing the URL to point the requests at. */
 	private HttpHost target;
 	
-	/** The local context containing the credentials. */
-	private BasicHttpContext localContext;
+	/** The proxy to connect through, null for a direct connection. */
+	private HttpHost proxyHost;
+	
+	/** The key of the shared client, also tags the pooled connections this client authenticated. */
+	private ClientKey clientKey;
 	
 	/** The HTTP Entity factory to use to create the POST content. */
 	private HttpEntityFactory entityFactory;
@@ -250,21 +250,16 @@ public class ApacheRESTWebServiceClient extends RESTWebServiceClient {
 			Subject s = null;
 			
 			// 	Gets the Kerberos Suppliers
-			IExtensionRegistry reg = Platform.getExtensionRegistry();
-	    	for (IConfigurationElement element : reg.getConfigurationElementsFor("org.erlwood.knime.webservice.core.ErlwoodKerberosAuthSupplier")) {	    		
-	    		IErlwoodKerberosAuthSupplier hs = null;
-	    		try {
-	    			hs = (IErlwoodKerberosAuthSupplier) element.createExecutableExtension("class");
-	    			s = hs.getSubject(getCredentials());
-	    			if (s != null) {
-	    				break;
-	    			}
-	    		} catch(CoreException ex) {
-	                // Do nothing
-	            	LOGGER.error(ex.getMessage(), ex);
-	            }
+	    	for (IErlwoodKerberosAuthSupplier hs : SharedHttpClients.getKerberosSuppliers()) {
+	    		s = hs.getSubject(getCredentials());
+	    		if (s != null) {
+	    			break;
+	    		}
 	    	}
 	    	
+	    	// A new context per request, so concurrent requests do not share the auth state
+	    	final HttpClientContext localContext = HttpClientContext.create();
+	    	localContext.setUserToken(clientKey);
 			
 			// Perform the query. Either as a privileged user or not.
 			if (s != null) {
@@ -353,21 +348,8 @@ public class ApacheRESTWebServiceClient extends RESTWebServiceClient {
     			
 		
         // Set the proxy (if needed)
- 		try {
- 	        URI proxy = retrieveProxy(new URI(target.getSchemeName( ), null, 
- 	        		target.getHostName( ), target.getPort( ), null, null, null)
- 	        );
- 	        if(proxy != null) {
- 	        	HttpHost proxyHost = new HttpHost(
- 	        			proxy.getHost( ), 
- 	        			proxy.getPort( ), 
- 	        			proxy.getScheme( )
- 	        	);
- 	        	requestConfigBuilder.setProxy(proxyHost);
-  	        }
- 		} catch(URISyntaxException e) {
- 			// report error, but do not fail
- 			LOGGER.debug(e);
+ 		if(proxyHost != null) {
+ 			requestConfigBuilder.setProxy(proxyHost);
  		}
  		
      		
@@ -426,20 +408,48 @@ public class ApacheRESTWebServiceClient extends RESTWebServiceClient {
 				     
 		// set the host address
         target = new HttpHost(serviceRoot.getHost( ), serviceRoot.getPort( ), serviceRoot.getScheme( ));
-                 
-		HttpClientBuilder builder = getWinHttpClientsCustomBuilder();
-		configureBuilder(builder, credentials);
-		
-		// set the RedirectStrategy if there is one
-		if(redirectStrategy != null) {
-			builder.setRedirectStrategy(redirectStrategy);
-		}
+        proxyHost = findProxy( );
+        
+        // reuse the client (and its pooled connections) of any client with the same configuration
+        clientKey = new ClientKey(getClass( ), credentials, settings.getTimeOut( ), proxyHost, redirectStrategy);
+		client = SharedHttpClients.getClient(clientKey, new SharedHttpClients.ClientFactory( ) {
+			
+			@Override
+			public HttpClientBuilder createBuilder( ) throws WebServiceException {
+				HttpClientBuilder builder = getWinHttpClientsCustomBuilder();
+				configureBuilder(builder, credentials);
 				
-		// create the client
-		client = builder.build();
+				// set the RedirectStrategy if there is one
+				if(redirectStrategy != null) {
+					builder.setRedirectStrategy(redirectStrategy);
+				}
+				return builder;
+			}
+		});
                 
 	}
 	
+	/** Find the proxy for the target.
+	 * @return The proxy, or null to connect directly. */
+	private HttpHost findProxy( ) {
+ 		try {
+ 	        URI proxy = retrieveProxy(new URI(target.getSchemeName( ), null, 
+ 	        		target.getHostName( ), target.getPort( ), null, null, null)
+ 	        );
+ 	        if(proxy != null) {
+ 	        	return new HttpHost(
+ 	        			proxy.getHost( ), 
+ 	        			proxy.getPort( ), 
+ 	        			proxy.getScheme( )
+ 	        	);
+  	        }
+ 		} catch(URISyntaxException e) {
+ 			// report error, but do not fail
+ 			LOGGER.debug(e);
+ 		}
+ 		return null;
+	}
+	
 	protected CredentialsProvider getCredentialsProvider(NtlmPasswordAuthentication credentials) {
 		CredentialsProvider provider = new BasicCredentialsProvider();
 
@@ -463,5 +473,50 @@ public class ApacheRESTWebServiceClient extends RESTWebServiceClient {
 	protected void setWebServiceSettings(WebServiceSettings settings) {
 		this.settings = settings;
 	}
+	
+	/** Everything that configures the HTTP client of an instance. */
+	private static final class ClientKey {
+		private final Class<?> clientClass;
+		private final String domain;
+		private final String username;
+		private final String password;
+		private final int timeOut;
+		private final HttpHost proxy;
+		private final RedirectStrategy redirectStrategy;
+		
+		private ClientKey(final Class<?> clientClass, final NtlmPasswordAuthentication credentials, 
+				final int timeOut, final HttpHost proxy, final RedirectStrategy redirectStrategy) 
+		{
+			this.clientClass = clientClass;
+			this.domain = credentials == null ? null : credentials.getDomain( );
+			this.username = credentials == null ? null : credentials.getUsername( );
+			this.password = credentials == null ? null : credentials.getPassword( );
+			this.timeOut = timeOut;
+			this.proxy = proxy;
+			this.redirectStrategy = redirectStrategy;
+		}
+		
+		@Override
+		public boolean equals(final Object obj) {
+			if(!(obj instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) obj;
+			return clientClass == other.clientClass
+					&& Objects.equals(domain, other.domain)
+					&& Objects.equals(username, other.username)
+					&& Objects.equals(password, other.password)
+					&& timeOut == other.timeOut
+					&& Objects.equals(proxy, other.proxy)
+					// strategies may hold state, so only the same instance is equal
+					&& redirectStrategy == other.redirectStrategy;
+		}
+		
+		@Override
+		public int hashCode( ) {
+			return Objects.hash(clientClass, domain, username, timeOut, proxy, 
+					redirectStrategy == null ? 0 : System.identityHashCode(redirectStrategy));
+		}
+	}
 
 }
@@ -0,0 +1,204 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ * Copyright (C) 2014 Eli Lilly and Company Limited
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * ------------------------------------------------------------------------
+*/
+package org.erlwood.knime.utils.clients;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.UserTokenHandler;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IConfigurationElement;
+import org.eclipse.core.runtime.IExtensionRegistry;
+import org.eclipse.core.runtime.Platform;
+import org.erlwood.knime.utils.exceptions.WebServiceException;
+import org.knime.core.node.NodeLogger;
+
+/** Process wide HTTP connection pool and client cache for the Apache based web service clients.
+ * 
+ * All clients lease their connections from one pooling connection manager, so connections
+ * (and their TLS sessions) are reused across rows and nodes. Connections authenticated with
+ * NTLM or Negotiate are tagged with the key of the client that opened them, so they are only
+ * ever reused by clients with the same credentials, proxy and configuration. */
+public final class SharedHttpClients {
+	
+	/** The node logger instance. */
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(SharedHttpClients.class);
+	
+	/** The extension point of the Kerberos suppliers. */
+	private static final String KERBEROS_SUPPLIER_EXTENSION_POINT = 
+			"org.erlwood.knime.webservice.core.ErlwoodKerberosAuthSupplier";
+	
+	/** The maximum number of pooled connections. */
+	private static final int MAX_TOTAL_CONNECTIONS = 200;
+	
+	/** The maximum number of pooled connections per route. */
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+	
+	/** Idle connections are closed after this many seconds. */
+	private static final long MAX_IDLE_SECONDS = 30;
+	
+	/** How often the idle connections are checked, in seconds. */
+	private static final long EVICTION_INTERVAL_SECONDS = 5;
+	
+	/** Connections idle for longer than this are validated before they are reused. */
+	private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+	
+	/** The maximum number of cached clients. */
+	private static final int MAX_CLIENTS = 32;
+	
+	/** The shared connection manager. */
+	private static final PoolingHttpClientConnectionManager CONNECTION_MANAGER;
+	
+	/** The cached clients, least recently used first. */
+	private static final Map<Object, CloseableHttpClient> CLIENTS = 
+			new LinkedHashMap<Object, CloseableHttpClient>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Object, CloseableHttpClient> eldest) {
+					// the evicted client is not closed, it may still be in use and only shares the pool
+					return size( ) > MAX_CLIENTS;
+				}
+			};
+	
+	/** Keeps connections alive for as long as the server allows, but no longer than the idle limit. */
+	private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy( ) {
+		@Override
+		public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			long max = TimeUnit.SECONDS.toMillis(MAX_IDLE_SECONDS);
+			return duration > 0 ? Math.min(duration, max) : max;
+		}
+	};
+	
+	/** The Kerberos suppliers, loaded on first use. */
+	private static volatile List<IErlwoodKerberosAuthSupplier> kerberosSuppliers;
+	
+	static {
+		// use the system SSL settings, as WinHttpClients.custom( ) does
+		Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create( )
+				.register("http", PlainConnectionSocketFactory.getSocketFactory( ))
+				.register("https", SSLConnectionSocketFactory.getSystemSocketFactory( ))
+				.build( );
+		CONNECTION_MANAGER = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+		CONNECTION_MANAGER.setMaxTotal(MAX_TOTAL_CONNECTIONS);
+		CONNECTION_MANAGER.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		CONNECTION_MANAGER.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+		
+		new IdleConnectionEvictor(CONNECTION_MANAGER, 
+				EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS, 
+				MAX_IDLE_SECONDS, TimeUnit.SECONDS).start( );
+	}
+	
+	/** Creates the HTTP client for a key that is not cached yet. */
+	public interface ClientFactory {
+		
+		/** Create and configure the builder of the client. The connection manager, keep-alive
+		 * strategy and user token handler are set by the caller.
+		 * @return The configured builder.
+		 * @throws WebServiceException If an error occurs configuring the client. */
+		HttpClientBuilder createBuilder( ) throws WebServiceException;
+		
+	}
+	
+	private SharedHttpClients( ) { }
+	
+	/** Get the client for the given key, creating it if it does not exist yet.
+	 * @param key The key of the client, must contain everything that configures the client
+	 * 	(authentication, proxy, timeouts, ...) and implement equals and hashCode accordingly.
+	 * @param factory The factory to create the client with if it is not cached.
+	 * @return The shared client.
+	 * @throws WebServiceException If an error occurs creating the client. */
+	public static CloseableHttpClient getClient(final Object key, final ClientFactory factory) 
+			throws WebServiceException
+	{
+		synchronized(CLIENTS) {
+			CloseableHttpClient client = CLIENTS.get(key);
+			if(client == null) {
+				HttpClientBuilder builder = factory.createBuilder( );
+				builder.setConnectionManager(CONNECTION_MANAGER);
+				builder.setConnectionManagerShared(true);
+				builder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+				builder.setUserTokenHandler(new UserTokenHandler( ) {
+					@Override
+					public Object getUserToken(final HttpContext context) {
+						// tag every connection with the key, connection based authentication
+						// (NTLM, Negotiate) must not leak to clients with other credentials
+						return key;
+					}
+				});
+				client = builder.build( );
+				CLIENTS.put(key, client);
+			}
+			return client;
+		}
+	}
+	
+	/** @return The shared connection manager. */
+	public static PoolingHttpClientConnectionManager getConnectionManager( ) {
+		return CONNECTION_MANAGER;
+	}
+	
+	/** Get the registered Kerberos suppliers. The extension registry is only read once.
+	 * @return The suppliers, in registry order. */
+	public static List<IErlwoodKerberosAuthSupplier> getKerberosSuppliers( ) {
+		List<IErlwoodKerberosAuthSupplier> suppliers = kerberosSuppliers;
+		if(suppliers == null) {
+			synchronized(SharedHttpClients.class) {
+				suppliers = kerberosSuppliers;
+				if(suppliers == null) {
+					suppliers = new ArrayList<IErlwoodKerberosAuthSupplier>( );
+					IExtensionRegistry reg = Platform.getExtensionRegistry( );
+					if(reg != null) {
+						for(IConfigurationElement element : reg.getConfigurationElementsFor(KERBEROS_SUPPLIER_EXTENSION_POINT)) {
+							try {
+								suppliers.add((IErlwoodKerberosAuthSupplier) element.createExecutableExtension("class"));
+							} catch(CoreException ex) {
+								LOGGER.error(ex.getMessage( ), ex);
+							}
+						}
+					}
+					suppliers = Collections.unmodifiableList(suppliers);
+					kerberosSuppliers = suppliers;
+				}
+			}
+		}
+		return suppliers;
+	}
+	
+}
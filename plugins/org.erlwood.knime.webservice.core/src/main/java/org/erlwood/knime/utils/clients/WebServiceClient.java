@@ -26,6 +26,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.net.proxy.IProxyData;
 import org.eclipse.core.net.proxy.IProxyService;
@@ -52,6 +55,22 @@ public abstract class WebServiceClient {
 	/** The node logger instance. */
 	private static final NodeLogger LOGGER = NodeLogger.getLogger(WebServiceClient.class);
 	
+	/** Runs the web service calls, so that a cancelled node does not have to wait for a 
+	 * blocking socket read to time out. */
+	private static final ExecutorService CALL_EXECUTOR = Executors.newCachedThreadPool(
+			new ThreadFactory( ) {
+				
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					Thread thread = new Thread(runnable);
+					thread.setName("WSClient_" + thread.getId( ));
+					thread.setDaemon(true);
+					return thread;
+				}
+				
+			}
+	);
+	
 	/** The id of the thread that created this instance to check as this class is not thread safe.*/
 	private final long THREAD_ID;
 		
@@ -152,7 +171,7 @@ public abstract class WebServiceClient {
 		
 		// Extract the result
 		try {
-			CancellableJob<Object[]> canJob = new CancellableJob<Object[]>("WSClient_" + method);
+			CancellableJob<Object[]> canJob = new CancellableJob<Object[]>( );
 			
 			return canJob.execute(exec, new Job<Object[]>() {
 
@@ -161,7 +180,7 @@ public abstract class WebServiceClient {
 					return invoke(method, parameters);
 				}
 				
-			});
+			}, CALL_EXECUTOR);
 			
 		} catch(Throwable ex) {
 			if(ex instanceof InterruptedException) {
@@ -0,0 +1,154 @@
+package org.erlwood.knime.nodes.fingerprintsimilarity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.erlwood.knime.nodes.fingerprintsimilarity.FingerprintSearch.Hit;
+import org.junit.Test;
+import org.knime.core.data.vector.bitvector.DenseBitVector;
+import org.knime.core.data.vector.bitvector.DenseBitVectorCellFactory;
+
+/**
+ * Checks the bit count pruning of {@link FingerprintSearch} against a scan that
+ * scores every data fingerprint.
+ */
+public class FingerprintSearchTest {
+	
+	private static final int LENGTH = 150;
+	
+	private static final int[] TOP_K = { 0, 1, 3, 10, 1000 };
+	
+	private static final double[] THRESHOLDS = { 0.0, 0.3, 0.6, 1.0 };
+	
+	private static final FingerprintSimilarity.eMeasure[] MEASURES = {
+		FingerprintSimilarity.eMeasure.TANIMOTO, FingerprintSimilarity.eMeasure.INTERSECTION
+	};
+	
+	@Test
+	public void testMatchesBruteForce() {
+		Random random = new Random(42);
+		List<PackedFingerprint> data = randomFingerprints(random, 400);
+		FingerprintSearch search = new FingerprintSearch(data);
+		
+		for (int q = 0; q < 25; q++) {
+			PackedFingerprint query = randomFingerprint(random);
+			for (FingerprintSimilarity.eMeasure measure : MEASURES) {
+				for (int k : TOP_K) {
+					for (double threshold : THRESHOLDS) {
+						assertHits(bruteForce(data, query, measure, k, threshold),
+								search.search(query, measure, k, threshold));
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testQueryFromData() {
+		Random random = new Random(7);
+		List<PackedFingerprint> data = randomFingerprints(random, 200);
+		FingerprintSearch search = new FingerprintSearch(data);
+		
+		// a query taken from the data reaches the bound of its own group,
+		// and its duplicates tie with it
+		for (int i = 0; i < data.size(); i += 17) {
+			PackedFingerprint query = data.get(i);
+			if (query == null) {
+				continue;
+			}
+			for (FingerprintSimilarity.eMeasure measure : MEASURES) {
+				for (int k : TOP_K) {
+					assertHits(bruteForce(data, query, measure, k, 0.0),
+							search.search(query, measure, k, 0.0));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testEmptyQuery() {
+		Random random = new Random(3);
+		List<PackedFingerprint> data = randomFingerprints(random, 100);
+		FingerprintSearch search = new FingerprintSearch(data);
+		PackedFingerprint empty = fingerprint(new DenseBitVector(LENGTH));
+		
+		for (FingerprintSimilarity.eMeasure measure : MEASURES) {
+			for (int k : TOP_K) {
+				assertHits(bruteForce(data, empty, measure, k, 0.0),
+						search.search(empty, measure, k, 0.0));
+			}
+		}
+	}
+	
+	/**
+	 * Fingerprints of varying density, including empty ones, duplicates and
+	 * gaps (null entries), so that most bit count groups and ties are hit.
+	 */
+	private static List<PackedFingerprint> randomFingerprints(Random random, int n) {
+		List<PackedFingerprint> data = new ArrayList<PackedFingerprint>();
+		for (int i = 0; i < n; i++) {
+			int r = random.nextInt(20);
+			if (r == 0) {
+				data.add(null);
+			} else if (r == 1) {
+				data.add(fingerprint(new DenseBitVector(LENGTH)));
+			} else if (r == 2 && !data.isEmpty()) {
+				data.add(data.get(random.nextInt(data.size())));
+			} else {
+				data.add(randomFingerprint(random));
+			}
+		}
+		return data;
+	}
+	
+	private static PackedFingerprint randomFingerprint(Random random) {
+		double density = random.nextDouble() * 0.6;
+		DenseBitVector bits = new DenseBitVector(LENGTH);
+		for (int i = 0; i < LENGTH; i++) {
+			if (random.nextDouble() < density) {
+				bits.set(i);
+			}
+		}
+		return fingerprint(bits);
+	}
+	
+	private static PackedFingerprint fingerprint(DenseBitVector bits) {
+		return PackedFingerprint.of(new DenseBitVectorCellFactory(bits).createDataCell());
+	}
+	
+	/** Scores every data fingerprint, keeping the order the search promises. */
+	private static List<double[]> bruteForce(List<PackedFingerprint> data, PackedFingerprint query,
+			FingerprintSimilarity.eMeasure measure, int k, double threshold) {
+		List<double[]> hits = new ArrayList<double[]>();
+		for (int i = 0; i < data.size(); i++) {
+			if (data.get(i) == null) {
+				continue;
+			}
+			double sim = measure.compute(query, data.get(i));
+			if (!Double.isNaN(sim) && sim >= threshold) {
+				hits.add(new double[] { i, sim });
+			}
+		}
+		Collections.sort(hits, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] a, double[] b) {
+				int c = Double.compare(b[1], a[1]);
+				return c != 0 ? c : Double.compare(a[0], b[0]);
+			}
+		});
+		return k > 0 && hits.size() > k ? hits.subList(0, k) : hits;
+	}
+	
+	private static void assertHits(List<double[]> expected, List<Hit> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals((int) expected.get(i)[0], actual.get(i).getIndex());
+			assertEquals(expected.get(i)[1], actual.get(i).getSimilarity(), 0.0);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.erlwood.knime.nodes.openphacts.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RequestExecutor}.
+ */
+public class RequestExecutorTest {
+	
+	@Test
+	public void testCancelledQueuedTasksReturnTheirSlots() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1);
+		try {
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			Future<Integer> running = executor.submit(null, new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					started.countDown();
+					release.await();
+					return 1;
+				}
+			});
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<Integer> queued = executor.submit(null, constant(2));
+			assertEquals(0, executor.getAvailableSlots());
+			
+			// the queued task never starts
+			queued.cancel(true);
+			running.cancel(true);
+			release.countDown();
+			assertSlots(2, executor);
+			
+			// the executor is still usable
+			assertEquals(Integer.valueOf(3), RequestExecutor.get(null, executor.submit(null, constant(3))));
+			assertSlots(2, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testFailedInvokeAllReturnsAllSlots() throws Exception {
+		RequestExecutor executor = new RequestExecutor(2);
+		try {
+			for (int round = 0; round < 20; round++) {
+				final CountDownLatch release = new CountDownLatch(1);
+				List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						throw new IllegalStateException("failed");
+					}
+				});
+				for (int i = 0; i < 3; i++) {
+					tasks.add(new Callable<Integer>() {
+						@Override
+						public Integer call() throws Exception {
+							release.await();
+							return 0;
+						}
+					});
+				}
+				try {
+					executor.invokeAll(null, tasks);
+					fail("Expected the task exception");
+				} catch (IllegalStateException ex) {
+					// expected
+				}
+				release.countDown();
+				assertSlots(4, executor);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Waits for the slots to be returned. A FutureTask wakes the threads waiting for its 
+	 * result before it returns the slot, so the count can lag behind briefly.
+	 */
+	private static void assertSlots(int expected, RequestExecutor executor) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (executor.getAvailableSlots() != expected && System.nanoTime() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, executor.getAvailableSlots());
+	}
+	
+	private static Callable<Integer> constant(final int value) {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return value;
+			}
+		};
+	}
+}
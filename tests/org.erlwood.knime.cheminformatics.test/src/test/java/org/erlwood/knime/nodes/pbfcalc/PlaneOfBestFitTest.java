@@ -0,0 +1,162 @@
+package org.erlwood.knime.nodes.pbfcalc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Regression tests for {@link PlaneOfBestFit}. The expected normals, smallest eigenvalues 
+ * and PBF values were taken from the previous implementation, which used 
+ * JSci's LinearMath.eigenSolveSymmetric.
+ */
+public class PlaneOfBestFitTest {
+	
+	private static final double TOLERANCE = 1e-9;
+	
+	/** Six points in the plane 2x - y + 2z = 3. */
+	private static final double[][] PLANAR = {
+		{ 1.5, 0.0, 0.0 }, { 2.1, 1.2, 0.0 }, { 1.0, 2.0, 1.5 }, 
+		{ 0.1, 0.2, 1.5 }, { 3.0, 1.0, -1.0 }, { -0.5, -1.0, 1.5 }
+	};
+	
+	/** A cyclohexane chair with two substituents. */
+	private static final double[][] PUCKERED = {
+		{ 1.2611, 0.7281, 0.2300 }, { 0.0000, 1.4562, -0.2300 }, { -1.2611, 0.7281, 0.2300 },
+		{ -1.2611, -0.7281, -0.2300 }, { 0.0000, -1.4562, 0.2300 }, { 1.2611, -0.7281, -0.2300 },
+		{ 2.1400, 1.2400, -0.4000 }, { -2.1000, -1.2000, 0.3500 }
+	};
+	
+	/** Points on the line (1, 2, 3) + t (1, -1, 0.5). */
+	private static final double[][] COLLINEAR = {
+		{ 1.0, 2.0, 3.0 }, { 2.0, 1.0, 3.5 }, { 3.5, -0.5, 4.25 }, { -1.0, 4.0, 2.0 }
+	};
+	
+	/** 
+	 * Pairs of points along a rotated orthonormal basis at distances 3, 1.00001 and 1, so 
+	 * the two smallest eigenvalues differ by about 1e-5 relative to each other. 
+	 */
+	private static final double[][] NEAR_DEGENERATE = {
+		{ 2.6920449498065375, 1.5963339906748204, 2.8865606199840186 },
+		{ -1.6920449498065375, -2.0963339906748204, 1.1134393800159814 },
+		{ -0.14422412941456342, 0.5148498357063613, 2.0 },
+		{ 1.1442241294145634, -1.0148498357063613, 2.0 },
+		{ 0.273973678750377, -0.44037934406737267, 2.9553364891256058 },
+		{ 0.726026321249623, -0.05962065593262736, 1.044663510874394 }
+	};
+	
+	@Test
+	public void testPlanar() {
+		assertMatches(PLANAR, 
+				new double[] { 0.66666666666666660, -0.33333333333333310, 0.66666666666666690 }, 
+				0.0, 0.0);
+	}
+	
+	@Test
+	public void testPuckered() {
+		assertMatches(PUCKERED, 
+				new double[] { 0.088311124850387700, 0.050867294426018590, 0.99479327680952700 }, 
+				0.051443221505989234, 0.20254428897989540);
+	}
+	
+	@Test
+	public void testNearDegenerate() {
+		assertMatches(NEAR_DEGENERATE, 
+				new double[] { -0.22602632124962305, -0.19037934406737256, 0.95533648912560610 }, 
+				0.33333333333333315, 0.33333333333333330);
+	}
+	
+	@Test
+	public void testCollinear() {
+		// Any plane containing the line fits, so only check that the normal is 
+		// orthogonal to the line
+		double[][] cov = covariance(COLLINEAR);
+		double[] normal = smallestEigenvector(cov);
+		double length = Math.sqrt(1 + 1 + 0.25);
+		double along = (normal[0] - normal[1] + 0.5 * normal[2]) / length;
+		assertEquals(0.0, along, TOLERANCE);
+		assertEquals(0.0, rayleigh(cov, normal), TOLERANCE);
+		assertEquals(0.0, PlaneOfBestFit.calculate(x(COLLINEAR), y(COLLINEAR), z(COLLINEAR)), TOLERANCE);
+	}
+	
+	@Test
+	public void testNoAtoms() {
+		assertTrue(Double.isNaN(PlaneOfBestFit.calculate(new double[0], new double[0], new double[0])));
+	}
+	
+	/**
+	 * Checks the normal up to its sign, the eigenvalue it belongs to and the PBF value.
+	 */
+	private static void assertMatches(double[][] points, double[] expectedNormal, 
+			double expectedEigenvalue, double expectedPbf) {
+		double[][] cov = covariance(points);
+		double[] normal = smallestEigenvector(cov);
+		double sign = Math.signum(normal[0] * expectedNormal[0] + normal[1] * expectedNormal[1] 
+				+ normal[2] * expectedNormal[2]);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expectedNormal[i], sign * normal[i], TOLERANCE);
+		}
+		assertEquals(expectedEigenvalue, rayleigh(cov, normal), TOLERANCE);
+		assertEquals(expectedPbf, PlaneOfBestFit.calculate(x(points), y(points), z(points)), TOLERANCE);
+	}
+	
+	private static double[] smallestEigenvector(double[][] cov) {
+		double[] normal = new double[3];
+		PlaneOfBestFit.smallestEigenvector(cov[0][0], cov[0][1], cov[0][2], cov[1][1], cov[1][2], 
+				cov[2][2], normal);
+		assertEquals(1.0, Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]),
+				TOLERANCE);
+		return normal;
+	}
+	
+	/** @return The covariance matrix of the points, as calculated for the PBF. */
+	private static double[][] covariance(double[][] points) {
+		int n = points.length;
+		double[] mean = new double[3];
+		for (double[] p : points) {
+			for (int i = 0; i < 3; i++) {
+				mean[i] += p[i] / n;
+			}
+		}
+		double[][] cov = new double[3][3];
+		for (double[] p : points) {
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					cov[i][j] += (p[i] - mean[i]) * (p[j] - mean[j]) / n;
+				}
+			}
+		}
+		return cov;
+	}
+	
+	/** @return v' A v for a unit vector v. */
+	private static double rayleigh(double[][] a, double[] v) {
+		double sum = 0;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				sum += v[i] * a[i][j] * v[j];
+			}
+		}
+		return sum;
+	}
+	
+	private static double[] x(double[][] points) {
+		return column(points, 0);
+	}
+	
+	private static double[] y(double[][] points) {
+		return column(points, 1);
+	}
+	
+	private static double[] z(double[][] points) {
+		return column(points, 2);
+	}
+	
+	private static double[] column(double[][] points, int c) {
+		double[] result = new double[points.length];
+		for (int i = 0; i < points.length; i++) {
+			result[i] = points[i][c];
+		}
+		return result;
+	}
+}
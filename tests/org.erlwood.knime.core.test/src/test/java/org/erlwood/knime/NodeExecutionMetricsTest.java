@@ -0,0 +1,58 @@
+package org.erlwood.knime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.erlwood.knime.NodeExecutionMetrics.Execution;
+import org.erlwood.knime.NodeExecutionMetrics.Totals;
+import org.junit.Test;
+import org.knime.core.node.workflow.NodeID;
+
+public class NodeExecutionMetricsTest {
+	
+	private static final int THREADS = 8;
+	private static final int EXECUTIONS = 10000;
+	
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final NodeExecutionMetrics metrics = new NodeExecutionMetrics();
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			final int node = t % 2;
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < EXECUTIONS; i++) {
+						metrics.record(new Execution("Node " + node, new NodeID(node), 2, 1, 10, 5, 1));
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+		
+		assertEquals(2, metrics.getAllTotals().size());
+		Totals totals = metrics.getTotals("Node 0");
+		long executions = THREADS / 2 * EXECUTIONS;
+		assertEquals(executions, totals.getExecutions());
+		assertEquals(2 * executions, totals.getWallTime());
+		assertEquals(executions, totals.getCpuTime());
+		assertEquals(10 * executions, totals.getRowsIn());
+		assertEquals(5 * executions, totals.getRowsOut());
+		assertEquals(executions, totals.getIOTiming());
+		assertEquals(5000.0, totals.getRowsPerSecond(), 1e-9);
+	}
+	
+	@Test
+	public void testUnmeasuredValuesAreNotCounted() {
+		NodeExecutionMetrics metrics = new NodeExecutionMetrics();
+		metrics.record(new Execution("Source", new NodeID(0), 0, -1, -1, 100, 0));
+		Totals totals = metrics.getTotals("Source");
+		assertEquals(0, totals.getCpuTime());
+		assertEquals(0, totals.getRowsIn());
+		assertEquals(0.0, totals.getRowsPerSecond(), 0.0);
+	}
+}
@@ -0,0 +1,163 @@
+package org.erlwood.knime.nodes.downloadfileswithauth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests for the resume, verify and restart paths of {@link DownloadTransfer}.
+ */
+public class DownloadTransferTest {
+	
+	/** The local files are written one hour after the remote file was last changed. */
+	private static final long REMOTE_MODIFIED = System.currentTimeMillis( ) - 3600 * 1000;
+	
+	@Test
+	public void testSameSizeIsSkipped() throws IOException {
+		byte[] data = randomData(300000);
+		File file = createLocal(data, REMOTE_MODIFIED + 1000);
+		try {
+			TestRemoteFile remote = new TestRemoteFile(data);
+			AtomicLong transferred = download(remote, file, true, false);
+			assertEquals(0, remote.opened);
+			assertEquals(data.length, transferred.get( ));
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	@Test
+	public void testPartialFileIsAppended() throws IOException {
+		byte[] data = randomData(300000);
+		File file = createLocal(Arrays.copyOf(data, 100000), REMOTE_MODIFIED + 1000);
+		try {
+			TestRemoteFile remote = new TestRemoteFile(data);
+			AtomicLong transferred = download(remote, file, true, true);
+			assertEquals(data.length, transferred.get( ));
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	@Test
+	public void testVerifyMismatchRestarts() throws IOException {
+		byte[] data = randomData(300000);
+		byte[] local = Arrays.copyOf(data, 100000);
+		local[local.length - 10] ^= 1;
+		File file = createLocal(local, REMOTE_MODIFIED + 1000);
+		try {
+			download(new TestRemoteFile(data), file, true, true);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	@Test
+	public void testStaleFileRestarts() throws IOException {
+		byte[] data = randomData(300000);
+		byte[] local = new byte[data.length];
+		File file = createLocal(local, REMOTE_MODIFIED - 1000);
+		try {
+			download(new TestRemoteFile(data), file, true, false);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+			
+			// a shorter stale file must not be appended to either
+			Files.write(file.toPath( ), Arrays.copyOf(local, 100000));
+			file.setLastModified(REMOTE_MODIFIED - 1000);
+			download(new TestRemoteFile(data), file, true, false);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	@Test
+	public void testLargerFileRestarts() throws IOException {
+		byte[] data = randomData(300000);
+		File file = createLocal(new byte[400000], REMOTE_MODIFIED + 1000);
+		try {
+			download(new TestRemoteFile(data), file, true, false);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	@Test
+	public void testOverwritesWithoutResume() throws IOException {
+		byte[] data = randomData(300000);
+		File file = createLocal(new byte[data.length], REMOTE_MODIFIED + 1000);
+		try {
+			download(new TestRemoteFile(data), file, false, false);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath( )));
+		} finally {
+			file.delete( );
+		}
+	}
+	
+	private static AtomicLong download(final TestRemoteFile remote, final File file, 
+			final boolean resume, final boolean verify) throws IOException {
+		AtomicLong transferred = new AtomicLong( );
+		DownloadTransfer transfer = new DownloadTransfer("row", remote, file);
+		transfer.setOptions(4096, resume, verify, transferred);
+		transfer.call( );
+		return transferred;
+	}
+	
+	private static byte[] randomData(final int size) {
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+	
+	private static File createLocal(final byte[] data, final long modified) throws IOException {
+		File file = File.createTempFile("DownloadTransferTest", ".bin");
+		Files.write(file.toPath( ), data);
+		file.setLastModified(modified);
+		return file;
+	}
+	
+	/** A remote file held in memory. */
+	private static final class TestRemoteFile implements DownloadTransfer.RemoteFile {
+		private final byte[] data;
+		private int opened;
+		
+		TestRemoteFile(final byte[] data) {
+			this.data = data;
+		}
+		
+		@Override
+		public String getPath( ) {
+			return "share/file.bin";
+		}
+		
+		@Override
+		public long getSize( ) {
+			return data.length;
+		}
+		
+		@Override
+		public long getLastModified( ) {
+			return REMOTE_MODIFIED;
+		}
+		
+		@Override
+		public InputStream getInputStream( ) {
+			opened++;
+			return new ByteArrayInputStream(data);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.erlwood.knime.nodes.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ScreenIndexTest {
+	
+	private static final int POINTS = 20000;
+	private static final int QUERIES = 500;
+	
+	@Test
+	public void testMatchesLinearScan() {
+		Random random = new Random(42);
+		DataPoint[] points = new DataPoint[POINTS];
+		float[] xs = new float[POINTS];
+		float[] ys = new float[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			points[i] = new DataPoint(0, 0);
+			points[i].setSize(2 + random.nextInt(10));
+			// clustered, with duplicates and unprojectable points
+			xs[i] = (float) Math.round(random.nextGaussian() * 100 + 300);
+			ys[i] = (float) Math.round(random.nextGaussian() * 50 + 200);
+			if (i % 1000 == 0) {
+				xs[i] = Float.NaN;
+			}
+		}
+		ScreenIndex index = new ScreenIndex(points, xs, ys);
+		
+		for (int q = 0; q < QUERIES; q++) {
+			// include positions well outside the points
+			float x = random.nextFloat() * 1000 - 200;
+			float y = random.nextFloat() * 1000 - 200;
+			assertEquals(closest(xs, ys, x, y), index.getClosest(x, y));
+			
+			float x2 = x + random.nextFloat() * 200;
+			float y2 = y + random.nextFloat() * 200;
+			assertArrayEquals(inBox(points, xs, ys, x, y, x2, y2), index.getInBox(x, y, x2, y2));
+		}
+	}
+	
+	@Test
+	public void testEmpty() {
+		ScreenIndex index = new ScreenIndex(new DataPoint[0], new float[0], new float[0]);
+		assertEquals(-1, index.getClosest(10, 10));
+		assertEquals(0, index.getInBox(0, 0, 100, 100).length);
+	}
+	
+	/** The previous picking code: the last of the closest points wins. */
+	private static int closest(float[] xs, float[] ys, float x, float y) {
+		double minDist = Double.MAX_VALUE;
+		int rp = -1;
+		for (int i = xs.length - 1; i >= 0; i--) {
+			double dist = Math.sqrt((xs[i] - x) * (xs[i] - x) + (ys[i] - y) * (ys[i] - y));
+			if (dist < minDist) {
+				minDist = dist;
+				rp = i;
+			}
+		}
+		return rp;
+	}
+	
+	private static int[] inBox(DataPoint[] points, float[] xs, float[] ys, 
+			float x1, float y1, float x2, float y2) {
+		int[] found = new int[points.length];
+		int count = 0;
+		for (int i = 0; i < points.length; i++) {
+			int half = points[i].getSize() / 2;
+			if (xs[i] + half > x1 && xs[i] - half < x2 && ys[i] + half > y1 && ys[i] - half < y2) {
+				found[count++] = i;
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+}
@@ -0,0 +1,118 @@
+package org.erlwood.knime.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTable;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.container.DataContainer;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Tests for {@link TableStringCodec}, including strings in the uncompressed format
+ * written before the {@link TableStringCodec#HEADER} was introduced.
+ */
+public class TableStringCodecTest {
+	
+	private static final DataTableSpec SPEC = new DataTableSpec(
+			new DataColumnSpecCreator("Name", StringCell.TYPE).createSpec(),
+			new DataColumnSpecCreator("Count", IntCell.TYPE).createSpec(),
+			new DataColumnSpecCreator("Value", DoubleCell.TYPE).createSpec());
+	
+	@Test
+	public void testRoundTrip() throws Exception {
+		// enough rows for several compression buffers
+		DataTable table = createTable(20000);
+		String encoded = TableStringCodec.encode(table, new ExecutionMonitor());
+		
+		assertTrue(encoded.startsWith(TableStringCodec.HEADER));
+		assertEquals(-1, encoded.indexOf('\n'));
+		assertTablesEqual(table, TableStringCodec.decode(encoded));
+	}
+	
+	@Test
+	public void testRoundTripEmptyTable() throws Exception {
+		DataTable table = createTable(0);
+		String encoded = TableStringCodec.encode(table, new ExecutionMonitor());
+		
+		assertTrue(encoded.startsWith(TableStringCodec.HEADER));
+		assertTablesEqual(table, TableStringCodec.decode(encoded));
+	}
+	
+	@Test
+	public void testDecodeLegacy() throws Exception {
+		DataTable table = createTable(500);
+		String legacy = Base64.encodeBase64String(writeToBytes(table));
+		
+		assertFalse(legacy.startsWith(TableStringCodec.HEADER));
+		assertTablesEqual(table, TableStringCodec.decode(legacy));
+	}
+	
+	@Test
+	public void testDecodeLegacyWithLineBreaks() throws Exception {
+		DataTable table = createTable(500);
+		// older codec versions chunked the output into lines of 76 characters
+		String legacy = new String(Base64.encodeBase64Chunked(writeToBytes(table)), StandardCharsets.US_ASCII);
+		
+		assertTrue(legacy.indexOf("\r\n") > 0);
+		assertTablesEqual(table, TableStringCodec.decode(legacy));
+	}
+	
+	@Test
+	public void testDecodeLegacyEmptyTable() throws Exception {
+		DataTable table = createTable(0);
+		String legacy = new String(Base64.encodeBase64Chunked(writeToBytes(table)), StandardCharsets.US_ASCII);
+		
+		assertTablesEqual(table, TableStringCodec.decode(legacy));
+	}
+	
+	/** The uncompressed table as written by earlier versions. */
+	private static byte[] writeToBytes(DataTable table) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataContainer.writeToStream(table, baos, new ExecutionMonitor());
+		return baos.toByteArray();
+	}
+	
+	private static DataTable createTable(int rows) {
+		DataContainer container = new DataContainer(SPEC);
+		for (int i = 0; i < rows; i++) {
+			DataCell value = i % 7 == 0 ? DataType.getMissingCell() : new DoubleCell(i / 3.0);
+			container.addRowToTable(new DefaultRow("Row" + i, 
+					new StringCell("Molecule " + (i % 100)), new IntCell(i), value));
+		}
+		container.close();
+		return container.getTable();
+	}
+	
+	private static void assertTablesEqual(DataTable expected, DataTable actual) {
+		assertEquals(expected.getDataTableSpec(), actual.getDataTableSpec());
+		Iterator<DataRow> e = expected.iterator();
+		Iterator<DataRow> a = actual.iterator();
+		while (e.hasNext()) {
+			assertTrue(a.hasNext());
+			DataRow expectedRow = e.next();
+			DataRow actualRow = a.next();
+			assertEquals(expectedRow.getKey(), actualRow.getKey());
+			assertEquals(expectedRow.getNumCells(), actualRow.getNumCells());
+			for (int i = 0; i < expectedRow.getNumCells(); i++) {
+				assertEquals(expectedRow.getCell(i), actualRow.getCell(i));
+			}
+		}
+		assertFalse(a.hasNext());
+	}
+}
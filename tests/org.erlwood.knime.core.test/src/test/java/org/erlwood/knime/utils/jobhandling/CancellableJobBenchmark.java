@@ -0,0 +1,103 @@
+package org.erlwood.knime.utils.jobhandling;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.erlwood.knime.utils.jobhandling.CancellableJob.Job;
+import org.knime.core.node.DefaultNodeProgressMonitor;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Micro benchmark for the per call overhead of {@link CancellableJob}, compared against 
+ * the previous implementation, which created a pool of two threads per call and polled 
+ * for cancellation every 300 ms. Run it manually, it is not part of the test suite.
+ */
+public final class CancellableJobBenchmark {
+	
+	private static final int WARMUP_CALLS = 2000;
+	private static final int BENCHMARK_CALLS = 20000;
+	private static final int LEGACY_CALLS = 500;
+	
+	private static final Job<Integer> TRIVIAL_JOB = new Job<Integer>() {
+		@Override
+		public Integer execute() throws Exception {
+			return 42;
+		}
+	};
+	
+	private CancellableJobBenchmark() {
+	}
+	
+	public static void main(String[] args) throws Throwable {
+		ExecutionMonitor exec = new ExecutionMonitor(new DefaultNodeProgressMonitor());
+		CancellableJob<Integer> job = new CancellableJob<Integer>();
+		
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			job.execute(exec, TRIVIAL_JOB);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_CALLS; i++) {
+			job.execute(exec, TRIVIAL_JOB);
+		}
+		double newMicros = (System.nanoTime() - start) / 1000.0 / BENCHMARK_CALLS;
+		
+		for (int i = 0; i < LEGACY_CALLS / 10; i++) {
+			executeLegacy(exec, TRIVIAL_JOB);
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < LEGACY_CALLS; i++) {
+			executeLegacy(exec, TRIVIAL_JOB);
+		}
+		double legacyMicros = (System.nanoTime() - start) / 1000.0 / LEGACY_CALLS;
+		
+		System.out.println(String.format(
+				"CancellableJob per call overhead: %.2f us, two thread pool per call: %.2f us",
+				newMicros, legacyMicros));
+	}
+	
+	/**
+	 * The previous implementation, kept here as the benchmark baseline.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T executeLegacy(final ExecutionMonitor exec, final Job<T> theJob) 
+			throws Exception {
+		final ExecutorService threadPool = Executors.newFixedThreadPool(2);
+		CompletionService<Object> pool = new ExecutorCompletionService<Object>(threadPool);
+		pool.submit(new Callable<Object>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					while (!threadPool.isShutdown()) {
+						exec.checkCanceled();
+						Thread.sleep(300);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					threadPool.shutdownNow();
+				}
+				return null;
+			}
+		});
+		pool.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				try {
+					return theJob.execute();
+				} finally {
+					threadPool.shutdownNow();
+				}
+			}
+		});
+		for (int i = 0; i < 2; i++) {
+			Object o = pool.take().get();
+			if (o != null) {
+				return (T) o;
+			}
+		}
+		return null;
+	}
+}
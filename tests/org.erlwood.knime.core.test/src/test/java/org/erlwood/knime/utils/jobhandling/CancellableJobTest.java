@@ -0,0 +1,145 @@
+package org.erlwood.knime.utils.jobhandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.erlwood.knime.utils.jobhandling.CancellableJob.Job;
+import org.junit.Test;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.DefaultNodeProgressMonitor;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Tests for {@link CancellableJob}. See {@link CancellableJobBenchmark} for the per call
+ * overhead.
+ */
+public class CancellableJobTest {
+	
+	private static final Job<Integer> TRIVIAL_JOB = new Job<Integer>() {
+		@Override
+		public Integer execute() throws Exception {
+			return 42;
+		}
+	};
+	
+	@Test
+	public void testReturnsResult() throws Throwable {
+		ExecutionMonitor exec = new ExecutionMonitor(new DefaultNodeProgressMonitor());
+		assertEquals(Integer.valueOf(42), new CancellableJob<Integer>().execute(exec, TRIVIAL_JOB));
+		assertEquals(Integer.valueOf(42), new CancellableJob<Integer>().execute(null, TRIVIAL_JOB));
+	}
+	
+	@Test
+	public void testPropagatesJobException() {
+		ExecutionMonitor exec = new ExecutionMonitor(new DefaultNodeProgressMonitor());
+		try {
+			new CancellableJob<Integer>().execute(exec, new Job<Integer>() {
+				@Override
+				public Integer execute() throws Exception {
+					throw new IllegalStateException("failed");
+				}
+			});
+			fail("Expected the job exception");
+		} catch (Throwable ex) {
+			assertTrue(ex instanceof IllegalStateException);
+		}
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+	
+	@Test
+	public void testCancelInterruptsCallerThread() throws Throwable {
+		DefaultNodeProgressMonitor progress = new DefaultNodeProgressMonitor();
+		ExecutionMonitor exec = new ExecutionMonitor(progress);
+		assertTrue("Job must be interrupted", cancelAfterStart(progress, exec, null));
+		assertFalse("Interrupt must be cleared", Thread.currentThread().isInterrupted());
+	}
+	
+	@Test
+	public void testCancelCancelsFuture() throws Throwable {
+		DefaultNodeProgressMonitor progress = new DefaultNodeProgressMonitor();
+		ExecutionMonitor exec = new ExecutionMonitor(progress);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertTrue("Future must be cancelled", cancelAfterStart(progress, exec, executor));
+			assertFalse("Caller must not be interrupted", Thread.currentThread().isInterrupted());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testPropagatesJobExceptionFromExecutor() throws Throwable {
+		ExecutionMonitor exec = new ExecutionMonitor(new DefaultNodeProgressMonitor());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			new CancellableJob<Integer>().execute(exec, new Job<Integer>() {
+				@Override
+				public Integer execute() throws Exception {
+					throw new IllegalStateException("failed");
+				}
+			}, executor);
+			fail("Expected the job exception");
+		} catch (IllegalStateException ex) {
+			// expected
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Starts a job that blocks until interrupted, cancels it and checks that the caller 
+	 * sees the CanceledExecutionException.
+	 * @return Whether the job was interrupted
+	 */
+	private boolean cancelAfterStart(final DefaultNodeProgressMonitor progress, 
+			final ExecutionMonitor exec, final ExecutorService executor) throws Throwable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		Thread canceller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					started.await();
+					progress.setExecuteCanceled();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		canceller.start();
+		
+		Job<Integer> blocking = new Job<Integer>() {
+			@Override
+			public Integer execute() throws Exception {
+				started.countDown();
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw e;
+				}
+				return 0;
+			}
+		};
+		
+		try {
+			if (executor == null) {
+				new CancellableJob<Integer>().execute(exec, blocking);
+			} else {
+				new CancellableJob<Integer>().execute(exec, blocking, executor);
+			}
+			fail("Expected the job to be cancelled");
+		} catch (CanceledExecutionException ex) {
+			// expected
+		}
+		canceller.join();
+		return interrupted.await(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,91 @@
+package org.erlwood.knime.utils.jobhandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OrderedChunkExecutor}.
+ */
+public class OrderedChunkExecutorTest {
+	
+	@Test
+	public void testResultsInInputOrder() throws Exception {
+		List<Integer> input = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			input.add(i);
+		}
+		final List<Integer> output = new ArrayList<Integer>();
+		new OrderedChunkExecutor<Integer, Integer>("Test", 4, 7).execute(null, input.iterator(), input.size(),
+				new OrderedChunkExecutor.ChunkProcessor<Integer, Integer>() {
+					@Override
+					public List<Integer> process(List<Integer> chunk) {
+						List<Integer> result = new ArrayList<Integer>(chunk.size());
+						for (Integer i : chunk) {
+							result.add(i * 2);
+						}
+						return result;
+					}
+				}, new OrderedChunkExecutor.ResultConsumer<Integer>() {
+					@Override
+					public void accept(Integer result) {
+						output.add(result);
+					}
+				});
+		assertEquals(input.size(), output.size());
+		for (int i = 0; i < output.size(); i++) {
+			assertEquals(Integer.valueOf(i * 2), output.get(i));
+		}
+	}
+	
+	@Test
+	public void testWaitsForWorkersOnError() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		try {
+			new OrderedChunkExecutor<Integer, Integer>("Test", 2, 1).execute(null, Arrays.asList(0, 1).iterator(), 2,
+					new OrderedChunkExecutor.ChunkProcessor<Integer, Integer>() {
+						@Override
+						public List<Integer> process(List<Integer> chunk) throws Exception {
+							if (chunk.get(0).intValue() == 0) {
+								assertTrue(started.await(10, TimeUnit.SECONDS));
+								throw new IllegalStateException("failed");
+							}
+							running.incrementAndGet();
+							started.countDown();
+							try {
+								// Like a call into native code, ignore the interrupt from the executor
+								long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+								while (System.nanoTime() < end) {
+									try {
+										Thread.sleep(10);
+									} catch (InterruptedException e) {
+										// keep going
+									}
+								}
+							} finally {
+								running.decrementAndGet();
+							}
+							return chunk;
+						}
+					}, new OrderedChunkExecutor.ResultConsumer<Integer>() {
+						@Override
+						public void accept(Integer result) {
+						}
+					});
+			fail("Expected the processor exception");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		assertEquals("No worker may still be running", 0, running.get());
+	}
+}